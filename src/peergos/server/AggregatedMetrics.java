@@ -1,6 +1,7 @@
 package peergos.server;
 
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
 import peergos.server.util.*;
@@ -30,9 +31,16 @@ public class AggregatedMetrics {
     public static final Counter DHT_TRANSACTION_START  = build("dht_transaction_start", "Total DHT transaction starts.");
     public static final Counter DHT_TRANSACTION_CLOSE  = build("dht_transaction_close", "Total DHT transaction closes.");
 
+    public static final Counter BLOCK_CACHE_HIT  = build("block_cache_hit", "Total block reads served from the cache.");
+    public static final Counter BLOCK_CACHE_MISS  = build("block_cache_miss", "Total block reads not served from the cache.");
+    public static final Counter BLOCK_CACHE_EVICTION  = build("block_cache_eviction", "Total blocks evicted from, or not admitted to, the cache.");
+
     public static final Counter MUTABLE_POINTERS_SET  = build("mutable_pointers_set", "Total mutable-pointers set calls.");
     public static final Counter MUTABLE_POINTERS_GET  = build("mutable_pointers_get", "Total mutable-pointers get calls.");
 
+    public static final Counter MUTABLE_POINTER_CACHE_HIT  = build("mutable_pointer_cache_hit", "Total mutable pointer reads served from the cache.");
+    public static final Counter MUTABLE_POINTER_CACHE_MISS  = build("mutable_pointer_cache_miss", "Total mutable pointer reads not served from the cache.");
+
     public static final Counter GET_ALL_USERNAMES  = build("core_node_get_all_usernames", "Total get-all-usernames calls.");
     public static final Counter GET_USERNAME  = build("core_node_get_username", "Total get-username calls.");
     public static final Counter GET_PUBLIC_KEY  = build("core_node_get_public_key", "Total get-public-key calls.");
@@ -50,7 +58,27 @@ public class AggregatedMetrics {
             .help("IPFS GC Duration (ms).")
             .register();
 
-
+    public static final Gauge HTTP_IN_FLIGHT = Gauge.build()
+            .name("http_requests_in_flight")
+            .labelNames("endpoint")
+            .help("Requests currently being handled, per endpoint.")
+            .register();
+    public static final Gauge HTTP_QUEUED = Gauge.build()
+            .name("http_requests_queued")
+            .labelNames("endpoint")
+            .help("Requests waiting for a free slot, per endpoint.")
+            .register();
+    public static final Counter HTTP_REJECTED = Counter.build()
+            .name("http_requests_rejected")
+            .labelNames("endpoint")
+            .help("Total requests rejected because the endpoint queue was full.")
+            .register();
+    public static final Histogram HTTP_REQUEST_DURATION = Histogram.build()
+            .name("http_request_duration")
+            .labelNames("endpoint")
+            .exponentialBuckets(1, 2, 20)
+            .help("Time (ms) from receiving a request to completing its response, per endpoint.")
+            .register();
 
     public static void startExporter(String address, int port) throws IOException {
         Logging.LOG().info("Starting metrics server at " + address + ":" + port);
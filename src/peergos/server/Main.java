@@ -10,6 +10,7 @@ import peergos.shared.*;
 import peergos.server.corenode.*;
 import peergos.server.fuse.*;
 import peergos.server.mutable.*;
+import peergos.server.net.AsyncHandler;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.cbor.*;
@@ -118,6 +119,7 @@ public class Main {
                     new Command.Arg("domain", "Domain name to bind to,", false, "localhost"),
                     new Command.Arg("max-users", "The maximum number of local users", false, "1"),
                     new Command.Arg("useIPFS", "Use IPFS for storage or a local disk store", false, "true"),
+                    new Command.Arg("pack-blockstore", "When not using IPFS, store blocks in append only pack files rather than a file per block", false, "false"),
                     new Command.Arg("mutable-pointers-file", "The filename for the mutable pointers datastore", true, "mutable.sql"),
                     new Command.Arg("social-sql-file", "The filename for the follow requests datastore", true, "social.sql"),
                     new Command.Arg("space-requests-sql-file", "The filename for the space requests datastore", true, "space-requests.sql"),
@@ -148,7 +150,7 @@ public class Main {
             String ipfsApiAddress = args.getArg("ipfs-api-address", "/ip4/127.0.0.1/tcp/5001");
             ContentAddressedStorage dht = useIPFS ?
                     new IpfsDHT(new MultiAddress(ipfsApiAddress)) :
-                    new FileContentAddressedStorage(blockstorePath(args),
+                    localBlockStore(args,
                             JdbcTransactionStore.build(getDBConnector(args, "transactions-sql-file"), new SqliteCommands()));
 
             SigningKeyPair peergosIdentityKeys = peergos.getUser();
@@ -311,8 +313,7 @@ public class Main {
                             S3Config.useS3(args) ?
                                     new S3BlockStorage(S3Config.build(args), Cid.decode(args.getArg("ipfs.id")),
                                             BlockStoreProperties.empty(), transactions, new IpfsDHT(ipfsApi)) :
-                                    new FileContentAddressedStorage(blockstorePath(args),
-                                            transactions);
+                                    localBlockStore(args, transactions);
                     Multihash pkiIpfsNodeId = storage.id().get();
 
                     if (ipfs != null)
@@ -358,6 +359,27 @@ public class Main {
             Collections.emptyList()
     );
 
+    public static final Command<Long> MIGRATE_BLOCKSTORE = new Command<>("migrate-blockstore",
+            "Copy a local file per block store into a pack file block store",
+            args -> {
+                try {
+                    TransactionStore transactions = JdbcTransactionStore.build(buildEphemeralSqlite(), new SqliteCommands());
+                    FileContentAddressedStorage source = new FileContentAddressedStorage(blockstorePath(args), transactions);
+                    PackFileContentAddressedStorage target = new PackFileContentAddressedStorage(packBlockstorePath(args), transactions);
+                    long copied = PackFileContentAddressedStorage.migrate(source, target);
+                    target.close();
+                    System.out.println("Migrated " + copied + " blocks to " + target);
+                    return copied;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            },
+            Arrays.asList(
+                    new Command.Arg("blockstore_dir", "The file per block store to copy from", false, "blockstore"),
+                    new Command.Arg("pack_blockstore_dir", "The pack file block store to copy to", false, "packstore")
+            )
+    );
+
     public static Crypto initCrypto() {
         try {
             JniTweetNacl nativeNacl = JniTweetNacl.build();
@@ -402,10 +424,7 @@ public class Main {
             if (":memory:".equals(sqlFilePath))
                 return buildEphemeralSqlite();
             try {
-                Connection memory = Sqlite.build(sqlFilePath);
-                // We need a connection that ignores close
-                Connection instance = new Sqlite.UncloseableConnection(memory);
-                return () -> instance;
+                return SqlitePool.forFile(sqlFilePath, a.getInt("sqlite-read-connections", 4));
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -450,8 +469,14 @@ public class Main {
             String domain = a.getArg("domain");
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
-            int dhtCacheEntries = 1000;
+            long blockCacheBytes = a.getLong("block-cache-size", 64 * 1024 * 1024);
             int maxValueSizeToCache = 50 * 1024;
+            int decodedBlockCacheEntries = a.getInt("decoded-block-cache-entries", 10_000);
+            Function<ContentAddressedStorage, ContentAddressedStorage> withBlockCache = dht -> new CachingStorage(dht,
+                    blockCacheBytes, maxValueSizeToCache, decodedBlockCacheEntries,
+                    AggregatedMetrics.BLOCK_CACHE_HIT::inc,
+                    AggregatedMetrics.BLOCK_CACHE_MISS::inc,
+                    AggregatedMetrics.BLOCK_CACHE_EVICTION::inc);
             JavaPoster ipfsApi = new JavaPoster(ipfsApiAddress);
             JavaPoster ipfsGateway = new JavaPoster(ipfsGatewayAddress);
 
@@ -460,22 +485,24 @@ public class Main {
                     new PostgresCommands() :
                     new SqliteCommands();
 
+            Supplier<Connection> database = getDBConnector(a, "mutable-pointers-file");
+            JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
+
             ContentAddressedStorage localDht;
+            boolean enableGC = a.getBoolean("enable-gc", false);
+            long gcPeriodMillis = a.getInt("gc.period.millis", 60 * 60 * 1000);
             if (useIPFS) {
-                boolean enableGC = a.getBoolean("enable-gc", false);
                 ContentAddressedStorage.HTTP ipfs = new ContentAddressedStorage.HTTP(ipfsApi, false);
                 if (enableGC) {
-                    GarbageCollector gced = new GarbageCollector(ipfs, a.getInt("gc.period.millis", 60 * 60 * 1000));
+                    IpfsGarbageCollector gced = new IpfsGarbageCollector(ipfs, gcPeriodMillis);
                     gced.start();
-                    localDht = new CachingStorage(gced, dhtCacheEntries, maxValueSizeToCache);
+                    localDht = withBlockCache.apply(gced);
                 } else
-                    localDht = new CachingStorage(ipfs, dhtCacheEntries, maxValueSizeToCache);
+                    localDht = withBlockCache.apply(ipfs);
             } else {
-                boolean enableGC = a.getBoolean("enable-gc", false);
-                if (enableGC)
-                    throw new IllegalStateException("GC has not been implemented when not using IPFS!");
                 Supplier<Connection> transactionsDb = getDBConnector(a, "transactions-sql-file");
-                        TransactionStore transactions = JdbcTransactionStore.build(transactionsDb, sqlCommands);
+                TransactionStore transactions = JdbcTransactionStore.build(transactionsDb, sqlCommands);
+                DeletableContentAddressedStorage blockStore;
                 // In S3 mode of operation we require the ipfs id to be supplied as we don't have a local ipfs running
                 if (S3Config.useS3(a)) {
                     ContentAddressedStorage.HTTP ipfs = new ContentAddressedStorage.HTTP(ipfsApi, false);
@@ -484,18 +511,22 @@ public class Main {
                     boolean publicReads = a.getBoolean("public-s3-reads", false);
                     boolean authedReads = a.getBoolean("authed-s3-reads", false);
                     BlockStoreProperties props = new BlockStoreProperties(directWrites, publicReads, authedReads, publicReadUrl);
-                    localDht = new S3BlockStorage(S3Config.build(a), Cid.decode(a.getArg("ipfs.id")),
+                    blockStore = new S3BlockStorage(S3Config.build(a), Cid.decode(a.getArg("ipfs.id")),
                             props, transactions, ipfs);
                 } else
-                    localDht = new FileContentAddressedStorage(blockstorePath(a), transactions);
+                    blockStore = localBlockStore(a, transactions);
+                if (enableGC) {
+                    GarbageCollector gced = new GarbageCollector(blockStore, transactions, rawPointers, gcPeriodMillis);
+                    gced.start();
+                    localDht = gced;
+                } else
+                    localDht = blockStore;
             }
 
 
             String hostname = a.getArg("domain");
             Multihash nodeId = localDht.id().get();
 
-            Supplier<Connection> database = getDBConnector(a, "mutable-pointers-file");
-            JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
             MutablePointers localPointers = UserRepository.build(localDht, rawPointers);
             MutablePointersProxy proxingMutable = new HttpMutablePointers(ipfsGateway, pkiServerNodeId);
 
@@ -541,7 +572,17 @@ public class Main {
 
             Path blacklistPath = a.fromPeergosDir("blacklist_file", "blacklist.txt");
             PublicKeyBlackList blacklist = new UserBasedBlacklist(blacklistPath, core, localMutable, p2pDht, hasher);
-            MutablePointers blockingMutablePointers = new BlockingMutablePointers(new PinningMutablePointers(localMutable, p2pDht), blacklist);
+            // Every local pointer write, including mirroring, invalidates the cache, so cached pointers can live longer
+            // than on a client
+            CachingPointers cachingPointers = new CachingPointers(new PinningMutablePointers(localMutable, p2pDht),
+                    a.getInt("mutable-pointer-cache-ttl", 60_000),
+                    a.getInt("mutable-pointer-cache-absent-ttl", 5_000),
+                    a.getInt("mutable-pointer-cache-entries", 10_000),
+                    AggregatedMetrics.MUTABLE_POINTER_CACHE_HIT::inc,
+                    AggregatedMetrics.MUTABLE_POINTER_CACHE_MISS::inc);
+            rawPointers.addPointerListener(cachingPointers::invalidate);
+            localMutable.addListener(e -> cachingPointers.update(e.writer, e.writerSignedBtreeRootHash));
+            MutablePointers blockingMutablePointers = new BlockingMutablePointers(cachingPointers, blacklist);
             MutablePointers p2mMutable = new ProxyingMutablePointers(nodeId, core, blockingMutablePointers, proxingMutable);
 
             SocialNetworkProxy httpSocial = new HttpSocialNetwork(ipfsGateway, ipfsGateway);
@@ -570,9 +611,11 @@ public class Main {
                     tlsHostname.map(host -> new UserService.TlsProperties(host, a.getArg("tls.keyfile.password")));
             int maxConnectionQueue = a.getInt("max-connection-queue", 500);
             int handlerThreads = a.getInt("handler-threads", 50);
+            int maxRequestsPerEndpoint = a.getInt("max-requests-per-endpoint", AsyncHandler.DEFAULT_MAX_CONCURRENT_REQUESTS);
+            int maxQueuedPerEndpoint = a.getInt("max-queued-requests-per-endpoint", AsyncHandler.DEFAULT_MAX_QUEUED_REQUESTS);
             boolean isPublicServer = a.getBoolean("public-server", false);
             peergos.initAndStart(localAddress, tlsProps, webroot, useWebAssetCache, isPublicServer, maxConnectionQueue,
-                    handlerThreads);
+                    handlerThreads, maxRequestsPerEndpoint, maxQueuedPerEndpoint);
             if (! isPkiNode && useIPFS) {
                 int pkiNodeSwarmPort = a.getInt("pki.node.swarm.port");
                 InetAddress pkiNodeIpAddress = InetAddress.getByName(a.getArg("pki.node.ipaddress"));
@@ -729,7 +772,8 @@ public class Main {
                     FUSE,
                     INSTALL_AND_RUN_IPFS,
                     PKI,
-                    PKI_INIT
+                    PKI_INIT,
+                    MIGRATE_BLOCKSTORE
             )
     );
 
@@ -743,6 +787,16 @@ public class Main {
         return args.fromPeergosDir("blockstore_dir", "blockstore");
     }
 
+    private static DeletableContentAddressedStorage localBlockStore(Args args, TransactionStore transactions) {
+        if (args.getBoolean("pack-blockstore", false))
+            return new PackFileContentAddressedStorage(packBlockstorePath(args), transactions);
+        return new FileContentAddressedStorage(blockstorePath(args), transactions);
+    }
+
+    private static Path packBlockstorePath(Args args) {
+        return args.fromPeergosDir("pack_blockstore_dir", "packstore");
+    }
+
     public static MultiAddress getLocalMultiAddress(int port) {
         return new MultiAddress("/ip4/127.0.0.1/tcp/" + port);
     }
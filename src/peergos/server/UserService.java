@@ -113,7 +113,9 @@ public class UserService {
                                 boolean useWebCache,
                                 boolean isPublicServer,
                                 int connectionBacklog,
-                                int handlerPoolSize) throws IOException {
+                                int handlerPoolSize,
+                                int maxRequestsPerEndpoint,
+                                int maxQueuedPerEndpoint) throws IOException {
         InetAddress allInterfaces = InetAddress.getByName("::");
         if (tlsProps.isPresent())
             try {
@@ -206,17 +208,18 @@ public class UserService {
                 tlsServer.createContext(path, new HSTSHandler(handlerFunc));
         };
 
-        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer));
+        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, (h, i) -> true, "/api/v0/",
+                isPublicServer, maxRequestsPerEndpoint, maxQueuedPerEndpoint));
         addHandler.accept("/" + Constants.CORE_URL,
-                new CoreNodeHandler(this.coreNode, isPublicServer));
+                new CoreNodeHandler(this.coreNode, isPublicServer, maxRequestsPerEndpoint, maxQueuedPerEndpoint));
         addHandler.accept("/" + Constants.SOCIAL_URL,
                 new SocialHandler(this.social, isPublicServer));
         addHandler.accept("/" + Constants.MUTABLE_POINTERS_URL,
-                new MutationHandler(this.mutable, isPublicServer));
+                new MutationHandler(this.mutable, isPublicServer, maxRequestsPerEndpoint, maxQueuedPerEndpoint));
         addHandler.accept("/" + Constants.ADMIN_URL,
                 new AdminHandler(this.controller, isPublicServer));
         addHandler.accept("/" + Constants.SPACE_USAGE_URL,
-                new SpaceHandler(this.usage, isPublicServer));
+                new SpaceHandler(this.usage, isPublicServer, maxRequestsPerEndpoint, maxQueuedPerEndpoint));
         addHandler.accept("/" + Constants.PUBLIC_FILES_URL, new PublicFileHandler(coreNode, mutable, storage));
         addHandler.accept(UI_URL, handler);
 
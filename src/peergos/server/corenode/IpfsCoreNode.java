@@ -32,7 +32,7 @@ public class IpfsCoreNode implements CoreNode {
 
     private final Map<String, List<UserPublicKeyLink>> chains = new ConcurrentHashMap<>();
     private final Map<PublicKeyHash, String> reverseLookup = new ConcurrentHashMap<>();
-    private final List<String> usernames = new ArrayList<>();
+    private final UsernameIndex usernames = new UsernameIndex();
 
     private MaybeMultihash currentRoot;
 
@@ -78,7 +78,7 @@ public class IpfsCoreNode implements CoreNode {
                                          ContentAddressedStorage ipfs,
                                          Map<String, List<UserPublicKeyLink>> chains,
                                          Map<PublicKeyHash, String> reverseLookup,
-                                         List<String> usernames) {
+                                         UsernameIndex usernames) {
         try {
             MaybeMultihash currentTree = getTreeRoot(currentChampRoot, ipfs);
             MaybeMultihash updatedTree = getTreeRoot(newChampRoot, ipfs);
@@ -86,7 +86,7 @@ public class IpfsCoreNode implements CoreNode {
                     t -> updateMapping(t.left, t.middle, t.right, ipfs, chains, reverseLookup, usernames);
             Champ.applyToDiff(currentTree, updatedTree, 0, IpfsCoreNode::keyHash,
                     Collections.emptyList(), Collections.emptyList(),
-                    consumer, ChampWrapper.BIT_WIDTH, ipfs).get();
+                    consumer, ChampWrapper.BIT_WIDTH, true, ipfs).get();
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -98,7 +98,7 @@ public class IpfsCoreNode implements CoreNode {
                                      ContentAddressedStorage ipfs,
                                      Map<String, List<UserPublicKeyLink>> chains,
                                      Map<PublicKeyHash, String> reverseLookup,
-                                     List<String> usernames) {
+                                     UsernameIndex usernames) {
         try {
             Optional<CborObject> cborOpt = ipfs.get(newValue.get()).get();
             if (!cborOpt.isPresent()) {
@@ -211,7 +211,7 @@ public class IpfsCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(usernames);
+        return CompletableFuture.completedFuture(usernames.getByPrefix(prefix));
     }
 
     @Override
@@ -105,6 +105,7 @@ public class JdbcIpnsAndSocial {
 
     private volatile boolean isClosed;
     private Supplier<Connection> conn;
+    private final List<Consumer<PublicKeyHash>> pointerListeners = new CopyOnWriteArrayList<>();
 
     public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands) {
         this.conn = conn;
@@ -164,7 +165,24 @@ public class JdbcIpnsAndSocial {
         return CompletableFuture.completedFuture(resp.serialize());
     }
 
+    /** Listen for every attempt to set a pointer, including those which don't go through a MutablePointers
+     *
+     * @param listener called with the writer after each attempt, whether or not it succeeded
+     */
+    public void addPointerListener(Consumer<PublicKeyHash> listener) {
+        pointerListeners.add(listener);
+    }
+
     public CompletableFuture<Boolean> setPointer(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
+        try {
+            return setPointerInternal(writingKey, existingCas, newCas);
+        } finally {
+            for (Consumer<PublicKeyHash> listener : pointerListeners)
+                listener.accept(writingKey);
+        }
+    }
+
+    private CompletableFuture<Boolean> setPointerInternal(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
         if (existingCas.isPresent()) {
             try (Connection conn = getConnection();
                  PreparedStatement insert = conn.prepareStatement(IPNS_UPDATE)) {
@@ -17,15 +17,22 @@ import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
+/** A read only mirror of the pki, which applies the diffs of the pki champ to its in memory state.
+ *
+ *  The state is persisted as an append only log of length prefixed cbor records. The first record is a full snapshot
+ *  and each later record is the diff of one update. When the log gets long it is compacted into a single snapshot.
+ */
 public class MirrorCoreNode implements CoreNode {
+    public static final int MAX_LOG_RECORDS = 1000;
 
     private final CoreNode writeTarget;
     private final MutablePointers mutable;
     private final ContentAddressedStorage ipfs;
     private final PublicKeyHash pkiOwnerIdentity;
 
-    private volatile CorenodeState state;
+    private final CorenodeState state;
     private final Path statePath;
+    private int logRecords;
     private volatile boolean running = true;
 
     public MirrorCoreNode(CoreNode writeTarget,
@@ -38,28 +45,27 @@ public class MirrorCoreNode implements CoreNode {
         this.ipfs = ipfs;
         this.pkiOwnerIdentity = pkiOwnerIdentity;
         this.statePath = statePath;
+        this.state = CorenodeState.buildEmpty(pkiOwnerIdentity, pkiOwnerIdentity, MaybeMultihash.empty(), MaybeMultihash.empty());
         try {
-            this.state = load(statePath);
+            this.logRecords = load(statePath, state);
         } catch (IOException e) {
             // load empty
-            this.state = CorenodeState.buildEmpty(pkiOwnerIdentity, pkiOwnerIdentity, MaybeMultihash.empty(), MaybeMultihash.empty());
+            this.logRecords = 0;
         }
         try {
-            boolean changed = update();
-            if (changed)
-                saveState();
+            update();
         } catch (Throwable t) {
             Logging.LOG().log(Level.SEVERE, "Couldn't update mirror pki state: " + t.getMessage(), t);
         }
     }
 
-    private static class CorenodeState implements Cborable {
-        private final PublicKeyHash pkiOwnerIdentity, pkiKey;
-        private final MaybeMultihash pkiOwnerTarget, pkiKeyTarget;
+    public static class CorenodeState implements Cborable {
+        private volatile PublicKeyHash pkiOwnerIdentity, pkiKey;
+        private volatile MaybeMultihash pkiOwnerTarget, pkiKeyTarget;
 
         private final Map<String, List<UserPublicKeyLink>> chains;
         private final Map<PublicKeyHash, String> reverseLookup;
-        private final List<String> usernames;
+        private final UsernameIndex usernames;
 
         public CorenodeState(PublicKeyHash pkiOwnerIdentity,
                              PublicKeyHash pkiKey,
@@ -67,7 +73,7 @@ public class MirrorCoreNode implements CoreNode {
                              MaybeMultihash pkiKeyTarget,
                              Map<String, List<UserPublicKeyLink>> chains,
                              Map<PublicKeyHash, String> reverseLookup,
-                             List<String> usernames) {
+                             UsernameIndex usernames) {
             this.pkiOwnerIdentity = pkiOwnerIdentity;
             this.pkiKey = pkiKey;
             this.pkiOwnerTarget = pkiOwnerTarget;
@@ -81,15 +87,22 @@ public class MirrorCoreNode implements CoreNode {
                                                PublicKeyHash pkiKey,
                                                MaybeMultihash pkiOwnerTarget,
                                                MaybeMultihash pkiKeyTarget) {
-            return new CorenodeState(pkiOwnerIdentity, pkiKey, pkiOwnerTarget, pkiKeyTarget, new HashMap<>(),
-                    new HashMap<>(), new ArrayList<>());
+            return new CorenodeState(pkiOwnerIdentity, pkiKey, pkiOwnerTarget, pkiKeyTarget, new ConcurrentHashMap<>(),
+                    new ConcurrentHashMap<>(), new UsernameIndex());
         }
 
-        public void load(CorenodeState other) {
-            chains.putAll(other.chains);
-            reverseLookup.putAll(other.reverseLookup);
-            usernames.clear();
-            usernames.addAll(other.usernames);
+        /** Apply the mappings and targets of a later diff to this state
+         *
+         * @param diff
+         */
+        public void apply(CorenodeState diff) {
+            chains.putAll(diff.chains);
+            reverseLookup.putAll(diff.reverseLookup);
+            usernames.addAll(diff.usernames);
+            pkiOwnerIdentity = diff.pkiOwnerIdentity;
+            pkiKey = diff.pkiKey;
+            pkiOwnerTarget = diff.pkiOwnerTarget;
+            pkiKeyTarget = diff.pkiKeyTarget;
         }
 
         @Override
@@ -97,7 +110,7 @@ public class MirrorCoreNode implements CoreNode {
             Map<String, Cborable> res = new TreeMap<>();
             res.put("peergosKey", pkiOwnerIdentity);
             res.put("peergosTarget", pkiOwnerTarget);
-            res.put("pkiKey", pkiOwnerIdentity);
+            res.put("pkiKey", pkiKey);
             res.put("pkiTarget", pkiKeyTarget);
 
             TreeMap<CborObject, ? extends Cborable> chainsMap = chains.entrySet()
@@ -118,7 +131,7 @@ public class MirrorCoreNode implements CoreNode {
                     TreeMap::new
                 ));
             res.put("reverse", new CborObject.CborMap(reverseMap));
-            res.put("usernames", new CborObject.CborList(usernames.stream()
+            res.put("usernames", new CborObject.CborList(usernames.getAll().stream()
                     .map(CborObject.CborString::new)
                     .collect(Collectors.toList())));
 
@@ -142,7 +155,8 @@ public class MirrorCoreNode implements CoreNode {
                     .getMap(PublicKeyHash::fromCbor, fromString);
 
             List<String> usernames = map.getList("usernames", fromString);
-            return new CorenodeState(peergosKey, pkiKey, peergosTarget, pkiTarget, chains, reverse, usernames);
+            return new CorenodeState(peergosKey, pkiKey, peergosTarget, pkiTarget, new ConcurrentHashMap<>(chains),
+                    new ConcurrentHashMap<>(reverse), new UsernameIndex(usernames));
         }
     }
 
@@ -152,9 +166,7 @@ public class MirrorCoreNode implements CoreNode {
             while (running) {
                 try {
                     Thread.sleep(60_000);
-                    boolean changed = update();
-                    if (changed)
-                        saveState();
+                    update();
                 } catch (Throwable t) {
                     Logging.LOG().log(Level.SEVERE, t.getMessage(), t);
                 }
@@ -162,27 +174,86 @@ public class MirrorCoreNode implements CoreNode {
         }, "Mirroring PKI node").start();
     }
 
-    private synchronized void saveState() {
-        byte[] serialized = state.toCbor().serialize();
+    /** Persist a diff that has just been applied to our state, compacting the log if it is too long
+     *
+     * @param diff
+     */
+    private synchronized void saveState(CorenodeState diff) {
+        logRecords = saveState(statePath, state, diff, logRecords);
+    }
+
+    /** Append a diff to the state log, or replace the log with a snapshot of state if it is empty or too long
+     *
+     * @param statePath
+     * @param state the state after applying diff
+     * @param diff
+     * @param logRecords the number of records currently in the log
+     * @return the number of records in the log afterwards
+     */
+    public static int saveState(Path statePath, CorenodeState state, CorenodeState diff, int logRecords) {
+        if (logRecords > 0 && logRecords < MAX_LOG_RECORDS) {
+            try {
+                Files.write(statePath, frame(diff.toCbor().serialize()), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                return logRecords + 1;
+            } catch (IOException e) {
+                Logging.LOG().log(Level.WARNING, "Couldn't append to pki state log, writing snapshot: " + e.getMessage(), e);
+            }
+        }
+        byte[] serialized = frame(state.toCbor().serialize());
         Logging.LOG().info("Writing "+ serialized.length +" bytes to "+ statePath);
         try {
-            Files.write(
-                    statePath,
-                    serialized,
-                    StandardOpenOption.CREATE);
+            Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+            Files.write(tmp, serialized, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            Files.move(tmp, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return 1;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] frame(byte[] record) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(record.length + 4);
+        DataOutputStream dout = new DataOutputStream(bout);
+        try {
+            dout.writeInt(record.length);
+            dout.write(record);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return bout.toByteArray();
     }
 
-    private static CorenodeState load(Path statePath) throws IOException {
+    /** Apply every record in the state log to target
+     *
+     * @return the number of records in the log, or MAX_LOG_RECORDS if it needs rewriting
+     */
+    public static int load(Path statePath, CorenodeState target) throws IOException {
         Logging.LOG().info("Reading state from " + statePath + " which exists ? " + Files.exists(statePath) + " from cwd " + System.getProperty("cwd"));
         byte[] data = Files.readAllBytes(statePath);
-        CborObject object = CborObject.fromByteArray(data);
-        return CorenodeState.fromCbor(object);
+        if (data.length == 0)
+            return 0;
+        boolean isLegacySnapshot = (data[0] & 0xe0) == 0xa0; // a bare cbor map, rather than a length prefix
+        if (isLegacySnapshot) {
+            target.apply(CorenodeState.fromCbor(CborObject.fromByteArray(data)));
+            return MAX_LOG_RECORDS;
+        }
+        DataInputStream din = new DataInputStream(new ByteArrayInputStream(data));
+        int records = 0;
+        while (din.available() > 0) {
+            if (din.available() < 4)
+                return MAX_LOG_RECORDS; // truncated final record
+            int length = din.readInt();
+            if (length < 0 || din.available() < length)
+                return MAX_LOG_RECORDS;
+            byte[] record = new byte[length];
+            din.readFully(record);
+            target.apply(CorenodeState.fromCbor(CborObject.fromByteArray(record)));
+            records++;
+        }
+        return records;
     }
 
-    /**
+    /** Apply the diff between our current pki root and the latest one, and persist it
      *
      * @return whether there was a change
      */
@@ -199,24 +270,25 @@ public class MirrorCoreNode implements CoreNode {
 
             MaybeMultihash currentPkiRoot = mutable.getPointerTarget(pkiOwnerIdentity, pkiKey, ipfs).get();
             CorenodeState current = state;
+            MaybeMultihash priorPkiRoot = current.pkiKeyTarget;
             if (peergosKey.equals(current.pkiOwnerIdentity) &&
                     newPeergosRoot.equals(current.pkiOwnerTarget) &&
                     pkiKey.equals(current.pkiKey) &&
-                    currentPkiRoot.equals(current.pkiKeyTarget))
+                    currentPkiRoot.equals(priorPkiRoot))
                 return false;
 
             Logging.LOG().info("Updating pki mirror state...");
-            CorenodeState updated = CorenodeState.buildEmpty(peergosKey, pkiKey, newPeergosRoot, currentPkiRoot);
-            updated.load(current);
-            IpfsCoreNode.updateAllMappings(pkiKey, current.pkiKeyTarget, currentPkiRoot, ipfs, updated.chains,
-                    updated.reverseLookup, updated.usernames);
+            CorenodeState diff = CorenodeState.buildEmpty(peergosKey, pkiKey, newPeergosRoot, currentPkiRoot);
+            IpfsCoreNode.updateAllMappings(pkiKey, priorPkiRoot, currentPkiRoot, ipfs, diff.chains,
+                    diff.reverseLookup, diff.usernames);
             // pin the new pki version
             // note that these calls won't be redirected to the pki node because we are talking directly to ipfs
-            if (current.pkiKeyTarget.isPresent())
-                ipfs.pinUpdate(peergosKey, current.pkiKeyTarget.get(), currentPkiRoot.get()).join();
+            if (priorPkiRoot.isPresent())
+                ipfs.pinUpdate(peergosKey, priorPkiRoot.get(), currentPkiRoot.get()).join();
             else
                 ipfs.recursivePin(peergosKey, currentPkiRoot.get()).join();
-            state = updated;
+            state.apply(diff);
+            saveState(diff);
             Logging.LOG().info("... finished updating pki mirror state.");
             return true;
         } catch (Exception e) {
@@ -250,7 +322,7 @@ public class MirrorCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(state.usernames);
+        return CompletableFuture.completedFuture(state.usernames.getByPrefix(prefix));
     }
 
     @Override
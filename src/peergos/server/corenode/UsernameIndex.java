@@ -0,0 +1,87 @@
+package peergos.server.corenode;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A sorted, thread safe set of usernames supporting prefix range queries.
+ *
+ *  Valid usernames only use characters below Character.MAX_VALUE, so every username starting with a prefix lies in
+ *  the range [prefix, prefix + Character.MAX_VALUE).
+ */
+public class UsernameIndex {
+    private final ConcurrentSkipListSet<String> usernames = new ConcurrentSkipListSet<>();
+
+    public UsernameIndex() {}
+
+    public UsernameIndex(Collection<String> usernames) {
+        this.usernames.addAll(usernames);
+    }
+
+    /**
+     *
+     * @param username
+     * @return true if this username was not already present
+     */
+    public boolean add(String username) {
+        return usernames.add(username);
+    }
+
+    public void addAll(UsernameIndex other) {
+        usernames.addAll(other.usernames);
+    }
+
+    public boolean contains(String username) {
+        return usernames.contains(username);
+    }
+
+    public int size() {
+        return usernames.size();
+    }
+
+    public boolean isEmpty() {
+        return usernames.isEmpty();
+    }
+
+    /**
+     *
+     * @return all usernames in sorted order
+     */
+    public List<String> getAll() {
+        return new ArrayList<>(usernames);
+    }
+
+    /**
+     *
+     * @param prefix
+     * @return all usernames starting with prefix, in sorted order
+     */
+    public List<String> getByPrefix(String prefix) {
+        return new ArrayList<>(range(prefix));
+    }
+
+    /** Get one page of the usernames starting with prefix
+     *
+     * @param prefix
+     * @param after only return usernames strictly after this, or from the start of the range if empty
+     * @param maxResults
+     * @return up to maxResults usernames, in sorted order
+     */
+    public List<String> getByPrefix(String prefix, Optional<String> after, int maxResults) {
+        NavigableSet<String> start = after.isPresent() && after.get().compareTo(prefix) >= 0 ?
+                usernames.tailSet(after.get(), false) :
+                usernames.tailSet(prefix, true);
+        List<String> res = new ArrayList<>(Math.min(maxResults, 1024));
+        for (String username : start) {
+            if (res.size() >= maxResults || ! username.startsWith(prefix))
+                break;
+            res.add(username);
+        }
+        return res;
+    }
+
+    private NavigableSet<String> range(String prefix) {
+        if (prefix.isEmpty())
+            return usernames;
+        return usernames.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+}
@@ -0,0 +1,76 @@
+package peergos.server.crypto;
+
+import peergos.shared.crypto.asymmetric.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Verifies the signed hashes of blocks being written, hashing and verifying multiple blocks in parallel on a
+ *  dedicated pool so a single large multipart put uses all cores rather than just the HTTP handler thread.
+ */
+public class BlockSignatureVerifier {
+    private static final int MIN_PARALLEL_BLOCKS = 2;
+
+    private final ExecutorService pool;
+    private final int threads;
+
+    public BlockSignatureVerifier(int threads) {
+        this.threads = threads;
+        AtomicInteger count = new AtomicInteger(0);
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Block signature verifier " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public BlockSignatureVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     *
+     * @param writer
+     * @param signatures the signed sha256 of each block
+     * @param blocks
+     * @throws IllegalStateException if any signature is invalid
+     */
+    public void verify(PublicSigningKey writer, List<byte[]> signatures, List<byte[]> blocks) {
+        if (signatures.size() != blocks.size())
+            throw new IllegalStateException("Incorrect number of signatures for blocks!");
+        if (blocks.size() < MIN_PARALLEL_BLOCKS || threads < 2) {
+            for (int i = 0; i < blocks.size(); i++)
+                verify(writer, signatures.get(i), blocks.get(i));
+            return;
+        }
+
+        List<Future<Boolean>> results = new ArrayList<>(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            byte[] signature = signatures.get(i);
+            byte[] block = blocks.get(i);
+            results.add(pool.submit(() -> verify(writer, signature, block)));
+        }
+        try {
+            for (Future<Boolean> result : results)
+                result.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            results.forEach(f -> f.cancel(false));
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static boolean verify(PublicSigningKey writer, byte[] signature, byte[] block) {
+        byte[] hash = Hash.sha256(block);
+        byte[] unsigned = writer.unsignMessage(signature);
+        if (! Arrays.equals(unsigned, hash))
+            throw new IllegalStateException("Invalid signature for block!");
+        return true;
+    }
+}
@@ -16,105 +16,136 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.*;
-
+import java.util.concurrent.atomic.*;
+
+/** A write-back cache of file chunks in front of PeergosFS.
+ *
+ *  Each file has its own set of cached chunks, any number of which can be dirty, and all files share a budget of
+ *  chunkCacheSize chunks, evicting the least recently used clean chunks first. Dirty chunks are written back in the
+ *  background as soon as they have been completely written, and otherwise every syncSleep ms, with runs of consecutive
+ *  dirty chunks coalesced into a single upload. A sequential read of one chunk prefetches the next.
+ *
+ *  flush, fsync, release and lock only return once all the data written to the file has been written back.
+ */
 public class CachingPeergosFS extends PeergosFS {
 	private static final Logger LOG = Logging.LOG();
 
     private static final int DEFAULT_SYNC_SLEEP = 1000*30;
-    private static final int DEFAULT_CACHE_SIZE = 1;
-    private static final boolean DEBUG = true;
-
-    private final ConcurrentMap<String, CacheEntryHolder> entryMap;
+    private static final int DEFAULT_CACHE_SIZE = 16;
+    private static final int BACKGROUND_THREADS = 4;
+    private static final int MAX_CHUNKS_PER_UPLOAD = 16;
+    private static final boolean DEBUG = false;
+    // returned by a FileCache which has been invalidated, to retry with the current FileCache for the path
+    private static final int INVALIDATED = Integer.MIN_VALUE;
+
+    private final ConcurrentMap<String, FileCache> files;
+    // access ordered, so the first key is the least recently used chunk
+    private final LinkedHashMap<ChunkKey, Boolean> lru;
     private final int chunkCacheSize, syncSleep;
-//    private final Thread syncRunner;
+    private final ExecutorService background;
+    private final ScheduledExecutorService syncRunner;
 
     public CachingPeergosFS(UserContext userContext) {
         this(userContext, DEFAULT_CACHE_SIZE, DEFAULT_SYNC_SLEEP);
     }
 
+    /**
+     *
+     * @param userContext
+     * @param chunkCacheSize the maximum number of chunks to cache across all files
+     * @param syncSleep the interval in ms between writing back all dirty chunks
+     */
     public CachingPeergosFS(UserContext userContext, int chunkCacheSize, int syncSleep) {
         super(userContext);
 
-        this.chunkCacheSize = chunkCacheSize;
+        this.chunkCacheSize = Math.max(1, chunkCacheSize);
         this.syncSleep = syncSleep;
-        this.entryMap = new ConcurrentHashMap<>();
+        this.files = new ConcurrentHashMap<>();
+        this.lru = new LinkedHashMap<>(16, 0.75f, true);
+        AtomicInteger count = new AtomicInteger(0);
+        this.background = Executors.newFixedThreadPool(BACKGROUND_THREADS, r -> {
+            Thread t = new Thread(r, "Fuse write back " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.syncRunner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Fuse sync");
+            t.setDaemon(true);
+            return t;
+        });
+        syncRunner.scheduleWithFixedDelay(this::flushAll, syncSleep, syncSleep, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public int read(String s, Pointer pointer, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
         try {
-            return read(s, pointer, 0, size, offset, fuseFileInfo);
+            if (DEBUG)
+                System.out.printf("read(%s, offset=%d, size=%d)\n", s, offset, size);
+            FileCache file = getFile(s);
+            int read = 0;
+            while (read < size) {
+                long pos = offset + read;
+                int chunkOffset = intraChunkOffset(pos);
+                int length = (int) Math.min(size - read, Chunk.MAX_SIZE - chunkOffset);
+                int r = file.read(chunkIndex(pos), pointer, read, chunkOffset, length);
+                if (r == INVALIDATED) {
+                    file = getFile(s);
+                    continue;
+                }
+                evictIfNeeded();
+                if (r < 0)
+                    return read > 0 ? read : r;
+                read += r;
+                if (r < length)
+                    break;
+            }
+            return read;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
             throw t;
         }
     }
 
-    public int read(String s, Pointer pointer, int pointerOffset, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
-        if (DEBUG)
-            System.out.printf("read(%s, offset=%d, size=%d)\n", s, offset, size);
-        if (!containedInOneChunk(offset, offset + size)) {
-            long boundary = alignToChunkSize(offset + Chunk.MAX_SIZE);
-            int r1 = read(s, pointer, 0, boundary - offset, offset, fuseFileInfo);
-            if (r1 <= 0)
-                return r1;
-            int r2 = read(s, pointer, (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
-            if (r2 <= 0)
-                return r2;
-            return r1 + r2;
-        }
-
-        long startPos = alignToChunkSize(offset);
-        int chunkOffset  = intraChunkOffset(offset);
-        int iSize = (int) size;
-
-        CacheEntryHolder cacheEntryHolder = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntryHolder.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.read(pointer, pointerOffset, chunkOffset, iSize));
-    }
-
     @Override
     public int write(String s, Pointer pointer, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
         try {
-            return write(s, pointer, 0, size, offset, fuseFileInfo);
+            if (DEBUG)
+                System.out.printf("write(%s, offset=%d, size=%d)\n", s, offset, size);
+            FileCache file = getFile(s);
+            int written = 0;
+            boolean completedChunk = false;
+            while (written < size) {
+                long pos = offset + written;
+                int chunkOffset = intraChunkOffset(pos);
+                int length = (int) Math.min(size - written, Chunk.MAX_SIZE - chunkOffset);
+                int w = file.write(chunkIndex(pos), pointer, written, chunkOffset, length);
+                if (w == INVALIDATED) {
+                    file = getFile(s);
+                    continue;
+                }
+                evictIfNeeded();
+                if (w < 0)
+                    return written > 0 ? written : w;
+                written += w;
+                completedChunk |= chunkOffset + length == Chunk.MAX_SIZE;
+            }
+            if (completedChunk) {
+                FileCache toFlush = file;
+                background.submit(() -> flushFile(toFlush, true));
+            }
+            return written;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
             throw t;
         }
     }
 
-    public int write(String s, Pointer pointer, int pointerOffset, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
-        if (DEBUG)
-            System.out.printf("write(%s, offset=%d, size=%d)\n", s, offset, size);
-        if  (! containedInOneChunk(offset, offset+size)) {
-            long boundary = alignToChunkSize(offset + Chunk.MAX_SIZE);
-            int w1 = write(s, pointer, 0, boundary - offset, offset, fuseFileInfo);
-            if (w1 <= 0)
-                return w1;
-            int w2 = write(s, pointer, (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
-            if (w2 <= 0)
-                return w2;
-            return w1 + w2;
-        }
-
-        long startPos  = alignToChunkSize(offset);
-        int  chunkOffset  = intraChunkOffset(offset);
-        int iSize = (int) size;
-
-        CacheEntryHolder cacheEntry = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntry.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.write(pointer, pointerOffset, chunkOffset, iSize));
-    }
-
     @Override
     public int lock(String s, FuseFileInfo fuseFileInfo, int i, Flock flock) {
         try {
             if (DEBUG)
                 System.out.printf("lock(%s)\n", s);
-            CacheEntryHolder cacheEntryHolder = entryMap.get(s);
-            if (cacheEntryHolder != null)
-                cacheEntryHolder.syncAndClear();
+            invalidate(s, true);
             return 0;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
@@ -127,10 +158,9 @@ public class CachingPeergosFS extends PeergosFS {
         try {
             if (DEBUG)
                 System.out.printf("flush(%s)\n", s);
-            CacheEntryHolder cacheEntry = entryMap.get(s);
-            if (cacheEntry != null) {
-                cacheEntry.sync();
-            }
+            int res = flush(s);
+            if (res < 0)
+                return res;
             return super.flush(s, fuseFileInfo);
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
@@ -138,153 +168,528 @@ public class CachingPeergosFS extends PeergosFS {
         }
     }
 
+    @Override
+    public int fsync(String s, int isDataSync, FuseFileInfo fuseFileInfo) {
+        if (DEBUG)
+            System.out.printf("fsync(%s)\n", s);
+        return flush(s);
+    }
+
+    @Override
+    public int release(String s, FuseFileInfo fuseFileInfo) {
+        if (DEBUG)
+            System.out.printf("release(%s)\n", s);
+        int res = flush(s);
+        if (res == 0)
+            removeIfClean(s);
+        return res;
+    }
+
+    @Override
+    public int create(String s, long l, FuseFileInfo fuseFileInfo) {
+        invalidate(s, false);
+        return super.create(s, l, fuseFileInfo);
+    }
+
+    @Override
+    public int unlink(String s) {
+        invalidate(s, false);
+        return super.unlink(s);
+    }
+
+    @Override
+    public int rename(String s, String s1) {
+        invalidate(s, true);
+        invalidate(s1, true);
+        return super.rename(s, s1);
+    }
+
+    @Override
+    public int truncate(String s, long l) {
+        invalidate(s, true);
+        return super.truncate(s, l);
+    }
+
+    @Override
+    public int ftruncate(String s, long l, FuseFileInfo fuseFileInfo) {
+        invalidate(s, true);
+        return super.ftruncate(s, l, fuseFileInfo);
+    }
+
+    public int utimens(String s, Timespec[] timespecs) {
+        flush(s);
+        return super.utimens(s, timespecs);
+    }
+
     @Override
     protected int annotateAttributes(String fullPath, PeergosStat peergosStat, FileStat fileStat) {
         if (DEBUG)
             System.out.printf("annotate(%s)\n", fullPath);
-        CacheEntryHolder cacheEntry = entryMap.get(fullPath);
-        Optional<PeergosStat> updatedStat = Optional.empty();
-        if (cacheEntry != null) {
-            updatedStat = cacheEntry.applyIfPresent(ce -> {
-                if (ce == null)
-                    return peergosStat;
-                long maxSize = ce.offset + ce.maxDirtyPos;
-                if (peergosStat.properties.size < maxSize) {
-                    FileProperties updated = peergosStat.properties.withSize(maxSize);
-                    return new PeergosStat(peergosStat.treeNode, updated);
-                }
-                return peergosStat;
-            });
+        FileCache file = files.get(fullPath);
+        PeergosStat updatedStat = peergosStat;
+        if (file != null && peergosStat.properties.size < file.size) {
+            FileProperties updated = peergosStat.properties.withSize(file.size);
+            updatedStat = new PeergosStat(peergosStat.treeNode, updated);
         }
-        return super.annotateAttributes(fullPath, updatedStat.orElse(peergosStat), fileStat);
+        return super.annotateAttributes(fullPath, updatedStat, fileStat);
     }
 
-    private boolean containedInOneChunk(long start, long end) {
-        return alignToChunkSize(start) == alignToChunkSize(end-1);
+    private static long chunkIndex(long pos) {
+        return pos / Chunk.MAX_SIZE;
     }
 
-    private long alignToChunkSize(long pos) {
-        return Math.max(0, pos / Chunk.MAX_SIZE) * Chunk.MAX_SIZE;
+    private static int intraChunkOffset(long pos) {
+        return (int) (pos % Chunk.MAX_SIZE);
     }
-    private int intraChunkOffset(long  pos) {
-        return (int) pos % Chunk.MAX_SIZE;
+
+    private FileCache getFile(String path) {
+        return files.computeIfAbsent(path, FileCache::new);
     }
 
-    private class CacheEntryHolder {
-        private CacheEntry entry;
+    private int flush(String path) {
+        FileCache file = files.get(path);
+        if (file == null)
+            return 0;
+        return flushFile(file, false);
+    }
 
-        public CacheEntryHolder(CacheEntry entry) {
-            this.entry = entry;
+    private void flushAll() {
+        try {
+            for (FileCache file : files.values())
+                if (file.hasDirty())
+                    flushFile(file, false);
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
         }
+    }
 
-        public synchronized <A> A apply(Predicate<CacheEntry> correctChunk, Supplier<CacheEntry> supplier, Function<CacheEntry, A> func) {
-            if (!correctChunk.test(entry)) {
-                long oldOffset = entry != null ? entry.offset : -1;
-                syncAndClear();
-                setEntry(supplier.get());
-                LOG.info("Ejecting chunk from " + entry.path + " " + oldOffset + " -> "+ entry.offset);
-
+    /** Write back the dirty chunks of a file. Only one write back per file runs at a time.
+     *
+     * @param file
+     * @param onlyComplete only write back chunks which have been completely written
+     * @return 0 or a negative error code
+     */
+    private int flushFile(FileCache file, boolean onlyComplete) {
+        synchronized (file.flushLock) {
+            List<DirtyRun> runs = file.takeDirty(onlyComplete);
+            for (int i = 0; i < runs.size(); i++) {
+                DirtyRun run = runs.get(i);
+                int res = upload(file.path, run);
+                if (res < 0) {
+                    file.failed(runs.subList(i, runs.size()));
+                    return res;
+                }
+                file.completed(run);
             }
-            return func.apply(entry);
+            return 0;
+        }
+    }
+
+    private int upload(String path, DirtyRun run) {
+        if (DEBUG)
+            System.out.printf("sync(%s, offset=%d, size=%d)\n", path, run.offset, run.data.length);
+        Path p = Paths.get(path);
+        String parentPath = p.getParent().toString();
+        String name = p.getFileName().toString();
+        try {
+            return applyIfPresent(parentPath, parent -> write(parent, name, run.data, run.data.length, run.offset),
+                    -ErrorCodes.ENOENT());
+        } finally {
+            invalidateEntry(path);
+        }
+    }
+
+    /** Drop all cached chunks for a path, waiting for any write back in progress to finish
+     *
+     * @param path
+     * @param writeBack whether to write back any dirty chunks first
+     */
+    private int invalidate(String path, boolean writeBack) {
+        FileCache file = files.get(path);
+        if (file == null)
+            return 0;
+        synchronized (file.flushLock) {
+            int res = writeBack ? flushFile(file, false) : 0;
+            files.remove(path, file);
+            file.clear();
+            return res;
         }
+    }
 
-        public synchronized <A> Optional<A> applyIfPresent(Function<CacheEntry, A> func) {
-            if (entry != null) {
-                return Optional.of(func.apply(entry));
+    /** Stop tracking a file once everything written to it has been written back, so the files map only holds files
+     *  which are open or have dirty chunks
+     *
+     * @param path
+     */
+    private void removeIfClean(String path) {
+        FileCache file = files.get(path);
+        if (file == null)
+            return;
+        synchronized (file.flushLock) {
+            synchronized (file) {
+                if (! file.isClean())
+                    return;
+                files.remove(path, file);
+                file.clear();
             }
-            return Optional.empty();
         }
+    }
 
-        public synchronized void setEntry(CacheEntry entry) {
-            this.entry = entry;
+    private void touch(String path, long index) {
+        synchronized (lru) {
+            lru.put(new ChunkKey(path, index), Boolean.TRUE);
         }
+    }
 
-        public synchronized void sync() {
-            if (entry == null)
-                return;
-            if (DEBUG)
-                System.out.printf("sync(%s)\n", entry.path);
-            entry.sync();
+    private void untouch(String path, long index) {
+        synchronized (lru) {
+            lru.remove(new ChunkKey(path, index));
         }
+    }
+
+    /** Evict the least recently used clean chunks until we are within budget. If every chunk is dirty, write back the
+     *  least recently used file first.
+     */
+    private void evictIfNeeded() {
+        while (true) {
+            List<ChunkKey> candidates;
+            synchronized (lru) {
+                if (lru.size() <= chunkCacheSize)
+                    return;
+                candidates = new ArrayList<>(lru.keySet());
+            }
+            boolean evicted = false;
+            for (ChunkKey key : candidates) {
+                FileCache file = files.get(key.path);
+                if (file == null) {
+                    untouch(key.path, key.index);
+                    evicted = true;
+                    break;
+                }
+                if (file.evict(key.index)) {
+                    evicted = true;
+                    break;
+                }
+            }
+            if (evicted)
+                continue;
 
-        public synchronized void syncAndClear() {
-            if (entry == null)
+            ChunkKey eldest = candidates.get(0);
+            FileCache file = files.get(eldest.path);
+            if (file != null && flushFile(file, false) < 0)
                 return;
-            if (DEBUG)
-                System.out.printf("fsync(%s)\n", entry.path);
-            entry.sync();
-            entry = null;
         }
     }
 
-    private class CacheEntry {
+    private Optional<LoadedChunk> loadChunk(String path, long index) {
+        Optional<PeergosStat> stat = getByPath(path);
+        if (! stat.isPresent())
+            return Optional.empty();
+        long fileSize = stat.get().properties.size;
+        long offset = index * Chunk.MAX_SIZE;
+        byte[] data = new byte[Chunk.MAX_SIZE];
+        if (offset < fileSize) {
+            Optional<byte[]> existing = read(stat.get(), Math.min(Chunk.MAX_SIZE, fileSize - offset), offset);
+            if (! existing.isPresent())
+                return Optional.empty();
+            System.arraycopy(existing.get(), 0, data, 0, existing.get().length);
+        }
+        return Optional.of(new LoadedChunk(data, fileSize));
+    }
+
+    private void prefetch(FileCache file, long index, long flushCount) {
+        try {
+            Optional<LoadedChunk> loaded = loadChunk(file.path, index);
+            file.prefetched(index, loaded, flushCount);
+            evictIfNeeded();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+            file.prefetched(index, Optional.empty(), flushCount);
+        }
+    }
+
+    private static class ChunkKey {
         private final String path;
+        private final long index;
+
+        public ChunkKey(String path, long index) {
+            this.path = path;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ChunkKey that = (ChunkKey) o;
+
+            return index == that.index && path.equals(that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + Long.hashCode(index);
+        }
+    }
+
+    private static class LoadedChunk {
         private final byte[] data;
+        private final long fileSize;
+
+        public LoadedChunk(byte[] data, long fileSize) {
+            this.data = data;
+            this.fileSize = fileSize;
+        }
+    }
+
+    /** A contiguous section of a file to write back, and the cached chunks it covers
+     *
+     */
+    private static class DirtyRun {
         private final long offset;
-        private int maxDirtyPos;
+        private final byte[] data;
+        private final List<Long> chunks;
 
-        public CacheEntry(String path, long offset) {
-            this.path = path;
+        public DirtyRun(long offset, byte[] data, List<Long> chunks) {
             this.offset = offset;
-            this.data = new byte[Chunk.MAX_SIZE];
-            //read current data into data view
-            PeergosStat stat = getByPath(path).orElseThrow(() -> new IllegalStateException("missing" + path));
-            byte[] readData = CachingPeergosFS.this.read(stat, data.length, offset)
-                    .orElseThrow(() -> new IllegalStateException("missing: " + path));
-            this.maxDirtyPos = 0;
-            System.arraycopy(readData, 0, data, 0, readData.length);
+            this.data = data;
+            this.chunks = chunks;
+        }
+    }
 
+    private static class ChunkEntry {
+        private final byte[] data;
+        private int dirtyStart = Chunk.MAX_SIZE, dirtyEnd = 0;
+        // whether a write back including this chunk is in progress
+        private boolean flushing;
+
+        public ChunkEntry(byte[] data) {
+            this.data = data;
         }
 
-        private void ensureInBounds(int offset, int length) {
-            if (offset + length > data.length)
-                throw new  IllegalStateException("cannot op with offset "+ offset +" and length "+ length +" with length "+ data.length);
+        public boolean isDirty() {
+            return dirtyStart < dirtyEnd;
         }
 
-        public int read(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
-            ensureInBounds(chunkOffset, length);
-            pointer.put(pointerOffset, data, chunkOffset, length);
-            return length;
+        public boolean isComplete() {
+            return dirtyStart == 0 && dirtyEnd == Chunk.MAX_SIZE;
         }
 
-        public int write(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
-            ensureInBounds(chunkOffset, length);
-            pointer.get(pointerOffset, data, chunkOffset, length);
-            maxDirtyPos = Math.max(maxDirtyPos, chunkOffset+length);
-            return length;
+        public void markDirty(int start, int end) {
+            dirtyStart = Math.min(dirtyStart, start);
+            dirtyEnd = Math.max(dirtyEnd, end);
+        }
+
+        public void clearDirty() {
+            dirtyStart = Chunk.MAX_SIZE;
+            dirtyEnd = 0;
+        }
+    }
+
+    private class FileCache {
+        private final String path;
+        private final TreeMap<Long, ChunkEntry> chunks = new TreeMap<>();
+        private final Set<Long> prefetching = new HashSet<>();
+        private final Object flushLock = new Object();
+        private boolean sizeKnown, invalidated;
+        // the size of the file as written back
+        private long remoteSize;
+        // the size of the file including cached writes
+        private volatile long size;
+        private long flushCount, lastReadEnd = -1;
+
+        public FileCache(String path) {
+            this.path = path;
+        }
+
+        private void learnSize(long fileSize) {
+            sizeKnown = true;
+            remoteSize = Math.max(remoteSize, fileSize);
+            size = Math.max(size, fileSize);
+        }
+
+        private ChunkEntry getOrLoad(long index) {
+            ChunkEntry chunk = chunks.get(index);
+            if (chunk == null) {
+                long offset = index * Chunk.MAX_SIZE;
+                if (sizeKnown && offset >= Math.max(remoteSize, size)) {
+                    // nothing has been written here yet
+                    chunk = new ChunkEntry(new byte[Chunk.MAX_SIZE]);
+                } else {
+                    Optional<LoadedChunk> loaded = loadChunk(path, index);
+                    if (! loaded.isPresent())
+                        return null;
+                    learnSize(loaded.get().fileSize);
+                    chunk = new ChunkEntry(loaded.get().data);
+                }
+                chunks.put(index, chunk);
+            }
+            touch(path, index);
+            return chunk;
         }
 
-        public void sync() {
-            Path p = Paths.get(path);
+        public synchronized int read(long index, Pointer pointer, int pointerOffset, int chunkOffset, int length) {
+            if (invalidated)
+                return INVALIDATED;
+            ChunkEntry chunk = getOrLoad(index);
+            if (chunk == null)
+                return -ErrorCodes.ENOENT();
+            long pos = index * Chunk.MAX_SIZE + chunkOffset;
+            int toRead = (int) Math.max(0, Math.min(length, size - pos));
+            pointer.put(pointerOffset, chunk.data, chunkOffset, toRead);
+
+            boolean sequential = pos == lastReadEnd;
+            lastReadEnd = pos + toRead;
+            long next = index + 1;
+            if (sequential && toRead > 0 && next * Chunk.MAX_SIZE < size &&
+                    ! chunks.containsKey(next) && prefetching.add(next)) {
+                long currentFlushCount = flushCount;
+                background.submit(() -> prefetch(this, next, currentFlushCount));
+            }
+            return toRead;
+        }
 
-            String parentPath = p.getParent().toString();
-            String name = p.getFileName().toString();
+        public synchronized int write(long index, Pointer pointer, int pointerOffset, int chunkOffset, int length) {
+            // the data would be lost if we wrote to a cache that has been dropped
+            if (invalidated)
+                return INVALIDATED;
+            ChunkEntry chunk = getOrLoad(index);
+            if (chunk == null)
+                return -ErrorCodes.ENOENT();
+            pointer.get(pointerOffset, chunk.data, chunkOffset, length);
+            chunk.markDirty(chunkOffset, chunkOffset + length);
+            size = Math.max(size, index * Chunk.MAX_SIZE + chunkOffset + length);
+            return length;
+        }
 
-            if (maxDirtyPos ==0)
+        public synchronized void prefetched(long index, Optional<LoadedChunk> loaded, long startFlushCount) {
+            prefetching.remove(index);
+            // discard the prefetched data if it might be stale
+            if (! loaded.isPresent() || invalidated || startFlushCount != flushCount || chunks.containsKey(index))
                 return;
-            applyIfPresent(parentPath, (parent) -> CachingPeergosFS.this.write(parent, name, data, maxDirtyPos, offset), -ErrorCodes.ENOENT());
+            learnSize(loaded.get().fileSize);
+            chunks.put(index, new ChunkEntry(loaded.get().data));
+            touch(path, index);
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        public synchronized boolean hasDirty() {
+            return chunks.values().stream().anyMatch(ChunkEntry::isDirty);
+        }
+
+        public synchronized boolean isClean() {
+            return chunks.values().stream().noneMatch(c -> c.isDirty() || c.flushing);
+        }
+
+        /** Copy out the dirty data as runs of consecutive chunks, and mark it clean. A run starting after the end of
+         *  the written back file is extended back to the end of the file.
+         *
+         * @param onlyComplete only include chunks that have been completely written
+         * @return
+         */
+        public synchronized List<DirtyRun> takeDirty(boolean onlyComplete) {
+            List<List<Long>> groups = new ArrayList<>();
+            List<Long> current = new ArrayList<>();
+            for (Map.Entry<Long, ChunkEntry> e : chunks.entrySet()) {
+                ChunkEntry chunk = e.getValue();
+                boolean include = onlyComplete ? chunk.isComplete() : chunk.isDirty();
+                boolean consecutive = ! current.isEmpty() && current.get(current.size() - 1) + 1 == e.getKey();
+                if (! current.isEmpty() && (! include || ! consecutive || current.size() >= MAX_CHUNKS_PER_UPLOAD)) {
+                    groups.add(current);
+                    current = new ArrayList<>();
+                }
+                if (include)
+                    current.add(e.getKey());
+            }
+            if (! current.isEmpty())
+                groups.add(current);
+
+            List<DirtyRun> runs = new ArrayList<>();
+            long synced = remoteSize;
+            for (List<Long> group : groups) {
+                long first = group.get(0), last = group.get(group.size() - 1);
+                long start = first * Chunk.MAX_SIZE + chunks.get(first).dirtyStart;
+                long end = last * Chunk.MAX_SIZE + chunks.get(last).dirtyEnd;
+                if (start > synced) {
+                    if (onlyComplete)
+                        break; // wait for the preceding data to be written back
+                    start = synced;
+                }
+                byte[] data = new byte[(int) (end - start)];
+                for (long i = chunkIndex(start); i <= last; i++) {
+                    ChunkEntry chunk = chunks.get(i);
+                    if (chunk == null)
+                        continue;
+                    long chunkStart = i * Chunk.MAX_SIZE;
+                    int from = (int) Math.max(0, start - chunkStart);
+                    int to = (int) Math.min(Chunk.MAX_SIZE, end - chunkStart);
+                    System.arraycopy(chunk.data, from, data, (int) (chunkStart + from - start), to - from);
+                }
+                for (Long index : group) {
+                    ChunkEntry chunk = chunks.get(index);
+                    chunk.clearDirty();
+                    chunk.flushing = true;
+                }
+                runs.add(new DirtyRun(start, data, group));
+                synced = Math.max(synced, end);
+            }
+            return runs;
+        }
 
-            CacheEntry that = (CacheEntry) o;
+        public synchronized void completed(DirtyRun run) {
+            for (Long index : run.chunks) {
+                ChunkEntry chunk = chunks.get(index);
+                if (chunk != null)
+                    chunk.flushing = false;
+            }
+            remoteSize = Math.max(remoteSize, run.offset + run.data.length);
+            flushCount++;
+        }
 
-            return Objects.equals(path, that.path);
+        public synchronized void failed(List<DirtyRun> runs) {
+            for (DirtyRun run : runs) {
+                for (Long index : run.chunks) {
+                    ChunkEntry chunk = chunks.get(index);
+                    if (chunk == null)
+                        continue;
+                    chunk.flushing = false;
+                    long chunkStart = index * Chunk.MAX_SIZE;
+                    int from = (int) Math.max(0, run.offset - chunkStart);
+                    int to = (int) Math.min(Chunk.MAX_SIZE, run.offset + run.data.length - chunkStart);
+                    chunk.markDirty(from, to);
+                }
+            }
+        }
 
+        /**
+         *
+         * @param index
+         * @return true if the chunk is no longer cached
+         */
+        public synchronized boolean evict(long index) {
+            ChunkEntry chunk = chunks.get(index);
+            if (chunk != null) {
+                if (chunk.isDirty() || chunk.flushing)
+                    return false;
+                chunks.remove(index);
+            }
+            untouch(path, index);
+            return true;
         }
 
-        @Override
-        public int hashCode() {
-            return path != null ? path.hashCode() : 0;
+        public synchronized void clear() {
+            invalidated = true;
+            for (Long index : chunks.keySet())
+                untouch(path, index);
+            chunks.clear();
         }
     }
 
     @Override
     public void close() throws Exception {
-
+        syncRunner.shutdownNow();
+        flushAll();
+        background.shutdown();
         super.close();
     }
-}
\ No newline at end of file
+}
@@ -44,9 +44,14 @@ public class FuseProcess implements Runnable, AutoCloseable {
         boolean blocking = false;
         boolean debug = false;
         int transferBufferSize = 5*1024*1024;
+        // let the kernel cache attributes and lookups for as long as PeergosFS does
+        double attributeTimeout = PeergosFS.ATTRIBUTE_TTL_MILLIS / 1000.0;
+        double negativeTimeout = PeergosFS.NEGATIVE_TTL_MILLIS / 1000.0;
         String[] fuseOpts = new String[]{"-o", "big_writes",
                 "-o", "fsname=Peergos",
-                "-o", "max_read="+transferBufferSize, "-o", "max_write="+transferBufferSize};
+                "-o", "max_read="+transferBufferSize, "-o", "max_write="+transferBufferSize,
+                "-o", "attr_timeout="+attributeTimeout, "-o", "entry_timeout="+attributeTimeout,
+                "-o", "negative_timeout="+negativeTimeout};
         peergosFS.mount(mountPoint, blocking, debug, fuseOpts);
 
         new Thread(this, "Fuse process").start();
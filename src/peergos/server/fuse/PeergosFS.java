@@ -7,6 +7,7 @@ import jnr.ffi.Pointer;
 import jnr.ffi.types.*;
 import peergos.shared.user.UserContext;
 import peergos.shared.user.fs.*;
+import peergos.shared.util.LRUCache;
 import peergos.shared.util.Serialize;
 
 import ru.serce.jnrfuse.ErrorCodes;
@@ -40,7 +41,55 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     }
 
 
+    /** A reader left open after a read, so that a subsequent read continuing from where it finished can reuse it,
+     *  and benefit from its read ahead.
+     */
+    private static class OpenReader {
+        public final AsyncReader reader;
+        public final FileProperties properties;
+        public final long position;
+
+        public OpenReader(AsyncReader reader, FileProperties properties, long position) {
+            this.reader = reader;
+            this.properties = properties;
+            this.position = position;
+        }
+    }
+
+    /** The result of resolving a path, which is valid until expiry. An empty stat is a negative entry.
+     */
+    private static class CachedStat {
+        public final Optional<PeergosStat> stat;
+        public final long expiry;
+
+        public CachedStat(Optional<PeergosStat> stat, long expiry) {
+            this.stat = stat;
+            this.expiry = expiry;
+        }
+    }
+
+    private static final int MAX_OPEN_READERS = 16;
+    private static final int MAX_CACHED_STATS = 50_000;
+    /** How long resolved paths are cached for, which bounds how stale they can be after a change from another device.
+     *  The kernel's attribute and entry timeouts are set to the same values (see FuseProcess).
+     */
+    public static final long ATTRIBUTE_TTL_MILLIS = 2_000;
+    public static final long NEGATIVE_TTL_MILLIS = 1_000;
+
     private final UserContext context;
+    private final Map<Location, OpenReader> openReaders = new LRUCache<Location, OpenReader>(MAX_OPEN_READERS) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Location, OpenReader> eldest) {
+            boolean evict = super.removeEldestEntry(eldest);
+            // an evicted reader can't be resumed, so release its prefetches
+            if (evict)
+                eldest.getValue().reader.close();
+            return evict;
+        }
+    };
+    private final Map<String, CachedStat> statCache = new LRUCache<>(MAX_CACHED_STATS);
+    // incremented on every invalidation, so that a slow lookup doesn't cache a result from before it, guarded by statCache
+    private long statGeneration;
     protected volatile boolean isClosed;
 
     public PeergosFS(UserContext context) {
@@ -51,6 +100,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public void close() throws Exception {
         ensureNotClosed();
         this.isClosed = true;
+        closeOpenReaders();
     }
 
     private void ensureNotClosed() {
@@ -130,7 +180,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
             return -ErrorCodes.ENOENT();
 
         PeergosStat parent = parentOpt.get();
-        return mkdir(name, parent.treeNode).isPresent() ? 0 : -ErrorCodes.ENOENT();
+        try {
+            return mkdir(name, parent.treeNode).isPresent() ? 0 : -ErrorCodes.ENOENT();
+        } finally {
+            invalidateEntry(s);
+        }
     }
 
     @Override
@@ -151,6 +205,8 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         } catch (Exception ioe) {
             LOG.log(Level.WARNING, ioe.getMessage(), ioe);
             return -ErrorCodes.ENOENT();
+        } finally {
+            invalidateEntry(s);
         }
     }
 
@@ -158,7 +214,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int rmdir(String s) {
         ensureNotClosed();
         Path dir = Paths.get(s);
-        return applyIfPresent(s, (stat) -> applyIfPresent(dir.getParent().toString(), parentStat -> rmdir(stat, parentStat)));
+        try {
+            return applyIfPresent(s, (stat) -> applyIfPresent(dir.getParent().toString(), parentStat -> rmdir(stat, parentStat)));
+        } finally {
+            invalidateSubtree(s);
+        }
     }
 
     @Override
@@ -196,7 +256,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int rename(String s, String s1) {
         ensureNotClosed();
         Path source = Paths.get(s);
-        return applyIfPresent(s, (stat) -> applyIfPresent(source.getParent().toString(), parentStat -> rename(stat, parentStat, s, s1)));
+        try {
+            return applyIfPresent(s, (stat) -> applyIfPresent(source.getParent().toString(), parentStat -> rename(stat, parentStat, s, s1)));
+        } finally {
+            invalidateSubtree(s);
+            invalidateSubtree(s1);
+        }
     }
 
     @Override
@@ -242,7 +307,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
         String name = path.getFileName().toString();
-        return applyIfPresent(parentPath, (parent) -> write(parent, name, pointer, size, offset), -ErrorCodes.ENOENT());
+        try {
+            return applyIfPresent(parentPath, (parent) -> write(parent, name, pointer, size, offset), -ErrorCodes.ENOENT());
+        } finally {
+            invalidateEntry(s);
+        }
     }
 
     @Override
@@ -298,7 +367,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     @Override
     public int readdir(String s, Pointer pointer, FuseFillDir fuseFillDir, @off_t long l, FuseFileInfo fuseFileInfo) {
         ensureNotClosed();
-        return applyIfPresent(s, (stat) ->readdir(stat, fuseFillDir, pointer));
+        return applyIfPresent(s, (stat) ->readdir(s, stat, fuseFillDir, pointer));
     }
 
     @Override
@@ -339,8 +408,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         String name = path.getFileName().toString();
         byte[] emptyData = new byte[0];
 
-        return applyIfPresent(parentPath,
-                (stat) -> write(stat,  name, emptyData, 0, 0));
+        try {
+            return applyIfPresent(parentPath,
+                    (stat) -> write(stat,  name, emptyData, 0, 0));
+        } finally {
+            invalidateEntry(s);
+        }
     }
 
     @Override
@@ -348,7 +421,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         ensureNotClosed();
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
-        return applyIfBothPresent(parentPath, s, (parent, file) -> truncate(parent, file, l));
+        try {
+            return applyIfBothPresent(parentPath, s, (parent, file) -> truncate(parent, file, l));
+        } finally {
+            invalidateEntry(s);
+        }
     }
 
     @Override
@@ -396,6 +473,8 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
             } catch (Exception ex) {
                 LOG.log(Level.WARNING, ex.getMessage(), ex);
                 return -ErrorCodes.ENOENT();
+            } finally {
+                invalidateEntry(s);
             }
         }, aDefault);
 
@@ -443,21 +522,89 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         throw ex;
     }
 
+    /** Resolve a path, using the cached result if it hasn't expired
+     *
+     * @param path
+     * @return
+     */
     protected Optional<PeergosStat> getByPath(String path) {
+        long generation;
+        synchronized (statCache) {
+            CachedStat cached = statCache.get(path);
+            if (cached != null && cached.expiry > System.currentTimeMillis())
+                return cached.stat;
+            generation = statGeneration;
+        }
+        Optional<PeergosStat> res = lookup(path)
+                .map(treeNode -> new PeergosStat(treeNode, treeNode.getFileProperties()));
+        cacheStat(path, res, generation);
+        return res;
+    }
+
+    /** Resolve a path from its parent, unless the parent is read only, in which case there may be an entry point
+     *  with more access further down the tree.
+     */
+    private Optional<FileWrapper> lookup(String path) {
         try {
-            Optional<FileWrapper> opt = context.getByPath(path).get();
-            ;
-            if (!opt.isPresent())
+            Path requested = Paths.get(path);
+            Path parentPath = requested.getParent();
+            if (parentPath == null || parentPath.getParent() == null)
+                return context.getByPath(path).get();
+            Optional<PeergosStat> parent = getByPath(parentPath.toString());
+            if (! parent.isPresent())
                 return Optional.empty();
-            FileWrapper treeNode = opt.get();
-            FileProperties fileProperties = treeNode.getFileProperties();
-
-            return Optional.of(new PeergosStat(treeNode, fileProperties));
+            FileWrapper parentNode = parent.get().treeNode;
+            if (! parentNode.isDirectory())
+                return Optional.empty();
+            if (! parentNode.isWritable())
+                return context.getByPath(path).get();
+            return parentNode.getChild(requested.getFileName().toString(), context.crypto.hasher, context.network).get();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private long currentStatGeneration() {
+        synchronized (statCache) {
+            return statGeneration;
+        }
+    }
+
+    private void cacheStat(String path, Optional<PeergosStat> stat, long generation) {
+        long ttl = stat.isPresent() ? ATTRIBUTE_TTL_MILLIS : NEGATIVE_TTL_MILLIS;
+        synchronized (statCache) {
+            if (generation != statGeneration)
+                return;
+            statCache.put(path, new CachedStat(stat, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /** Called after a path has been modified locally, which also modifies its parent
+     *
+     * @param path
+     */
+    protected void invalidateEntry(String path) {
+        synchronized (statCache) {
+            statGeneration++;
+            statCache.remove(path);
+            Path parent = Paths.get(path).getParent();
+            if (parent != null)
+                statCache.remove(parent.toString());
+        }
+    }
+
+    /** Called after a path has been moved or removed locally, along with everything below it
+     *
+     * @param path
+     */
+    protected void invalidateSubtree(String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        synchronized (statCache) {
+            invalidateEntry(path);
+            statCache.keySet().removeIf(p -> p.startsWith(prefix));
+        }
+    }
+
     private Optional<PeergosStat> getParentByPath(String  path) {
         String parentPath = Paths.get(path).getParent().toString();
         return getByPath(parentPath);
@@ -496,12 +643,17 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         }
     }
 
-    private int readdir(PeergosStat stat, FuseFillDir fuseFillDir, Pointer pointer) {
+    private int readdir(String path, PeergosStat stat, FuseFillDir fuseFillDir, Pointer pointer) {
         try {
+            long generation = currentStatGeneration();
             Set<FileWrapper> children = stat.treeNode.getChildren(context.crypto.hasher, context.network).get();
-            children.stream()
-                    .map(e -> e.getFileProperties().name)
-                    .forEach(e -> fuseFillDir.apply(pointer, e, null, 0));
+            String prefix = path.endsWith("/") ? path : path + "/";
+            for (FileWrapper child : children) {
+                FileProperties props = child.getFileProperties();
+                // the stat of every entry is usually requested next
+                cacheStat(prefix + props.name, Optional.of(new PeergosStat(child, props)), generation);
+                fuseFillDir.apply(pointer, props.name, null, 0);
+            }
             return 0;
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
@@ -522,24 +674,81 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         if (data.length == 0)
             return Optional.of(data);
 
-        try (AsyncReader asyncReader = stat.treeNode.getInputStream(context.network, context.crypto, actualSize, (l) -> {}).get()){
-            AsyncReader seeked = asyncReader.seekJS((int) (offset >> 32), (int) offset).get();
+        // N.B. Fuse seems to assume that a file must be an integral number of disk sectors,
+        // so need to tolerate EOFs up end of last sector (4KiB)
+        if (offset + size > actualSize + 4096)
+            return Optional.empty();
 
-            // N.B. Fuse seems to assume that a file must be an integral number of disk sectors,
-            // so need to tolerate EOFs up end of last sector (4KiB)
-            if (offset + size > actualSize + 4096)
-                return Optional.empty();
+        Location file = stat.treeNode.getLocation();
+        AsyncReader seeked = null;
+        try {
+            Optional<AsyncReader> sequential = takeOpenReader(file, stat.properties, offset);
+            if (sequential.isPresent())
+                seeked = sequential.get();
+            else {
+                AsyncReader asyncReader = stat.treeNode.getInputStream(context.network, context.crypto, actualSize, (l) -> {}).get();
+                seeked = asyncReader.seekJS((int) (offset >> 32), (int) offset).get();
+            }
 
             int sizeToRead = offset + size >= actualSize ? (int) (actualSize - offset) : (int) size;
             int read = seeked.readIntoArray(data, 0, sizeToRead).get();
-
+            returnOpenReader(file, new OpenReader(seeked, stat.properties, offset + sizeToRead));
             return Optional.of(data);
         } catch (Exception  ioe) {
+            if (seeked != null)
+                seeked.close();
             LOG.log(Level.WARNING, ioe.getMessage(), ioe);
             return Optional.empty();
         }
     }
 
+    private Optional<AsyncReader> takeOpenReader(Location file, FileProperties props, long offset) {
+        synchronized (openReaders) {
+            OpenReader open = openReaders.get(file);
+            if (open == null || open.position != offset || open.properties.size != props.size ||
+                    ! open.properties.modified.equals(props.modified))
+                return Optional.empty();
+            openReaders.remove(file);
+            return Optional.of(open.reader);
+        }
+    }
+
+    private void returnOpenReader(Location file, OpenReader reader) {
+        synchronized (openReaders) {
+            OpenReader previous = openReaders.put(file, reader);
+            if (previous != null && previous.reader != reader.reader)
+                previous.reader.close();
+        }
+    }
+
+    private void closeOpenReaders() {
+        synchronized (openReaders) {
+            openReaders.values().forEach(r -> r.reader.close());
+            openReaders.clear();
+        }
+    }
+
+    /** Close the open reader of a file which is about to change
+     */
+    private void closeOpenReader(Location file) {
+        synchronized (openReaders) {
+            OpenReader open = openReaders.remove(file);
+            if (open != null)
+                open.reader.close();
+        }
+    }
+
+    /** Close the open reader of the named child, only looking the child up if there is a reader of a file with its name
+     */
+    private void closeOpenReader(PeergosStat parent, String name) {
+        synchronized (openReaders) {
+            if (openReaders.values().stream().noneMatch(r -> r.properties.name.equals(name)))
+                return;
+        }
+        parent.treeNode.getChild(name, context.crypto.hasher, context.network).join()
+                .ifPresent(child -> closeOpenReader(child.getLocation()));
+    }
+
     public int read(PeergosStat stat, Pointer pointer, long requestedSize, long offset) {
         Optional<byte[]> dataOpt = read(stat, requestedSize, offset);
 
@@ -566,6 +775,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int truncate(PeergosStat parent, PeergosStat file, long size) {
 
         debug("TRUNCATE file %s, size %d", file.properties.name, size);
+        closeOpenReader(file.treeNode.getLocation());
 
         try {
             if (size > file.properties.size) {
@@ -592,8 +802,8 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     }
 
     public int write(PeergosStat parent, String name, byte[] toWrite, long size, long offset) {
-
         try {
+            closeOpenReader(parent, name);
             long updatedLength = size + offset;
             if (Integer.MAX_VALUE < updatedLength) {
                 throw new IllegalStateException("Cannot write more than " + Integer.MAX_VALUE + " bytes");
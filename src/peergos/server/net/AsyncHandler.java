@@ -0,0 +1,158 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.*;
+import peergos.server.util.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A http handler which completes each response from the future of the underlying call, rather than blocking a
+ *  server thread until the result is ready.
+ *
+ *  Each endpoint has a limit on the number of requests in progress. Requests beyond that are queued and started as
+ *  others complete, and once the queue is full further requests are rejected with a 503.
+ */
+public abstract class AsyncHandler implements HttpHandler {
+    private static final Logger LOG = Logging.LOG();
+
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 200;
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 1000;
+
+    private final String name;
+    private final int maxConcurrent, maxQueued;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    protected AsyncHandler(String name, int maxConcurrent, int maxQueued) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     *
+     * @param exchange
+     * @return the name of the endpoint this request is for, from a fixed set, used for limits and metrics
+     */
+    protected abstract String endpoint(HttpExchange exchange);
+
+    /** Start handling a request. The exchange is closed by the caller once the returned future completes, with an
+     * error response if it completes exceptionally.
+     *
+     * @param exchange
+     * @return a future which completes once the response has been written
+     */
+    protected abstract CompletableFuture<?> handleAsync(HttpExchange exchange) throws Exception;
+
+    @Override
+    public void handle(HttpExchange exchange) {
+        long t1 = System.currentTimeMillis();
+        String endpointName;
+        try {
+            endpointName = name + "/" + endpoint(exchange);
+        } catch (Exception e) {
+            HttpUtil.replyError(exchange, e);
+            exchange.close();
+            return;
+        }
+        Endpoint endpoint = endpoints.computeIfAbsent(endpointName, Endpoint::new);
+        Executor executor = exchange.getHttpContext().getServer().getExecutor();
+        Runnable request = () -> process(exchange, endpoint, executor, t1);
+        switch (endpoint.admit(request)) {
+            case RUN:
+                request.run();
+                break;
+            case QUEUED:
+                break;
+            case REJECTED:
+                AggregatedMetrics.HTTP_REJECTED.labels(endpoint.name).inc();
+                try {
+                    exchange.sendResponseHeaders(503, -1);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                } finally {
+                    exchange.close();
+                }
+        }
+    }
+
+    private void process(HttpExchange exchange, Endpoint endpoint, Executor executor, long t1) {
+        CompletableFuture<?> result;
+        try {
+            result = handleAsync(exchange);
+        } catch (Throwable t) {
+            result = Futures.errored(t);
+        }
+        result.whenComplete((res, err) -> {
+            try {
+                if (err != null) {
+                    LOG.log(Level.SEVERE, "Error handling " + exchange.getRequestURI(), err);
+                    HttpUtil.replyError(exchange, err);
+                }
+            } finally {
+                exchange.close();
+                long duration = System.currentTimeMillis() - t1;
+                AggregatedMetrics.HTTP_REQUEST_DURATION.labels(endpoint.name).observe(duration);
+                endpoint.release(executor);
+            }
+        });
+    }
+
+    protected static void replyBytes(HttpExchange exchange, byte[] body) {
+        try {
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private enum Admission { RUN, QUEUED, REJECTED }
+
+    private class Endpoint {
+        public final String name;
+        private int inFlight = 0;
+        private final Deque<Runnable> queue = new ArrayDeque<>();
+
+        public Endpoint(String name) {
+            this.name = name;
+        }
+
+        public synchronized Admission admit(Runnable request) {
+            if (inFlight < maxConcurrent) {
+                inFlight++;
+                AggregatedMetrics.HTTP_IN_FLIGHT.labels(name).set(inFlight);
+                return Admission.RUN;
+            }
+            if (queue.size() < maxQueued) {
+                queue.add(request);
+                AggregatedMetrics.HTTP_QUEUED.labels(name).set(queue.size());
+                return Admission.QUEUED;
+            }
+            return Admission.REJECTED;
+        }
+
+        /** Hand our slot to the next queued request, if any
+         *
+         */
+        public void release(Executor executor) {
+            Runnable next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null)
+                    inFlight--;
+                AggregatedMetrics.HTTP_IN_FLIGHT.labels(name).set(inFlight);
+                AggregatedMetrics.HTTP_QUEUED.labels(name).set(queue.size());
+            }
+            if (next == null)
+                return;
+            if (executor != null)
+                executor.execute(next);
+            else
+                ForkJoinPool.commonPool().execute(next);
+        }
+    }
+}
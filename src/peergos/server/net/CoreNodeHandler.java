@@ -11,92 +11,108 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.util.zip.*;
 
-public class CoreNodeHandler implements HttpHandler
+public class CoreNodeHandler extends AsyncHandler
 {
     private static final Logger LOG = Logging.LOG();
 
+    private static final Set<String> METHODS = new HashSet<>(Arrays.asList("getChain", "updateChain", "getPublicKey",
+            "getUsername", "getUsernamesGzip"));
+
     private final CoreNode coreNode;
     private final boolean isPublicServer;
 
-    public CoreNodeHandler(CoreNode coreNode, boolean isPublicServer) {
+    public CoreNodeHandler(CoreNode coreNode, boolean isPublicServer, int maxConcurrentRequests, int maxQueuedRequests) {
+        super("core", maxConcurrentRequests, maxQueuedRequests);
         this.coreNode = coreNode;
         this.isPublicServer = isPublicServer;
     }
 
-    public void handle(HttpExchange exchange)
+    public CoreNodeHandler(CoreNode coreNode, boolean isPublicServer) {
+        this(coreNode, isPublicServer, DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_QUEUED_REQUESTS);
+    }
+
+    private static String[] subComponents(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/"))
+            path = path.substring(1);
+        return path.substring(Constants.CORE_URL.length()).split("/");
+    }
+
+    @Override
+    protected String endpoint(HttpExchange exchange) {
+        String method = subComponents(exchange)[0];
+        return METHODS.contains(method) ? method : "other";
+    }
+
+    @Override
+    protected CompletableFuture<?> handleAsync(HttpExchange exchange) throws Exception
     {
-        long t1 = System.currentTimeMillis();
         DataInputStream din = new DataInputStream(exchange.getRequestBody());
 
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         DataOutputStream dout = new DataOutputStream(bout);
 
-        String path = exchange.getRequestURI().getPath();
-        if (path.startsWith("/"))
-            path = path.substring(1);
-        String[] subComponents = path.substring(Constants.CORE_URL.length()).split("/");
+        String[] subComponents = subComponents(exchange);
         String method = subComponents[0];
 
-        try {
-            if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
-                exchange.sendResponseHeaders(405, 0);
-                return;
-            }
-
-            switch (method)
-            {
-                case "getChain":
-                    AggregatedMetrics.GET_PUBLIC_KEY_CHAIN.inc();
-                    getChain(din, dout);
-                    break;
-                case "updateChain":
-                    AggregatedMetrics.UPDATE_PUBLIC_KEY_CHAIN.inc();
-                    updateChain(din, dout);
-                    break;
-                case "getPublicKey":
-                    AggregatedMetrics.GET_PUBLIC_KEY.inc();
-                    getPublicKey(din, dout);
-                    break;
-                case "getUsername":
-                    AggregatedMetrics.GET_USERNAME.inc();
-                    getUsername(din, dout);
-                    break;
-                case "getUsernamesGzip":
-                    AggregatedMetrics.GET_ALL_USERNAMES.inc();
-                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
-                    exchange.getResponseHeaders().set("Content-Type", "application/json");
-                    getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "", din, dout);
-                    break;
-                default:
-                    throw new IOException("Unknown pkinode method!");
-            }
+        if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
+            exchange.sendResponseHeaders(405, 0);
+            return Futures.of(true);
+        }
 
-            dout.flush();
-            dout.close();
-            byte[] b = bout.toByteArray();
-            exchange.sendResponseHeaders(200, b.length);
-            exchange.getResponseBody().write(b);
-        } catch (Exception e) {
-            HttpUtil.replyError(exchange, e);
-        } finally {
-            exchange.close();
-            long t2 = System.currentTimeMillis();
-            LOG.info("Corenode server handled " + method + " request in: " + (t2 - t1) + " mS");
+        CompletableFuture<Boolean> result;
+        switch (method)
+        {
+            case "getChain":
+                AggregatedMetrics.GET_PUBLIC_KEY_CHAIN.inc();
+                result = getChain(din, dout);
+                break;
+            case "updateChain":
+                AggregatedMetrics.UPDATE_PUBLIC_KEY_CHAIN.inc();
+                result = updateChain(din, dout);
+                break;
+            case "getPublicKey":
+                AggregatedMetrics.GET_PUBLIC_KEY.inc();
+                result = getPublicKey(din, dout);
+                break;
+            case "getUsername":
+                AggregatedMetrics.GET_USERNAME.inc();
+                result = getUsername(din, dout);
+                break;
+            case "getUsernamesGzip":
+                AggregatedMetrics.GET_ALL_USERNAMES.inc();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                result = getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "", din, dout);
+                break;
+            default:
+                throw new IOException("Unknown pkinode method!");
         }
+
+        return result.thenAccept(done -> {
+            try {
+                dout.flush();
+                dout.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            replyBytes(exchange, bout.toByteArray());
+        });
     }
 
-    void getChain(DataInputStream din, DataOutputStream dout) throws Exception
+    CompletableFuture<Boolean> getChain(DataInputStream din, DataOutputStream dout) throws Exception
     {
         String username = CoreNodeUtils.deserializeString(din);
 
-        List<UserPublicKeyLink> chain = coreNode.getChain(username).get();
-        dout.write(new CborObject.CborList(chain).serialize());
+        return coreNode.getChain(username).thenApply(chain -> write(dout, out ->
+                out.write(new CborObject.CborList(chain).serialize())));
     }
 
-    void updateChain(DataInputStream din, DataOutputStream dout) throws Exception
+    CompletableFuture<Boolean> updateChain(DataInputStream din, DataOutputStream dout) throws Exception
     {
         String username = CoreNodeUtils.deserializeString(din);
         int count = din.readInt();
@@ -104,41 +120,52 @@ public class CoreNodeHandler implements HttpHandler
         for (int i=0; i < count; i++) {
             res.add(UserPublicKeyLink.fromCbor(CborObject.fromByteArray(Serialize.deserializeByteArray(din, UserPublicKeyLink.MAX_SIZE))));
         }
-        boolean isAdded = coreNode.updateChain(username, res).get();
-
-        dout.writeBoolean(isAdded);
+        return coreNode.updateChain(username, res).thenApply(isAdded -> write(dout, out -> out.writeBoolean(isAdded)));
     }
 
-    void getPublicKey(DataInputStream din, DataOutputStream dout) throws Exception
+    CompletableFuture<Boolean> getPublicKey(DataInputStream din, DataOutputStream dout) throws Exception
     {
         String username = CoreNodeUtils.deserializeString(din);
-        Optional<PublicKeyHash> k = coreNode.getPublicKeyHash(username).get();
-        dout.writeBoolean(k.isPresent());
-        if (!k.isPresent())
-            return;
-        byte[] b = k.get().serialize();
-        dout.writeInt(b.length);
-        dout.write(b);
+        return coreNode.getPublicKeyHash(username).thenApply(k -> write(dout, out -> {
+            out.writeBoolean(k.isPresent());
+            if (!k.isPresent())
+                return;
+            byte[] b = k.get().serialize();
+            out.writeInt(b.length);
+            out.write(b);
+        }));
     }
 
-    void getUsername(DataInputStream din, DataOutputStream dout) throws Exception
+    CompletableFuture<Boolean> getUsername(DataInputStream din, DataOutputStream dout) throws Exception
     {
         byte[] publicKey = CoreNodeUtils.deserializeByteArray(din);
-        String k = coreNode.getUsername(PublicKeyHash.fromCbor(CborObject.fromByteArray(publicKey))).get();
-        if (k == null)
-            k="";
-        Serialize.serialize(k, dout);
+        return coreNode.getUsername(PublicKeyHash.fromCbor(CborObject.fromByteArray(publicKey)))
+                .thenApply(k -> write(dout, out -> Serialize.serialize(k == null ? "" : k, out)));
     }
 
-    void getAllUsernamesGzip(String prefix, DataInputStream din, DataOutputStream dout) throws Exception
+    CompletableFuture<Boolean> getAllUsernamesGzip(String prefix, DataInputStream din, DataOutputStream dout) throws Exception
     {
-        List<String> res = coreNode.getUsernames(prefix).get();
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        GZIPOutputStream gout = new GZIPOutputStream(bout);
-        gout.write(JSONParser.toString(res).getBytes());
-        gout.flush();
-        gout.close();
-        dout.write(bout.toByteArray());
+        return coreNode.getUsernames(prefix).thenApply(res -> write(dout, out -> {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            GZIPOutputStream gout = new GZIPOutputStream(bout);
+            gout.write(JSONParser.toString(res).getBytes());
+            gout.flush();
+            gout.close();
+            out.write(bout.toByteArray());
+        }));
+    }
+
+    private interface Writer {
+        void write(DataOutputStream dout) throws IOException;
+    }
+
+    private static boolean write(DataOutputStream dout, Writer writer) {
+        try {
+            writer.write(dout);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public void close() throws IOException{
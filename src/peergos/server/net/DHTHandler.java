@@ -2,6 +2,7 @@ package peergos.server.net;
 import java.util.logging.*;
 
 import peergos.server.AggregatedMetrics;
+import peergos.server.crypto.*;
 import peergos.server.util.*;
 
 import peergos.shared.cbor.*;
@@ -18,164 +19,159 @@ import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
-public class DHTHandler implements HttpHandler {
+public class DHTHandler extends AsyncHandler {
 	private static final Logger LOG = Logging.LOG();
 
-    private static final boolean LOGGING = true;
+    private static final BlockSignatureVerifier VERIFIER = new BlockSignatureVerifier();
     private final ContentAddressedStorage dht;
-    private final Hasher hasher;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
     private final boolean isPublicServer;
 
     public DHTHandler(ContentAddressedStorage dht,
-                      Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                       String apiPrefix,
-                      boolean isPublicServer) {
+                      boolean isPublicServer,
+                      int maxConcurrentRequests,
+                      int maxQueuedRequests) {
+        super("dht", maxConcurrentRequests, maxQueuedRequests);
         this.dht = dht;
-        this.hasher = hasher;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
         this.isPublicServer = isPublicServer;
     }
 
     public DHTHandler(ContentAddressedStorage dht,
-                      Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                       boolean isPublicServer) {
-        this(dht, hasher, keyFilter, "/api/v0/", isPublicServer);
+        this(dht, keyFilter, "/api/v0/", isPublicServer, DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_QUEUED_REQUESTS);
     }
 
+    private static final Set<String> ENDPOINTS = new HashSet<>(Arrays.asList(BLOCKSTORE_PROPERTIES, AUTH_WRITES,
+            AUTH_READS, TRANSACTION_START, TRANSACTION_CLOSE, BLOCK_PUT, BLOCK_GET, BLOCK_STAT, REFS, ID));
+
     @Override
-    public void handle(HttpExchange httpExchange) {
-        long t1 = System.currentTimeMillis();
+    protected String endpoint(HttpExchange httpExchange) {
         String path = httpExchange.getRequestURI().getPath();
-        try {
-            if (! HttpUtil.allowedQuery(httpExchange, isPublicServer)) {
-                httpExchange.sendResponseHeaders(405, 0);
-                return;
-            }
+        if (! path.startsWith(apiPrefix))
+            return "other";
+        String endpoint = path.substring(apiPrefix.length());
+        return ENDPOINTS.contains(endpoint) ? endpoint : "other";
+    }
+
+    @Override
+    protected CompletableFuture<?> handleAsync(HttpExchange httpExchange) throws Exception {
+        String path = httpExchange.getRequestURI().getPath();
+        if (! HttpUtil.allowedQuery(httpExchange, isPublicServer)) {
+            httpExchange.sendResponseHeaders(405, 0);
+            return Futures.of(true);
+        }
 
-            if (! path.startsWith(apiPrefix))
-                throw new IllegalStateException("Unsupported api version, required: " + apiPrefix);
-            path = path.substring(apiPrefix.length());
-            // N.B. URI.getQuery() decodes the query string
-            Map<String, List<String>> params = HttpUtil.parseQuery(httpExchange.getRequestURI().getQuery());
-            List<String> args = params.get("arg");
-            Function<String, String> last = key -> params.get(key).get(params.get(key).size() - 1);
+        if (! path.startsWith(apiPrefix))
+            throw new IllegalStateException("Unsupported api version, required: " + apiPrefix);
+        path = path.substring(apiPrefix.length());
+        // N.B. URI.getQuery() decodes the query string
+        Map<String, List<String>> params = HttpUtil.parseQuery(httpExchange.getRequestURI().getQuery());
+        List<String> args = params.get("arg");
+        Function<String, String> last = key -> params.get(key).get(params.get(key).size() - 1);
 
-            switch (path) {
-                case BLOCKSTORE_PROPERTIES: {
-                    dht.blockStoreProperties().thenAccept(p -> {
-                        replyBytes(httpExchange, p.serialize(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case AUTH_WRITES: {
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    TransactionId tid = new TransactionId(last.apply("transaction"));
-                    PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
-                    byte[] reqBody = Serialize.readFully(httpExchange.getRequestBody());
-                    WriteAuthRequest req = WriteAuthRequest.fromCbor(CborObject.fromByteArray(reqBody));
-                    List<byte[]> signatures = req.signatures;
-                    List<Integer> blockSizes = req.sizes.stream()
-                            .map(x -> x.intValue())
-                            .collect(Collectors.toList());
-                    boolean isRaw = Boolean.parseBoolean(last.apply("raw"));
-                    dht.authWrites(ownerHash, writerHash, signatures, blockSizes, isRaw, tid).thenAccept(res -> {
-                        replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case AUTH_READS: {
-                    List<Multihash> blockHashes = Arrays.stream(last.apply("hashes").split(","))
-                            .map(Cid::decode)
-                            .collect(Collectors.toList());
-                    dht.authReads(blockHashes).thenAccept(res -> {
-                        replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case TRANSACTION_START: {
-                    AggregatedMetrics.DHT_TRANSACTION_START.inc();
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    dht.startTransaction(ownerHash).thenAccept(tid -> {
-                        replyJson(httpExchange, tid.toString(), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case TRANSACTION_CLOSE: {
-                    AggregatedMetrics.DHT_TRANSACTION_CLOSE.inc();
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    TransactionId tid = new TransactionId(args.get(0));
-                    dht.closeTransaction(ownerHash, tid).thenAccept(b -> {
-                        replyJson(httpExchange, JSONParser.toString(b ? 1 : 0), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case BLOCK_PUT: {
-                    AggregatedMetrics.DHT_BLOCK_PUT.inc();
-                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
-                    TransactionId tid = new TransactionId(last.apply("transaction"));
-                    PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
-                    List<byte[]> signatures = Arrays.stream(last.apply("signatures").split(","))
-                            .map(ArrayOps::hexToBytes)
-                            .collect(Collectors.toList());
-                    String boundary = httpExchange.getRequestHeaders().get("Content-Type")
-                            .stream()
-                            .filter(s -> s.contains("boundary="))
-                            .map(s -> s.substring(s.indexOf("=") + 1))
-                            .findAny()
-                            .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
-                    boolean isRaw = last.apply("format").equals("raw");
+        switch (path) {
+            case BLOCKSTORE_PROPERTIES: {
+                return dht.blockStoreProperties().thenAccept(p -> {
+                    replyBytes(httpExchange, p.serialize(), Optional.empty());
+                });
+            }
+            case AUTH_WRITES: {
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                TransactionId tid = new TransactionId(last.apply("transaction"));
+                PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
+                byte[] reqBody = Serialize.readFully(httpExchange.getRequestBody());
+                WriteAuthRequest req = WriteAuthRequest.fromCbor(CborObject.fromByteArray(reqBody));
+                List<byte[]> signatures = req.signatures;
+                List<Integer> blockSizes = req.sizes.stream()
+                        .map(x -> x.intValue())
+                        .collect(Collectors.toList());
+                boolean isRaw = Boolean.parseBoolean(last.apply("raw"));
+                return dht.authWrites(ownerHash, writerHash, signatures, blockSizes, isRaw, tid).thenAccept(res -> {
+                    replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
+                });
+            }
+            case AUTH_READS: {
+                List<Multihash> blockHashes = Arrays.stream(last.apply("hashes").split(","))
+                        .map(Cid::decode)
+                        .collect(Collectors.toList());
+                return dht.authReads(blockHashes).thenAccept(res -> {
+                    replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
+                });
+            }
+            case TRANSACTION_START: {
+                AggregatedMetrics.DHT_TRANSACTION_START.inc();
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                return dht.startTransaction(ownerHash).thenAccept(tid -> {
+                    replyJson(httpExchange, tid.toString(), Optional.empty());
+                });
+            }
+            case TRANSACTION_CLOSE: {
+                AggregatedMetrics.DHT_TRANSACTION_CLOSE.inc();
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                TransactionId tid = new TransactionId(args.get(0));
+                return dht.closeTransaction(ownerHash, tid).thenAccept(b -> {
+                    replyJson(httpExchange, JSONParser.toString(b ? 1 : 0), Optional.empty());
+                });
+            }
+            case BLOCK_PUT: {
+                AggregatedMetrics.DHT_BLOCK_PUT.inc();
+                PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                TransactionId tid = new TransactionId(last.apply("transaction"));
+                PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
+                List<byte[]> signatures = Arrays.stream(last.apply("signatures").split(","))
+                        .map(ArrayOps::hexToBytes)
+                        .collect(Collectors.toList());
+                String boundary = httpExchange.getRequestHeaders().get("Content-Type")
+                        .stream()
+                        .filter(s -> s.contains("boundary="))
+                        .map(s -> s.substring(s.indexOf("=") + 1))
+                        .findAny()
+                        .get();
+                List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
+                boolean isRaw = last.apply("format").equals("raw");
 
-                    // check writer is allowed to write to this server, and check their free space
-                    if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
-                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+                // check writer is allowed to write to this server, and check their free space
+                if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
+                    throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
 
-                    // Get the actual key, unless this is the initial write of the signing key during sign up
-                    // In the initial put of a signing key during sign up the key signs itself (we still check the hash
-                    // against the core node)
-                    Supplier<PublicSigningKey> fromDht = () -> {
-                        try {
-                            return dht.getSigningKey(writerHash).get().get();
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
-                        try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
-                            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
-                            if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(signatures.get(0));
-                                return candidateKey;
-                            }
-                        } catch (Throwable e) {
-                            // If signature is not valid then the signing key has already been written, retrieve it
-                            // This happens for the boxing key during sign up for example
+                // Get the actual key, unless this is the initial write of the signing key during sign up
+                // In the initial put of a signing key during sign up the key signs itself (we still check the hash
+                // against the core node)
+                Supplier<CompletableFuture<PublicSigningKey>> fromDht = () -> dht.getSigningKey(writerHash)
+                        .thenApply(Optional::get);
+                Supplier<CompletableFuture<PublicSigningKey>> inBandOrDht = () -> {
+                    try {
+                        PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
+                        PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
+                        if (calculatedHash.equals(writerHash)) {
+                            candidateKey.unsignMessage(signatures.get(0));
+                            return Futures.of(candidateKey);
                         }
-                        return fromDht.get();
-                    };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
-
-                    // verify signatures
-                    for (int i = 0; i < data.size(); i++) {
-                        byte[] signature = signatures.get(i);
-                        byte[] hash = hasher.sha256(data.get(i)).join();
-                        byte[] unsigned = writer.unsignMessage(signature);
-                        if (! Arrays.equals(unsigned, hash))
-                            throw new IllegalStateException("Invalid signature for block!");
+                    } catch (Throwable e) {
+                        // If signature is not valid then the signing key has already been written, retrieve it
+                        // This happens for the boxing key during sign up for example
                     }
+                    return fromDht.get();
+                };
+                CompletableFuture<PublicSigningKey> writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
 
-                    List<Multihash> hashes = (isRaw ?
+                return writer.thenCompose(writerKey -> {
+                    // verify signatures
+                    VERIFIER.verify(writerKey, signatures, data);
+                    return isRaw ?
                             dht.putRaw(ownerHash, writerHash, signatures, data, tid, x -> {}) :
-                            dht.put(ownerHash, writerHash, signatures, data, tid)).get();
+                            dht.put(ownerHash, writerHash, signatures, data, tid);
+                }).thenAccept(hashes -> {
                     List<Object> json = hashes.stream()
                             .map(h -> wrapHash(h))
                             .collect(Collectors.toList());
@@ -184,62 +180,48 @@ public class DHTHandler implements HttpHandler {
                             .map(m -> JSONParser.toString(m))
                             .reduce("", (a, b) -> a + b);
                     replyJson(httpExchange, jsonStream, Optional.empty());
-                    break;
-                }
-                case BLOCK_GET:{
-                    AggregatedMetrics.DHT_BLOCK_GET.inc();
-                    Multihash hash = Cid.decode(args.get(0));
-                    (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
-                            dht.getRaw(hash) :
-                            dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
-                            .thenAccept(opt -> replyBytes(httpExchange,
-                                    opt.orElse(new byte[0]), opt.map(x -> hash)))
-                            .exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case BLOCK_STAT: {
-                    AggregatedMetrics.DHT_BLOCK_STAT.inc();
-                    Multihash block = Cid.decode(args.get(0));
-                    dht.getSize(block).thenAccept(sizeOpt -> {
-                        Map<String, Object> res = new HashMap<>();
-                        res.put("Size", sizeOpt.orElse(0));
-                        String json = JSONParser.toString(res);
-                        replyJson(httpExchange, json, Optional.of(block));
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case REFS: {
-                    AggregatedMetrics.DHT_BLOCK_REFS.inc();
-                    Multihash block = Cid.decode(args.get(0));
-                    dht.getLinks(block).thenAccept(links -> {
-                        List<Object> json = links.stream().map(h -> wrapHash("Ref", h)).collect(Collectors.toList());
-                        // make stream of JSON objects
-                        String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
-                        replyJson(httpExchange, jsonStream, Optional.of(block));
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                case ID: {
-                    AggregatedMetrics.DHT_ID.inc();
-                    dht.id().thenAccept(id -> {
-                        Object json = wrapHash("ID", id);
-                        replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logAndThrow).get();
-                    break;
-                }
-                default: {
-                    httpExchange.sendResponseHeaders(404, 0);
-                }
+                });
+            }
+            case BLOCK_GET:{
+                AggregatedMetrics.DHT_BLOCK_GET.inc();
+                Multihash hash = Cid.decode(args.get(0));
+                return (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
+                        dht.getRaw(hash) :
+                        dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
+                        .thenAccept(opt -> replyBytes(httpExchange,
+                                opt.orElse(new byte[0]), opt.map(x -> hash)));
+            }
+            case BLOCK_STAT: {
+                AggregatedMetrics.DHT_BLOCK_STAT.inc();
+                Multihash block = Cid.decode(args.get(0));
+                return dht.getSize(block).thenAccept(sizeOpt -> {
+                    Map<String, Object> res = new HashMap<>();
+                    res.put("Size", sizeOpt.orElse(0));
+                    String json = JSONParser.toString(res);
+                    replyJson(httpExchange, json, Optional.of(block));
+                });
+            }
+            case REFS: {
+                AggregatedMetrics.DHT_BLOCK_REFS.inc();
+                Multihash block = Cid.decode(args.get(0));
+                return dht.getLinks(block).thenAccept(links -> {
+                    List<Object> json = links.stream().map(h -> wrapHash("Ref", h)).collect(Collectors.toList());
+                    // make stream of JSON objects
+                    String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
+                    replyJson(httpExchange, jsonStream, Optional.of(block));
+                });
+            }
+            case ID: {
+                AggregatedMetrics.DHT_ID.inc();
+                return dht.id().thenAccept(id -> {
+                    Object json = wrapHash("ID", id);
+                    replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
+                });
+            }
+            default: {
+                httpExchange.sendResponseHeaders(404, 0);
+                return Futures.of(true);
             }
-        } catch (Exception e) {
-            LOG.severe("Error handling " +httpExchange.getRequestURI());
-            LOG.log(Level.WARNING, e.getMessage(), e);
-            HttpUtil.replyError(httpExchange, e);
-        } finally {
-            httpExchange.close();
-            long t2 = System.currentTimeMillis();
-            if (LOGGING)
-                LOG.info("DHT Handler handled " + path + " query in: " + (t2 - t1) + " mS");
         }
     }
 
@@ -3,82 +3,167 @@ package peergos.server.net;
 import java.io.*;
 import java.util.*;
 
+/** Parses a multipart body by reading it in large chunks into a per thread buffer, and searching for part boundaries
+ *  with Boyer-Moore-Horspool. Each part is copied out of the buffer exactly once.
+ */
 public class MultipartReceiver {
+    private static final byte[] NEW_LINE = "\r\n".getBytes();
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final Delimiter LINE_END = new Delimiter(NEW_LINE);
+    private static final Delimiter HEADERS_END = new Delimiter(DOUBLE_NEW_LINE);
+    private static final int MAX_LINE_SIZE = 1024;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // Don't keep hold of buffers grown for unusually large bodies
+    private static final int MAX_POOLED_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
 
-    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
+    public static List<byte[]> extractFiles(InputStream in, String boundary) {
+        Body body = new Body(in, BUFFERS.get());
         try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
+            int firstLineEnd = body.indexOf(LINE_END, 0, MAX_LINE_SIZE);
+            String first = new String(body.copy(0, firstLineEnd < 0 ? body.available() : firstLineEnd));
             if (!first.substring(2).equals(boundary))
                 throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
+            int firstHeadersEnd = body.indexOf(HEADERS_END, firstLineEnd + NEW_LINE.length, Integer.MAX_VALUE);
+            if (firstHeadersEnd < 0)
+                return new ArrayList<>();
 
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
+            Delimiter delimiter = new Delimiter(("\r\n--" + boundary).getBytes());
             List<byte[]> files = new ArrayList<>();
-
+            int start = firstHeadersEnd + DOUBLE_NEW_LINE.length;
             while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
-                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
+                body.mark(start);
+                int end = body.indexOf(delimiter, start, Integer.MAX_VALUE);
+                if (end < 0) {
+                    files.add(body.copy(start, body.available()));
+                    return files;
+                }
+                files.add(body.copy(start, end));
+                int afterDelimiter = end + delimiter.pattern.length;
+                body.mark(afterDelimiter);
+                // the final delimiter is followed by "--"
+                if (! body.ensure(afterDelimiter + 2) ||
+                        (body.get(afterDelimiter) == '-' && body.get(afterDelimiter + 1) == '-'))
                     return files;
+                int headersEnd = body.indexOf(HEADERS_END, afterDelimiter, Integer.MAX_VALUE);
+                if (headersEnd < 0)
+                    return files;
+                start = headersEnd + DOUBLE_NEW_LINE.length;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (body.buf.length <= MAX_POOLED_BUFFER_SIZE)
+                BUFFERS.set(body.buf);
+            else
+                BUFFERS.remove();
         }
     }
 
-    /**
-     *
-     * @param pattern the pattern of bytes to search until
-     * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
-     */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
-                } else
-                    prior.write(r);
-            }
+    private static final class Delimiter {
+        public final byte[] pattern;
+        private final int[] skip = new int[256];
+
+        public Delimiter(byte[] pattern) {
+            this.pattern = pattern;
+            Arrays.fill(skip, pattern.length);
+            for (int i = 0; i < pattern.length - 1; i++)
+                skip[pattern[i] & 0xff] = pattern.length - 1 - i;
         }
-        return prior.toByteArray();
     }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
+    /** A window onto the request body. Positions are absolute offsets into the body. Bytes before the mark are no
+     *  longer needed and their space is reused when the buffer fills.
+     */
+    private static final class Body {
+        private final InputStream in;
+        private byte[] buf;
+        private int offset = 0, limit = 0, mark = 0;
+        private boolean eof = false;
+
+        public Body(InputStream in, byte[] buf) {
+            this.in = in;
+            this.buf = buf;
+        }
+
+        public void mark(int position) {
+            this.mark = position;
+        }
+
+        /**
+         *
+         * @return the absolute position of the end of the data read so far
+         */
+        public int available() {
+            return offset + limit;
+        }
+
+        public byte get(int position) {
+            return buf[position - offset];
+        }
+
+        public byte[] copy(int from, int to) {
+            return Arrays.copyOfRange(buf, from - offset, to - offset);
+        }
+
+        /**
+         *
+         * @param end
+         * @return whether the body extends to at least end
+         * @throws IOException
+         */
+        public boolean ensure(int end) throws IOException {
+            while (available() < end && !eof)
+                fill();
+            return available() >= end;
+        }
 
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
+        /**
+         *
+         * @param delimiter
+         * @param from
+         * @param maxDistance
+         * @return the absolute position of the next occurrence of delimiter at or after from, or -1 if the body ends
+         * or maxDistance bytes are searched without finding it
+         * @throws IOException
+         */
+        public int indexOf(Delimiter delimiter, int from, int maxDistance) throws IOException {
+            byte[] pattern = delimiter.pattern;
+            int last = pattern.length - 1;
+            int i = from;
+            while (true) {
+                int end = available();
+                while (i + pattern.length <= end) {
+                    int j = last;
+                    while (j >= 0 && buf[i - offset + j] == pattern[j])
+                        j--;
+                    if (j < 0)
+                        return i;
+                    i += delimiter.skip[buf[i - offset + last] & 0xff];
+                    if (i - from > maxDistance)
+                        return -1;
+                }
+                if (eof)
+                    return -1;
+                fill();
+            }
+        }
+
+        private void fill() throws IOException {
+            if (limit == buf.length) {
+                int discardable = mark - offset;
+                if (discardable >= buf.length / 2) {
+                    System.arraycopy(buf, discardable, buf, 0, limit - discardable);
+                    offset += discardable;
+                    limit -= discardable;
+                } else
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0)
+                eof = true;
+            else
+                limit += read;
         }
-        return new String(bout.toByteArray());
     }
 }
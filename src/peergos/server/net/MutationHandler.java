@@ -9,71 +9,70 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 /** This is the http endpoint for MutablePointer calls
  *
  */
-public class MutationHandler implements HttpHandler {
+public class MutationHandler extends AsyncHandler {
     private static final Logger LOG = Logging.LOG();
 
+    private static final Set<String> METHODS = new HashSet<>(Arrays.asList("setPointer", "getPointer"));
+
     private final MutablePointers mutable;
     private final boolean isPublicServer;
 
-    public MutationHandler(MutablePointers mutable, boolean isPublicServer) {
+    public MutationHandler(MutablePointers mutable, boolean isPublicServer, int maxConcurrentRequests, int maxQueuedRequests) {
+        super("mutable", maxConcurrentRequests, maxQueuedRequests);
         this.mutable = mutable;
         this.isPublicServer = isPublicServer;
     }
 
-    public void handle(HttpExchange exchange) throws IOException
-    {
-        long t1 = System.currentTimeMillis();
-        DataInputStream din = new DataInputStream(exchange.getRequestBody());
-
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(bout);
+    public MutationHandler(MutablePointers mutable, boolean isPublicServer) {
+        this(mutable, isPublicServer, DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_QUEUED_REQUESTS);
+    }
 
+    private static String method(HttpExchange exchange) {
         String path = exchange.getRequestURI().getPath();
         if (path.startsWith("/"))
             path = path.substring(1);
         String[] subComponents = path.substring(Constants.MUTABLE_POINTERS_URL.length()).split("/");
-        String method = subComponents[0];
+        return subComponents[0];
+    }
+
+    @Override
+    protected String endpoint(HttpExchange exchange) {
+        String method = method(exchange);
+        return METHODS.contains(method) ? method : "other";
+    }
+
+    @Override
+    protected CompletableFuture<?> handleAsync(HttpExchange exchange) throws Exception {
+        DataInputStream din = new DataInputStream(exchange.getRequestBody());
+        String method = method(exchange);
 //            LOG.info("core method "+ method +" from path "+ path);
 
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
         PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
         PublicKeyHash writer = PublicKeyHash.fromString(params.get("writer").get(0));
-        try {
-            if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
-                exchange.sendResponseHeaders(405, 0);
-                return;
-            }
-
-            switch (method) {
-                case "setPointer":
-                    AggregatedMetrics.MUTABLE_POINTERS_SET.inc();
-                    byte[] signedPayload = Serialize.readFully(din, 1024);
-                    boolean isAdded = mutable.setPointer(owner, writer, signedPayload).get();
-                    dout.writeBoolean(isAdded);
-                    break;
-                case "getPointer":
-                    AggregatedMetrics.MUTABLE_POINTERS_GET.inc();
-                    byte[] metadataBlob = mutable.getPointer(owner, writer).get().orElse(new byte[0]);
-                    dout.write(metadataBlob);
-                    break;
-                default:
-                    throw new IOException("Unknown method in mutable pointers!");
-            }
+        if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
+            exchange.sendResponseHeaders(405, 0);
+            return Futures.of(true);
+        }
 
-            byte[] b = bout.toByteArray();
-            exchange.sendResponseHeaders(200, b.length);
-            exchange.getResponseBody().write(b);
-        } catch (Exception e) {
-            HttpUtil.replyError(exchange, e);
-        } finally {
-            exchange.close();
-            long t2 = System.currentTimeMillis();
-            LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
+        switch (method) {
+            case "setPointer":
+                AggregatedMetrics.MUTABLE_POINTERS_SET.inc();
+                byte[] signedPayload = Serialize.readFully(din, 1024);
+                return mutable.setPointer(owner, writer, signedPayload)
+                        .thenAccept(isAdded -> replyBytes(exchange, new byte[] {(byte) (isAdded ? 1 : 0)}));
+            case "getPointer":
+                AggregatedMetrics.MUTABLE_POINTERS_GET.inc();
+                return mutable.getPointer(owner, writer)
+                        .thenAccept(metadataBlob -> replyBytes(exchange, metadataBlob.orElse(new byte[0])));
+            default:
+                throw new IOException("Unknown method in mutable pointers!");
         }
     }
 }
@@ -10,80 +10,83 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.logging.*;
 
 /** This is the http endpoint for SpaceUsage calls
  *
  */
-public class SpaceHandler implements HttpHandler {
+public class SpaceHandler extends AsyncHandler {
     private static final Logger LOG = Logging.LOG();
 
+    private static final Set<String> METHODS = new HashSet<>(Arrays.asList("payment-properties", "usage", "quota", "request"));
+
     private final SpaceUsage spaceUsage;
     private final boolean isPublicServer;
 
-    public SpaceHandler(SpaceUsage spaceUsage, boolean isPublicServer) {
+    public SpaceHandler(SpaceUsage spaceUsage, boolean isPublicServer, int maxConcurrentRequests, int maxQueuedRequests) {
+        super("space", maxConcurrentRequests, maxQueuedRequests);
         this.spaceUsage = spaceUsage;
         this.isPublicServer = isPublicServer;
     }
 
-    public void handle(HttpExchange exchange)
-    {
-        long t1 = System.currentTimeMillis();
+    public SpaceHandler(SpaceUsage spaceUsage, boolean isPublicServer) {
+        this(spaceUsage, isPublicServer, DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_QUEUED_REQUESTS);
+    }
+
+    private static String method(HttpExchange exchange) {
         String path = exchange.getRequestURI().getPath();
         if (path.startsWith("/"))
             path = path.substring(1);
         String[] subComponents = path.substring(Constants.SPACE_USAGE_URL.length()).split("/");
-        String method = subComponents[0];
+        return subComponents[0];
+    }
+
+    @Override
+    protected String endpoint(HttpExchange exchange) {
+        String method = method(exchange);
+        return METHODS.contains(method) ? method : "other";
+    }
+
+    @Override
+    protected CompletableFuture<?> handleAsync(HttpExchange exchange) throws Exception {
+        String method = method(exchange);
 
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
         Function<String, String> last = key -> params.get(key).get(params.get(key).size() - 1);
         PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
 
-        Cborable result;
-        try {
-            if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
-                exchange.sendResponseHeaders(405, 0);
-                return;
-            }
+        if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
+            exchange.sendResponseHeaders(405, 0);
+            return Futures.of(true);
+        }
 
-            switch (method) {
-                case "payment-properties": {
-                    byte[] signedTime = ArrayOps.hexToBytes(last.apply("auth"));
-                    boolean newClientSecret = Boolean.parseBoolean(last.apply("new-client-secret"));
-                    result = spaceUsage.getPaymentProperties(owner, newClientSecret, signedTime).join().toCbor();
-                    break;
-                }
-                case "usage": {
-                    long usage = spaceUsage.getUsage(owner).join();
-                    result = new CborObject.CborLong(usage);
-                    break;
-                }
-                case "quota": {
-                    byte[] signedTime = ArrayOps.hexToBytes(last.apply("auth"));
-                    long quota = spaceUsage.getQuota(owner, signedTime).join();
-                    result = new CborObject.CborLong(quota);
-                    break;
-                }
-                case "request": {
-                    byte[] signedReq = ArrayOps.hexToBytes(last.apply("req"));
-                    boolean res = spaceUsage.requestQuota(owner, signedReq).join();
-                    result = new CborObject.CborBoolean(res);
-                    break;
-                }
-                default:
-                    throw new IOException("Unknown method in StorageHandler!");
+        CompletableFuture<Cborable> result;
+        switch (method) {
+            case "payment-properties": {
+                byte[] signedTime = ArrayOps.hexToBytes(last.apply("auth"));
+                boolean newClientSecret = Boolean.parseBoolean(last.apply("new-client-secret"));
+                result = spaceUsage.getPaymentProperties(owner, newClientSecret, signedTime).thenApply(p -> p.toCbor());
+                break;
             }
-
-            byte[] b = result.serialize();
-            exchange.sendResponseHeaders(200, b.length);
-            exchange.getResponseBody().write(b);
-        } catch (Exception e) {
-            HttpUtil.replyError(exchange, e);
-        } finally {
-            exchange.close();
-            long t2 = System.currentTimeMillis();
-            LOG.info("SpaceUsage handled " + method + " request in: " + (t2 - t1) + " mS");
+            case "usage": {
+                result = spaceUsage.getUsage(owner).thenApply(CborObject.CborLong::new);
+                break;
+            }
+            case "quota": {
+                byte[] signedTime = ArrayOps.hexToBytes(last.apply("auth"));
+                result = spaceUsage.getQuota(owner, signedTime).thenApply(CborObject.CborLong::new);
+                break;
+            }
+            case "request": {
+                byte[] signedReq = ArrayOps.hexToBytes(last.apply("req"));
+                result = spaceUsage.requestQuota(owner, signedReq).thenApply(CborObject.CborBoolean::new);
+                break;
+            }
+            default:
+                throw new IOException("Unknown method in StorageHandler!");
         }
+        return result.thenAccept(res -> replyBytes(exchange, res.serialize()));
     }
 }
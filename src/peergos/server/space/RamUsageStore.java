@@ -100,7 +100,7 @@ public class RamUsageStore implements UsageStore {
     private static State load(Path statePath) throws IOException {
         Logging.LOG().info("Reading state from "+ statePath +" which exists ? "+ Files.exists(statePath) +" from cwd "+ System.getProperty("cwd"));
         byte[] data = Files.readAllBytes(statePath);
-        CborObject object = CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(data)), data.length);
+        CborObject object = CborObject.fromByteArray(data);
         return State.fromCbor(object);
     }
 
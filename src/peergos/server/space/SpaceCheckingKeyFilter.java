@@ -28,14 +28,23 @@ import java.util.stream.Collectors;
 public class SpaceCheckingKeyFilter implements SpaceUsage {
     private static final Logger LOG = Logging.LOG();
     private static final long USAGE_TOLERANCE = 1024 * 1024;
+    private static final int MUTABLE_EVENT_THREADS = 4;
+    private static final int USAGE_CALCULATION_THREADS = 4;
+    private static final int MAX_CACHED_SUBTREE_SIZES = 200_000;
+    private static final int USER_LOCKS = 64;
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private final Hasher hasher;
     private final QuotaAdmin quotaAdmin;
     private final UsageStore usageStore;
+    private final SubtreeSizeCache sizes;
     private final AtomicBoolean isRunning = new AtomicBoolean(true);
-    private final BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+    // events for a given owner always go to the same queue, so each writer's events are processed in order
+    private final List<BlockingQueue<MutableEvent>> mutableQueues = new ArrayList<>();
+    // An update to one writer can also update the other writers of the same user, e.g. when it removes an owned key,
+    // so all the updates for a user hold that user's lock, whichever thread they are on
+    private final Object[] userLocks = new Object[USER_LOCKS];
 
     public SpaceCheckingKeyFilter(CoreNode core,
                                   MutablePointers mutable,
@@ -49,14 +58,21 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         this.hasher = hasher;
         this.quotaAdmin = quotaAdmin;
         this.usageStore = usageStore;
-        new Thread(() -> {
-            while (isRunning.get()) {
-                try {
-                    MutableEvent event = mutableQueue.take();
-                    processMutablePointerEvent(event);
-                } catch (InterruptedException e) {}
-            }
-        }, "SpaceCheckingKeyFilter").start();
+        this.sizes = new SubtreeSizeCache(dht, MAX_CACHED_SUBTREE_SIZES);
+        for (int i = 0; i < USER_LOCKS; i++)
+            userLocks[i] = new Object();
+        for (int i = 0; i < MUTABLE_EVENT_THREADS; i++) {
+            BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+            mutableQueues.add(mutableQueue);
+            new Thread(() -> {
+                while (isRunning.get()) {
+                    try {
+                        MutableEvent event = mutableQueue.take();
+                        processMutablePointerEvent(event);
+                    } catch (InterruptedException e) {}
+                }
+            }, "SpaceCheckingKeyFilter-" + i).start();
+        }
         //add shutdown-hook to call close
         Runtime.getRuntime().addShutdownHook(new Thread(this::close, "SpaceChecker shutdown"));
     }
@@ -70,30 +86,39 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     }
 
     /**
-     * Walk the virtual file-system to calculate space used by each owner not already checked
+     * Walk the virtual file-system to calculate space used by each owner not already checked.
+     * Users are independent, so they are processed in parallel.
      */
     public void calculateUsage() {
+        ExecutorService pool = Executors.newFixedThreadPool(USAGE_CALCULATION_THREADS);
         try {
             List<String> usernames = quotaAdmin.getLocalUsernames();
             Logging.LOG().info("Calculating space usage for " + usernames.size() + " local users...");
+            List<Future<?>> done = new ArrayList<>();
             for (String username : usernames) {
-                Logging.LOG().info("Calculating space usage of " + username);
-                try {
-                    Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).get();
-                    if (identity.isPresent()) {
-                        processCorenodeEvent(username, identity.get());
-                        LOG.info("Updated space usage of user: " + username + " to " + usageStore.getUsage(username).totalUsage());
-                    } else
-                        LOG.info("Identity key absent in pki for user: " + username);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    LOG.log(Level.WARNING, "ERROR calculating usage for user: " + username + "\n" + e.getMessage(), e);
-                }
+                done.add(pool.submit(() -> {
+                    Logging.LOG().info("Calculating space usage of " + username);
+                    try {
+                        Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).get();
+                        if (identity.isPresent()) {
+                            processCorenodeEvent(username, identity.get());
+                            LOG.info("Updated space usage of user: " + username + " to " + usageStore.getUsage(username).totalUsage());
+                        } else
+                            LOG.info("Identity key absent in pki for user: " + username);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        LOG.log(Level.WARNING, "ERROR calculating usage for user: " + username + "\n" + e.getMessage(), e);
+                    }
+                }));
             }
+            for (Future<?> f : done)
+                f.get();
             usageStore.initialized();
             Logging.LOG().info("Finished calculating space usage for " + usernames.size() + " local users...");
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
+        } finally {
+            pool.shutdown();
         }
     }
 
@@ -114,6 +139,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
 
         Logging.LOG().info("Checking for updated mutable pointers...");
         long t1 = System.currentTimeMillis();
+        SubtreeSizeCache sizes = new SubtreeSizeCache(dht, MAX_CACHED_SUBTREE_SIZES);
         Set<PublicKeyHash> writers = store.getAllWriters();
         for (PublicKeyHash writerKey : writers) {
             WriterUsage writerUsage = store.getUsage(writerKey);
@@ -125,8 +151,12 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                 boolean isChanged = ! writerUsage.target().equals(rootHash);
                 if (isChanged) {
                     Logging.LOG().info("Root hash changed from " + writerUsage.target() + " to " + rootHash);
-                    long updatedSize = dht.getRecursiveBlockSize(rootHash.get()).get();
-                    long deltaUsage = updatedSize - writerUsage.directRetainedStorage();
+                    if (writerUsage.target().isPresent())
+                        sizes.cache(writerUsage.target().get(), writerUsage.directRetainedStorage());
+                    long deltaUsage = rootHash.isPresent() ?
+                            sizes.getChangeInContainedSize(writerUsage.target(), rootHash.get()).get() :
+                            -writerUsage.directRetainedStorage();
+                    long updatedSize = writerUsage.directRetainedStorage() + deltaUsage;
                     store.confirmUsage(writerUsage.owner, writerKey, deltaUsage, false);
                     Set<PublicKeyHash> directOwnedKeys = WriterData.getDirectOwnedKeys(owner, writerKey, mutable, dht, hasher).join();
                     List<PublicKeyHash> newOwnedKeys = directOwnedKeys.stream()
@@ -135,7 +165,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     for (PublicKeyHash newOwnedKey : newOwnedKeys) {
                         store.addWriter(writerUsage.owner, newOwnedKey);
                         processMutablePointerEvent(store, owner, newOwnedKey, MaybeMultihash.empty(),
-                                mutable.getPointerTarget(owner, newOwnedKey, dht).get(), mutable, dht, hasher);
+                                mutable.getPointerTarget(owner, newOwnedKey, dht).get(), mutable, dht, sizes, hasher);
                     }
                     HashSet<PublicKeyHash> removedOwnedKeys = new HashSet<>(writerUsage.ownedKeys());
                     removedOwnedKeys.removeAll(directOwnedKeys);
@@ -161,7 +191,17 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
      * @param username
      * @param writer
      */
+    private Object userLock(String username) {
+        return userLocks[Math.floorMod(username.hashCode(), userLocks.length)];
+    }
+
     private void processCorenodeEvent(String username, PublicKeyHash writer) {
+        synchronized (userLock(username)) {
+            processCorenodeEventLocked(username, writer);
+        }
+    }
+
+    private void processCorenodeEventLocked(String username, PublicKeyHash writer) {
         try {
             usageStore.addUserIfAbsent(username);
             Set<PublicKeyHash> childrenKeys = WriterData.getDirectOwnedKeys(writer, writer, mutable, dht, hasher)
@@ -171,9 +211,9 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     .collect(Collectors.toSet());
             WriterUsage current = usageStore.getUsage(writer);
             MaybeMultihash updatedRoot = mutable.getPointerTarget(writer, writer, dht).get();
-            processMutablePointerEvent(usageStore, writer, writer, current.target(), updatedRoot, mutable, dht, hasher);
+            processMutablePointerEvent(usageStore, writer, writer, current.target(), updatedRoot, mutable, dht, sizes, hasher);
             for (PublicKeyHash childKey : childrenKeys) {
-                processCorenodeEvent(username, childKey);
+                processCorenodeEventLocked(username, childKey);
             }
         } catch (Throwable e) {
             LOG.severe("Error loading storage for user: " + username);
@@ -182,7 +222,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     }
 
     public void accept(MutableEvent event) {
-        mutableQueue.add(event);
+        mutableQueues.get(Math.floorMod(event.owner.hashCode(), mutableQueues.size())).add(event);
         try {
             HashCasPair hashCasPair = dht.getSigningKey(event.writer)
                     .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
@@ -203,13 +243,19 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
             HashCasPair hashCasPair = dht.getSigningKey(event.writer)
                     .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
                             .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            processMutablePointerEvent(usageStore, event.owner, event.writer, hashCasPair.original, hashCasPair.updated,
-                    mutable, dht, hasher);
+            WriterUsage current = usageStore.getUsage(event.writer);
+            if (current == null)
+                throw new IllegalStateException("Unknown writer key hash: " + event.writer);
+            synchronized (userLock(current.owner)) {
+                processMutablePointerEvent(usageStore, event.owner, event.writer, hashCasPair.original, hashCasPair.updated,
+                        mutable, dht, sizes, hasher);
+            }
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
         }
     }
 
+    // callers must hold the lock of the user owning writer, unless nothing else is updating usage
     private static void processMutablePointerEvent(UsageStore state,
                                                    PublicKeyHash owner,
                                                    PublicKeyHash writer,
@@ -217,6 +263,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                                                    MaybeMultihash newRoot,
                                                    MutablePointers mutable,
                                                    ContentAddressedStorage dht,
+                                                   SubtreeSizeCache sizes,
                                                    Hasher hasher) {
         if (existingRoot.equals(newRoot))
             return;
@@ -230,7 +277,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     // subtract data size from orphaned child keys (this assumes the keys form a tree without dupes)
                     Set<PublicKeyHash> updatedOwned =
                             WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
-                    processRemovedOwnedKeys(state, owner, updatedOwned, mutable, dht, hasher);
+                    processRemovedOwnedKeys(state, owner, updatedOwned, mutable, dht, sizes, hasher);
                 } catch (Exception e) {
                     LOG.log(Level.WARNING, e.getMessage(), e);
                 }
@@ -239,22 +286,23 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         }
 
         try {
-            synchronized (current) {
-                long changeInStorage = dht.getChangeInContainedSize(current.target(), newRoot.get()).get();
-                Set<PublicKeyHash> updatedOwned =
-                        WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
-                for (PublicKeyHash owned : updatedOwned) {
-                    state.addWriter(current.owner, owned);
-                }
-                state.confirmUsage(current.owner, writer, changeInStorage, false);
-
-                HashSet<PublicKeyHash> removedChildren = new HashSet<>(current.ownedKeys());
-                removedChildren.removeAll(updatedOwned);
-                processRemovedOwnedKeys(state, owner, removedChildren, mutable, dht, hasher);
-                HashSet<PublicKeyHash> addedOwnedKeys = new HashSet<>(updatedOwned);
-                addedOwnedKeys.removeAll(current.ownedKeys());
-                state.updateWriterUsage(writer, newRoot, removedChildren, addedOwnedKeys, current.directRetainedStorage() + changeInStorage);
+            // the stored usage is the size of the current root, so the diff can stop at any subtree seen before
+            if (current.target().isPresent())
+                sizes.cache(current.target().get(), current.directRetainedStorage());
+            long changeInStorage = sizes.getChangeInContainedSize(current.target(), newRoot.get()).get();
+            Set<PublicKeyHash> updatedOwned =
+                    WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
+            for (PublicKeyHash owned : updatedOwned) {
+                state.addWriter(current.owner, owned);
             }
+            state.confirmUsage(current.owner, writer, changeInStorage, false);
+
+            HashSet<PublicKeyHash> removedChildren = new HashSet<>(current.ownedKeys());
+            removedChildren.removeAll(updatedOwned);
+            processRemovedOwnedKeys(state, owner, removedChildren, mutable, dht, sizes, hasher);
+            HashSet<PublicKeyHash> addedOwnedKeys = new HashSet<>(updatedOwned);
+            addedOwnedKeys.removeAll(current.ownedKeys());
+            state.updateWriterUsage(writer, newRoot, removedChildren, addedOwnedKeys, current.directRetainedStorage() + changeInStorage);
         } catch (Exception e) {
             Exceptions.getRootCause(e).printStackTrace();
         }
@@ -265,11 +313,12 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                                                 Set<PublicKeyHash> removed,
                                                 MutablePointers mutable,
                                                 ContentAddressedStorage dht,
+                                                SubtreeSizeCache sizes,
                                                 Hasher hasher) {
         for (PublicKeyHash ownedKey : removed) {
             try {
                 MaybeMultihash currentTarget = mutable.getPointerTarget(owner, ownedKey, dht).get();
-                processMutablePointerEvent(state, owner, ownedKey, currentTarget, MaybeMultihash.empty(), mutable, dht, hasher);
+                processMutablePointerEvent(state, owner, ownedKey, currentTarget, MaybeMultihash.empty(), mutable, dht, sizes, hasher);
             } catch (Exception e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
             }
@@ -0,0 +1,119 @@
+package peergos.server.space;
+
+import peergos.shared.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Computes the recursive size of merkle trees and the change in size between two versions of a tree, memoizing the
+ *  size of every subtree by its root hash.
+ *
+ *  Blocks are immutable, so a memoized size never goes stale. Once a writer's previous tree has been sized, a diff
+ *  only descends into the subtrees that differ, and any subtree whose size is already known (e.g. one that was moved,
+ *  or removed after having been added) costs nothing.
+ *
+ *  Only blocks with links are memoized. Leaves (mostly raw file fragments) are the bulk of all blocks, and sizing one
+ *  again is a single lookup.
+ */
+public class SubtreeSizeCache {
+    private final ContentAddressedStorage dht;
+    private final LRUCache<Multihash, Long> sizes;
+
+    public SubtreeSizeCache(ContentAddressedStorage dht, int maxEntries) {
+        this.dht = dht;
+        this.sizes = new LRUCache<>(maxEntries);
+    }
+
+    private synchronized Long getCached(Multihash block) {
+        return sizes.get(block);
+    }
+
+    /** Record a known recursive size, e.g. a writer's retained storage for its current root
+     *
+     */
+    public synchronized void cache(Multihash block, long size) {
+        sizes.put(block, size);
+    }
+
+    public CompletableFuture<Long> getRecursiveBlockSize(Multihash block) {
+        Long cached = getCached(block);
+        if (cached != null)
+            return Futures.of(cached);
+        return dht.getLinks(block).thenCompose(links -> {
+            List<CompletableFuture<Long>> subtrees = links.stream()
+                    .filter(m -> ! m.isIdentity())
+                    .map(this::getRecursiveBlockSize)
+                    .collect(Collectors.toList());
+            return dht.getSize(block)
+                    .thenCompose(sizeOpt -> {
+                        CompletableFuture<Long> reduced = Futures.reduceAll(subtrees,
+                                0L, (t, fut) -> fut.thenApply(x -> x + t), (a, b) -> a + b);
+                        return reduced.thenApply(sum -> sum + sizeOpt.orElse(0));
+                    }).thenApply(size -> {
+                        if (! links.isEmpty())
+                            cache(block, size);
+                        return size;
+                    });
+        });
+    }
+
+    public CompletableFuture<Long> getChangeInContainedSize(MaybeMultihash original, Multihash updated) {
+        if (! original.isPresent())
+            return getRecursiveBlockSize(updated);
+        return getChangeInContainedSize(original.get(), updated);
+    }
+
+    /** This is the same diff as ContentAddressedStorage.getChangeInContainedSize, but it short circuits on memoized
+     *  sizes, and it memoizes the size of the updated tree whenever the size of the original is known.
+     */
+    public CompletableFuture<Long> getChangeInContainedSize(Multihash original, Multihash updated) {
+        if (original.equals(updated))
+            return Futures.of(0L);
+        Long before = getCached(original);
+        Long after = getCached(updated);
+        if (before != null && after != null)
+            return Futures.of(after - before);
+        return dht.getLinksAndSize(original)
+                .thenCompose(beforeBlock -> dht.getLinksAndSize(updated).thenCompose(afterBlock -> {
+                    int objectDelta = afterBlock.left - beforeBlock.left;
+                    List<Multihash> onlyBefore = new ArrayList<>(beforeBlock.right);
+                    onlyBefore.removeAll(afterBlock.right);
+                    List<Multihash> onlyAfter = new ArrayList<>(afterBlock.right);
+                    onlyAfter.removeAll(beforeBlock.right);
+
+                    int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
+                    List<Pair<Multihash, Multihash>> pairs = IntStream.range(0, nPairs)
+                            .mapToObj(i -> new Pair<>(onlyBefore.get(i), onlyAfter.get(i)))
+                            .collect(Collectors.toList());
+
+                    List<Multihash> extraBefore = onlyBefore.subList(nPairs, onlyBefore.size());
+                    List<Multihash> extraAfter = onlyAfter.subList(nPairs, onlyAfter.size());
+                    Function<List<Multihash>, CompletableFuture<Long>> getAllRecursiveSizes =
+                            extra -> Futures.reduceAll(extra,
+                                    0L,
+                                    (s, h) -> getRecursiveBlockSize(h).thenApply(size -> size + s),
+                                    (a, b) -> a + b);
+
+                    Function<List<Pair<Multihash, Multihash>>, CompletableFuture<Long>> getSizeDiff =
+                            ps -> Futures.reduceAll(ps,
+                                    0L,
+                                    (s, p) -> getChangeInContainedSize(p.left, p.right).thenApply(size -> size + s),
+                                    (a, b) -> a + b);
+                    return getAllRecursiveSizes.apply(extraBefore)
+                            .thenCompose(priorSize -> getAllRecursiveSizes.apply(extraAfter)
+                                    .thenApply(postSize -> postSize - priorSize + objectDelta))
+                            .thenCompose(total -> getSizeDiff.apply(pairs).thenApply(res -> res + total))
+                            .thenApply(delta -> {
+                                Long originalSize = getCached(original);
+                                if (originalSize != null && ! afterBlock.right.isEmpty())
+                                    cache(updated, originalSize + delta);
+                                return delta;
+                            });
+                }));
+    }
+}
@@ -0,0 +1,182 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+
+/** A compact, append-only set of block hashes used when garbage collecting large block stores.
+ *
+ *  The serialized hashes are packed into a single byte array and located via an open-addressing table of entry
+ *  indices, so millions of blocks cost tens of bytes each rather than a Multihash object graph. Each entry also
+ *  records the block's size and a mark bit.
+ */
+public class BlockIndex {
+    private static final double MAX_LOAD = 0.6;
+
+    private byte[] keys;
+    private int keysEnd = 0;
+    private int[] offsets;
+    private long[] sizes;
+    private int count = 0;
+    private int[] table; // entry index + 1, 0 is empty
+    private BitSet marked = new BitSet();
+
+    public BlockIndex(int expectedSize) {
+        int initial = Math.max(16, expectedSize);
+        this.keys = new byte[initial * 36];
+        this.offsets = new int[initial + 1];
+        this.sizes = new long[initial];
+        this.table = new int[tableSizeFor(initial)];
+    }
+
+    public BlockIndex() {
+        this(1024);
+    }
+
+    private static int tableSizeFor(int entries) {
+        long needed = (long) Math.ceil(entries / MAX_LOAD);
+        int size = 16;
+        while (size < needed && size < (1 << 30))
+            size <<= 1;
+        return size;
+    }
+
+    private static int hash(byte[] key, int start, int end) {
+        // Keys are cryptographic hashes, so the trailing bytes are already well distributed
+        int h = 0;
+        for (int i = Math.max(start, end - 8); i < end; i++)
+            h = 31 * h + key[i];
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    private boolean keyEquals(int entry, byte[] key) {
+        int start = offsets[entry];
+        int len = offsets[entry + 1] - start;
+        if (len != key.length)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (keys[start + i] != key[i])
+                return false;
+        return true;
+    }
+
+    private int slotFor(byte[] key) {
+        int mask = table.length - 1;
+        int slot = hash(key, 0, key.length) & mask;
+        while (true) {
+            int entry = table[slot];
+            if (entry == 0 || keyEquals(entry - 1, key))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     *
+     * @param block
+     * @param size
+     * @return the index of the block, whether or not it was already present
+     */
+    public synchronized int add(Multihash block, long size) {
+        byte[] key = block.toBytes();
+        int slot = slotFor(key);
+        if (table[slot] != 0)
+            return table[slot] - 1;
+        if (count + 1 > table.length * MAX_LOAD) {
+            rehash(table.length << 1);
+            slot = slotFor(key);
+        }
+        ensureCapacity(key.length);
+        System.arraycopy(key, 0, keys, keysEnd, key.length);
+        offsets[count] = keysEnd;
+        keysEnd += key.length;
+        offsets[count + 1] = keysEnd;
+        sizes[count] = size;
+        table[slot] = count + 1;
+        return count++;
+    }
+
+    private void ensureCapacity(int keyLength) {
+        if (keysEnd + keyLength > keys.length)
+            keys = Arrays.copyOf(keys, Math.max(keys.length + (keys.length >> 1), keysEnd + keyLength));
+        if (count + 2 > offsets.length)
+            offsets = Arrays.copyOf(offsets, offsets.length + (offsets.length >> 1));
+        if (count + 1 > sizes.length)
+            sizes = Arrays.copyOf(sizes, sizes.length + (sizes.length >> 1));
+    }
+
+    private void rehash(int newSize) {
+        int[] newTable = new int[newSize];
+        int mask = newSize - 1;
+        for (int i = 0; i < count; i++) {
+            int slot = hash(keys, offsets[i], offsets[i + 1]) & mask;
+            while (newTable[slot] != 0)
+                slot = (slot + 1) & mask;
+            newTable[slot] = i + 1;
+        }
+        table = newTable;
+    }
+
+    /**
+     *
+     * @param block
+     * @return the index of the block, or -1 if it is not present
+     */
+    public synchronized int indexOf(Multihash block) {
+        int entry = table[slotFor(block.toBytes())];
+        return entry - 1;
+    }
+
+    public boolean contains(Multihash block) {
+        return indexOf(block) >= 0;
+    }
+
+    /**
+     *
+     * @param block
+     * @return true if the block is present and was not already marked
+     */
+    public synchronized boolean mark(Multihash block) {
+        int index = indexOf(block);
+        if (index < 0 || marked.get(index))
+            return false;
+        marked.set(index);
+        return true;
+    }
+
+    public synchronized boolean isMarked(int index) {
+        return marked.get(index);
+    }
+
+    public synchronized int markedCount() {
+        return marked.cardinality();
+    }
+
+    public synchronized Multihash get(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException(index + " >= " + count);
+        return Cid.cast(Arrays.copyOfRange(keys, offsets[index], offsets[index + 1]));
+    }
+
+    public synchronized long getSize(int index) {
+        return sizes[index];
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     *
+     * @param from
+     * @return the index of the next unmarked entry at or after from, or -1 if there are none
+     */
+    public synchronized int nextUnmarked(int from) {
+        int next = marked.nextClearBit(from);
+        return next < count ? next : -1;
+    }
+}
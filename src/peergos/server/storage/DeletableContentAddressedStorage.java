@@ -0,0 +1,25 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/** A ContentAddressedStorage whose blocks we manage ourselves, and can therefore list and garbage collect.
+ *
+ */
+public interface DeletableContentAddressedStorage extends ContentAddressedStorage {
+
+    /**
+     * Apply a function to the hash and size in bytes of every block currently stored
+     * @param processor
+     */
+    void applyToAllBlocks(BiConsumer<Multihash, Long> processor);
+
+    /**
+     * Delete the given blocks
+     * @param blocks
+     */
+    void bulkDelete(List<Multihash> blocks);
+}
@@ -3,6 +3,7 @@ package peergos.server.storage;
 import peergos.server.util.Logging;
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
@@ -21,12 +22,13 @@ import java.util.stream.*;
 /** A local directory implementation of ContentAddressedStorage.
  *
  */
-public class FileContentAddressedStorage implements ContentAddressedStorage {
+public class FileContentAddressedStorage implements DeletableContentAddressedStorage {
     private static final Logger LOG = Logging.LOG();
     private static final int CID_V1 = 1;
     private static final int DIRECTORY_DEPTH = 5;
     private final Path root;
     private final TransactionStore transactions;
+    private final ChampCache champCache = new ChampCache(ChampCache.DEFAULT_MAX_ENTRIES);
 
     public FileContentAddressedStorage(Path root, TransactionStore transactions) {
         this.root = root;
@@ -41,6 +43,11 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
             throw new IllegalStateException("File store path must be a directory! " + root);
     }
 
+    @Override
+    public ChampCache champCache() {
+        return champCache;
+    }
+
     @Override
     public CompletableFuture<Multihash> id() {
         return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())));
@@ -87,9 +94,13 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                                                    List<byte[]> blocks,
                                                    boolean isRaw,
                                                    TransactionId tid) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> put(b, isRaw, tid, owner))
-                .collect(Collectors.toList()));
+        List<Cid> cids = blocks.stream()
+                .map(b -> hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        transactions.addBlocks(new ArrayList<>(cids), tid, owner);
+        for (int i = 0; i < blocks.size(); i++)
+            write(cids.get(i), blocks.get(i));
+        return CompletableFuture.completedFuture(new ArrayList<>(cids));
     }
 
     @Override
@@ -151,10 +162,23 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         }
     }
 
+    private static Cid hashToCid(byte[] data, boolean isRaw) {
+        return new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                Multihash.Type.sha2_256, RAMStorage.hash(data));
+    }
+
     public Multihash put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = hashToCid(data, isRaw);
+        transactions.addBlock(cid, tid, owner);
+        write(cid, data);
+        return cid;
+    }
+
+    /** Must only be called after the block has been added to a transaction
+     *
+     */
+    private void write(Cid cid, byte[] data) {
         try {
-            Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
-                    Multihash.Type.sha2_256, RAMStorage.hash(data));
             Path filePath = getFilePath(cid);
             Path target = root.resolve(filePath);
             Path parent = target.getParent();
@@ -170,7 +194,6 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                         throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
                 }
             }
-            transactions.addBlock(cid, tid, owner);
             File targetFile = target.toFile();
             Path tmp = Files.createTempFile(root, "tmp", "");
             File tmpFile = tmp.toFile();
@@ -197,7 +220,6 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                 if (tmpFile.exists())
                     tmpFile.delete();
             }
-            return cid;
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -242,6 +264,17 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         getFilesRecursive(root, processor);
     }
 
+    @Override
+    public void applyToAllBlocks(BiConsumer<Multihash, Long> processor) {
+        getFilesRecursive(root, h -> processor.accept(h, root.resolve(getFilePath(h)).toFile().length()));
+    }
+
+    @Override
+    public void bulkDelete(List<Multihash> blocks) {
+        for (Multihash block : blocks)
+            delete(block);
+    }
+
     private void getFilesRecursive(Path path, Consumer<Multihash> accumulator) {
         File pathFile = path.toFile();
         if (pathFile.isFile()) {
@@ -1,97 +1,200 @@
 package peergos.server.storage;
 
 import peergos.server.AggregatedMetrics;
+import peergos.server.corenode.*;
 import peergos.server.util.*;
+import peergos.shared.*;
 import peergos.shared.cbor.*;
+import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
-public class GarbageCollector implements ContentAddressedStorage {
+/** A concurrent mark and sweep garbage collector for block stores that we manage ourselves.
+ *
+ *  Writes are never blocked for the duration of a GC. Instead, when a collection starts we wait only for writes
+ *  that began before it to finish, and from then on every block written is recorded in a write barrier and is
+ *  exempt from the sweep. The roots are the mutable pointers plus the blocks of open transactions, both read after
+ *  the block store has been listed, so anything written after the listing is never a candidate for deletion.
+ */
+public class GarbageCollector extends DelegatingStorage {
+    private static final Logger LOG = Logging.LOG();
 
-    private static final long MAX_WAIT_FOR_TRANSACTION_MILLIS = 10_000;
+    private static final long MAX_WAIT_FOR_WRITES_MILLIS = 10_000;
+    private static final int DELETE_BATCH_SIZE = 1_000;
+    private static final int PROGRESS_INTERVAL = 100_000;
 
-    private final ContentAddressedStorage target;
+    private final DeletableContentAddressedStorage target;
+    private final TransactionStore transactions;
+    private final JdbcIpnsAndSocial pointers;
     private final long gcPeriodMillis;
-    // This lock is used to make new transactions block until a pending GC completes
-    private final Object gcLock = new Object();
-    private final ConcurrentHashMap<PublicKeyHash, AtomicInteger> openTransactions = new ConcurrentHashMap<>();
 
-    public GarbageCollector(ContentAddressedStorage target, long gcPeriodMillis) {
+    // The write barrier, all guarded by barrierLock
+    private final Object barrierLock = new Object();
+    private volatile boolean collecting = false;
+    private int unprotectedWrites = 0;
+    private final Set<Multihash> writtenDuringGc = new HashSet<>();
+    private final Set<Multihash> deleting = new HashSet<>();
+
+    public GarbageCollector(DeletableContentAddressedStorage target,
+                            TransactionStore transactions,
+                            JdbcIpnsAndSocial pointers,
+                            long gcPeriodMillis) {
+        super(target);
         this.target = target;
+        this.transactions = transactions;
+        this.pointers = pointers;
         this.gcPeriodMillis = gcPeriodMillis;
     }
 
     public void start() {
-        new Thread(this::run).start();
-    }
-
-    private int openTransactions() {
-        int res = 0;
-        for (AtomicInteger open : openTransactions.values()) {
-            res += Math.max(0, open.get());
-        }
-        return res;
+        Thread gc = new Thread(this::run, "Garbage collector");
+        gc.setDaemon(true);
+        gc.start();
     }
 
     public void run() {
         while (true) {
             try {
-                synchronized (gcLock) {
-                    long start = System.nanoTime();
-                    while (openTransactions() > 0) {
-                        if ((System.nanoTime() - start) / 1_000_000 > MAX_WAIT_FOR_TRANSACTION_MILLIS) {
-                            System.out.println("Aborting in flight transactions!");
-                            openTransactions.clear();
-                        }
-                        System.out.println("GC sleeping waiting for " + openTransactions() + " open transactions..");
-                        Thread.sleep(100);
-                    }
-                    Logging.LOG().info("Starting GC...");
-                    long ready = System.nanoTime();
-                    target.gc().join();
-                    long done = System.nanoTime();
-                    long gcWaitingToStart = (ready - start) / 1_000_000;
-                    long gcDuration = (done - ready) / 1_000_0000;
-                    Logging.LOG().info(String.format("GC took: %d ms waiting to start, %d ms in actual GC",
-                            gcWaitingToStart, gcDuration));
-
-                    AggregatedMetrics.IPFS_PRE_GC_DURATION.observe(gcWaitingToStart);
-                    AggregatedMetrics.IPFS_GC_DURATION.observe(gcDuration);
-                }
                 Thread.sleep(gcPeriodMillis);
+                collect();
             } catch (Throwable t) {
-                Logging.LOG().log(Level.WARNING, t.getMessage(), t);
+                LOG.log(Level.WARNING, t.getMessage(), t);
             }
         }
     }
 
-    @Override
-    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
-        synchronized (gcLock) {
-            openTransactions.putIfAbsent(owner, new AtomicInteger(0));
-            openTransactions.get(owner).incrementAndGet();
+    /** Run a single collection, concurrently with any writes
+     *
+     * @return whether a collection was completed
+     */
+    public boolean collect() throws InterruptedException {
+        long start = System.nanoTime();
+        if (! startCollecting())
+            return false;
+        try {
+            long ready = System.nanoTime();
+            LOG.info("Starting GC...");
+            collect(target, transactions, pointers, this::deleteUnlessWritten);
+            long done = System.nanoTime();
+            long gcWaitingToStart = (ready - start) / 1_000_000;
+            long gcDuration = (done - ready) / 1_000_000;
+            LOG.info(String.format("GC took: %d ms waiting to start, %d ms in actual GC", gcWaitingToStart, gcDuration));
+            AggregatedMetrics.IPFS_PRE_GC_DURATION.observe(gcWaitingToStart);
+            AggregatedMetrics.IPFS_GC_DURATION.observe(gcDuration);
+            return true;
+        } finally {
+            stopCollecting();
         }
-        return target.startTransaction(owner);
     }
 
-    @Override
-    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
-        AtomicInteger openTransactionsForUser = openTransactions.get(owner);
-        if (openTransactionsForUser != null)
-            openTransactionsForUser.decrementAndGet();
-        return target.closeTransaction(owner, tid);
+    private boolean startCollecting() throws InterruptedException {
+        synchronized (barrierLock) {
+            writtenDuringGc.clear();
+            collecting = true;
+            // Writes which began before the barrier was enabled aren't recorded in it, so they must finish first
+            long start = System.currentTimeMillis();
+            while (unprotectedWrites > 0) {
+                long remaining = MAX_WAIT_FOR_WRITES_MILLIS - (System.currentTimeMillis() - start);
+                if (remaining <= 0) {
+                    LOG.info("Skipping GC, still waiting for " + unprotectedWrites + " writes to complete");
+                    collecting = false;
+                    return false;
+                }
+                barrierLock.wait(remaining);
+            }
+            return true;
+        }
     }
 
-    @Override
-    public CompletableFuture<Multihash> id() {
-        return target.id();
+    private void stopCollecting() {
+        synchronized (barrierLock) {
+            collecting = false;
+            writtenDuringGc.clear();
+        }
+    }
+
+    private void deleteUnlessWritten(List<Multihash> garbage) {
+        List<Multihash> toDelete;
+        synchronized (barrierLock) {
+            toDelete = garbage.stream()
+                    .filter(h -> ! writtenDuringGc.contains(h))
+                    .collect(Collectors.toList());
+            deleting.addAll(toDelete);
+        }
+        try {
+            target.bulkDelete(toDelete);
+        } finally {
+            synchronized (barrierLock) {
+                deleting.removeAll(toDelete);
+                barrierLock.notifyAll();
+            }
+        }
+    }
+
+    private static List<Multihash> hashes(List<byte[]> blocks, boolean isRaw) {
+        return blocks.stream()
+                .map(b -> new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(b)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     *
+     * @param written the hashes of the blocks about to be written, only computed if a GC is running
+     * @return true if the written blocks were recorded in the write barrier of a running GC
+     */
+    private boolean beforeWrite(Supplier<List<Multihash>> written) {
+        while (true) {
+            boolean gcRunning = collecting;
+            List<Multihash> hashes = gcRunning ? written.get() : Collections.emptyList();
+            synchronized (barrierLock) {
+                if (collecting != gcRunning)
+                    continue;
+                if (! collecting) {
+                    unprotectedWrites++;
+                    return false;
+                }
+                writtenDuringGc.addAll(hashes);
+                // Don't race a concurrent deletion of a block we are about to write
+                while (hashes.stream().anyMatch(deleting::contains)) {
+                    try {
+                        barrierLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    private void afterUnprotectedWrite() {
+        synchronized (barrierLock) {
+            unprotectedWrites--;
+            barrierLock.notifyAll();
+        }
+    }
+
+    private <T> CompletableFuture<T> withWriteBarrier(Supplier<List<Multihash>> written,
+                                                      Supplier<CompletableFuture<T>> write) {
+        boolean protectedWrite = beforeWrite(written);
+        if (protectedWrite)
+            return write.get();
+        try {
+            return write.get().whenComplete((res, err) -> afterUnprotectedWrite());
+        } catch (RuntimeException e) {
+            afterUnprotectedWrite();
+            throw e;
+        }
     }
 
     @Override
@@ -100,12 +203,8 @@ public class GarbageCollector implements ContentAddressedStorage {
                                                   List<byte[]> signedHashes,
                                                   List<byte[]> blocks,
                                                   TransactionId tid) {
-        return target.put(owner, writer, signedHashes, blocks, tid);
-    }
-
-    @Override
-    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
-        return target.get(hash);
+        return withWriteBarrier(() -> hashes(blocks, false),
+                () -> target.put(owner, writer, signedHashes, blocks, tid));
     }
 
     @Override
@@ -115,27 +214,26 @@ public class GarbageCollector implements ContentAddressedStorage {
                                                      List<byte[]> blocks,
                                                      TransactionId tid,
                                                      ProgressConsumer<Long> progressConsumer) {
-        return target.putRaw(owner, writer, signatures, blocks, tid, progressConsumer);
+        return withWriteBarrier(() -> hashes(blocks, true),
+                () -> target.putRaw(owner, writer, signatures, blocks, tid, progressConsumer));
     }
 
     @Override
-    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
-        return target.getRaw(hash);
-    }
-
-    @Override
-    public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
-        return target.pinUpdate(owner, existing, updated);
-    }
-
-    @Override
-    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
-        return target.recursivePin(owner, hash);
-    }
-
-    @Override
-    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash hash) {
-        return target.recursiveUnpin(owner, hash);
+    public CompletableFuture<List<PresignedUrl>> authWrites(PublicKeyHash owner,
+                                                            PublicKeyHash writerHash,
+                                                            List<byte[]> signedHashes,
+                                                            List<Integer> blockSizes,
+                                                            boolean isRaw,
+                                                            TransactionId tid) {
+        // The client writes these blocks directly after we return, so they must be in the barrier by then
+        return withWriteBarrier(() -> {
+                    PublicSigningKey writer = target.getSigningKey(writerHash).join().get();
+                    return signedHashes.stream()
+                            .map(signed -> new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                                    Multihash.Type.sha2_256, writer.unsignMessage(signed)))
+                            .collect(Collectors.toList());
+                },
+                () -> target.authWrites(owner, writerHash, signedHashes, blockSizes, isRaw, tid));
     }
 
     /** This method is ignored because we decide when we are calling gc
@@ -147,13 +245,107 @@ public class GarbageCollector implements ContentAddressedStorage {
         return CompletableFuture.completedFuture(true);
     }
 
-    @Override
-    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
-        return target.getLinks(root);
+    /** Mark and sweep a block store.
+     *
+     * @param store
+     * @param transactions
+     * @param pointers
+     * @param deleter called with batches of unreachable blocks
+     * @return the snapshot of the mutable pointers which the collection was consistent with
+     */
+    public static Map<PublicKeyHash, byte[]> collect(DeletableContentAddressedStorage store,
+                                                     TransactionStore transactions,
+                                                     JdbcIpnsAndSocial pointers,
+                                                     Consumer<List<Multihash>> deleter) {
+        long t0 = System.nanoTime();
+        BlockIndex present = listBlocks(store);
+        long t1 = System.nanoTime();
+        LOG.info("Listing " + present.size() + " blocks took " + (t1-t0)/1_000_000_000 + "s");
+
+        Set<Multihash> pending = new HashSet<>();
+        transactions.streamOpenTransactionBlocks(pending::add);
+        long t2 = System.nanoTime();
+        LOG.info("Listing " + pending.size() + " pending blocks took " + (t2-t1)/1_000_000_000 + "s");
+
+        // This pointers call must happen AFTER the previous two for correctness
+        Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
+        long t3 = System.nanoTime();
+        LOG.info("Listing pointers took " + (t3-t2)/1_000_000_000 + "s");
+
+        List<Multihash> roots = new ArrayList<>();
+        for (PublicKeyHash writerHash : allPointers.keySet()) {
+            byte[] signedRawCas = allPointers.get(writerHash);
+            PublicSigningKey writer = store.getSigningKey(writerHash).join().get();
+            byte[] bothHashes = writer.unsignMessage(signedRawCas);
+            HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
+            MaybeMultihash updated = cas.updated;
+            if (updated.isPresent())
+                roots.add(updated.get());
+        }
+        markReachable(store, roots, present);
+        for (Multihash additional : pending)
+            present.mark(additional);
+        long t4 = System.nanoTime();
+        LOG.info("Marking " + present.markedCount() + " reachable blocks took " + (t4-t3)/1_000_000_000 + "s");
+
+        long deletedBlocks = 0;
+        long deletedSize = 0;
+        List<Multihash> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+        for (int i = present.nextUnmarked(0); i >= 0; i = present.nextUnmarked(i + 1)) {
+            batch.add(present.get(i));
+            deletedSize += present.getSize(i);
+            if (batch.size() == DELETE_BATCH_SIZE) {
+                deleter.accept(batch);
+                deletedBlocks += batch.size();
+                batch = new ArrayList<>(DELETE_BATCH_SIZE);
+                if (deletedBlocks % PROGRESS_INTERVAL == 0)
+                    logProgress("Deleted", deletedBlocks, deletedSize, t4);
+            }
+        }
+        if (! batch.isEmpty()) {
+            deleter.accept(batch);
+            deletedBlocks += batch.size();
+        }
+        long t5 = System.nanoTime();
+        LOG.info("Deleting blocks took " + (t5-t4)/1_000_000_000 + "s");
+        LOG.info("GC complete. Swept " + deletedBlocks + " unreachable blocks totalling " + deletedSize + " bytes");
+        return allPointers;
     }
 
-    @Override
-    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
-        return target.getSize(block);
+    private static void logProgress(String action, long blocks, long bytes, long startNanos) {
+        double seconds = Math.max(1, System.nanoTime() - startNanos) / 1_000_000_000.0;
+        LOG.info(String.format("%s %d blocks (%d MiB) at %.0f blocks/s, %.1f MiB/s", action, blocks, bytes >> 20,
+                blocks / seconds, bytes / seconds / 1024 / 1024));
+    }
+
+    private static BlockIndex listBlocks(DeletableContentAddressedStorage store) {
+        BlockIndex index = new BlockIndex(PROGRESS_INTERVAL);
+        long t0 = System.nanoTime();
+        long[] totalSize = new long[1];
+        store.applyToAllBlocks((hash, size) -> {
+            index.add(hash, size);
+            totalSize[0] += size;
+            if (index.size() % PROGRESS_INTERVAL == 0)
+                logProgress("Listed", index.size(), totalSize[0], t0);
+        });
+        return index;
+    }
+
+    private static void markReachable(ContentAddressedStorage store, List<Multihash> roots, BlockIndex present) {
+        // Blocks written after the listing aren't in the index, but can still link to blocks that are
+        Set<Multihash> visitedAbsent = new HashSet<>();
+        Deque<Multihash> toVisit = new ArrayDeque<>(roots);
+        long t0 = System.nanoTime();
+        long visited = 0;
+        while (! toVisit.isEmpty()) {
+            Multihash block = toVisit.pop();
+            if (! present.mark(block) && (present.contains(block) || ! visitedAbsent.add(block)))
+                continue;
+            visited++;
+            if (visited % PROGRESS_INTERVAL == 0)
+                logProgress("Marked", visited, 0, t0);
+            for (Multihash link : store.getLinks(block).join())
+                toVisit.push(link);
+        }
     }
 }
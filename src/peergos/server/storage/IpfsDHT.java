@@ -2,6 +2,7 @@ package peergos.server.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multiaddr.MultiAddress;
 import peergos.shared.io.ipfs.multihash.Multihash;
 import peergos.shared.storage.*;
@@ -13,6 +14,7 @@ import java.util.stream.*;
 
 public class IpfsDHT implements ContentAddressedStorage {
     private final IPFS ipfs;
+    private final ChampCache champCache = new ChampCache(ChampCache.DEFAULT_MAX_ENTRIES);
 
     public IpfsDHT(IPFS ipfs) {
         this.ipfs = ipfs;
@@ -32,6 +34,11 @@ public class IpfsDHT implements ContentAddressedStorage {
         this(new IPFS(ipfsAddress));
     }
 
+    @Override
+    public ChampCache champCache() {
+        return champCache;
+    }
+
     @Override
     public CompletableFuture<Multihash> id() {
         CompletableFuture<Multihash> res = new CompletableFuture<>();
@@ -9,17 +9,29 @@ import peergos.shared.storage.*;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.logging.*;
 
+/** A transaction store backed by a sql database.
+ *
+ *  A block must be recorded durably before it is written, so that a garbage collection, possibly in another process,
+ *  never deletes it. Rather than a separate autocommitted statement per block, callers queue their inserts and
+ *  deletes, and whichever caller gets the write lock next flushes everything queued so far with batched statements in
+ *  a single database transaction. Each call still only returns once its own changes are committed, but concurrent
+ *  callers share a commit. If a shared commit fails, every caller with a write in it gets the error.
+ */
 public class JdbcTransactionStore implements TransactionStore {
 	private static final Logger LOG = Logging.LOG();
 
     private static final String SELECT_TRANSACTIONS_BLOCKS = "SELECT tid, owner, hash FROM transactions;";
     private static final String DELETE_TRANSACTION = "DELETE FROM transactions WHERE tid = ? AND owner = ?;";
+    private static final int FETCH_SIZE = 10_000;
 
     private Supplier<Connection> conn;
     private final SqlSupplier commands;
+    private final Queue<Write> queue = new ConcurrentLinkedQueue<>();
+    private final Object writeLock = new Object();
     private volatile boolean isClosed;
 
     public JdbcTransactionStore(Supplier<Connection> conn, SqlSupplier commands) {
@@ -28,6 +40,23 @@ public class JdbcTransactionStore implements TransactionStore {
         init(commands);
     }
 
+    private static final class Write {
+        public final boolean isDelete;
+        public final TransactionId tid;
+        public final PublicKeyHash owner;
+        public final Multihash hash;
+        // set before done if the commit including this write failed
+        public volatile Exception error;
+        public volatile boolean done;
+
+        public Write(boolean isDelete, TransactionId tid, PublicKeyHash owner, Multihash hash) {
+            this.isDelete = isDelete;
+            this.tid = tid;
+            this.owner = owner;
+            this.hash = hash;
+        }
+    }
+
     private Connection getConnection() {
         Connection connection = conn.get();
         try {
@@ -57,50 +86,116 @@ public class JdbcTransactionStore implements TransactionStore {
 
     @Override
     public void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner) {
-        try (Connection conn = getConnection();
-             PreparedStatement insert = conn.prepareStatement(commands.insertTransactionCommand())) {
-            insert.clearParameters();
-            insert.setString(1, tid.toString());
-            insert.setString(2, owner.toString());
-            insert.setString(3, hash.toString());
-            insert.executeUpdate();
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-        }
+        submit(Collections.singletonList(new Write(false, tid, owner, hash)));
+    }
+
+    @Override
+    public void addBlocks(List<Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        List<Write> writes = new ArrayList<>(hashes.size());
+        for (Multihash hash : hashes)
+            writes.add(new Write(false, tid, owner, hash));
+        submit(writes);
     }
 
     @Override
     public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        submit(Collections.singletonList(new Write(true, tid, owner, null)));
+    }
+
+    /** Queue the writes, and then flush the queue unless another caller has already committed them
+     *
+     */
+    private void submit(List<Write> writes) {
+        if (writes.isEmpty())
+            return;
+        queue.addAll(writes);
+        Write last = writes.get(writes.size() - 1);
+        synchronized (writeLock) {
+            if (! last.done) {
+                List<Write> toFlush = new ArrayList<>();
+                Write next;
+                while ((next = queue.poll()) != null)
+                    toFlush.add(next);
+                try {
+                    flush(toFlush);
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                    for (Write w : toFlush)
+                        w.error = e;
+                } finally {
+                    for (Write w : toFlush)
+                        w.done = true;
+                }
+            }
+        }
+        // our writes may have been committed by several other callers
+        for (Write w : writes)
+            if (w.error != null)
+                throw new IllegalStateException(w.error);
+    }
+
+    private void flush(List<Write> writes) throws SQLException {
         try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.insertTransactionCommand());
              PreparedStatement delete = conn.prepareStatement(DELETE_TRANSACTION)) {
-            delete.setString(1, tid.toString());
-            delete.setString(2, owner.toString());
-            delete.executeUpdate();
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            conn.setAutoCommit(false);
+            try {
+                // Keep the order of inserts and deletes by executing each run of the same kind as a batch
+                int batched = 0;
+                boolean deleting = false;
+                for (Write w : writes) {
+                    if (batched > 0 && w.isDelete != deleting) {
+                        (deleting ? delete : insert).executeBatch();
+                        batched = 0;
+                    }
+                    deleting = w.isDelete;
+                    if (w.isDelete) {
+                        delete.setString(1, w.tid.toString());
+                        delete.setString(2, w.owner.toString());
+                        delete.addBatch();
+                    } else {
+                        insert.setString(1, w.tid.toString());
+                        insert.setString(2, w.owner.toString());
+                        insert.setString(3, w.hash.toString());
+                        insert.addBatch();
+                    }
+                    batched++;
+                }
+                if (batched > 0)
+                    (deleting ? delete : insert).executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
         }
     }
 
     @Override
-    public List<Multihash> getOpenTransactionBlocks() {
-        try (Connection conn = getConnection();
+    public void streamOpenTransactionBlocks(Consumer<Multihash> consumer) {
+        // Use a connection of our own rather than getConnection(), which would reset the autocommit mode of a shared
+        // connection during a flush. A pooled sqlite connection that only selects uses a reader, so this doesn't block
+        // writers while the consumer processes the rows.
+        try (Connection conn = this.conn.get();
              PreparedStatement select = conn.prepareStatement(SELECT_TRANSACTIONS_BLOCKS)) {
-            ResultSet rs = select.executeQuery();
-            List<Multihash> results = new ArrayList<>();
-            while (rs.next())
-            {
-                String tid = rs.getString("tid");
-                String owner = rs.getString("owner");
-                String hash = rs.getString("hash");
-                results.add(Cid.decode(hash));
+            select.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next())
+                    consumer.accept(Cid.decode(rs.getString("hash")));
             }
-            return results;
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             throw new IllegalStateException(sqe);
         }
     }
 
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        List<Multihash> results = new ArrayList<>();
+        streamOpenTransactionBlocks(results::add);
+        return results;
+    }
+
     public synchronized void close() {
         if (isClosed)
             return;
@@ -2,6 +2,7 @@ package peergos.server.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
@@ -12,12 +13,18 @@ import java.util.concurrent.*;
 public class NonWriteThroughStorage implements ContentAddressedStorage {
     private final ContentAddressedStorage source;
     private final ContentAddressedStorage modifications;
+    private final ChampCache champCache = new ChampCache(ChampCache.DEFAULT_MAX_ENTRIES);
 
     public NonWriteThroughStorage(ContentAddressedStorage source) {
         this.source = source;
         this.modifications = new RAMStorage();
     }
 
+    @Override
+    public ChampCache champCache() {
+        return champCache;
+    }
+
     @Override
     public CompletableFuture<Multihash> id() {
         return source.id();
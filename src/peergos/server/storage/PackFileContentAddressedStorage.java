@@ -0,0 +1,722 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/** A log structured implementation of ContentAddressedStorage.
+ *
+ *  Blocks are appended to numbered segment files, and located through an in memory index of
+ *  hash -> (segment, offset, length). When a segment is full it is sealed and its index is written alongside it, so
+ *  on startup only the active segment needs to be scanned. Deletes append a tombstone, and segments with enough
+ *  garbage are compacted by copying their live blocks to the active segment.
+ *
+ *  Record format: type (1 byte), cid length (int), cid, data length (int), crc32 of data (int), data
+ */
+public class PackFileContentAddressedStorage implements DeletableContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private static final byte PUT = 0, DELETE = 1;
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final String INDEX_SUFFIX = ".idx";
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+    private static final int COMPACTION_BATCH_BYTES = 4 * 1024 * 1024;
+
+    private static final class Location {
+        public final int segment;
+        public final long offset;
+        public final int recordLength, dataLength;
+
+        public Location(int segment, long offset, int recordLength, int dataLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.dataLength = dataLength;
+        }
+
+        public long dataOffset() {
+            return offset + recordLength - dataLength;
+        }
+    }
+
+    private static final class IndexEntry {
+        public final byte type;
+        public final Multihash hash;
+        public final Location location;
+
+        public IndexEntry(byte type, Multihash hash, Location location) {
+            this.type = type;
+            this.hash = hash;
+            this.location = location;
+        }
+    }
+
+    /** A segment file. The channel is shared by all threads, and an interrupt during a read or write closes it, so it
+     *  is reopened on demand until the segment itself is closed.
+     */
+    private static final class Segment {
+        public final int id;
+        public final Path path;
+        private volatile FileChannel channel;
+        private volatile boolean closed;
+        public volatile long size;
+        public volatile boolean sealed;
+        public long syncedTo = 0; // guarded by this
+        public long garbageBytes = 0; // guarded by writeLock
+
+        public Segment(int id, Path path, FileChannel channel, long size, boolean sealed) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+            this.sealed = sealed;
+        }
+
+        public FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            if (current.isOpen())
+                return current;
+            synchronized (this) {
+                if (closed)
+                    throw new ClosedChannelException();
+                if (! channel.isOpen())
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                return channel;
+            }
+        }
+
+        /** Read until buf is full or the end of the segment, retrying if another thread's interrupt closed the channel
+         *
+         * @return the number of bytes read
+         */
+        public int read(ByteBuffer buf, long position) throws IOException {
+            while (true) {
+                try {
+                    return readFully(channel(), buf, position);
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    if (closed)
+                        throw e;
+                    buf.clear();
+                }
+            }
+        }
+
+        /** Write a whole record at the given offset, retrying if another thread's interrupt closed the channel
+         */
+        public void write(byte[] header, byte[] data, int dataOffset, int dataLength, long offset) throws IOException {
+            while (true) {
+                try {
+                    FileChannel channel = channel();
+                    ByteBuffer[] record = {ByteBuffer.wrap(header), ByteBuffer.wrap(data, dataOffset, dataLength)};
+                    long length = header.length + dataLength;
+                    long written = 0;
+                    channel.position(offset);
+                    while (written < length)
+                        written += channel.write(record);
+                    return;
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    if (closed)
+                        throw e;
+                }
+            }
+        }
+
+        public void force() throws IOException {
+            while (true) {
+                try {
+                    channel().force(false);
+                    return;
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    if (closed)
+                        throw e;
+                }
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private final Path root;
+    private final TransactionStore transactions;
+    private final long maxSegmentSize;
+    private final ChampCache champCache = new ChampCache(ChampCache.DEFAULT_MAX_ENTRIES);
+    private final ConcurrentHashMap<Multihash, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    // only one compaction runs at a time, so the segments can only be removed by it
+    private final Object compactionLock = new Object();
+    private Segment active; // guarded by writeLock
+    private final List<IndexEntry> activeEntries = new ArrayList<>(); // guarded by writeLock
+
+    public PackFileContentAddressedStorage(Path root, TransactionStore transactions, long maxSegmentSize) {
+        this.root = root;
+        this.transactions = transactions;
+        this.maxSegmentSize = maxSegmentSize;
+        File rootDir = root.toFile();
+        if (!rootDir.exists() && !rootDir.mkdirs())
+            throw new IllegalStateException("Unable to create directory " + root);
+        if (!rootDir.isDirectory())
+            throw new IllegalStateException("Pack store path must be a directory! " + root);
+        try {
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public ChampCache champCache() {
+        return champCache;
+    }
+
+    public PackFileContentAddressedStorage(Path root, TransactionStore transactions) {
+        this(root, transactions, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    private Path segmentPath(int id) {
+        return root.resolve(String.format("%08d", id) + SEGMENT_SUFFIX);
+    }
+
+    private Path indexPath(int id) {
+        return root.resolve(String.format("%08d", id) + INDEX_SUFFIX);
+    }
+
+    private void load() throws IOException {
+        List<Integer> ids;
+        try (Stream<Path> files = Files.list(root)) {
+            ids = files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            boolean isLast = i == ids.size() - 1;
+            Path path = segmentPath(id);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, path, channel, channel.size(), ! isLast);
+            segments.put(id, segment);
+            List<IndexEntry> entries = ! isLast && indexPath(id).toFile().exists() ?
+                    readIndex(id) :
+                    scan(segment);
+            for (IndexEntry entry : entries)
+                apply(entry);
+            if (isLast) {
+                active = segment;
+                activeEntries.addAll(entries);
+            }
+        }
+        if (active == null)
+            startSegment(1);
+        LOG.info("Loaded " + index.size() + " blocks from " + segments.size() + " segments in " + root);
+    }
+
+    private void apply(IndexEntry entry) {
+        Location previous = entry.type == PUT ?
+                index.put(entry.hash, entry.location) :
+                index.remove(entry.hash);
+        if (previous != null)
+            addGarbage(previous);
+        if (entry.type == DELETE)
+            addGarbage(entry.location);
+    }
+
+    private void addGarbage(Location loc) {
+        Segment segment = segments.get(loc.segment);
+        if (segment != null)
+            segment.garbageBytes += loc.recordLength;
+    }
+
+    private List<IndexEntry> readIndex(int id) throws IOException {
+        List<IndexEntry> res = new ArrayList<>();
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath(id).toFile())))) {
+            int count = din.readInt();
+            for (int i = 0; i < count; i++) {
+                byte type = din.readByte();
+                byte[] cid = new byte[din.readInt()];
+                din.readFully(cid);
+                long offset = din.readLong();
+                int recordLength = din.readInt();
+                int dataLength = din.readInt();
+                res.add(new IndexEntry(type, Cid.cast(cid), new Location(id, offset, recordLength, dataLength)));
+            }
+        }
+        return res;
+    }
+
+    private void writeIndex(int id, List<IndexEntry> entries) throws IOException {
+        Path tmp = root.resolve(String.format("%08d", id) + INDEX_SUFFIX + ".tmp");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            dout.writeInt(entries.size());
+            for (IndexEntry entry : entries) {
+                byte[] cid = entry.hash.toBytes();
+                dout.writeByte(entry.type);
+                dout.writeInt(cid.length);
+                dout.write(cid);
+                dout.writeLong(entry.location.offset);
+                dout.writeInt(entry.location.recordLength);
+                dout.writeInt(entry.location.dataLength);
+            }
+        }
+        Files.move(tmp, indexPath(id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Read the record headers of a segment, truncating any partially written record at the end.
+     */
+    private List<IndexEntry> scan(Segment segment) throws IOException {
+        List<IndexEntry> res = new ArrayList<>();
+        long size = segment.channel().size();
+        long pos = 0;
+        ByteBuffer intBuf = ByteBuffer.allocate(5);
+        while (pos < size) {
+            intBuf.clear();
+            if (segment.read(intBuf, pos) < 5)
+                break;
+            intBuf.flip();
+            byte type = intBuf.get();
+            int cidLength = intBuf.getInt();
+            if ((type != PUT && type != DELETE) || cidLength <= 0 || cidLength > 1024 || pos + 5 + cidLength + 8 > size)
+                break;
+            ByteBuffer cid = ByteBuffer.allocate(cidLength);
+            segment.read(cid, pos + 5);
+            ByteBuffer lengths = ByteBuffer.allocate(8);
+            segment.read(lengths, pos + 5 + cidLength);
+            lengths.flip();
+            int dataLength = lengths.getInt();
+            int crc = lengths.getInt();
+            int recordLength = 5 + cidLength + 8 + dataLength;
+            if (dataLength < 0 || pos + recordLength > size)
+                break;
+            ByteBuffer data = ByteBuffer.allocate(dataLength);
+            segment.read(data, pos + recordLength - dataLength);
+            CRC32 check = new CRC32();
+            check.update(data.array());
+            if ((int) check.getValue() != crc)
+                break;
+            Multihash hash = Cid.cast(cid.array());
+            res.add(new IndexEntry(type, hash, new Location(segment.id, pos, recordLength, dataLength)));
+            pos += recordLength;
+        }
+        if (pos < size) {
+            LOG.warning("Truncating partial record at " + pos + " in " + segment.path);
+            segment.channel().truncate(pos);
+            segment.size = pos;
+        }
+        return res;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    private void startSegment(int id) throws IOException {
+        Path path = segmentPath(id);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel, 0, false);
+        segments.put(id, segment);
+        active = segment;
+        activeEntries.clear();
+    }
+
+    /** Must be called with the write lock held
+     */
+    private void sealActiveSegment() throws IOException {
+        active.force();
+        writeIndex(active.id, activeEntries);
+        active.sealed = true;
+        startSegment(active.id + 1);
+    }
+
+    /** Must be called with the write lock held
+     */
+    private Location append(byte type, Multihash hash, byte[] data, int dataOffset, int dataLength) throws IOException {
+        byte[] cid = hash.toBytes();
+        int recordLength = 5 + cid.length + 8 + dataLength;
+        if (active.size > 0 && active.size + recordLength > maxSegmentSize)
+            sealActiveSegment();
+        CRC32 crc = new CRC32();
+        crc.update(data, dataOffset, dataLength);
+        ByteBuffer header = ByteBuffer.allocate(5 + cid.length + 8);
+        header.put(type);
+        header.putInt(cid.length);
+        header.put(cid);
+        header.putInt(dataLength);
+        header.putInt((int) crc.getValue());
+        long offset = active.size;
+        active.write(header.array(), data, dataOffset, dataLength, offset);
+        active.size = offset + recordLength;
+        Location loc = new Location(active.id, offset, recordLength, dataLength);
+        IndexEntry entry = new IndexEntry(type, hash, loc);
+        activeEntries.add(entry);
+        apply(entry);
+        return loc;
+    }
+
+    /** Group commit: a single fsync makes every record appended so far durable, so concurrent writers share them.
+     */
+    private void sync(int segmentId, long end) throws IOException {
+        Segment segment = segments.get(segmentId);
+        if (segment == null || segment.sealed)
+            return;
+        synchronized (segment) {
+            if (segment.syncedTo >= end)
+                return;
+            long size = segment.size;
+            segment.force();
+            segment.syncedTo = size;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> gc() {
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return put(owner, blocks, false, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid,
+                                                     ProgressConsumer<Long> progressConsumer) {
+        return put(owner, blocks, true, tid);
+    }
+
+    private CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                   List<byte[]> blocks,
+                                                   boolean isRaw,
+                                                   TransactionId tid) {
+        List<Multihash> res = new ArrayList<>();
+        for (byte[] block : blocks) {
+            Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                    Multihash.Type.sha2_256, RAMStorage.hash(block));
+            res.add(cid);
+        }
+        transactions.addBlocks(res, tid, owner);
+        try {
+            putBlocks(res, blocks);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return CompletableFuture.completedFuture(res);
+    }
+
+    /** Append all the blocks which aren't already present and then sync them with a single fsync
+     */
+    private void putBlocks(List<Multihash> hashes, List<byte[]> blocks) throws IOException {
+        Location last = null;
+        synchronized (writeLock) {
+            for (int i = 0; i < blocks.size(); i++) {
+                if (index.containsKey(hashes.get(i)))
+                    continue;
+                byte[] block = blocks.get(i);
+                last = append(PUT, hashes.get(i), block, 0, block.length);
+            }
+        }
+        if (last != null)
+            sync(last.segment, last.offset + last.recordLength);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(existing, updated));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        try {
+            return Futures.of(read(hash));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private Optional<byte[]> read(Multihash hash) throws IOException {
+        // A concurrent compaction can move a block, in which case we retry at its new location
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location loc = index.get(hash);
+            if (loc == null)
+                return Optional.empty();
+            Segment segment = segments.get(loc.segment);
+            if (segment == null)
+                continue;
+            ByteBuffer data = ByteBuffer.allocate(loc.dataLength);
+            try {
+                if (segment.read(data, loc.dataOffset()) < loc.dataLength)
+                    throw new EOFException("Truncated block " + hash + " in " + segment.path);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // the segment was compacted away
+                continue;
+            }
+            return Optional.of(data.array());
+        }
+        throw new IllegalStateException("Unable to read block " + hash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        Location loc = index.get(h);
+        return CompletableFuture.completedFuture(loc == null ? Optional.empty() : Optional.of(loc.dataLength));
+    }
+
+    public boolean contains(Multihash h) {
+        return index.containsKey(h);
+    }
+
+    @Override
+    public void applyToAllBlocks(BiConsumer<Multihash, Long> processor) {
+        for (Map.Entry<Multihash, Location> e : index.entrySet())
+            processor.accept(e.getKey(), (long) e.getValue().dataLength);
+    }
+
+    @Override
+    public void bulkDelete(List<Multihash> blocks) {
+        try {
+            Location last = null;
+            synchronized (writeLock) {
+                for (Multihash block : blocks) {
+                    if (index.containsKey(block))
+                        last = append(DELETE, block, new byte[0], 0, 0);
+                }
+            }
+            if (last != null)
+                sync(last.segment, last.offset + last.recordLength);
+            compact(COMPACTION_GARBAGE_RATIO);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /** Rewrite the live blocks of every sealed segment whose proportion of garbage is at least minGarbageRatio
+     *
+     * @param minGarbageRatio
+     * @return the number of segments compacted
+     * @throws IOException
+     */
+    public int compact(double minGarbageRatio) throws IOException {
+        synchronized (compactionLock) {
+            int compacted = 0;
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                synchronized (writeLock) {
+                    // skip segments already compacted by an earlier call
+                    if (segments.get(segment.id) != segment)
+                        continue;
+                    if (! segment.sealed || segment.size == 0 ||
+                            (double) segment.garbageBytes / segment.size < minGarbageRatio)
+                        continue;
+                }
+                compactSegment(segment);
+                compacted++;
+            }
+            return compacted;
+        }
+    }
+
+    /** Copy the live blocks of a sealed segment to the active segment and then delete it. A sealed segment never
+     *  changes, so the blocks are read without the write lock, which is only taken to append each batch of copies.
+     *  Writes and deletes can run in between, so each block is checked again under the lock before it is copied.
+     *
+     *  Must be called with the compaction lock held
+     */
+    private void compactSegment(Segment segment) throws IOException {
+        List<IndexEntry> entries = indexPath(segment.id).toFile().exists() ?
+                readIndex(segment.id) :
+                scan(segment);
+        // Tombstones are only needed while an older segment might still contain the deleted block
+        boolean isOldest = segments.firstKey() == segment.id;
+        List<IndexEntry> batch = new ArrayList<>();
+        List<byte[]> batchData = new ArrayList<>();
+        long batchBytes = 0;
+        for (IndexEntry entry : entries) {
+            if (entry.type == PUT) {
+                if (! isCurrent(entry))
+                    continue;
+                ByteBuffer data = ByteBuffer.allocate(entry.location.dataLength);
+                segment.read(data, entry.location.dataOffset());
+                batch.add(entry);
+                batchData.add(data.array());
+                batchBytes += entry.location.dataLength;
+            } else if (! isOldest) {
+                batch.add(entry);
+                batchData.add(new byte[0]);
+            }
+            if (batchBytes >= COMPACTION_BATCH_BYTES) {
+                appendCopies(batch, batchData);
+                batch.clear();
+                batchData.clear();
+                batchBytes = 0;
+            }
+        }
+        appendCopies(batch, batchData);
+
+        synchronized (writeLock) {
+            active.force();
+            segments.remove(segment.id);
+            segment.close();
+            Files.deleteIfExists(indexPath(segment.id));
+            Files.deleteIfExists(segment.path);
+        }
+        LOG.info("Compacted segment " + segment.path);
+    }
+
+    private boolean isCurrent(IndexEntry entry) {
+        Location current = index.get(entry.hash);
+        return current != null && current.segment == entry.location.segment && current.offset == entry.location.offset;
+    }
+
+    /** Append copies of the records which are still needed, skipping any block deleted or rewritten since it was read
+     */
+    private void appendCopies(List<IndexEntry> entries, List<byte[]> data) throws IOException {
+        if (entries.isEmpty())
+            return;
+        synchronized (writeLock) {
+            for (int i = 0; i < entries.size(); i++) {
+                IndexEntry entry = entries.get(i);
+                if (entry.type == PUT) {
+                    if (isCurrent(entry))
+                        append(PUT, entry.hash, data.get(i), 0, data.get(i).length);
+                } else if (! index.containsKey(entry.hash)) {
+                    append(DELETE, entry.hash, new byte[0], 0, 0);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (writeLock) {
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.force();
+                    segment.close();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /** Copy every block from a one-file-per-block store into a pack file store.
+     *
+     * @param source
+     * @param target
+     * @return the number of blocks copied
+     */
+    public static long migrate(FileContentAddressedStorage source, PackFileContentAddressedStorage target) throws IOException {
+        long[] copied = new long[1];
+        List<Multihash> hashes = new ArrayList<>();
+        List<byte[]> blocks = new ArrayList<>();
+        IOException[] failure = new IOException[1];
+        source.applyToAll(h -> {
+            if (failure[0] != null)
+                return;
+            byte[] data = source.getRaw(h).join().get();
+            if (h.type == Multihash.Type.sha2_256 && ! Arrays.equals(h.getHash(), RAMStorage.hash(data))) {
+                LOG.warning("Skipping corrupt block " + h);
+                return;
+            }
+            hashes.add(h);
+            blocks.add(data);
+            if (hashes.size() == 1000) {
+                try {
+                    target.putBlocks(hashes, blocks);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+                copied[0] += hashes.size();
+                hashes.clear();
+                blocks.clear();
+                LOG.info("Migrated " + copied[0] + " blocks");
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+        target.putBlocks(hashes, blocks);
+        copied[0] += hashes.size();
+        return copied[0];
+    }
+
+    @Override
+    public String toString() {
+        return "PackFileContentAddressedStorage " + root;
+    }
+}
@@ -2,6 +2,7 @@ package peergos.server.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.io.ipfs.cid.*;
@@ -19,6 +20,12 @@ public class RAMStorage implements ContentAddressedStorage {
     private Map<Multihash, byte[]> storage = new EfficientHashMap<>();
 
     private final Set<Multihash> pinnedRoots = new HashSet<>();
+    private final ChampCache champCache = new ChampCache(ChampCache.DEFAULT_MAX_ENTRIES);
+
+    @Override
+    public ChampCache champCache() {
+        return champCache;
+    }
 
     @Override
     public CompletableFuture<Multihash> id() {
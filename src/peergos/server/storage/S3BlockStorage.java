@@ -8,6 +8,7 @@ import peergos.shared.*;
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
@@ -26,7 +27,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.*;
 
-public class S3BlockStorage implements ContentAddressedStorage {
+public class S3BlockStorage implements DeletableContentAddressedStorage {
 
     private static final Logger LOG = Logger.getGlobal();
 
@@ -49,6 +50,7 @@ public class S3BlockStorage implements ContentAddressedStorage {
     private final BlockStoreProperties props;
     private final TransactionStore transactions;
     private final ContentAddressedStorage p2pFallback;
+    private final ChampCache champCache = new ChampCache(ChampCache.DEFAULT_MAX_ENTRIES);
 
     public S3BlockStorage(S3Config config,
                           Multihash id,
@@ -69,6 +71,11 @@ public class S3BlockStorage implements ContentAddressedStorage {
         this.p2pFallback = p2pFallback;
     }
 
+    @Override
+    public ChampCache champCache() {
+        return champCache;
+    }
+
     private static String hashToKey(Multihash hash) {
         return DirectS3BlockStore.hashToKey(hash);
     }
@@ -115,11 +122,13 @@ public class S3BlockStorage implements ContentAddressedStorage {
                 Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, writer.unsignMessage(signedHashes.get(i)));
                 blockProps.add(new Pair<>(cid, blockSizes.get(i)));
             }
-            List<PresignedUrl> res = new ArrayList<>();
             for (Pair<Multihash, Integer> props : blockProps) {
                 if (props.left.type != Multihash.Type.sha2_256)
                     throw new IllegalStateException("Can only pre-auth writes of sha256 hashed blocks!");
-                transactions.addBlock(props.left, tid, owner);
+            }
+            transactions.addBlocks(blockProps.stream().map(p -> p.left).collect(Collectors.toList()), tid, owner);
+            List<PresignedUrl> res = new ArrayList<>();
+            for (Pair<Multihash, Integer> props : blockProps) {
                 String s3Key = hashToKey(props.left);
                 String contentSha256 = ArrayOps.bytesToHex(props.left.getHash());
                 String host = bucket + "." + regionEndpoint;
@@ -182,70 +191,13 @@ public class S3BlockStorage implements ContentAddressedStorage {
      * @return
      */
     private void collectGarbage(JdbcIpnsAndSocial pointers) throws IOException {
-        // TODO: do this more efficiently with a bloom filter, and streaming
-        long t0 = System.nanoTime();
-        List<Multihash> present = getFiles(Integer.MAX_VALUE);
-        long t1 = System.nanoTime();
-        System.out.println("Listing block store took " + (t1-t0)/1_000_000_000 + "s");
-
-        List<Multihash> pending = transactions.getOpenTransactionBlocks();
-        long t2 = System.nanoTime();
-        System.out.println("Listing pending blocks took " + (t2-t1)/1_000_000_000 + "s");
-
-        // This pointers call must happen AFTER the previous two for correctness
-        Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
-        long t3 = System.nanoTime();
-        System.out.println("Listing pointers took " + (t3-t2)/1_000_000_000 + "s");
-
-        BitSet reachable = new BitSet(present.size());
-        for (PublicKeyHash writerHash : allPointers.keySet()) {
-            byte[] signedRawCas = allPointers.get(writerHash);
-            PublicSigningKey writer = getSigningKey(writerHash).join().get();
-            byte[] bothHashes = writer.unsignMessage(signedRawCas);
-            HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
-            MaybeMultihash updated = cas.updated;
-            if (updated.isPresent())
-                markReachable(updated.get(), present, reachable);
-        }
-        for (Multihash additional : pending) {
-            int index = present.indexOf(additional);
-            if (index >= 0)
-                reachable.set(index);
-        }
-        long t4 = System.nanoTime();
-        System.out.println("Marking reachable took " + (t4-t3)/1_000_000_000 + "s");
+        Map<PublicKeyHash, byte[]> allPointers = GarbageCollector.collect(this, transactions, pointers, this::bulkDelete);
         // Save pointers snapshot to file
         Path pointerSnapshotFile = Paths.get("pointers-snapshot-" + LocalDateTime.now() + ".txt");
         for (Map.Entry<PublicKeyHash, byte[]> entry : allPointers.entrySet()) {
             Files.write(pointerSnapshotFile, (entry.getKey() + ":" +
                     ArrayOps.bytesToHex(entry.getValue()) + "\n").getBytes(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
         }
-        long deletedBlocks = 0;
-        long deletedSize = 0;
-        for (int i = reachable.nextClearBit(0); i >= 0 && i < present.size(); i = reachable.nextClearBit(i + 1)) {
-            Multihash hash = present.get(i);
-            try {
-                int size = getSize(hash).join().get();
-                deletedBlocks++;
-                deletedSize += size;
-                delete(hash);
-            } catch (Exception e) {
-                System.out.println("Unable to read " + hash);
-            }
-        }
-        long t5 = System.nanoTime();
-        System.out.println("Deleting blocks took " + (t5-t4)/1_000_000_000 + "s");
-        System.out.println("GC complete. Freed " + deletedBlocks + " blocks totalling " + deletedSize + " bytes");
-    }
-
-    private void markReachable(Multihash root, List<Multihash> present, BitSet reachable) {
-        int index = present.indexOf(root);
-        if (index >= 0)
-            reachable.set(index);
-        List<Multihash> links = getLinks(root).join();
-        for (Multihash link : links) {
-            markReachable(link, present, reachable);
-        }
     }
 
     @Override
@@ -319,9 +271,18 @@ public class S3BlockStorage implements ContentAddressedStorage {
                                                    List<byte[]> blocks,
                                                    boolean isRaw,
                                                    TransactionId tid) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> put(b, isRaw, tid, owner))
-                .collect(Collectors.toList()));
+        List<Cid> cids = blocks.stream()
+                .map(b -> hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        transactions.addBlocks(new ArrayList<>(cids), tid, owner);
+        List<Multihash> res = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++)
+            res.add(write(cids.get(i), blocks.get(i)));
+        return CompletableFuture.completedFuture(res);
+    }
+
+    private static Cid hashToCid(byte[] data, boolean isRaw) {
+        return new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(data));
     }
 
     /** Must be atomic relative to reads of the same key
@@ -329,17 +290,23 @@ public class S3BlockStorage implements ContentAddressedStorage {
      * @param data
      */
     public Multihash put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = hashToCid(data, isRaw);
+        transactions.addBlock(cid, tid, owner);
+        return write(cid, data);
+    }
+
+    /** Must only be called after the block has been added to a transaction
+     *
+     */
+    private Multihash write(Cid cid, byte[] data) {
         Histogram.Timer writeTimer = writeTimerLog.labels("write").startTimer();
-        Multihash hash = new Multihash(Multihash.Type.sha2_256, Hash.sha256(data));
-        Cid cid = new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, hash.type, hash.getHash());
         String key = hashToKey(cid);
         try {
-            transactions.addBlock(cid, tid, owner);
             String s3Key = folder + key;
             Map<String, String> extraHeaders = new TreeMap<>();
             extraHeaders.put("Content-Type", "application/octet-stream");
             boolean hashContent = true;
-            String contentHash = hashContent ? ArrayOps.bytesToHex(hash.getHash()) : "UNSIGNED-PAYLOAD";
+            String contentHash = hashContent ? ArrayOps.bytesToHex(cid.getHash()) : "UNSIGNED-PAYLOAD";
             PresignedUrl putUrl = S3Request.preSignPut(s3Key, data.length, contentHash, false,
                     ZonedDateTime.now(), host, extraHeaders, region, accessKeyId, secretKey);
             HttpUtil.put(putUrl, data);
@@ -364,6 +331,20 @@ public class S3BlockStorage implements ContentAddressedStorage {
         return results;
     }
 
+    @Override
+    public void applyToAllBlocks(BiConsumer<Multihash, Long> processor) {
+        applyToAll(obj -> {
+            Multihash hash;
+            try {
+                hash = keyToHash(obj.key);
+            } catch (Exception e) {
+                LOG.warning("Couldn't parse S3 key to Cid: " + obj.key);
+                return;
+            }
+            processor.accept(hash, obj.size);
+        }, Long.MAX_VALUE);
+    }
+
     private List<String> getFilenames(long maxReturned) {
         List<String> results = new ArrayList<>();
         applyToAll(obj -> results.add(obj.key), maxReturned);
@@ -414,6 +395,7 @@ public class S3BlockStorage implements ContentAddressedStorage {
         }
     }
 
+    @Override
     public void bulkDelete(List<Multihash> hash) {
         try {
             List<String> keys = hash.stream()
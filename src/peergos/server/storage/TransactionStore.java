@@ -5,6 +5,7 @@ import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 
 import java.util.*;
+import java.util.function.*;
 
 public interface TransactionStore {
 
@@ -12,8 +13,19 @@ public interface TransactionStore {
 
     void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner);
 
+    /** Record a group of blocks, which must all be recorded before any of them is written
+     *
+     */
+    default void addBlocks(List<Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        for (Multihash hash : hashes)
+            addBlock(hash, tid, owner);
+    }
+
     void closeTransaction(PublicKeyHash owner, TransactionId tid);
 
     List<Multihash> getOpenTransactionBlocks();
 
+    default void streamOpenTransactionBlocks(Consumer<Multihash> consumer) {
+        getOpenTransactionBlocks().forEach(consumer);
+    }
 }
@@ -0,0 +1,59 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class BlockCacheTests {
+
+    private static Cid hash(int i) {
+        return TransactionsStoreTests.hashToCid(new byte[]{(byte) i, (byte) (i >> 8), (byte) (i >> 16)}, true);
+    }
+
+    @Test
+    public void sizeBounded() {
+        AtomicInteger evictions = new AtomicInteger(0);
+        long maxBytes = 1024 * 1024;
+        BlockCache cache = new BlockCache(maxBytes, 1_000, evictions::incrementAndGet);
+        for (int i=0; i < 10_000; i++)
+            cache.put(hash(i), new byte[1024]);
+        Assert.assertTrue(cache.size() <= maxBytes);
+        Assert.assertTrue(cache.size() > maxBytes / 2);
+        Assert.assertTrue(evictions.get() >= 10_000 - maxBytes / 1024);
+    }
+
+    @Test
+    public void getReturnsValue() {
+        BlockCache cache = new BlockCache(1024 * 1024, 1_000);
+        byte[] value = new byte[]{1, 2, 3};
+        cache.put(hash(1), value);
+        Assert.assertArrayEquals(value, cache.get(hash(1)));
+        Assert.assertNull(cache.get(hash(2)));
+        cache.remove(hash(1));
+        Assert.assertNull(cache.get(hash(1)));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void frequentBlocksSurviveScan() {
+        int capacity = 1024;
+        BlockCache cache = new BlockCache(capacity * 1024, capacity);
+        int hot = capacity / 2;
+        // Each hot block is read again after more than capacity other blocks, so a plain LRU would never hit
+        int hits = 0, reads = 0;
+        for (int i=0; i < 100 * hot; i++) {
+            Cid key = hash(i % hot);
+            if (cache.get(key) != null)
+                hits++;
+            else
+                cache.put(key, new byte[1024]);
+            reads++;
+            for (int j=0; j < 2; j++)
+                cache.put(hash(1_000_000 + 2 * i + j), new byte[1024]);
+        }
+        Assert.assertTrue("Hot hit ratio: " + hits + "/" + reads, hits > reads / 2);
+    }
+}
@@ -0,0 +1,44 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+
+public class BlockIndexTests {
+
+    @Test
+    public void addAndMark() {
+        BlockIndex index = new BlockIndex(16);
+        List<Cid> blocks = new ArrayList<>();
+        for (int i=0; i < 10_000; i++) {
+            Cid block = TransactionsStoreTests.hashToCid(new byte[]{(byte) i, (byte) (i >> 8)}, i % 2 == 0);
+            blocks.add(block);
+            Assert.assertEquals(i, index.add(block, i));
+        }
+        Assert.assertEquals("Duplicates ignored", 5, index.add(blocks.get(5), 5));
+        Assert.assertEquals(blocks.size(), index.size());
+
+        for (int i=0; i < blocks.size(); i++) {
+            Assert.assertEquals(i, index.indexOf(blocks.get(i)));
+            Assert.assertEquals(blocks.get(i), index.get(i));
+            Assert.assertEquals(i, index.getSize(i));
+        }
+        Multihash absent = TransactionsStoreTests.hashToCid("absent".getBytes(), false);
+        Assert.assertEquals(-1, index.indexOf(absent));
+        Assert.assertFalse(index.mark(absent));
+
+        for (int i=0; i < blocks.size(); i += 3)
+            Assert.assertTrue(index.mark(blocks.get(i)));
+        Assert.assertFalse("Already marked", index.mark(blocks.get(0)));
+
+        int unmarked = 0;
+        for (int i = index.nextUnmarked(0); i >= 0; i = index.nextUnmarked(i + 1)) {
+            Assert.assertTrue(i % 3 != 0);
+            unmarked++;
+        }
+        Assert.assertEquals(blocks.size() - index.markedCount(), unmarked);
+    }
+}
@@ -0,0 +1,128 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class CachingPointersTests {
+
+    private static class PendingPointers implements MutablePointers {
+        public final AtomicInteger gets = new AtomicInteger(0);
+        public final List<CompletableFuture<Optional<byte[]>>> pending = new ArrayList<>();
+
+        @Override
+        public synchronized CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+            gets.incrementAndGet();
+            CompletableFuture<Optional<byte[]>> res = new CompletableFuture<>();
+            pending.add(res);
+            return res;
+        }
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+            return CompletableFuture.completedFuture(true);
+        }
+    }
+
+    private static PublicKeyHash writer(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) i;
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash));
+    }
+
+    @Test
+    public void coalesceMisses() {
+        PendingPointers target = new PendingPointers();
+        AtomicInteger hits = new AtomicInteger(0);
+        CachingPointers cache = new CachingPointers(target, 60_000, 60_000, 100, hits::incrementAndGet, () -> {});
+        PublicKeyHash writer = writer(1);
+
+        CompletableFuture<Optional<byte[]>> first = cache.getPointer(writer, writer);
+        CompletableFuture<Optional<byte[]>> second = cache.getPointer(writer, writer);
+        Assert.assertEquals("Single call to target", 1, target.gets.get());
+
+        byte[] value = new byte[]{1, 2, 3};
+        target.pending.get(0).complete(Optional.of(value));
+        Assert.assertArrayEquals(value, first.join().get());
+        Assert.assertArrayEquals(value, second.join().get());
+
+        Assert.assertArrayEquals(value, cache.getPointer(writer, writer).join().get());
+        Assert.assertEquals(1, target.gets.get());
+        Assert.assertEquals(1, hits.get());
+    }
+
+    @Test
+    public void absentExpiresSooner() throws Exception {
+        PendingPointers target = new PendingPointers();
+        CachingPointers cache = new CachingPointers(target, 60_000, 50, 100, () -> {}, () -> {});
+        PublicKeyHash writer = writer(2);
+
+        CompletableFuture<Optional<byte[]>> res = cache.getPointer(writer, writer);
+        target.pending.get(0).complete(Optional.empty());
+        Assert.assertFalse(res.join().isPresent());
+        Thread.sleep(100);
+        cache.getPointer(writer, writer);
+        Assert.assertEquals("Absent pointer expired", 2, target.gets.get());
+    }
+
+    @Test
+    public void updateReplacesInFlight() {
+        PendingPointers target = new PendingPointers();
+        CachingPointers cache = new CachingPointers(target, 60_000, 60_000, 100, () -> {}, () -> {});
+        PublicKeyHash writer = writer(3);
+
+        CompletableFuture<Optional<byte[]>> stale = cache.getPointer(writer, writer);
+        byte[] updated = new byte[]{4, 5, 6};
+        cache.update(writer, updated);
+        target.pending.get(0).complete(Optional.of(new byte[]{7}));
+        Assert.assertArrayEquals(new byte[]{7}, stale.join().get());
+
+        Assert.assertArrayEquals("Result of earlier read not cached", updated, cache.getPointer(writer, writer).join().get());
+        Assert.assertEquals(1, target.gets.get());
+    }
+
+    @Test
+    public void rawWritesInvalidate() {
+        JdbcIpnsAndSocial raw = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        MutablePointers target = new MutablePointers() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+                return raw.getPointer(writer);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+                throw new IllegalStateException("Unused");
+            }
+        };
+        CachingPointers cache = new CachingPointers(target, 60_000, 60_000, 100, () -> {}, () -> {});
+        raw.addPointerListener(cache::invalidate);
+        PublicKeyHash writer = writer(4);
+
+        Assert.assertFalse(cache.getPointer(writer, writer).join().isPresent());
+        // e.g. mirroring writes straight to the pointer store
+        Assert.assertTrue(raw.setPointer(writer, Optional.empty(), new byte[]{1}).join());
+        Assert.assertArrayEquals(new byte[]{1}, cache.getPointer(writer, writer).join().get());
+        Assert.assertTrue(raw.setPointer(writer, Optional.of(new byte[]{1}), new byte[]{2}).join());
+        Assert.assertArrayEquals(new byte[]{2}, cache.getPointer(writer, writer).join().get());
+    }
+
+    @Test
+    public void bounded() {
+        PendingPointers target = new PendingPointers();
+        CachingPointers cache = new CachingPointers(target, 60_000, 60_000, 32, () -> {}, () -> {});
+        for (int i=0; i < 200; i++)
+            cache.update(writer(i), new byte[]{(byte) i});
+        for (int i=0; i < 200; i++)
+            cache.getPointer(writer(i), writer(i));
+        Assert.assertTrue("Old entries evicted", target.gets.get() > 100);
+    }
+}
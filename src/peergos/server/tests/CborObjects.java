@@ -5,6 +5,7 @@ import peergos.shared.cbor.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 
 public class CborObjects {
@@ -106,12 +107,172 @@ public class CborObjects {
         compatibleAndIdempotentSerialization(cborList);
     }
 
+    @Test
+    public void lazyMapMatchesTreeMapSemantics() throws IOException {
+        // keys out of order, with a duplicate whose last value should win
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        CborEncoder encoder = new CborEncoder(bout);
+        encoder.writeMapStart(4);
+        encoder.writeTextString("zz");
+        encoder.writeInt(1);
+        encoder.writeTextString("a");
+        encoder.writeTextString("first");
+        encoder.writeTextString("b");
+        encoder.writeByteString(new byte[]{1, 2, 3});
+        encoder.writeTextString("a");
+        encoder.writeTextString("second");
+        byte[] raw = bout.toByteArray();
+
+        CborObject.CborMap lazy = (CborObject.CborMap) CborObject.fromByteArray(raw);
+        CborObject.CborMap eager = (CborObject.CborMap) CborObject.deserialize(
+                new CborDecoder(new ByteArrayInputStream(raw)), raw.length);
+        Assert.assertEquals("second", lazy.getString("a"));
+        Assert.assertEquals(1, lazy.getLong("zz"));
+        Assert.assertNull(lazy.get("missing"));
+        Assert.assertEquals(eager, lazy);
+        Assert.assertEquals(eager.hashCode(), lazy.hashCode());
+        Assert.assertEquals(new ArrayList<>(eager.values.keySet()), new ArrayList<>(lazy.values.keySet()));
+        Assert.assertTrue("Same serialization", Arrays.equals(eager.toByteArray(), lazy.toByteArray()));
+    }
+
+    @Test
+    public void mapWithLongValues() {
+        Multihash hash = Multihash.fromBase58("QmPZ9gcCEpqKTo6aq61g2nXGUhM4iCL3ewB6LDXZCtioEB");
+        SortedMap<CborObject, CborObject> map = new TreeMap<>();
+        // values with one, two and four byte length headers, followed by further values which must still be found
+        map.put(new CborObject.CborString("a"), new CborObject.CborByteArray(random(24)));
+        map.put(new CborObject.CborString("b"), new CborObject.CborString(new String(new char[300]).replace('\0', 'x')));
+        map.put(new CborObject.CborString("c"), new CborObject.CborByteArray(random(70_000)));
+        map.put(new CborObject.CborString("d"), new CborObject.CborMerkleLink(hash));
+        map.put(new CborObject.CborString("e"), new CborObject.CborString("short"));
+        map.put(new CborObject.CborString("f"), new CborObject.CborLong(1L << 40));
+        CborObject.CborMap original = new CborObject.CborMap(map);
+        byte[] raw = original.toByteArray();
+
+        CborObject.CborMap decoded = (CborObject.CborMap) CborObject.fromByteArray(raw);
+        // read the later values first, so they are located using only skipped earlier values
+        Assert.assertEquals(1L << 40, decoded.getLong("f"));
+        Assert.assertEquals("short", decoded.getString("e"));
+        Assert.assertEquals(new CborObject.CborMerkleLink(hash), decoded.get("d"));
+        Assert.assertEquals(map.get(new CborObject.CborString("c")), decoded.get("c"));
+        Assert.assertEquals(map.get(new CborObject.CborString("b")), decoded.get("b"));
+        Assert.assertEquals(map.get(new CborObject.CborString("a")), decoded.get("a"));
+        compatibleAndIdempotentSerialization(original);
+
+        // the same values nested inside a list, which is skipped as a whole
+        SortedMap<CborObject, CborObject> outer = new TreeMap<>();
+        outer.put(new CborObject.CborString("list"), new CborObject.CborList(new ArrayList<>(map.values())));
+        outer.put(new CborObject.CborString("z"), new CborObject.CborString("end"));
+        CborObject.CborMap nested = (CborObject.CborMap) CborObject.fromByteArray(new CborObject.CborMap(outer).toByteArray());
+        Assert.assertEquals("end", nested.getString("z"));
+        compatibleAndIdempotentSerialization(new CborObject.CborMap(outer));
+    }
+
+    @Test
+    public void truncatedMapValue() {
+        CborObject.CborMap map = CborObject.CborMap.build(Collections.singletonMap("k",
+                new CborObject.CborByteArray(random(100))));
+        byte[] raw = map.toByteArray();
+        try {
+            CborObject.fromByteArray(Arrays.copyOf(raw, raw.length - 1));
+            Assert.fail("Should have failed!");
+        } catch (RuntimeException e) {}
+    }
+
+    @Test
+    public void decodeBenchmark() {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            blocks.add(champLikeNode(32).toByteArray());
+        long totalBytes = blocks.stream().mapToLong(b -> b.length).sum();
+        for (byte[] block : blocks)
+            Assert.assertEquals(CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(block)), block.length),
+                    CborObject.fromByteArray(block));
+
+        int rounds = 20;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++)
+                for (byte[] block : blocks)
+                    CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(block)), block.length)
+                            .links();
+            long t1 = System.nanoTime();
+            for (int r = 0; r < rounds; r++)
+                for (byte[] block : blocks)
+                    CborObject.fromByteArray(block).links();
+            long t2 = System.nanoTime();
+            for (int r = 0; r < rounds; r++)
+                for (byte[] block : blocks)
+                    ((CborObject.CborMap) CborObject.fromByteArray(block)).get("bitmap");
+            long t3 = System.nanoTime();
+            double mib = (double) totalBytes * rounds / 1024 / 1024;
+            System.out.printf("CBOR decode: stream %.1f MiB/s, array %.1f MiB/s, single field %.1f MiB/s%n",
+                    mib * 1e9 / (t1 - t0), mib * 1e9 / (t2 - t1), mib * 1e9 / (t3 - t2));
+        }
+    }
+
+    @Test
+    public void encodeBenchmark() {
+        List<CborObject> objects = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            objects.add(champLikeNode(32));
+        CborOutputBuffer buf = new CborOutputBuffer(1024);
+        for (CborObject obj : objects) {
+            buf.reset();
+            obj.serialize(buf);
+            Assert.assertTrue("Same encoding", Arrays.equals(obj.toByteArray(), buf.toByteArray()));
+        }
+
+        int rounds = 20;
+        long totalBytes = 0;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++)
+                for (CborObject obj : objects) {
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    obj.serialize(new CborEncoder(bout));
+                    totalBytes += bout.size();
+                }
+            long t1 = System.nanoTime();
+            for (int r = 0; r < rounds; r++)
+                for (CborObject obj : objects) {
+                    buf.reset();
+                    obj.serialize(buf);
+                }
+            long t2 = System.nanoTime();
+            double mib = (double) totalBytes / (warmup + 1) / 1024 / 1024;
+            System.out.printf("CBOR encode: stream %.1f MiB/s, reused buffer %.1f MiB/s%n",
+                    mib * 1e9 / (t1 - t0), mib * 1e9 / (t2 - t1));
+        }
+    }
+
+    /** Mimics a champ node: a bitmap, and a list of hashed keys with links and small values
+     *
+     */
+    private CborObject champLikeNode(int nEntries) {
+        Multihash hash = Multihash.fromBase58("QmPZ9gcCEpqKTo6aq61g2nXGUhM4iCL3ewB6LDXZCtioEB");
+        List<CborObject> entries = new ArrayList<>();
+        for (int i = 0; i < nEntries; i++) {
+            SortedMap<CborObject, CborObject> entry = new TreeMap<>();
+            entry.put(new CborObject.CborString("k"), new CborObject.CborByteArray(random(32)));
+            entry.put(new CborObject.CborString("v"), new CborObject.CborMerkleLink(hash));
+            entry.put(new CborObject.CborString("s"), new CborObject.CborLong(rnd.nextInt()));
+            entries.add(new CborObject.CborMap(entry));
+        }
+        SortedMap<CborObject, CborObject> node = new TreeMap<>();
+        node.put(new CborObject.CborString("bitmap"), new CborObject.CborByteArray(random(8)));
+        node.put(new CborObject.CborString("entries"), new CborObject.CborList(entries));
+        return new CborObject.CborMap(node);
+    }
+
     public void compatibleAndIdempotentSerialization(CborObject value) {
         byte[] raw = value.toByteArray();
         CborObject deserialized = CborObject.fromByteArray(raw);
+        CborObject streamed = CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(raw)), raw.length);
 
         boolean equals = deserialized.equals(value);
         Assert.assertTrue("Equal objects", equals);
+        Assert.assertEquals("Same as stream decoder", streamed, deserialized);
         byte[] raw2 = deserialized.toByteArray();
         boolean sameRaw = Arrays.equals(raw, raw2);
         Assert.assertTrue("Idempotent serialization", sameRaw);
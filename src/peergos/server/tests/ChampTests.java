@@ -9,16 +9,20 @@ import peergos.server.sql.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
+import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -382,6 +386,139 @@ public class ChampTests {
         return new Pair<>(current, currentHash);
     }
 
+    private static class CountingStorage extends DelegatingStorage {
+        private final ContentAddressedStorage target;
+        public int blocksWritten = 0;
+        public final AtomicInteger blocksRead = new AtomicInteger(0);
+
+        public CountingStorage(ContentAddressedStorage target) {
+            super(target);
+            this.target = target;
+        }
+
+        @Override
+        public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+            blocksRead.incrementAndGet();
+            return target.get(hash);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+            blocksWritten += blocks.size();
+            return target.put(owner, writer, signedHashes, blocks, tid);
+        }
+    }
+
+    @Test
+    public void batchedPutsMatchSequential() throws Exception {
+        ContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp"),
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        CountingStorage sequentialStorage = new CountingStorage(storage);
+        CountingStorage batchStorage = new CountingStorage(storage);
+        ChampWrapper sequential = ChampWrapper.create(user.publicKeyHash, user, hasher, tid, sequentialStorage, writeHasher).get();
+        ChampWrapper batched = ChampWrapper.create(user.publicKeyHash, user, hasher, tid, batchStorage, writeHasher).get();
+
+        List<MutableTree.Mutation> puts = new ArrayList<>();
+        Multihash sequentialRoot = null;
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = randomHash.get().toBytes();
+            Multihash value = randomHash.get();
+            puts.add(MutableTree.Mutation.put(key, MaybeMultihash.empty(), value));
+            sequentialRoot = sequential.put(user.publicKeyHash, user, key, MaybeMultihash.empty(), value, tid).get();
+        }
+        Multihash batchRoot = batched.putAll(user.publicKeyHash, user, puts, tid).get();
+        Assert.assertEquals(sequentialRoot, batchRoot);
+        Assert.assertTrue("Fewer blocks written: " + batchStorage.blocksWritten + " < " + sequentialStorage.blocksWritten,
+                batchStorage.blocksWritten * 10 < sequentialStorage.blocksWritten);
+
+        // the batched tree is readable from storage
+        ChampWrapper reloaded = ChampWrapper.create(batchRoot, hasher, storage, writeHasher).get();
+        for (MutableTree.Mutation put : puts)
+            Assert.assertEquals(put.value, reloaded.get(put.mapKey).get());
+
+        // a mix of updates and removes
+        List<MutableTree.Mutation> mixed = new ArrayList<>();
+        for (int i = 0; i < puts.size(); i += 2) {
+            MutableTree.Mutation put = puts.get(i);
+            MutableTree.Mutation change = i % 4 == 0 ?
+                    MutableTree.Mutation.remove(put.mapKey, put.value) :
+                    MutableTree.Mutation.put(put.mapKey, put.value, randomHash.get());
+            mixed.add(change);
+            sequentialRoot = change.value.isPresent() ?
+                    sequential.put(user.publicKeyHash, user, change.mapKey, change.existing, change.value.get(), tid).get() :
+                    sequential.remove(user.publicKeyHash, user, change.mapKey, change.existing, tid).get();
+        }
+        batchRoot = batched.putAll(user.publicKeyHash, user, mixed, tid).get();
+        Assert.assertEquals(sequentialRoot, batchRoot);
+
+        // a mismatched expected value fails the whole batch
+        MutableTree.Mutation stale = MutableTree.Mutation.put(puts.get(1).mapKey, MaybeMultihash.empty(), randomHash.get());
+        try {
+            batched.putAll(user.publicKeyHash, user, Arrays.asList(stale), tid).join();
+            Assert.fail("CAS failure expected");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof MutableTree.CasException);
+        }
+    }
+
+    @Test
+    public void cachedLookups() throws Exception {
+        ContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp"),
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        ChampWrapper champ = ChampWrapper.create(user.publicKeyHash, user, hasher, tid, storage, writeHasher).get();
+        List<MutableTree.Mutation> puts = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            puts.add(MutableTree.Mutation.put(key, MaybeMultihash.empty(), new Multihash(Multihash.Type.sha2_256, value)));
+        }
+        Multihash root = champ.putAll(user.publicKeyHash, user, puts, tid).get();
+
+        CountingStorage counting = new CountingStorage(storage);
+        ChampWrapper cold = ChampWrapper.create(root, hasher, counting, writeHasher).get();
+        long t0 = System.nanoTime();
+        for (MutableTree.Mutation put : puts)
+            Assert.assertEquals(put.value, cold.get(put.mapKey).get());
+        long t1 = System.nanoTime();
+        int coldReads = counting.blocksRead.get();
+
+        ChampWrapper warm = ChampWrapper.create(root, hasher, counting, writeHasher).get();
+        for (MutableTree.Mutation put : puts)
+            Assert.assertEquals(put.value, warm.get(put.mapKey).get());
+        long t2 = System.nanoTime();
+        int warmReads = counting.blocksRead.get() - coldReads;
+        System.out.printf("Cold: %d lookups/s, %d reads. Warm: %d lookups/s, %d reads%n",
+                puts.size() * 1_000_000_000L / (t1 - t0), coldReads,
+                puts.size() * 1_000_000_000L / (t2 - t1), warmReads);
+        Assert.assertTrue("Each node read once", coldReads < puts.size() / 4);
+        Assert.assertEquals("Warm lookups use cache", 0, warmReads);
+
+        // prefetching visits every mapping
+        counting.champCache().clear();
+        Set<ByteArrayWrapper> keys = warm.applyToAllMappings(new HashSet<ByteArrayWrapper>(), (acc, p) -> {
+            acc.add(p.left);
+            return CompletableFuture.completedFuture(acc);
+        }, true).get();
+        Assert.assertEquals(puts.size(), keys.size());
+    }
+
     public static SigningPrivateKeyAndPublicHash createUser(ContentAddressedStorage storage, Crypto crypto) {
         SigningKeyPair random = SigningKeyPair.random(crypto.random, crypto.signer);
         try {
@@ -1,7 +1,7 @@
 package peergos.server.tests;
 
 import org.junit.*;
-import peergos.server.corenode.UsernameValidator;
+import peergos.server.corenode.*;
 
 import java.util.*;
 
@@ -46,4 +46,22 @@ public class CorenodeTests {
         areValid.forEach(username -> Assert.assertTrue(username + " is valid", UsernameValidator.isValidUsername(username)));
         areNotValid.forEach(username -> Assert.assertFalse(username +" is not valid", UsernameValidator.isValidUsername(username)));
     }
+
+    @Test
+    public void usernamePrefixIndex() {
+        UsernameIndex index = new UsernameIndex(Arrays.asList("bob", "alice", "alicia", "al", "bobby", "carol"));
+        Assert.assertTrue("New username", index.add("alf"));
+        Assert.assertFalse("Existing username", index.add("bob"));
+
+        Assert.assertEquals(Arrays.asList("al", "alf", "alice", "alicia", "bob", "bobby", "carol"), index.getByPrefix(""));
+        Assert.assertEquals(Arrays.asList("al", "alf", "alice", "alicia"), index.getByPrefix("al"));
+        Assert.assertEquals(Arrays.asList("alice", "alicia"), index.getByPrefix("ali"));
+        Assert.assertEquals(Collections.emptyList(), index.getByPrefix("dave"));
+
+        Assert.assertEquals(Arrays.asList("al", "alf"), index.getByPrefix("al", Optional.empty(), 2));
+        Assert.assertEquals(Arrays.asList("alice", "alicia"), index.getByPrefix("al", Optional.of("alf"), 2));
+        Assert.assertEquals(Collections.emptyList(), index.getByPrefix("al", Optional.of("alicia"), 2));
+        Assert.assertEquals(Arrays.asList("al", "alf"), index.getByPrefix("al", Optional.of("a"), 2));
+        Assert.assertEquals(Arrays.asList("bobby", "carol"), index.getByPrefix("", Optional.of("bob"), 10));
+    }
 }
@@ -27,7 +27,8 @@ public class FragmenterTest {
     public static Collection<Object[]> parameters() {
         return Arrays.asList(new Object[][]{
                 {new SplitFragmenter()},
-                {new ErasureFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES)}
+                {new ErasureFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES)},
+                {new ReedSolomonFragmenter(ReedSolomonFragmenter.DATA_SHARDS, ReedSolomonFragmenter.PARITY_SHARDS)}
         });
     }
 
@@ -67,6 +68,40 @@ public class FragmenterTest {
     }
 
 
+    @Test
+    public void reconstructFromAnySubset() {
+        Assume.assumeTrue(fragmenter instanceof ReedSolomonFragmenter);
+        int parity = ReedSolomonFragmenter.PARITY_SHARDS;
+        byte[] input = new byte[Chunk.MAX_SIZE - 1000];
+        random.nextBytes(input);
+        byte[][] split = fragmenter.split(input);
+
+        for (int trial = 0; trial < 5; trial++) {
+            byte[][] damaged = Arrays.copyOf(split, split.length);
+            List<Integer> indices = new ArrayList<>();
+            for (int i = 0; i < split.length; i++)
+                indices.add(i);
+            Collections.shuffle(indices, random);
+            // lose as many fragments as allowed, including some data fragments
+            for (int i = 0; i < parity; i++)
+                damaged[indices.get(i)] = null;
+            damaged[0] = null;
+            damaged[indices.get(parity - 1)] = split[indices.get(parity - 1)];
+
+            byte[] recombined = fragmenter.recombine(damaged, 10, input.length);
+            assertTrue("Recovered from " + (split.length - parity) + " fragments",
+                    Arrays.equals(input, Arrays.copyOfRange(recombined, 10, recombined.length)));
+        }
+
+        byte[][] tooFew = Arrays.copyOf(split, split.length);
+        for (int i = 0; i <= parity; i++)
+            tooFew[i] = null;
+        try {
+            fragmenter.recombine(tooFew, 0, input.length);
+            Assert.fail("Recovered data from too few fragments");
+        } catch (IllegalStateException expected) {}
+    }
+
     @Test
     public void serializationTest() throws IOException {
         byte[] raw = fragmenter.serialize();
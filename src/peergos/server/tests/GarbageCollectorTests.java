@@ -0,0 +1,69 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+public class GarbageCollectorTests {
+    private static final Crypto crypto = Main.initCrypto();
+
+    @Test
+    public void concurrentWritesSurviveGc() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-gc");
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        List<Runnable> duringListing = new ArrayList<>();
+        FileContentAddressedStorage blocks = new FileContentAddressedStorage(dir, transactions) {
+            @Override
+            public void applyToAllBlocks(BiConsumer<Multihash, Long> processor) {
+                super.applyToAllBlocks(processor);
+                duringListing.forEach(Runnable::run);
+            }
+        };
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        GarbageCollector gc = new GarbageCollector(blocks, transactions, pointers, Long.MAX_VALUE);
+
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+        TransactionId tid = gc.startTransaction(writerHash).join();
+        Multihash leaf = gc.putRaw(writerHash, writerHash, new byte[0], "leaf".getBytes(), tid, x -> {}).join();
+        Multihash root = gc.put(writerHash, writerHash, new byte[0],
+                new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(leaf))).serialize(), tid).join();
+        Multihash garbage = gc.putRaw(writerHash, writerHash, new byte[0], "garbage".getBytes(), tid, x -> {}).join();
+        Multihash rewritten = gc.putRaw(writerHash, writerHash, new byte[0], "rewritten".getBytes(), tid, x -> {}).join();
+        HashCasPair cas = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(root));
+        pointers.setPointer(writerHash, Optional.empty(), writer.signMessage(cas.serialize())).join();
+        gc.closeTransaction(writerHash, tid).join();
+
+        TransactionId pendingTid = gc.startTransaction(writerHash).join();
+        Multihash pending = gc.putRaw(writerHash, writerHash, new byte[0], "pending".getBytes(), pendingTid, x -> {}).join();
+
+        // An unreachable block which is written again while GC is running, in a transaction that closes before the sweep
+        duringListing.add(() -> {
+            TransactionId concurrent = gc.startTransaction(writerHash).join();
+            gc.putRaw(writerHash, writerHash, new byte[0], "rewritten".getBytes(), concurrent, x -> {}).join();
+            gc.closeTransaction(writerHash, concurrent).join();
+        });
+
+        Assert.assertTrue(gc.collect());
+        Assert.assertTrue("Reachable root retained", blocks.contains(root));
+        Assert.assertTrue("Reachable leaf retained", blocks.contains(leaf));
+        Assert.assertTrue("Open transaction retained", blocks.contains(pending));
+        Assert.assertTrue("Block written during GC retained", blocks.contains(rewritten));
+        Assert.assertFalse("Garbage removed", blocks.contains(garbage));
+
+        gc.closeTransaction(writerHash, pendingTid).join();
+    }
+}
@@ -0,0 +1,160 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.hash.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static peergos.server.corenode.MirrorCoreNode.*;
+
+public class MirrorCoreNodeTests {
+
+    private static PublicKeyHash key(int i) {
+        return new PublicKeyHash(RAMStorage.hashToCid(("key" + i).getBytes(), false));
+    }
+
+    private static MaybeMultihash target(int i) {
+        return MaybeMultihash.of(RAMStorage.hashToCid(("target" + i).getBytes(), false));
+    }
+
+    private static CorenodeState empty() {
+        return CorenodeState.buildEmpty(key(0), key(0), MaybeMultihash.empty(), MaybeMultihash.empty());
+    }
+
+    /** A diff that adds a single user
+     *
+     */
+    private static CorenodeState diff(int i) {
+        String username = "user" + i;
+        Map<String, List<UserPublicKeyLink>> chains = new ConcurrentHashMap<>();
+        chains.put(username, Collections.emptyList());
+        Map<PublicKeyHash, String> reverse = new ConcurrentHashMap<>();
+        reverse.put(key(i), username);
+        return new CorenodeState(key(0), key(1), target(0), target(i), chains, reverse,
+                new UsernameIndex(Collections.singletonList(username)));
+    }
+
+    /** Apply and save the diffs for users from to to, exclusive
+     *
+     * @return the number of records in the log afterwards
+     */
+    private static int saveDiffs(Path statePath, CorenodeState state, int logRecords, int from, int to) {
+        for (int i = from; i < to; i++) {
+            CorenodeState diff = diff(i);
+            state.apply(diff);
+            logRecords = saveState(statePath, state, diff, logRecords);
+        }
+        return logRecords;
+    }
+
+    private static void assertSameState(CorenodeState expected, CorenodeState actual) {
+        Assert.assertArrayEquals("state", expected.toCbor().serialize(), actual.toCbor().serialize());
+    }
+
+    private static byte[] frame(byte[] record) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        dout.writeInt(record.length);
+        dout.write(record);
+        return bout.toByteArray();
+    }
+
+    @Test
+    public void appendAndLoad() throws Exception {
+        Path statePath = Files.createTempDirectory("peergos-mirror").resolve("pki-state.cbor");
+        CorenodeState state = empty();
+        int records = saveDiffs(statePath, state, 0, 1, 11);
+        Assert.assertEquals("snapshot then diffs", 10, records);
+
+        CorenodeState loaded = empty();
+        Assert.assertEquals("records loaded", 10, load(statePath, loaded));
+        assertSameState(state, loaded);
+    }
+
+    @Test
+    public void compactAtMaxRecords() throws Exception {
+        Path statePath = Files.createTempDirectory("peergos-mirror").resolve("pki-state.cbor");
+        CorenodeState state = empty();
+        int records = saveDiffs(statePath, state, 0, 1, MAX_LOG_RECORDS + 1);
+        Assert.assertEquals("log is full", MAX_LOG_RECORDS, records);
+        long fullSize = Files.size(statePath);
+
+        records = saveDiffs(statePath, state, records, MAX_LOG_RECORDS + 1, MAX_LOG_RECORDS + 2);
+        Assert.assertEquals("log compacted", 1, records);
+        Assert.assertTrue("snapshot is smaller than the log", Files.size(statePath) < fullSize);
+
+        CorenodeState loaded = empty();
+        Assert.assertEquals("records loaded", 1, load(statePath, loaded));
+        assertSameState(state, loaded);
+
+        records = saveDiffs(statePath, state, records, MAX_LOG_RECORDS + 2, MAX_LOG_RECORDS + 4);
+        Assert.assertEquals("appending again", 3, records);
+        loaded = empty();
+        Assert.assertEquals("records loaded", 3, load(statePath, loaded));
+        assertSameState(state, loaded);
+    }
+
+    @Test
+    public void migrateLegacySnapshot() throws Exception {
+        Path statePath = Files.createTempDirectory("peergos-mirror").resolve("pki-state.cbor");
+        CorenodeState state = empty();
+        for (int i = 1; i < 5; i++)
+            state.apply(diff(i));
+        byte[] legacy = state.toCbor().serialize();
+        Assert.assertEquals("legacy format is a bare cbor map", 0xa0, legacy[0] & 0xe0);
+        Files.write(statePath, legacy);
+
+        CorenodeState loaded = empty();
+        int records = load(statePath, loaded);
+        Assert.assertEquals("legacy snapshot needs rewriting", MAX_LOG_RECORDS, records);
+        assertSameState(state, loaded);
+
+        // the next save rewrites the log in the new format
+        records = saveDiffs(statePath, loaded, records, 5, 7);
+        state.apply(diff(5));
+        state.apply(diff(6));
+        Assert.assertEquals("snapshot then a diff", 2, records);
+        Assert.assertNotEquals("no longer a bare cbor map", 0xa0, Files.readAllBytes(statePath)[0] & 0xe0);
+
+        CorenodeState reloaded = empty();
+        Assert.assertEquals("records loaded", 2, load(statePath, reloaded));
+        assertSameState(state, reloaded);
+    }
+
+    @Test
+    public void truncatedFinalRecord() throws Exception {
+        Path statePath = Files.createTempDirectory("peergos-mirror").resolve("pki-state.cbor");
+        CorenodeState state = empty();
+        saveDiffs(statePath, state, 0, 1, 4);
+        byte[] complete = Files.readAllBytes(statePath);
+        byte[] next = frame(diff(4).toCbor().serialize());
+
+        // a partial length prefix, and a record cut short
+        for (int truncatedLength : new int[]{2, next.length - 1}) {
+            byte[] truncated = Arrays.copyOf(complete, complete.length + truncatedLength);
+            System.arraycopy(next, 0, truncated, complete.length, truncatedLength);
+            Files.write(statePath, truncated);
+
+            CorenodeState loaded = empty();
+            int records = load(statePath, loaded);
+            Assert.assertEquals("truncated log needs rewriting", MAX_LOG_RECORDS, records);
+            assertSameState(state, loaded);
+
+            // the next save writes a complete snapshot
+            CorenodeState diff = diff(5);
+            loaded.apply(diff);
+            Assert.assertEquals("rewritten", 1, saveState(statePath, loaded, diff, records));
+            CorenodeState reloaded = empty();
+            Assert.assertEquals("records loaded", 1, load(statePath, reloaded));
+            assertSameState(loaded, reloaded);
+            Files.write(statePath, complete);
+        }
+    }
+}
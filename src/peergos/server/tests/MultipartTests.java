@@ -74,6 +74,57 @@ public class MultipartTests {
         }
     }
 
+    @Test
+    public void boundariesSplitAcrossReads() throws IOException {
+        String boundary = Multipart.createBoundary();
+        byte[] nearBoundary = ("\r\n--" + boundary.substring(0, boundary.length() - 1) + "x").getBytes();
+        List<byte[]> parts = Arrays.asList(
+                randomArray(100),
+                new byte[0],
+                nearBoundary,
+                randomArray(200_000), // larger than the initial buffer
+                new byte[0],
+                randomArray(3));
+        byte[] body = multipartBody(boundary, parts);
+        for (int maxRead : new int[]{1, 2, 3, 7, 13, 64, 4096, 100_000}) {
+            List<byte[]> result = MultipartReceiver.extractFiles(new ShortReadStream(body, maxRead), boundary);
+            Assert.assertEquals("Number of parts reading " + maxRead + " bytes at a time", parts.size(), result.size());
+            for (int i = 0; i < parts.size(); i++)
+                Assert.assertArrayEquals("Part " + i + " reading " + maxRead + " bytes at a time",
+                        parts.get(i), result.get(i));
+        }
+    }
+
+    private static byte[] multipartBody(String boundary, List<byte[]> parts) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bout.write(("--" + boundary + "\r\n").getBytes());
+            bout.write("Content-Disposition: file; name=\"file\";\r\n".getBytes());
+            bout.write("Content-Type: application/octet-stream\r\n\r\n".getBytes());
+            bout.write(part);
+            bout.write("\r\n".getBytes());
+        }
+        bout.write(("--" + boundary + "--\r\n").getBytes());
+        return bout.toByteArray();
+    }
+
+    /** Returns at most maxRead bytes from each read, so that delimiters are split across reads
+     *
+     */
+    private static class ShortReadStream extends ByteArrayInputStream {
+        private final int maxRead;
+
+        public ShortReadStream(byte[] data, int maxRead) {
+            super(data);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, maxRead));
+        }
+    }
+
     private void test(List<byte[]> input) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         for (byte[] in : input)
@@ -0,0 +1,137 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PackFileStorageTests {
+
+    private static TransactionStore transactions() {
+        return JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+    }
+
+    private static List<Multihash> putRandom(ContentAddressedStorage store, int count, int size, Random r) {
+        PublicKeyHash owner = PublicKeyHash.NULL;
+        TransactionId tid = store.startTransaction(owner).join();
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            byte[] block = new byte[size];
+            r.nextBytes(block);
+            blocks.add(block);
+        }
+        List<byte[]> sigs = Collections.nCopies(count, new byte[0]);
+        List<Multihash> res = store.putRaw(owner, owner, sigs, blocks, tid, x -> {}).join();
+        store.closeTransaction(owner, tid).join();
+        return res;
+    }
+
+    @Test
+    public void persistDeleteAndCompact() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        Random r = new Random(42);
+        PackFileContentAddressedStorage store = new PackFileContentAddressedStorage(dir, transactions(), 64 * 1024);
+        List<Multihash> blocks = putRandom(store, 100, 4 * 1024, r);
+        for (Multihash block : blocks)
+            Assert.assertEquals(4 * 1024, store.getRaw(block).join().get().length);
+
+        // remove most of the blocks in the first few segments
+        List<Multihash> deleted = blocks.subList(0, 60);
+        store.bulkDelete(deleted);
+        store.close();
+
+        PackFileContentAddressedStorage reopened = new PackFileContentAddressedStorage(dir, transactions(), 64 * 1024);
+        for (Multihash block : deleted)
+            Assert.assertFalse("Deleted block stays deleted", reopened.contains(block));
+        for (Multihash block : blocks.subList(60, blocks.size())) {
+            byte[] data = reopened.getRaw(block).join().get();
+            Assert.assertArrayEquals(block.getHash(), RAMStorage.hash(data));
+        }
+        long segments = Files.list(dir).filter(p -> p.toString().endsWith(".pack")).count();
+        Assert.assertTrue("Compaction removed dead segments", segments < 7);
+    }
+
+    @Test
+    public void writeDuringCompaction() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        Random r = new Random(7);
+        PackFileContentAddressedStorage store = new PackFileContentAddressedStorage(dir, transactions(), 64 * 1024);
+        List<Multihash> blocks = putRandom(store, 200, 4 * 1024, r);
+        store.bulkDelete(blocks.subList(0, 150));
+
+        // compaction only takes the write lock for each batch of copies, so writes can proceed in between
+        List<Multihash> deleted = blocks.subList(150, 170);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<List<Multihash>> written = pool.submit(() -> {
+            List<Multihash> res = new ArrayList<>();
+            for (int i=0; i < 20; i++)
+                res.addAll(putRandom(store, 5, 4 * 1024, new Random(1000 + i)));
+            store.bulkDelete(deleted);
+            return res;
+        });
+        store.compact(0.1);
+        List<Multihash> added = written.get();
+        pool.shutdown();
+        store.compact(0.1);
+        store.close();
+
+        PackFileContentAddressedStorage reopened = new PackFileContentAddressedStorage(dir, transactions(), 64 * 1024);
+        for (Multihash block : blocks.subList(0, 170))
+            Assert.assertFalse("Deleted block stays deleted", reopened.contains(block));
+        List<Multihash> live = new ArrayList<>(blocks.subList(170, blocks.size()));
+        live.addAll(added);
+        for (Multihash block : live) {
+            byte[] data = reopened.getRaw(block).join().get();
+            Assert.assertArrayEquals(block.getHash(), RAMStorage.hash(data));
+        }
+    }
+
+    @Test
+    public void readAfterInterruptedRead() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pack");
+        Random r = new Random(11);
+        PackFileContentAddressedStorage store = new PackFileContentAddressedStorage(dir, transactions(), 64 * 1024);
+        List<Multihash> blocks = putRandom(store, 40, 4 * 1024, r);
+        Multihash sealed = blocks.get(0), active = blocks.get(blocks.size() - 1);
+
+        // an interrupted read closes the channel it is reading from
+        for (Multihash block : Arrays.asList(sealed, active)) {
+            Thread reader = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    store.getRaw(block).join();
+                } catch (Exception expected) {}
+            });
+            reader.start();
+            reader.join();
+        }
+
+        for (Multihash block : blocks)
+            Assert.assertArrayEquals(block.getHash(), RAMStorage.hash(store.getRaw(block).join().get()));
+        List<Multihash> added = putRandom(store, 5, 4 * 1024, r);
+        for (Multihash block : added)
+            Assert.assertArrayEquals(block.getHash(), RAMStorage.hash(store.getRaw(block).join().get()));
+        store.close();
+    }
+
+    @Test
+    public void migrateFromFileStore() throws Exception {
+        Path fileDir = Files.createTempDirectory("peergos-blocks");
+        Path packDir = Files.createTempDirectory("peergos-pack");
+        Random r = new Random(7);
+        FileContentAddressedStorage source = new FileContentAddressedStorage(fileDir, transactions());
+        List<Multihash> blocks = putRandom(source, 50, 1024, r);
+
+        PackFileContentAddressedStorage target = new PackFileContentAddressedStorage(packDir, transactions());
+        Assert.assertEquals(blocks.size(), PackFileContentAddressedStorage.migrate(source, target));
+        for (Multihash block : blocks)
+            Assert.assertArrayEquals(source.getRaw(block).join().get(), target.getRaw(block).join().get());
+    }
+}
@@ -6,7 +6,9 @@ import org.junit.runners.*;
 import peergos.server.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.social.*;
+import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.*;
@@ -267,4 +269,64 @@ public class RamUserTests extends UserTests {
         // check user1 can still log in
         UserContext freshUser1 = PeergosNetworkUtils.ensureSignedUp(username1, password, network, crypto);
     }
+    /** Fails the first download of each chunk's fragments while armed
+     */
+    private static class FailOnceStorage extends DelegatingStorage {
+        private final Set<Multihash> failed = ConcurrentHashMap.newKeySet();
+        public volatile boolean armed = false;
+
+        public FailOnceStorage(ContentAddressedStorage target) {
+            super(target);
+        }
+
+        @Override
+        public CompletableFuture<List<FragmentWithHash>> downloadFragments(List<Multihash> hashes,
+                                                                          ProgressConsumer<Long> monitor,
+                                                                          double spaceIncreaseFactor) {
+            if (armed && ! hashes.isEmpty() && failed.add(hashes.get(0)))
+                return Futures.errored(new IllegalStateException("Failed to retrieve " + hashes.get(0)));
+            return super.downloadFragments(hashes, monitor, spaceIncreaseFactor);
+        }
+    }
+
+    @Test
+    public void seekToFailedPrefetch() throws Exception {
+        FailOnceStorage storage = new FailOnceStorage(network.dhtClient);
+        NetworkAccess failing = new NetworkAccess(network.coreNode, network.social, storage, network.mutable,
+                network.tree, network.synchronizer, network.instanceAdmin, network.spaceUsage, network.usernames, false);
+        String username = "prefetch";
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, failing, crypto);
+        FileWrapper userRoot = context.getUserRoot().join();
+
+        String filename = "chunks.bin";
+        byte[] fileData = new byte[6 * Chunk.MAX_SIZE];
+        new Random(42).nextBytes(fileData);
+        userRoot.uploadOrOverwriteFile(filename, new AsyncReader.ArrayBacked(fileData), fileData.length,
+                failing, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+        FileWrapper file = context.getByPath(Paths.get(username, filename)).join().get();
+
+        AsyncReader reader = file.getInputStream(failing, crypto, l -> {}).join();
+        byte[] buf = new byte[Chunk.MAX_SIZE];
+        // move into chunk 1, which prefetches chunk 2
+        reader.readIntoArray(buf, 0, 1).join();
+        reader.readIntoArray(buf, 0, Chunk.MAX_SIZE).join();
+        Thread.sleep(500);
+
+        // move into chunk 2, which prefetches chunks 3 and 4, but make those prefetches fail
+        storage.armed = true;
+        reader.readIntoArray(buf, 0, Chunk.MAX_SIZE).join();
+        Thread.sleep(500);
+        storage.armed = false;
+        // chunk 3 failed to download, so the prefetch of chunk 4 failed too
+        Assert.assertEquals("Prefetches failed", 1, storage.failed.size());
+
+        // seek past chunk 3 into chunk 4
+        long offset = 4L * Chunk.MAX_SIZE + 1000;
+        AsyncReader seeked = reader.seek(offset).join();
+        byte[] result = new byte[1000];
+        seeked.readIntoArray(result, 0, result.length).join();
+        Assert.assertArrayEquals("Correct chunk after failed prefetch",
+                Arrays.copyOfRange(fileData, (int) offset, (int) offset + result.length), result);
+    }
 }
@@ -0,0 +1,48 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.scrypt.com.lambdaworks.crypto.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+
+public class ScryptTests {
+
+    @Test
+    public void rfc7914Vectors() {
+        byte[] first = ParallelScrypt.scrypt("password".getBytes(), "NaCl".getBytes(), 1024, 8, 16, 64, 4).join();
+        Assert.assertEquals("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640",
+                ArrayOps.bytesToHex(first));
+
+        byte[] second = ParallelScrypt.scrypt("pleaseletmein".getBytes(), "SodiumChloride".getBytes(), 16384, 8, 1, 64, 4).join();
+        Assert.assertEquals("7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887",
+                ArrayOps.bytesToHex(second));
+    }
+
+    @Test
+    public void matchesSequentialImplementation() throws Exception {
+        Random r = new Random(42);
+        for (int p : new int[]{1, 2, 3, 5}) {
+            for (int threads : new int[]{1, 2, 8}) {
+                byte[] password = new byte[32], salt = new byte[16];
+                r.nextBytes(password);
+                r.nextBytes(salt);
+                byte[] expected = SCrypt.scryptJ(password, salt, 256, 4, p, 96);
+                byte[] actual = ParallelScrypt.scrypt(password, salt, 256, 4, p, 96, threads).join();
+                Assert.assertArrayEquals("p=" + p + ", threads=" + threads, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void loginKeyUnchanged() throws Exception {
+        ScryptGenerator params = (ScryptGenerator) SecretGenerationAlgorithm.getDefaultWithoutExtraSalt();
+        String username = "alice", password = "correct horse battery staple";
+        byte[] expected = SCrypt.scryptJ(Hash.sha256(password.getBytes()), username.getBytes(),
+                1 << params.memoryCost, params.cpuCost, params.parallelism, params.outputBytes);
+        byte[] actual = new ScryptJava().hashToKeyBytes(username, password, params).join();
+        Assert.assertArrayEquals(expected, actual);
+    }
+}
@@ -2,6 +2,7 @@ package peergos.server.tests;
 import org.junit.*;
 import peergos.server.*;
 import peergos.server.space.*;
+import peergos.server.storage.*;
 import peergos.shared.Crypto;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.cbor.CborObject;
@@ -9,9 +10,9 @@ import peergos.shared.crypto.hash.PublicKeyHash;
 import peergos.shared.io.ipfs.multihash.Multihash;
 import peergos.server.space.*;
 
-import java.util.HashSet;
-import java.util.Random;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.*;
 
 
 public class SpaceCheckingKeyFilterTests {
@@ -43,4 +44,47 @@ public class SpaceCheckingKeyFilterTests {
         //check that deserialize(serialize(object)) == object
         Assert.assertEquals(deserialized, state);
     }
+
+    @Test
+    public void subtreeSizeDiff() {
+        RAMStorage dht = new RAMStorage();
+        PublicKeyHash writer = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        List<Multihash> leaves = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] leaf = new byte[1000 + i];
+            RANDOM.nextBytes(leaf);
+            leaves.add(dht.putRaw(writer, writer, Collections.singletonList(new byte[0]),
+                    Collections.singletonList(leaf), null, x -> {}).join().get(0));
+        }
+        Multihash root1 = putTree(dht, writer, leaves.subList(0, 10), leaves.subList(10, 15));
+        Multihash root2 = putTree(dht, writer, leaves.subList(0, 10), leaves.subList(12, 20));
+        Multihash root3 = putTree(dht, writer, leaves.subList(5, 10), leaves.subList(12, 20));
+
+        SubtreeSizeCache sizes = new SubtreeSizeCache(dht, 1000);
+        long size1 = sizes.getRecursiveBlockSize(root1).join();
+        Assert.assertEquals(dht.getRecursiveBlockSize(root1).join().longValue(), size1);
+        long delta12 = sizes.getChangeInContainedSize(root1, root2).join();
+        Assert.assertEquals(dht.getChangeInContainedSize(root1, root2).join().longValue(), delta12);
+        long delta23 = sizes.getChangeInContainedSize(MaybeMultihash.of(root2), root3).join();
+        Assert.assertEquals(dht.getChangeInContainedSize(root2, root3).join().longValue(), delta23);
+        // the diffs have memoized the sizes of the updated trees
+        Assert.assertEquals(dht.getRecursiveBlockSize(root3).join().longValue(),
+                sizes.getRecursiveBlockSize(root3).join().longValue());
+        Assert.assertEquals(size1 + delta12 + delta23, sizes.getRecursiveBlockSize(root3).join().longValue());
+        Assert.assertEquals(-delta12 - delta23, sizes.getChangeInContainedSize(root3, root1).join().longValue());
+    }
+
+    private static Multihash putTree(RAMStorage dht, PublicKeyHash writer, List<Multihash> left, List<Multihash> right) {
+        Multihash leftNode = putLinks(dht, writer, left);
+        Multihash rightNode = putLinks(dht, writer, right);
+        return putLinks(dht, writer, Arrays.asList(leftNode, rightNode));
+    }
+
+    private static Multihash putLinks(RAMStorage dht, PublicKeyHash writer, List<Multihash> links) {
+        CborObject.CborList node = new CborObject.CborList(links.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList()));
+        return dht.put(writer, writer, Collections.singletonList(new byte[0]),
+                Collections.singletonList(node.serialize()), null).join().get(0);
+    }
 }
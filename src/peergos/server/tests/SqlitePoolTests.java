@@ -0,0 +1,105 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SqlitePoolTests {
+
+    private static SqlitePool pool() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-sql");
+        return new SqlitePool(dir.resolve("test.sql").toString(), 2);
+    }
+
+    @Test
+    public void concurrentPointerUpdates() throws Exception {
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(pool(), new SqliteCommands());
+        int writers = 16, updates = 50;
+        ExecutorService threads = Executors.newFixedThreadPool(writers);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            byte[] hash = new byte[32];
+            hash[0] = (byte) w;
+            PublicKeyHash writer = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash));
+            results.add(threads.submit(() -> {
+                byte[] current = new byte[]{0};
+                if (! pointers.setPointer(writer, Optional.empty(), current).join())
+                    return false;
+                for (int i = 1; i <= updates; i++) {
+                    byte[] next = new byte[]{(byte) i};
+                    if (! pointers.setPointer(writer, Optional.of(current), next).join())
+                        return false;
+                    // a committed update is visible to readers
+                    if (! Arrays.equals(next, pointers.getPointer(writer).join().get()))
+                        return false;
+                    current = next;
+                }
+                // a stale update is rejected
+                return ! pointers.setPointer(writer, Optional.of(new byte[]{0}), new byte[]{1}).join();
+            }));
+        }
+        for (Future<Boolean> result : results)
+            Assert.assertTrue(result.get());
+        threads.shutdown();
+        Assert.assertEquals(writers, pointers.getAllEntries().size());
+    }
+
+    @Test
+    public void explicitTransactions() throws Exception {
+        SqlitePool pool = pool();
+        try (Connection conn = pool.get()) {
+            conn.createStatement().executeUpdate("CREATE TABLE items (name text not null);");
+        }
+        try (Connection conn = pool.get();
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO items (name) VALUES(?);")) {
+            conn.setAutoCommit(false);
+            insert.setString(1, "discarded");
+            insert.executeUpdate();
+            conn.rollback();
+            insert.setString(1, "kept");
+            insert.executeUpdate();
+            conn.commit();
+        }
+        try (Connection conn = pool.get();
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO items (name) VALUES(?);")) {
+            conn.setAutoCommit(false);
+            insert.setString(1, "uncommitted");
+            insert.executeUpdate();
+        }
+        // the same statement is reused from the cache
+        for (int i = 0; i < 3; i++) {
+            try (Connection conn = pool.get();
+                 PreparedStatement select = conn.prepareStatement("SELECT name FROM items;")) {
+                ResultSet rs = select.executeQuery();
+                List<String> names = new ArrayList<>();
+                while (rs.next())
+                    names.add(rs.getString(1));
+                Assert.assertEquals(Arrays.asList("kept"), names);
+            }
+        }
+    }
+
+    @Test
+    public void transactionStore() throws Exception {
+        TransactionStore store = JdbcTransactionStore.build(pool(), new SqliteCommands());
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[1], true));
+        TransactionId tid = store.startTransaction(owner);
+        List<Multihash> blocks = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            blocks.add(TransactionsStoreTests.hashToCid(new byte[]{(byte) i}, false));
+        store.addBlocks(blocks, tid, owner);
+        Assert.assertTrue(store.getOpenTransactionBlocks().containsAll(blocks));
+        store.closeTransaction(owner, tid);
+        Assert.assertTrue(store.getOpenTransactionBlocks().isEmpty());
+    }
+}
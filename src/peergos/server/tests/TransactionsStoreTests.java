@@ -15,6 +15,9 @@ import peergos.shared.storage.*;
 import java.security.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 @RunWith(Parameterized.class)
 public class TransactionsStoreTests {
@@ -66,4 +69,60 @@ public class TransactionsStoreTests {
         List<Multihash> empty = store.getOpenTransactionBlocks();
         Assert.assertTrue("All blocks removed", empty.isEmpty());
     }
+
+    @Test
+    public void concurrentTransactions() throws Exception {
+        PublicKeyHash owner = new PublicKeyHash(hashToCid(new byte[3], true));
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<List<Multihash>>> results = new ArrayList<>();
+        List<TransactionId> stillOpen = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            results.add(pool.submit(() -> {
+                TransactionId tid = store.startTransaction(owner);
+                List<Multihash> blocks = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    Cid block = hashToCid(new byte[]{(byte) thread, (byte) i, 1}, false);
+                    blocks.add(block);
+                    if (i % 2 == 0)
+                        store.addBlock(block, tid, owner);
+                }
+                store.addBlocks(blocks.stream().filter(b -> ! store.getOpenTransactionBlocks().contains(b))
+                        .collect(Collectors.toList()), tid, owner);
+                Assert.assertTrue("Blocks recorded before return", store.getOpenTransactionBlocks().containsAll(blocks));
+                if (thread % 2 == 0) {
+                    store.closeTransaction(owner, tid);
+                    return Collections.emptyList();
+                }
+                stillOpen.add(tid);
+                return blocks;
+            }));
+        }
+        Set<Multihash> expected = new HashSet<>();
+        for (Future<List<Multihash>> result : results)
+            expected.addAll(result.get());
+        pool.shutdown();
+
+        Set<Multihash> open = new HashSet<>();
+        store.streamOpenTransactionBlocks(open::add);
+        Assert.assertEquals("Only blocks of open transactions remain", expected, open);
+        for (TransactionId tid : stillOpen)
+            store.closeTransaction(owner, tid);
+    }
+
+    @Test
+    public void failedCommitIsReported() throws Exception {
+        Supplier<Connection> db = Main.buildEphemeralSqlite();
+        TransactionStore failing = JdbcTransactionStore.build(db, new SqliteCommands());
+        try (Statement drop = db.get().createStatement()) {
+            drop.executeUpdate("DROP TABLE transactions;");
+        }
+        PublicKeyHash owner = new PublicKeyHash(hashToCid(new byte[4], true));
+        TransactionId tid = failing.startTransaction(owner);
+        try {
+            failing.addBlock(hashToCid(new byte[]{5}, false), tid, owner);
+            Assert.fail("Failed write reported as a success");
+        } catch (IllegalStateException expected) {}
+    }
 }
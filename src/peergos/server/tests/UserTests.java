@@ -485,6 +485,44 @@ public abstract class UserTests {
         checkFileContents(data, updatedFile, context);
     }
 
+    @Test
+    public void pathIndexFollowsChanges() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().join();
+
+        String dirname = "big";
+        userRoot.mkdir(dirname, context.network, false, crypto).join();
+        FileWrapper dir = context.getByPath("/" + username + "/" + dirname).join().get();
+        for (int i = 0; i < 20; i++)
+            dir = dir.mkdir("sub" + i, context.network, false, crypto).join();
+        byte[] data = "hello".getBytes();
+        FileWrapper sub = context.getByPath("/" + username + "/" + dirname + "/sub7").join().get();
+        sub.uploadOrOverwriteFile("file.txt", new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).join();
+
+        String path = "/" + username + "/" + dirname + "/sub7/file.txt";
+        // the second lookup is served from the index
+        checkFileContents(data, context.getByPath(path).join().get(), context);
+        checkFileContents(data, context.getByPath(path).join().get(), context);
+        Assert.assertTrue(! context.getByPath("/" + username + "/" + dirname + "/sub20").join().isPresent());
+
+        // renaming a directory on the path makes the index stale
+        FileWrapper parent = context.getByPath("/" + username + "/" + dirname).join().get();
+        FileWrapper toRename = context.getByPath("/" + username + "/" + dirname + "/sub7").join().get();
+        toRename.rename("renamed", parent, context).join();
+        Assert.assertTrue(! context.getByPath(path).join().isPresent());
+        String newPath = "/" + username + "/" + dirname + "/renamed/file.txt";
+        checkFileContents(data, context.getByPath(newPath).join().get(), context);
+
+        // as does deleting a file
+        FileWrapper file = context.getByPath(newPath).join().get();
+        FileWrapper fileParent = context.getByPath("/" + username + "/" + dirname + "/renamed").join().get();
+        file.remove(fileParent, context).join();
+        Assert.assertTrue(! context.getByPath(newPath).join().isPresent());
+    }
+
     @Test
     public void directoryEncryptionKey() throws Exception {
         // ensure that a directory's child links are encrypted with the base key, not the parent key
@@ -906,6 +944,63 @@ public abstract class UserTests {
         }
     }
 
+    @Test
+    public void readAheadStreaming() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "video.bin";
+        int MB = 1024*1024;
+        byte[] data = new byte[33 * MB + 17];
+        random.nextBytes(data);
+        uploadFileSection(userRoot, filename, new AsyncReader.ArrayBacked(data), 0, data.length, context.network,
+                context.crypto, l -> {}).join();
+
+        // stream sequentially in small reads, so chunks are consumed while later ones are prefetched
+        AsyncReader reader = context.getByPath(Paths.get(username, filename)).join()
+                .get().getInputStream(network, crypto, x -> { }).join();
+        byte[] buf = new byte[MB / 2];
+        for (int offset = 0; offset < data.length; offset += buf.length) {
+            int len = Math.min(buf.length, data.length - offset);
+            reader.readIntoArray(buf, 0, len).join();
+            Assert.assertTrue("Streamed data correct at " + offset,
+                    Arrays.equals(Arrays.copyOfRange(buf, 0, len), Arrays.copyOfRange(data, offset, offset + len)));
+        }
+
+        // seeks both into and beyond the prefetched chunks
+        reader = reader.reset().join();
+        for (int offset: Arrays.asList(MB, 6*MB, 7*MB, 20*MB, 3*MB, 31*MB)) {
+            reader = reader.seek(offset).join();
+            reader.readIntoArray(buf, 0, buf.length).join();
+            Assert.assertTrue("Seeked data correct at " + offset,
+                    Arrays.equals(buf, Arrays.copyOfRange(data, offset, offset + buf.length)));
+        }
+        reader.close();
+    }
+
+    @Test
+    public void manyChunkUploadAndDelete() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        // span more than two groups of committed chunks
+        String filename = "large.bin";
+        byte[] data = new byte[Chunk.MAX_SIZE * 17 + 1024];
+        random.nextBytes(data);
+        FileWrapper updatedRoot = uploadFileSection(userRoot, filename, new AsyncReader.ArrayBacked(data), 0, data.length,
+                context.network, context.crypto, l -> {}).join();
+        FileWrapper file = context.getByPath(Paths.get(username, filename)).join().get();
+        Assert.assertEquals("File size", data.length, file.getFileProperties().size);
+        checkFileContentsChunked(data, file, context, 4);
+
+        file.remove(updatedRoot, context).join();
+        Assert.assertFalse("File deleted", context.getByPath(Paths.get(username, filename)).join().isPresent());
+    }
+
     @Test
     public void writeTiming() throws Exception {
         String username = generateUsername();
@@ -1308,6 +1403,61 @@ public abstract class UserTests {
         Assert.assertTrue("File copied in dir", file.isPresent());
     }
 
+    @Test
+    public void internalCopyReusesFragments() {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network.clear(), crypto);
+        FileWrapper userRoot = context.getUserRoot().join();
+        Path home = Paths.get(username);
+
+        String foldername = "afolder", subfoldername = "sub", foldername2 = "bfolder";
+        userRoot = userRoot.mkdir(foldername, context.network, false, crypto).join();
+        userRoot.mkdir(foldername2, context.network, false, crypto).join();
+        FileWrapper folder = context.getByPath(home.resolve(foldername)).join().get();
+        folder = folder.mkdir(subfoldername, context.network, false, crypto).join();
+
+        byte[] big = randomData(Chunk.MAX_SIZE * 2 + 1024);
+        byte[] small = "some small data".getBytes();
+        byte[] empty = new byte[0];
+        folder = folder.uploadOrOverwriteFile("big.bin", new AsyncReader.ArrayBacked(big), big.length,
+                context.network, crypto, x -> {}, crypto.random.randomBytes(32)).join();
+        folder = folder.uploadOrOverwriteFile("empty.txt", new AsyncReader.ArrayBacked(empty), empty.length,
+                context.network, crypto, x -> {}, crypto.random.randomBytes(32)).join();
+        FileWrapper sub = context.getByPath(home.resolve(foldername).resolve(subfoldername)).join().get();
+        sub.uploadOrOverwriteFile("small.txt", new AsyncReader.ArrayBacked(small), small.length,
+                context.network, crypto, x -> {}, crypto.random.randomBytes(32)).join();
+
+        folder = context.getByPath(home.resolve(foldername)).join().get();
+        FileWrapper folder2 = context.getByPath(home.resolve(foldername2)).join().get();
+        folder.copyTo(folder2, context).join();
+
+        Path copyDir = home.resolve(foldername2).resolve(foldername);
+        FileWrapper original = context.getByPath(home.resolve(foldername).resolve("big.bin")).join().get();
+        FileWrapper copy = context.getByPath(copyDir.resolve("big.bin")).join().get();
+        checkFileContents(big, copy, context);
+        checkFileContents(empty, context.getByPath(copyDir.resolve("empty.txt")).join().get(), context);
+        checkFileContents(small, context.getByPath(copyDir.resolve(subfoldername).resolve("small.txt")).join().get(), context);
+
+        Assert.assertTrue("Different base key", ! getMetaKey(copy).equals(getMetaKey(original)));
+        Assert.assertTrue("Different location", ! Arrays.equals(copy.getLocation().getMapKey(), original.getLocation().getMapKey()));
+        Assert.assertTrue("Copy is dirty", copy.isDirty());
+        Assert.assertEquals("Same fragments", original.getPointer().fileAccess.toCbor().links(),
+                copy.getPointer().fileAccess.toCbor().links());
+
+        // modifying the copy leaves the original intact
+        FileWrapper copyParent = context.getByPath(copyDir).join().get();
+        byte[] section = randomData(1024);
+        uploadFileSection(copyParent, "big.bin", new AsyncReader.ArrayBacked(section), 0, section.length,
+                context.network, crypto, x -> {}).join();
+        byte[] expected = Arrays.copyOf(big, big.length);
+        System.arraycopy(section, 0, expected, 0, section.length);
+        FileWrapper modified = context.getByPath(copyDir.resolve("big.bin")).join().get();
+        Assert.assertTrue("Cleaned before modification", ! modified.isDirty());
+        checkFileContents(expected, modified, context);
+        checkFileContents(big, context.getByPath(home.resolve(foldername).resolve("big.bin")).join().get(), context);
+    }
+
     @Test
     public void usage() {
         String username = generateUsername();
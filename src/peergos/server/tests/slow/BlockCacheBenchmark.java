@@ -0,0 +1,86 @@
+package peergos.server.tests.slow;
+
+import peergos.server.tests.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Measures multi-threaded get throughput of the block cache against a single synchronized LRUCache, with a skewed
+ *  access pattern over more blocks than fit in the cache.
+ */
+public class BlockCacheBenchmark {
+    private static final int BLOCKS = 100_000;
+    private static final int BLOCK_SIZE = 1024;
+    private static final long CACHE_BYTES = 32 * 1024 * 1024;
+    private static final int DURATION_MILLIS = 5_000;
+
+    interface Cache {
+        byte[] get(Cid key);
+        void put(Cid key, byte[] value);
+    }
+
+    public static void main(String[] a) throws Exception {
+        Cid[] keys = new Cid[BLOCKS];
+        for (int i=0; i < BLOCKS; i++)
+            keys[i] = TransactionsStoreTests.hashToCid(new byte[]{(byte) i, (byte) (i >> 8), (byte) (i >> 16)}, true);
+
+        System.out.println("Cache, threads, gets/s, hit ratio");
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(4, 2 * cores); threads *= 2) {
+            LRUCache<Cid, byte[]> lru = new LRUCache<>((int) (CACHE_BYTES / BLOCK_SIZE));
+            run("synchronized LRUCache", threads, keys, new Cache() {
+                public synchronized byte[] get(Cid key) {
+                    return lru.get(key);
+                }
+                public synchronized void put(Cid key, byte[] value) {
+                    lru.put(key, value);
+                }
+            });
+            BlockCache blocks = new BlockCache(CACHE_BYTES, (int) (CACHE_BYTES / BLOCK_SIZE));
+            run("BlockCache", threads, keys, new Cache() {
+                public byte[] get(Cid key) {
+                    return blocks.get(key);
+                }
+                public void put(Cid key, byte[] value) {
+                    blocks.put(key, value);
+                }
+            });
+        }
+    }
+
+    private static void run(String name, int threads, Cid[] keys, Cache cache) throws Exception {
+        AtomicLong gets = new AtomicLong(0), hits = new AtomicLong(0);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long end = System.currentTimeMillis() + DURATION_MILLIS;
+        for (int t=0; t < threads; t++) {
+            int seed = t;
+            pool.submit(() -> {
+                Random r = new Random(seed);
+                long localGets = 0, localHits = 0;
+                while (System.currentTimeMillis() < end) {
+                    for (int i=0; i < 1000; i++) {
+                        // skewed towards low indices
+                        double u = r.nextDouble();
+                        Cid key = keys[(int) (u * u * u * keys.length)];
+                        byte[] value = cache.get(key);
+                        if (value != null)
+                            localHits++;
+                        else
+                            cache.put(key, new byte[BLOCK_SIZE]);
+                    }
+                    localGets += 1000;
+                }
+                gets.addAndGet(localGets);
+                hits.addAndGet(localHits);
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(DURATION_MILLIS + 60_000, TimeUnit.MILLISECONDS);
+        System.out.printf("%s, %d, %.0f, %.3f%n", name, threads, gets.get() * 1000.0 / DURATION_MILLIS,
+                (double) hits.get() / gets.get());
+    }
+}
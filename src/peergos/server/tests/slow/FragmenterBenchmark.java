@@ -0,0 +1,64 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+import peergos.server.util.*;
+import peergos.shared.user.fs.*;
+
+import java.util.*;
+import java.util.logging.*;
+
+@RunWith(Parameterized.class)
+public class FragmenterBenchmark {
+	private static final Logger LOG = Logging.LOG();
+    private static Random random = new Random(666);
+
+    private final Fragmenter fragmenter;
+
+    public FragmenterBenchmark(Fragmenter fragmenter) {
+        this.fragmenter = fragmenter;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][]{
+                {new SplitFragmenter()},
+                {new ErasureFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES)},
+                {new ReedSolomonFragmenter(ReedSolomonFragmenter.DATA_SHARDS, ReedSolomonFragmenter.PARITY_SHARDS)}
+        });
+    }
+
+    @Test
+    public void throughput() {
+        byte[] input = new byte[Chunk.MAX_SIZE];
+        random.nextBytes(input);
+        int iterations = fragmenter instanceof ErasureFragmenter ? 1 : 20;
+        // warm up
+        byte[][] split = fragmenter.split(input);
+        fragmenter.recombine(split, 0, input.length);
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            split = fragmenter.split(input);
+        long t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            fragmenter.recombine(split, 0, input.length);
+        long t2 = System.nanoTime();
+        double mebibytes = (double) iterations * input.length / 1024 / 1024;
+        LOG.info(String.format("%s encode: %.1f MiB/s, decode: %.1f MiB/s", fragmenter,
+                mebibytes * 1e9 / (t1 - t0), mebibytes * 1e9 / (t2 - t1)));
+
+        if (fragmenter instanceof ReedSolomonFragmenter) {
+            // decode without the first PARITY_SHARDS data fragments, the worst case
+            byte[][] damaged = Arrays.copyOf(split, split.length);
+            for (int i = 0; i < ReedSolomonFragmenter.PARITY_SHARDS; i++)
+                damaged[i] = null;
+            long t3 = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                fragmenter.recombine(damaged, 0, input.length);
+            long t4 = System.nanoTime();
+            LOG.info(String.format("%s reconstruct: %.1f MiB/s", fragmenter, mebibytes * 1e9 / (t4 - t3)));
+        }
+    }
+}
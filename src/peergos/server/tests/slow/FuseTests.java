@@ -355,6 +355,64 @@ public class FuseTests {
         }
     }
 
+    @Test
+    public void sequentialThroughputBenchmark() throws IOException {
+        int length = 50 * 1024 * 1024;
+        int blockSize = 128 * 1024;
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        Path path = home.resolve(randomUUID().toString());
+
+        long t0 = System.nanoTime();
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (int pos = 0; pos < length; pos += blockSize)
+                out.write(data, pos, Math.min(blockSize, length - pos));
+        }
+        long t1 = System.nanoTime();
+        byte[] contents = new byte[length];
+        try (InputStream in = Files.newInputStream(path)) {
+            int pos = 0;
+            while (pos < length) {
+                int read = in.read(contents, pos, Math.min(blockSize, length - pos));
+                if (read < 0)
+                    break;
+                pos += read;
+            }
+        }
+        long t2 = System.nanoTime();
+
+        double mebibytes = (double) length / 1024 / 1024;
+        LOG.info(String.format("Sequential write: %.1f MiB/s, sequential read: %.1f MiB/s",
+                mebibytes * 1e9 / (t1 - t0), mebibytes * 1e9 / (t2 - t1)));
+        assertTrue("Correct file contents", Arrays.equals(data, contents));
+    }
+
+    @Test
+    public void listAndStatDirectory() throws IOException {
+        Path dir = home.resolve(randomUUID().toString());
+        dir.toFile().mkdirs();
+        int nFiles = 100;
+        for (int i = 0; i < nFiles; i++)
+            Files.write(dir.resolve("file" + i), new byte[i]);
+
+        for (int round = 0; round < 2; round++) {
+            long t0 = System.nanoTime();
+            List<Path> children;
+            try (Stream<Path> listing = Files.list(dir)) {
+                children = listing.collect(Collectors.toList());
+            }
+            long totalSize = 0;
+            for (Path child : children)
+                totalSize += Files.size(child);
+            long t1 = System.nanoTime();
+            LOG.info("Listed and stat'ed " + children.size() + " files in " + (t1 - t0) / 1_000_000 + " mS");
+
+            assertEquals("all files listed", nFiles, children.size());
+            assertEquals("correct sizes", nFiles * (nFiles - 1) / 2, totalSize);
+        }
+        assertFalse("missing file", dir.resolve("missing").toFile().exists());
+    }
+
     @AfterClass
     public static void shutdown() {
         if (fuseProcess != null)
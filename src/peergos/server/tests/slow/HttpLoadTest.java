@@ -0,0 +1,69 @@
+package peergos.server.tests.slow;
+
+import peergos.server.*;
+import peergos.server.tests.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** A load test of the http api, reporting requests per second and latency percentiles at increasing numbers of
+ *  concurrent clients. Run it before and after a change to the request handling to compare.
+ */
+public class HttpLoadTest {
+
+    private static final int DURATION_SECONDS = 10;
+
+    public static void main(String[] a) throws Exception {
+        Args args = UserTests.buildArgs().with("useIPFS", "false");
+        Main.PKI_INIT.main(args);
+        NetworkAccess network = NetworkAccess.buildJava(new URL("http://localhost:" + args.getInt("port"))).get();
+        ContentAddressedStorage dht = network.dhtClient;
+
+        // a small block to read back repeatedly
+        UserContext context = UserContext.ensureSignedUp("loadtest", "test01", network, Main.initCrypto()).join();
+        Multihash hash = context.signer.publicKeyHash;
+
+        System.out.println("Clients, requests/s, p50 (ms), p99 (ms), errors");
+        for (int clients : new int[]{1, 10, 50, 100, 200}) {
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            AtomicLong errors = new AtomicLong(0);
+            long end = System.currentTimeMillis() + DURATION_SECONDS * 1000;
+            for (int i = 0; i < clients; i++) {
+                pool.submit(() -> {
+                    while (System.currentTimeMillis() < end) {
+                        long t0 = System.nanoTime();
+                        try {
+                            dht.get(hash).join();
+                            dht.getSize(hash).join();
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies.add((System.nanoTime() - t0) / 2);
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(DURATION_SECONDS + 60, TimeUnit.SECONDS);
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            double rate = sorted.size() * 2.0 / DURATION_SECONDS;
+            System.out.printf("%d, %.0f, %.2f, %.2f, %d%n", clients, rate,
+                    percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6, errors.get());
+        }
+        System.exit(0);
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty())
+            return 0;
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.round(p * (sorted.size() - 1))));
+    }
+}
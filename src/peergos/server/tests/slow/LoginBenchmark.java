@@ -11,6 +11,7 @@ import peergos.shared.user.*;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 @RunWith(Parameterized.class)
 public class LoginBenchmark {
@@ -65,4 +66,29 @@ public class LoginBenchmark {
                     duration, best, worst, (t1 + duration - start) / (i + 1));
         }
     }
+
+    @Test
+    public void timeToFirstListing() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        ensureSignedUp(username, password, network, crypto);
+
+        for (int i=0; i < 10; i++) {
+            long t1 = System.currentTimeMillis();
+            CompletableFuture<Long> firstListing = new CompletableFuture<>();
+            UserContext context = UserContext.signInWithHomeReady(username, password, network, crypto, s -> {},
+                    home -> home.getUserRoot()
+                            .thenCompose(root -> root.getChildren(crypto.hasher, network))
+                            .thenAccept(children -> firstListing.complete(System.currentTimeMillis() - t1))
+                            .exceptionally(t -> {
+                                firstListing.completeExceptionally(t);
+                                return null;
+                            })).get();
+            long fullTree = System.currentTimeMillis() - t1;
+            long firstListingDuration = firstListing.get();
+            Assert.assertTrue("Home directory listed", context.getUserRoot().get().isDirectory());
+            System.err.printf("LOGIN(%d) time to first listing: %d mS, time to full tree: %d mS\n", i,
+                    firstListingDuration, fullTree);
+        }
+    }
 }
@@ -4,12 +4,15 @@ import org.junit.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
 import peergos.server.*;
+import peergos.server.net.*;
 import peergos.server.tests.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.io.ipfs.api.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
 
+import java.io.*;
 import java.net.*;
 import java.util.*;
 
@@ -60,6 +63,136 @@ public class MultipartBenchmark {
         testWriteThroughput(128*1024);
     }
 
+    @Test
+    public void parseSmallFragments() {
+        testParseThroughput(4096, 1280);
+    }
+
+    @Test
+    public void parseLargeFragments() {
+        testParseThroughput(128*1024, 40);
+    }
+
+    /** Compare the multipart parser against the previous byte at a time implementation on a 5 MiB body held in memory
+     *
+     * @param fragmentSize
+     * @param fragments
+     */
+    public void testParseThroughput(int fragmentSize, int fragments) {
+        String boundary = Multipart.createBoundary();
+        List<byte[]> input = new ArrayList<>();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(bout));
+        for (int i=0; i < fragments; i++) {
+            byte[] data = new byte[fragmentSize];
+            random.nextBytes(data);
+            input.add(data);
+            writer.append("--" + boundary + "\r\n");
+            writer.append("Content-Disposition: file; name=\"file\";\r\n");
+            writer.append("Content-Type: application/octet-stream\r\n");
+            writer.append("Content-Transfer-Encoding: binary\r\n\r\n");
+            writer.flush();
+            bout.write(data, 0, data.length);
+            writer.append("\r\n");
+        }
+        writer.append("--" + boundary + "--\r\n");
+        writer.flush();
+        byte[] body = bout.toByteArray();
+
+        int iterations = 20;
+        for (String name : Arrays.asList("byte at a time", "buffered")) {
+            boolean buffered = name.equals("buffered");
+            long start = 0;
+            for (int i=0; i < 2 * iterations; i++) {
+                if (i == iterations) // the first half is warm up
+                    start = System.nanoTime();
+                InputStream in = new ByteArrayInputStream(body);
+                List<byte[]> parts = buffered ?
+                        MultipartReceiver.extractFiles(in, boundary) :
+                        ByteAtATimeReceiver.extractFiles(in, boundary);
+                if (i == 0) {
+                    Assert.assertEquals(input.size(), parts.size());
+                    for (int j=0; j < parts.size(); j++)
+                        Assert.assertTrue(Arrays.equals(input.get(j), parts.get(j)));
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Parse %s (%d byte fragments): %.1f MiB/s\n", name, fragmentSize,
+                    body.length * (double) iterations / 1024 / 1024 / seconds);
+        }
+    }
+
+    /** The original multipart parser, which reads and matches one byte at a time
+     *
+     */
+    private static class ByteAtATimeReceiver {
+        private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+
+        public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
+            try {
+                InputStream in = new BufferedInputStream(rawIn);
+                String first = readLine(in, 1024);
+                if (!first.substring(2).equals(boundary))
+                    throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
+                readUntil(DOUBLE_NEW_LINE, in);
+
+                byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
+                List<byte[]> files = new ArrayList<>();
+                while (true) {
+                    files.add(readUntil(boundaryBytes, in));
+                    byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
+                    if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
+                        return files;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
+            ByteArrayOutputStream prior = new ByteArrayOutputStream();
+            int r;
+            int indexInPattern = 0;
+            while ((r = in.read()) != -1) {
+                if ((byte) r == pattern[indexInPattern]) {
+                    indexInPattern++;
+                    if (indexInPattern == pattern.length)
+                        return prior.toByteArray();
+                } else {
+                    if (indexInPattern > 0)
+                        prior.write(pattern, 0, indexInPattern);
+                    indexInPattern = 0;
+                    if ((byte) r == pattern[0]) {
+                        indexInPattern = 1;
+                        if (pattern.length == 1)
+                            return prior.toByteArray();
+                    } else
+                        prior.write(r);
+                }
+            }
+            return prior.toByteArray();
+        }
+
+        private static String readLine(InputStream in, int maxSize) throws IOException {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            int r, total = 0;
+            while ((r = in.read()) >= 0) {
+                total++;
+                if (r == '\r') {
+                    int next = in.read();
+                    if (next == '\n')
+                        break;
+                    bout.write(r);
+                    bout.write(next);
+                } else
+                    bout.write(r);
+                if (total > maxSize)
+                    break;
+            }
+            return new String(bout.toByteArray());
+        }
+    }
+
     public void testWriteThroughput(int fragmentSize) throws Exception {
         String username = generateUsername();
         String password = "test01";
@@ -0,0 +1,53 @@
+package peergos.server.tests.slow;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.scrypt.com.lambdaworks.crypto.*;
+import peergos.shared.user.*;
+
+import java.util.function.*;
+
+/** Measures the latency of deriving the login key, as done in every sign in, for the default scrypt parameters and
+ *  for the same parameters with more lanes.
+ *
+ */
+public class ScryptBenchmark {
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] a) throws Exception {
+        ScryptGenerator defaults = (ScryptGenerator) SecretGenerationAlgorithm.getDefaultWithoutExtraSalt();
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Cores: " + cores);
+        for (int p : new int[]{defaults.parallelism, 4}) {
+            ScryptGenerator params = new ScryptGenerator(defaults.memoryCost, defaults.cpuCost, p,
+                    defaults.outputBytes, "");
+            String name = "N=2^" + params.memoryCost + ", r=" + params.cpuCost + ", p=" + p;
+            byte[] hash = Hash.sha256("password".getBytes());
+            byte[] salt = "username".getBytes();
+            int N = 1 << params.memoryCost;
+            run(name + ", sequential", () -> {
+                try {
+                    return SCrypt.scryptJ(hash, salt, N, params.cpuCost, p, params.outputBytes);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            ScryptJava hasher = new ScryptJava();
+            run(name + ", parallel", () -> hasher.hashToKeyBytes("username", "password", params).join());
+        }
+    }
+
+    private static void run(String name, Supplier<byte[]> login) {
+        // warm up
+        login.get();
+        long worst = 0, best = Long.MAX_VALUE, start = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long t1 = System.currentTimeMillis();
+            login.get();
+            long duration = System.currentTimeMillis() - t1;
+            worst = Math.max(worst, duration);
+            best = Math.min(best, duration);
+        }
+        long average = (System.currentTimeMillis() - start) / ITERATIONS;
+        System.out.printf("%s: best: %d mS, worst: %d mS, av: %d mS%n", name, best, worst, average);
+    }
+}
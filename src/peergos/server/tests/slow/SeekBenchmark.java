@@ -0,0 +1,47 @@
+package peergos.server.tests.slow;
+
+import peergos.server.*;
+import peergos.shared.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+
+/** Measures how long it takes to locate the chunk at a given offset of a file in the hash based chunk format.
+ *
+ */
+public class SeekBenchmark {
+    private static final Crypto crypto = Main.initCrypto();
+
+    public static void main(String[] a) throws Exception {
+        Random r = new Random(42);
+        long[] chunkCounts = {1, 10, 100, 1_000, 10_000, 100_000};
+        MapKeyIndex index = new MapKeyIndex(100);
+        System.out.println("Offset (MiB), first seek (ms), repeat seek (ms), nearby seek (ms)");
+        for (long chunks : chunkCounts) {
+            byte[] streamSecret = new byte[32];
+            r.nextBytes(streamSecret);
+            byte[] firstMapKey = new byte[32];
+            r.nextBytes(firstMapKey);
+            long offset = chunks * Chunk.MAX_SIZE;
+
+            long t0 = System.nanoTime();
+            byte[] first = FileProperties.calculateMapKey(streamSecret, firstMapKey, offset, index, crypto.hasher).join();
+            long t1 = System.nanoTime();
+            byte[] repeat = FileProperties.calculateMapKey(streamSecret, firstMapKey, offset, index, crypto.hasher).join();
+            long t2 = System.nanoTime();
+            FileProperties.calculateMapKey(streamSecret, firstMapKey, offset - Chunk.MAX_SIZE, index, crypto.hasher).join();
+            long t3 = System.nanoTime();
+
+            if (! Arrays.equals(first, repeat) || ! Arrays.equals(first, walkChain(streamSecret, firstMapKey, chunks)))
+                throw new IllegalStateException("Incorrect map key!");
+            System.out.printf("%d, %.3f, %.3f, %.3f%n", offset >> 20, (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6);
+        }
+    }
+
+    private static byte[] walkChain(byte[] streamSecret, byte[] mapKey, long chunks) {
+        for (long i = 0; i < chunks; i++)
+            mapKey = FileProperties.calculateNextMapKey(streamSecret, mapKey, crypto.hasher).join();
+        return mapKey;
+    }
+}
@@ -0,0 +1,49 @@
+package peergos.server.tests.slow;
+
+import peergos.server.*;
+import peergos.server.crypto.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+
+/** Measures the throughput of verifying the signatures of a multipart block put, as done for each chunk upload.
+ *
+ */
+public class SignatureVerificationBenchmark {
+    private static final Crypto crypto = Main.initCrypto();
+
+    public static void main(String[] a) {
+        int fragmentSize = 128 * 1024;
+        int fragments = 5 * 1024 * 1024 / fragmentSize;
+        int iterations = 50;
+
+        Random r = new Random(1);
+        SigningKeyPair signer = SigningKeyPair.random(crypto.random, crypto.signer);
+        List<byte[]> blocks = new ArrayList<>();
+        List<byte[]> signatures = new ArrayList<>();
+        for (int i = 0; i < fragments; i++) {
+            byte[] block = new byte[fragmentSize];
+            r.nextBytes(block);
+            blocks.add(block);
+            signatures.add(signer.signMessage(Hash.sha256(block)));
+        }
+        double mibPerPut = (double) fragments * fragmentSize / 1024 / 1024;
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Threads, MiB/s, MiB/s per core");
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            BlockSignatureVerifier verifier = new BlockSignatureVerifier(threads);
+            // warm up
+            for (int i = 0; i < 5; i++)
+                verifier.verify(signer.publicSigningKey, signatures, blocks);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                verifier.verify(signer.publicSigningKey, signatures, blocks);
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            double rate = mibPerPut * iterations / seconds;
+            System.out.printf("%d, %.1f, %.1f%n", threads, rate, rate / threads);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package peergos.server.tests.slow;
+
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.sql.*;
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** Measures mutable pointer update and read throughput with increasing numbers of concurrent clients, each updating
+ *  its own pointer and reading others. It compares a single shared sqlite connection with the pooled WAL connections.
+ *  Passing postgres args, e.g. -use-postgres true -postgres.host ..., also runs it against postgres through Hikari.
+ */
+public class SqlitePointersBenchmark {
+    private static final int DURATION_MILLIS = 5_000;
+
+    public static void main(String[] args) throws Exception {
+        Args a = Args.parse(args);
+        Map<String, Supplier<Supplier<Connection>>> dbs = new LinkedHashMap<>();
+        dbs.put("single connection", () -> {
+            try {
+                Connection instance = new Sqlite.UncloseableConnection(Sqlite.build(tempFile()));
+                return () -> instance;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        dbs.put("wal pool", () -> {
+            try {
+                return new SqlitePool(tempFile(), 4);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        boolean postgres = a.getBoolean("use-postgres", false);
+        if (postgres)
+            dbs.put("postgres", () -> Main.getDBConnector(a, "mutable-pointers-file"));
+
+        System.out.println("Database, clients, updates/s, reads/s");
+        for (Map.Entry<String, Supplier<Supplier<Connection>>> db : dbs.entrySet()) {
+            for (int clients : new int[]{1, 4, 16, 64}) {
+                SqlSupplier commands = db.getKey().equals("postgres") ? new PostgresCommands() : new SqliteCommands();
+                JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(db.getValue().get(), commands);
+                run(db.getKey(), clients, pointers);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static String tempFile() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-sql");
+        return dir.resolve("mutable.sql").toString();
+    }
+
+    private static PublicKeyHash writer(Random r) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash));
+    }
+
+    private static void run(String name, int clients, JdbcIpnsAndSocial pointers) throws Exception {
+        Random r = new Random(clients);
+        List<PublicKeyHash> writers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            PublicKeyHash writer = writer(r);
+            writers.add(writer);
+            pointers.setPointer(writer, Optional.empty(), new byte[]{0}).join();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(clients * 2);
+        AtomicLong updates = new AtomicLong(0), reads = new AtomicLong(0);
+        long end = System.currentTimeMillis() + DURATION_MILLIS;
+        List<Future<?>> done = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            PublicKeyHash writer = writers.get(i);
+            done.add(pool.submit(() -> {
+                byte[] current = new byte[]{0};
+                int version = 0;
+                while (System.currentTimeMillis() < end) {
+                    byte[] next = new byte[]{(byte) ++version, (byte) (version >> 8), (byte) (version >> 16)};
+                    if (! pointers.setPointer(writer, Optional.of(current), next).join())
+                        throw new IllegalStateException("CAS failed!");
+                    current = next;
+                    updates.incrementAndGet();
+                }
+            }));
+            done.add(pool.submit(() -> {
+                Random local = new Random();
+                while (System.currentTimeMillis() < end) {
+                    pointers.getPointer(writers.get(local.nextInt(writers.size()))).join();
+                    reads.incrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> f : done)
+            f.get();
+        pool.shutdown();
+        System.out.printf("%s, %d, %d, %d%n", name, clients,
+                updates.get() * 1000 / DURATION_MILLIS, reads.get() * 1000 / DURATION_MILLIS);
+    }
+}
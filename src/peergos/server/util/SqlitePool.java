@@ -0,0 +1,357 @@
+package peergos.server.util;
+
+import org.sqlite.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A pool of connections to a sqlite database file in WAL mode, with a single writer connection and several readers.
+ *
+ *  Each call to get() returns a lightweight connection which is only bound to a physical connection when it is used.
+ *  A connection whose statements are all selects uses a reader, so reads proceed in parallel with each other and with
+ *  writes. A connection that writes, or that starts an explicit transaction, holds the writer until it is closed.
+ *
+ *  Connections in autocommit mode that write are group committed: if other connections are already waiting for the
+ *  writer when one closes, it hands the writer over without committing, and the last connection in the chain commits
+ *  for all of them. Every connection's close still only returns once its writes are committed, and if the commit fails
+ *  all of them fail.
+ *
+ *  Prepared statements are cached per physical connection, and reused after they are closed.
+ */
+public class SqlitePool implements Supplier<Connection> {
+    private static final int MAX_GROUP_SIZE = 64;
+    private static final int MAX_CACHED_STATEMENTS = 64;
+    private static final int BUSY_TIMEOUT_MILLIS = 30_000;
+
+    private static final Map<String, SqlitePool> pools = new HashMap<>();
+
+    private final BlockingQueue<PhysicalConnection> readers;
+    private final PhysicalConnection writer;
+    private final Semaphore writeLock = new Semaphore(1, true);
+    // guarded by writeLock
+    private CompletableFuture<Boolean> pendingCommit;
+    private int pendingCount = 0;
+
+    public SqlitePool(String dbPath, int readConnections) throws SQLException {
+        this.writer = new PhysicalConnection(open(dbPath));
+        this.writer.conn.setAutoCommit(false);
+        this.readers = new ArrayBlockingQueue<>(readConnections);
+        for (int i = 0; i < readConnections; i++)
+            readers.add(new PhysicalConnection(open(dbPath)));
+    }
+
+    /** There must only be one writer per database in a process, so share pools between all users of a file
+     *
+     * @param dbPath
+     * @param readConnections
+     * @return
+     * @throws SQLException
+     */
+    public static synchronized SqlitePool forFile(String dbPath, int readConnections) throws SQLException {
+        SqlitePool existing = pools.get(dbPath);
+        if (existing != null)
+            return existing;
+        SqlitePool pool = new SqlitePool(dbPath, readConnections);
+        pools.put(dbPath, pool);
+        return pool;
+    }
+
+    private static Connection open(String dbPath) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+        SQLiteDataSource dc = new SQLiteDataSource(config);
+        dc.setUrl("jdbc:sqlite:" + dbPath);
+        return dc.getConnection();
+    }
+
+    @Override
+    public Connection get() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new Session());
+    }
+
+    private static boolean isRead(String sql) {
+        String trimmed = sql.trim();
+        return trimmed.regionMatches(true, 0, "SELECT", 0, 6);
+    }
+
+    private static Object delegate(Object target, Method m, Object[] args) throws Throwable {
+        try {
+            return m.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** A logical connection, as seen by a caller
+     */
+    private class Session implements InvocationHandler {
+        private PhysicalConnection reader;
+        private boolean holdsWriter, explicitTransaction, closed;
+        private boolean autoCommit = true;
+        private Integer isolation;
+        private CompletableFuture<Boolean> commitGroup;
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            switch (m.getName()) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getAutoCommit":
+                    return autoCommit;
+                case "setAutoCommit":
+                    setAutoCommit((Boolean) args[0]);
+                    return null;
+                case "setTransactionIsolation":
+                    isolation = (Integer) args[0];
+                    if (reader != null)
+                        reader.setIsolation(isolation);
+                    if (holdsWriter)
+                        writer.setIsolation(isolation);
+                    return null;
+                case "commit":
+                    if (explicitTransaction)
+                        writer.conn.commit();
+                    return null;
+                case "rollback":
+                    if (explicitTransaction)
+                        delegate(writer.conn, m, args);
+                    return null;
+                case "prepareStatement":
+                    String sql = (String) args[0];
+                    PhysicalConnection target = holdsWriter || ! isRead(sql) ? bindWriter() : bindReader();
+                    if (args.length == 1)
+                        return target.prepare(sql);
+                    return delegate(target.conn, m, args);
+                case "createStatement":
+                case "prepareCall":
+                    return delegate(bindWriter().conn, m, args);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "SqlitePool.Connection";
+                default:
+                    PhysicalConnection bound = holdsWriter ? writer : reader != null ? reader : bindReader();
+                    return delegate(bound.conn, m, args);
+            }
+        }
+
+        private void checkOpen() throws SQLException {
+            if (closed)
+                throw new SQLException("Connection is closed");
+        }
+
+        private PhysicalConnection bindReader() throws SQLException {
+            checkOpen();
+            if (reader == null) {
+                try {
+                    reader = readers.take();
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+                if (isolation != null)
+                    reader.setIsolation(isolation);
+            }
+            return reader;
+        }
+
+        private PhysicalConnection bindWriter() throws SQLException {
+            checkOpen();
+            if (! holdsWriter) {
+                writeLock.acquireUninterruptibly();
+                holdsWriter = true;
+                if (pendingCommit == null)
+                    pendingCommit = new CompletableFuture<>();
+                pendingCount++;
+                commitGroup = pendingCommit;
+                if (isolation != null)
+                    writer.setIsolation(isolation);
+                if (! autoCommit)
+                    beginExplicit();
+            }
+            return writer;
+        }
+
+        /** Commit the writes of earlier connections in the group, so this connection's transaction is independent
+         */
+        private void beginExplicit() throws SQLException {
+            if (pendingCount > 1)
+                commitPending();
+            explicitTransaction = true;
+        }
+
+        private void setAutoCommit(boolean enabled) throws SQLException {
+            if (enabled == autoCommit)
+                return;
+            autoCommit = enabled;
+            if (! holdsWriter)
+                return;
+            if (enabled) {
+                // Per jdbc, enabling autocommit commits the current transaction
+                writer.conn.commit();
+                explicitTransaction = false;
+            } else
+                beginExplicit();
+        }
+
+        /** Commit everything written since the last commit, and complete the group's future
+         */
+        private void commitPending() throws SQLException {
+            CompletableFuture<Boolean> group = pendingCommit;
+            pendingCommit = new CompletableFuture<>();
+            pendingCount = 1;
+            commitGroup = pendingCommit;
+            try {
+                writer.conn.commit();
+                group.complete(true);
+            } catch (SQLException e) {
+                writer.conn.rollback();
+                group.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        private void close() throws SQLException {
+            if (closed)
+                return;
+            closed = true;
+            if (reader != null) {
+                readers.add(reader);
+                reader = null;
+            }
+            if (! holdsWriter)
+                return;
+            holdsWriter = false;
+            CompletableFuture<Boolean> group = commitGroup;
+            if (explicitTransaction) {
+                // Discard anything the caller didn't commit, as closing a jdbc connection would
+                try {
+                    writer.conn.rollback();
+                } finally {
+                    pendingCommit = null;
+                    pendingCount = 0;
+                    group.complete(true);
+                    writeLock.release();
+                }
+                return;
+            }
+            if (writeLock.hasQueuedThreads() && pendingCount < MAX_GROUP_SIZE) {
+                writeLock.release();
+            } else {
+                try {
+                    writer.conn.commit();
+                    group.complete(true);
+                } catch (SQLException e) {
+                    try {
+                        writer.conn.rollback();
+                    } catch (SQLException f) {}
+                    group.completeExceptionally(e);
+                } finally {
+                    pendingCommit = null;
+                    pendingCount = 0;
+                    writeLock.release();
+                }
+            }
+            try {
+                group.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof SQLException ?
+                        (SQLException) e.getCause() :
+                        new SQLException(e.getCause());
+            }
+        }
+    }
+
+    /** A connection to the database, and the prepared statements cached on it.
+     *  Only used by one session at a time.
+     */
+    private static class PhysicalConnection {
+        public final Connection conn;
+        private final LinkedHashMap<String, PreparedStatement> idle = new LinkedHashMap<>(16, 0.75f, true);
+        private int isolation = -1;
+
+        public PhysicalConnection(Connection conn) {
+            this.conn = conn;
+        }
+
+        public void setIsolation(int level) throws SQLException {
+            if (level == isolation)
+                return;
+            conn.setTransactionIsolation(level);
+            isolation = level;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement cached = idle.remove(sql);
+            PreparedStatement stmt = cached != null ? cached : conn.prepareStatement(sql);
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, new CachedStatement(sql, stmt));
+        }
+
+        private void release(String sql, PreparedStatement stmt) throws SQLException {
+            stmt.clearParameters();
+            stmt.clearBatch();
+            if (idle.containsKey(sql)) {
+                stmt.close();
+                return;
+            }
+            idle.put(sql, stmt);
+            if (idle.size() > MAX_CACHED_STATEMENTS) {
+                Iterator<PreparedStatement> oldest = idle.values().iterator();
+                PreparedStatement evicted = oldest.next();
+                oldest.remove();
+                evicted.close();
+            }
+        }
+
+        /** Closing returns the statement to the cache, after closing its last result set
+         */
+        private class CachedStatement implements InvocationHandler {
+            private final String sql;
+            private final PreparedStatement target;
+            private ResultSet lastResult;
+            private boolean closed;
+
+            public CachedStatement(String sql, PreparedStatement target) {
+                this.sql = sql;
+                this.target = target;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                switch (m.getName()) {
+                    case "close":
+                        if (closed)
+                            return null;
+                        closed = true;
+                        if (lastResult != null)
+                            lastResult.close();
+                        release(sql, target);
+                        return null;
+                    case "isClosed":
+                        return closed;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        if (closed)
+                            throw new SQLException("Statement is closed");
+                        Object res = delegate(target, m, args);
+                        if (res instanceof ResultSet)
+                            lastResult = (ResultSet) res;
+                        return res;
+                }
+            }
+        }
+    }
+}
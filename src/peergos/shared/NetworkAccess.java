@@ -42,6 +42,9 @@ public class NetworkAccess {
 
     @JsProperty
     public final List<String> usernames;
+    public final PathIndex pathIndex = new PathIndex();
+    public final MapKeyIndex mapKeys = new MapKeyIndex(100);
+    public final ReadAheadBudget readAhead = new ReadAheadBudget();
     private final LocalDateTime creationTime;
     private final boolean isJavascript;
 
@@ -204,7 +207,7 @@ public class NetworkAccess {
                             localDht :
                             new ContentAddressedStorage.Proxying(localDht, proxingDht, nodeId, core);
                     HashVerifyingStorage verifyingStorage = new HashVerifyingStorage(storage, isJavascript ? new ScryptJS() : new ScryptJava());
-                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 1_000, 50 * 1024);
+                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 16 * 1024 * 1024, 50 * 1024);
                     MutablePointersProxy httpMutable = new HttpMutablePointers(apiPoster, p2pPoster);
                     MutablePointers p2pMutable =
                             isPeergosServer ?
@@ -462,21 +465,67 @@ public class NetworkAccess {
             LOG.info("Uploading chunk: " + (metadata.isDirectory() ? "dir" : "file")
                     + " at " + ArrayOps.bytesToHex(mapKey)
                     + " with " + metadata.toCbor().links().size() + " fragments");
-            byte[] metaBlob = metadata.serialize();
-            CommittedWriterData version = current.get(writer);
-            return hasher.sha256(metaBlob)
-                    .thenCompose(blobSha -> dhtClient.put(owner, writer.publicKeyHash,
-                            writer.secret.signMessage(blobSha), metaBlob, tid))
-                    .thenCompose(blobHash -> tree.put(version.props, owner, writer, mapKey,
-                            metadata.committedHash(), blobHash, tid)
-                            .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid)))
-                    .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
+            return uploadMetadata(metadata, owner, writer, tid)
+                    .thenCompose(blobHash -> commitChunk(current, committer, metadata, blobHash, owner, mapKey, writer, tid));
         } catch (Exception e) {
             LOG.severe(e.getMessage());
             throw new RuntimeException(e);
         }
     }
 
+    /** Write the metadata blob of a chunk, without linking it into the writer's champ
+     *
+     */
+    public CompletableFuture<Multihash> uploadMetadata(CryptreeNode metadata,
+                                                       PublicKeyHash owner,
+                                                       SigningPrivateKeyAndPublicHash writer,
+                                                       TransactionId tid) {
+        byte[] metaBlob = metadata.serialize();
+        return hasher.sha256(metaBlob)
+                .thenCompose(blobSha -> dhtClient.put(owner, writer.publicKeyHash,
+                        writer.secret.signMessage(blobSha), metaBlob, tid));
+    }
+
+    /** Link an already uploaded metadata blob into the writer's champ and commit
+     *
+     */
+    public CompletableFuture<Snapshot> commitChunk(Snapshot current,
+                                                   Committer committer,
+                                                   CryptreeNode metadata,
+                                                   Multihash blobHash,
+                                                   PublicKeyHash owner,
+                                                   byte[] mapKey,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   TransactionId tid) {
+        if (! current.versions.containsKey(writer.publicKeyHash))
+            throw new IllegalStateException("Trying to commit to incorrect writer!");
+        CommittedWriterData version = current.get(writer);
+        return tree.put(version.props, owner, writer, mapKey, metadata.committedHash(), blobHash, tid)
+                .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid))
+                .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
+    }
+
+    /** Link a batch of already uploaded metadata blobs into the writer's champ with a single champ update and commit
+     *
+     * @param chunks the metadata, its blob hash and map key for each chunk
+     */
+    public CompletableFuture<Snapshot> commitChunks(Snapshot current,
+                                                    Committer committer,
+                                                    List<Triple<CryptreeNode, Multihash, byte[]>> chunks,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    TransactionId tid) {
+        if (! current.versions.containsKey(writer.publicKeyHash))
+            throw new IllegalStateException("Trying to commit to incorrect writer!");
+        CommittedWriterData version = current.get(writer);
+        List<MutableTree.Mutation> puts = chunks.stream()
+                .map(c -> MutableTree.Mutation.put(c.right, c.left.committedHash(), c.middle))
+                .collect(Collectors.toList());
+        return tree.putAll(version.props, owner, writer, puts, tid)
+                .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid))
+                .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
+    }
+
     public CompletableFuture<Snapshot> addPreexistingChunk(CryptreeNode metadata,
                                                            PublicKeyHash owner,
                                                            byte[] mapKey,
@@ -502,6 +551,25 @@ public class NetworkAccess {
                 .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
     }
 
+    /** Remove a batch of chunks from the writer's champ with a single champ update and commit
+     *
+     * @param chunks the map key and current metadata of each chunk
+     */
+    public CompletableFuture<Snapshot> deleteChunks(Snapshot current,
+                                                    Committer committer,
+                                                    List<Pair<byte[], CryptreeNode>> chunks,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    TransactionId tid) {
+        CommittedWriterData version = current.get(writer);
+        List<MutableTree.Mutation> removes = chunks.stream()
+                .map(c -> MutableTree.Mutation.remove(c.left, c.right.committedHash()))
+                .collect(Collectors.toList());
+        return tree.putAll(version.props, owner, writer, removes, tid)
+                .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid))
+                .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
+    }
+
     public CompletableFuture<Snapshot> deleteChunkIfPresent(Snapshot current,
                                                             Committer committer,
                                                             PublicKeyHash owner,
@@ -432,8 +432,7 @@ public class CborDecoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     protected int readUInt16() throws IOException {
-        byte[] buf = readFully(new byte[2]);
-        return (buf[0] & 0xFF) << 8 | (buf[1] & 0xFF);
+        return (int) readBigEndian(2);
     }
 
     /**
@@ -443,8 +442,7 @@ public class CborDecoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     protected long readUInt32() throws IOException {
-        byte[] buf = readFully(new byte[4]);
-        return ((buf[0] & 0xFF) << 24 | (buf[1] & 0xFF) << 16 | (buf[2] & 0xFF) << 8 | (buf[3] & 0xFF)) & 0xffffffffL;
+        return readBigEndian(4);
     }
 
     /**
@@ -454,9 +452,25 @@ public class CborDecoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     protected long readUInt64() throws IOException {
-        byte[] buf = readFully(new byte[8]);
-        return (buf[0] & 0xFFL) << 56 | (buf[1] & 0xFFL) << 48 | (buf[2] & 0xFFL) << 40 | (buf[3] & 0xFFL) << 32 | //
-                (buf[4] & 0xFFL) << 24 | (buf[5] & 0xFFL) << 16 | (buf[6] & 0xFFL) << 8 | (buf[7] & 0xFFL);
+        return readBigEndian(8);
+    }
+
+    /**
+     * Reads an unsigned big endian integer one byte at a time, without allocating a buffer
+     *
+     * @param nBytes the number of bytes to read, at most 8
+     * @return the read value
+     * @throws IOException in case of I/O problems reading from the underlying input stream, or a premature end of stream.
+     */
+    private long readBigEndian(int nBytes) throws IOException {
+        long res = 0;
+        for (int i = 0; i < nBytes; i++) {
+            int b = m_is.read();
+            if (b < 0)
+                throw new EOFException();
+            res = (res << 8) | b;
+        }
+        return res;
     }
 
     /**
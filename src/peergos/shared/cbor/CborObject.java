@@ -18,10 +18,17 @@ public interface CborObject extends Cborable {
     List<Multihash> links();
 
     default byte[] toByteArray() {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        CborEncoder encoder = new CborEncoder(bout);
-        serialize(encoder);
-        return bout.toByteArray();
+        CborOutputBuffer buf = new CborOutputBuffer(64);
+        serialize(new CborEncoder(buf));
+        return buf.toByteArray();
+    }
+
+    /** Serialize into a buffer, which the caller can reuse for many objects
+     *
+     * @param buf
+     */
+    default void serialize(CborOutputBuffer buf) {
+        serialize(new CborEncoder(buf));
     }
 
     @Override
@@ -31,8 +38,13 @@ public interface CborObject extends Cborable {
 
     int LINK_TAG = 42;
 
+    /** Decode directly from the array. Maps are decoded lazily, so the array must not be modified afterwards.
+     *
+     * @param cbor
+     * @return
+     */
     static CborObject fromByteArray(byte[] cbor) {
-        return deserialize(new CborDecoder(new ByteArrayInputStream(cbor)), cbor.length);
+        return CborReader.decode(cbor);
     }
 
     static CborObject read(InputStream in, int maxBytes) {
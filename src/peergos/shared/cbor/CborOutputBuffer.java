@@ -0,0 +1,55 @@
+package peergos.shared.cbor;
+
+import java.io.*;
+import java.util.*;
+
+/** An unsynchronized, growable output buffer for encoding cbor. It can be reset and reused for many objects.
+ *
+ */
+public final class CborOutputBuffer extends OutputStream {
+    private byte[] buf;
+    private int count;
+
+    public CborOutputBuffer(int initialSize) {
+        this.buf = new byte[Math.max(initialSize, 16)];
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = count + extra;
+        if (required > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** Discard the contents, keeping the allocated capacity
+     *
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+}
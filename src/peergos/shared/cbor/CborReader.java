@@ -0,0 +1,204 @@
+package peergos.shared.cbor;
+
+import peergos.shared.io.ipfs.cid.*;
+
+import java.io.*;
+import java.util.*;
+
+import static peergos.shared.cbor.CborConstants.*;
+
+/** Decodes cbor directly from a byte[] using a cursor, without any intermediate streams.
+ *
+ *  Maps are decoded lazily, their keys are decoded immediately, but each value is only decoded when it is first read
+ *  (see LazySortedMap). This means decoded maps retain the input array, which must not be modified afterwards.
+ */
+public final class CborReader {
+    private final byte[] data;
+    private final int end;
+    private final int maxGroupSize;
+    private int pos;
+
+    public CborReader(byte[] data, int offset, int end, int maxGroupSize) {
+        if (offset < 0 || end > data.length || offset > end)
+            throw new IllegalArgumentException("Invalid range for cbor: [" + offset + ", " + end + ")");
+        this.data = data;
+        this.pos = offset;
+        this.end = end;
+        this.maxGroupSize = maxGroupSize;
+    }
+
+    public static CborObject decode(byte[] cbor) {
+        return new CborReader(cbor, 0, cbor.length, cbor.length).read();
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    /**
+     *
+     * @return the next object, leaving the cursor after it
+     */
+    public CborObject read() {
+        int ib = readByte();
+        int majorType = ib >>> 5;
+        int info = ib & 0x1f;
+        switch (majorType) {
+            case TYPE_UNSIGNED_INTEGER:
+                return new CborObject.CborLong(readUInt(info));
+            case TYPE_NEGATIVE_INTEGER:
+                return new CborObject.CborLong(~readUInt(info));
+            case TYPE_BYTE_STRING: {
+                int len = readLength(info);
+                byte[] res = Arrays.copyOfRange(data, pos, pos + len);
+                pos += len;
+                return new CborObject.CborByteArray(res);
+            }
+            case TYPE_TEXT_STRING: {
+                int len = readLength(info);
+                try {
+                    String res = new String(data, pos, len, "UTF-8");
+                    pos += len;
+                    return new CborObject.CborString(res);
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            case TYPE_ARRAY: {
+                int nItems = readCount(info);
+                List<CborObject> res = new ArrayList<>(nItems);
+                for (int i = 0; i < nItems; i++)
+                    res.add(read());
+                return new CborObject.CborList(res);
+            }
+            case TYPE_MAP:
+                return new CborObject.CborMap(LazySortedMap.read(this, readCount(info)));
+            case TYPE_TAG: {
+                long tag = readUInt(info);
+                if (tag != CborObject.LINK_TAG)
+                    throw new IllegalStateException("Unknown TAG in CBOR: " + tag);
+                CborObject value = read();
+                if (value instanceof CborObject.CborString)
+                    return new CborObject.CborMerkleLink(Cid.decode(((CborObject.CborString) value).value));
+                if (value instanceof CborObject.CborByteArray) {
+                    byte[] bytes = ((CborObject.CborByteArray) value).value;
+                    if (bytes[0] == 0) // multibase for binary
+                        return new CborObject.CborMerkleLink(Cid.cast(Arrays.copyOfRange(bytes, 1, bytes.length)));
+                    throw new IllegalStateException("Unknown Multibase decoding Merkle link: " + bytes[0]);
+                }
+                throw new IllegalStateException("Invalid type for merkle link: " + value);
+            }
+            case TYPE_FLOAT_SIMPLE:
+                if (info == NULL)
+                    return new CborObject.CborNull();
+                if (info == TRUE)
+                    return new CborObject.CborBoolean(true);
+                if (info == FALSE)
+                    return new CborObject.CborBoolean(false);
+                throw new IllegalStateException("Unimplemented simple type! " + info);
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + majorType);
+        }
+    }
+
+    /** Move the cursor past the next object, validating its structure without decoding it
+     *
+     */
+    public void skip() {
+        int ib = readByte();
+        int majorType = ib >>> 5;
+        int info = ib & 0x1f;
+        switch (majorType) {
+            case TYPE_UNSIGNED_INTEGER:
+            case TYPE_NEGATIVE_INTEGER:
+                readUInt(info);
+                return;
+            case TYPE_BYTE_STRING:
+            case TYPE_TEXT_STRING: {
+                // readLength moves the cursor past any extended length, so it must run before pos is read
+                int len = readLength(info);
+                pos += len;
+                return;
+            }
+            case TYPE_ARRAY: {
+                int nItems = readCount(info);
+                for (int i = 0; i < nItems; i++)
+                    skip();
+                return;
+            }
+            case TYPE_MAP: {
+                int nValues = readCount(info);
+                for (int i = 0; i < nValues; i++) {
+                    skip();
+                    skip();
+                }
+                return;
+            }
+            case TYPE_TAG: {
+                long tag = readUInt(info);
+                if (tag != CborObject.LINK_TAG)
+                    throw new IllegalStateException("Unknown TAG in CBOR: " + tag);
+                skip();
+                return;
+            }
+            case TYPE_FLOAT_SIMPLE:
+                if (info == NULL || info == TRUE || info == FALSE)
+                    return;
+                throw new IllegalStateException("Unimplemented simple type! " + info);
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + majorType);
+        }
+    }
+
+    /**
+     *
+     * @param offset
+     * @return the object starting at offset in the same input
+     */
+    CborObject readAt(int offset) {
+        return new CborReader(data, offset, end, maxGroupSize).read();
+    }
+
+    private int readByte() {
+        if (pos >= end)
+            throw new IllegalStateException("Invalid cbor: unexpected end of input!");
+        return data[pos++] & 0xff;
+    }
+
+    private long readUInt(int info) {
+        if (info < ONE_BYTE)
+            return info;
+        int nBytes;
+        switch (info) {
+            case ONE_BYTE: nBytes = 1; break;
+            case TWO_BYTES: nBytes = 2; break;
+            case FOUR_BYTES: nBytes = 4; break;
+            case EIGHT_BYTES: nBytes = 8; break;
+            default: throw new IllegalStateException("Not well-formed CBOR integer found, invalid length: " + info);
+        }
+        if (end - pos < nBytes)
+            throw new IllegalStateException("Invalid cbor: unexpected end of input!");
+        long res = 0;
+        for (int i = 0; i < nBytes; i++)
+            res = (res << 8) | (data[pos++] & 0xff);
+        if (res < 0)
+            throw new IllegalStateException("Not well-formed CBOR integer found: " + res);
+        return res;
+    }
+
+    private int readLength(int info) {
+        long len = readUInt(info);
+        if (len > maxGroupSize)
+            throw new IllegalStateException("Invalid cbor: string longer than original bytes!");
+        if (len > end - pos)
+            throw new IllegalStateException("Invalid cbor: unexpected end of input!");
+        return (int) len;
+    }
+
+    private int readCount(int info) {
+        long count = readUInt(info);
+        if (count > maxGroupSize)
+            throw new IllegalStateException("Invalid cbor: more elements than original bytes!");
+        return (int) count;
+    }
+}
@@ -0,0 +1,172 @@
+package peergos.shared.cbor;
+
+import java.util.*;
+
+/** An immutable, sorted map decoded from cbor, whose values are only decoded when they are first read.
+ *
+ *  The keys are held in sorted arrays, so lookups are a binary search. If a key is repeated, the last value wins, as it
+ *  would when putting each mapping into a TreeMap.
+ */
+final class LazySortedMap extends AbstractMap<CborObject, Cborable> implements SortedMap<CborObject, Cborable> {
+    private final CborReader source;
+    private final CborObject[] keys;
+    private final int[] offsets;
+    private final Cborable[] values;
+
+    private LazySortedMap(CborReader source, CborObject[] keys, int[] offsets) {
+        this.source = source;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.values = new Cborable[keys.length];
+    }
+
+    /** Read the keys of a map with nValues mappings, and skip over its values
+     *
+     */
+    static LazySortedMap read(CborReader reader, int nValues) {
+        CborObject[] keys = new CborObject[nValues];
+        int[] offsets = new int[nValues];
+        boolean sorted = true;
+        for (int i = 0; i < nValues; i++) {
+            keys[i] = reader.read();
+            offsets[i] = reader.position();
+            reader.skip();
+            if (i > 0 && sorted && compare(keys[i - 1], keys[i]) >= 0)
+                sorted = false;
+        }
+        if (sorted)
+            return new LazySortedMap(reader, keys, offsets);
+
+        Integer[] order = new Integer[nValues];
+        for (int i = 0; i < nValues; i++)
+            order[i] = i;
+        // stable, so equal keys stay in input order, and the last one is kept below
+        Arrays.sort(order, (a, b) -> compare(keys[a], keys[b]));
+        List<Integer> unique = new ArrayList<>(nValues);
+        for (int i = 0; i < nValues; i++) {
+            if (i + 1 < nValues && compare(keys[order[i]], keys[order[i + 1]]) == 0)
+                continue;
+            unique.add(order[i]);
+        }
+        CborObject[] sortedKeys = new CborObject[unique.size()];
+        int[] sortedOffsets = new int[unique.size()];
+        for (int i = 0; i < sortedKeys.length; i++) {
+            sortedKeys[i] = keys[unique.get(i)];
+            sortedOffsets[i] = offsets[unique.get(i)];
+        }
+        return new LazySortedMap(reader, sortedKeys, sortedOffsets);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    private int indexOf(Object key) {
+        if (! (key instanceof CborObject))
+            return -1;
+        int low = 0, high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(keys[mid], key);
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private Cborable valueAt(int index) {
+        Cborable value = values[index];
+        if (value == null) {
+            value = source.readAt(offsets[index]);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    @Override
+    public Cborable get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public Set<Entry<CborObject, Cborable>> entrySet() {
+        return new AbstractSet<Entry<CborObject, Cborable>>() {
+            @Override
+            public Iterator<Entry<CborObject, Cborable>> iterator() {
+                return new Iterator<Entry<CborObject, Cborable>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < keys.length;
+                    }
+
+                    @Override
+                    public Entry<CborObject, Cborable> next() {
+                        if (next >= keys.length)
+                            throw new NoSuchElementException();
+                        int index = next++;
+                        return new SimpleImmutableEntry<>(keys[index], valueAt(index));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super CborObject> comparator() {
+        return null;
+    }
+
+    @Override
+    public CborObject firstKey() {
+        if (keys.length == 0)
+            throw new NoSuchElementException();
+        return keys[0];
+    }
+
+    @Override
+    public CborObject lastKey() {
+        if (keys.length == 0)
+            throw new NoSuchElementException();
+        return keys[keys.length - 1];
+    }
+
+    // Range views are rare, so they are served from a fully decoded copy
+
+    @Override
+    public SortedMap<CborObject, Cborable> subMap(CborObject fromKey, CborObject toKey) {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(this).subMap(fromKey, toKey));
+    }
+
+    @Override
+    public SortedMap<CborObject, Cborable> headMap(CborObject toKey) {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(this).headMap(toKey));
+    }
+
+    @Override
+    public SortedMap<CborObject, Cborable> tailMap(CborObject fromKey) {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(this).tailMap(fromKey));
+    }
+}
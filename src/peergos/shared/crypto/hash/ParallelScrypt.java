@@ -0,0 +1,219 @@
+package peergos.shared.crypto.hash;
+
+import peergos.shared.scrypt.com.lambdaworks.crypto.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** An implementation of the scrypt key derivation function which computes the p independent lanes concurrently.
+ *
+ *  The block mixing works on little endian int[] state, with the salsa20/8 core in local variables, so the inner loops
+ *  don't allocate. Each lane needs 128 * r * N bytes of scratch space. Small scratch sets are kept for the next call,
+ *  but anything larger than MAX_IDLE_SCRATCH_BYTES, like the scratch for a login, is dropped as soon as its lane is
+ *  done so it doesn't stay alive afterwards.
+ *
+ *  The output is identical to the sequential implementation in SCrypt.
+ */
+public class ParallelScrypt {
+    private static final int MAX_IDLE_SCRATCH = 2;
+    private static final int MAX_IDLE_SCRATCH_BYTES = 4 * 1024 * 1024;
+
+    private static final List<Scratch> idleScratch = new ArrayList<>();
+
+    /**
+     *
+     * @param passwd
+     * @param salt
+     * @param N CPU/memory cost, a power of 2
+     * @param r block size
+     * @param p parallelism, the number of independent lanes
+     * @param dkLen length of the derived key in bytes
+     * @param maxThreads the maximum number of lanes to compute at once, each needing 128 * r * N bytes of ram
+     * @return the derived key
+     */
+    public static CompletableFuture<byte[]> scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, int maxThreads) {
+        if (N < 2 || (N & (N - 1)) != 0)
+            throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+        if (N > Integer.MAX_VALUE / 128 / r)
+            throw new IllegalArgumentException("Parameter N is too large");
+        if (r > Integer.MAX_VALUE / 128 / p)
+            throw new IllegalArgumentException("Parameter r is too large");
+
+        Mac mac;
+        byte[] B = new byte[128 * r * p];
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(passwd, "HmacSHA256"));
+            PBKDF.pbkdf2(mac, salt, 1, B, B.length);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+
+        int threads = Math.max(1, Math.min(p, maxThreads));
+        List<CompletableFuture<Boolean>> workers = new ArrayList<>();
+        for (int t = 1; t < threads; t++) {
+            int first = t;
+            CompletableFuture<Boolean> done = new CompletableFuture<>();
+            workers.add(done);
+            ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    smixLanes(B, first, threads, p, r, N);
+                    done.complete(true);
+                } catch (Throwable e) {
+                    done.completeExceptionally(e);
+                }
+            });
+        }
+        // The calling thread computes its share of the lanes too
+        smixLanes(B, 0, threads, p, r, N);
+
+        CompletableFuture<Boolean> all = CompletableFuture.completedFuture(true);
+        for (CompletableFuture<Boolean> worker : workers)
+            all = all.thenCombine(worker, (a, b) -> true);
+        return all.thenApply(x -> {
+            byte[] DK = new byte[dkLen];
+            try {
+                PBKDF.pbkdf2(mac, B, 1, DK, dkLen);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+            return DK;
+        });
+    }
+
+    /** Mix lanes first, first + stride, ... in place, reusing one set of scratch buffers for all of them
+     */
+    private static void smixLanes(byte[] B, int first, int stride, int p, int r, int N) {
+        Scratch s = acquireScratch(r, N);
+        try {
+            for (int lane = first; lane < p; lane += stride)
+                smix(B, lane * 128 * r, r, N, s);
+        } finally {
+            releaseScratch(s);
+        }
+    }
+
+    private static final class Scratch {
+        public final int[] X, Y, V, T;
+
+        public Scratch(int r, int N) {
+            this.X = new int[32 * r];
+            this.Y = new int[32 * r];
+            this.V = new int[32 * r * N];
+            this.T = new int[16];
+        }
+
+        public long bytes() {
+            return 4L * (X.length + Y.length + V.length + T.length);
+        }
+
+        public boolean fits(int r, int N) {
+            return X.length == 32 * r && V.length == 32 * r * N;
+        }
+    }
+
+    private static Scratch acquireScratch(int r, int N) {
+        synchronized (idleScratch) {
+            for (int i = 0; i < idleScratch.size(); i++) {
+                if (idleScratch.get(i).fits(r, N))
+                    return idleScratch.remove(i);
+            }
+        }
+        return new Scratch(r, N);
+    }
+
+    private static void releaseScratch(Scratch s) {
+        if (s.bytes() > MAX_IDLE_SCRATCH_BYTES)
+            return;
+        synchronized (idleScratch) {
+            if (idleScratch.size() >= MAX_IDLE_SCRATCH)
+                idleScratch.remove(0);
+            idleScratch.add(s);
+        }
+    }
+
+    private static void smix(byte[] B, int Bi, int r, int N, Scratch s) {
+        int[] X = s.X, V = s.V;
+        int blockInts = 32 * r;
+        for (int i = 0; i < blockInts; i++)
+            X[i] = (B[Bi + 4 * i] & 0xff)
+                    | (B[Bi + 4 * i + 1] & 0xff) << 8
+                    | (B[Bi + 4 * i + 2] & 0xff) << 16
+                    | (B[Bi + 4 * i + 3] & 0xff) << 24;
+
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(X, 0, V, i * blockInts, blockInts);
+            blockMixSalsa8(X, s.Y, s.T, r);
+        }
+
+        int lastBlock = (2 * r - 1) * 16;
+        for (int i = 0; i < N; i++) {
+            int j = X[lastBlock] & (N - 1);
+            int Vj = j * blockInts;
+            for (int k = 0; k < blockInts; k++)
+                X[k] ^= V[Vj + k];
+            blockMixSalsa8(X, s.Y, s.T, r);
+        }
+
+        for (int i = 0; i < blockInts; i++) {
+            int v = X[i];
+            B[Bi + 4 * i] = (byte) v;
+            B[Bi + 4 * i + 1] = (byte) (v >>> 8);
+            B[Bi + 4 * i + 2] = (byte) (v >>> 16);
+            B[Bi + 4 * i + 3] = (byte) (v >>> 24);
+        }
+    }
+
+    /** BlockMix from the scrypt paper, writing even output blocks to the first half of B and odd ones to the second
+     */
+    private static void blockMixSalsa8(int[] B, int[] Y, int[] T, int r) {
+        System.arraycopy(B, (2 * r - 1) * 16, T, 0, 16);
+        for (int i = 0; i < 2 * r; i++) {
+            int Bi = i * 16;
+            for (int k = 0; k < 16; k++)
+                T[k] ^= B[Bi + k];
+            salsa20_8(T);
+            int Yi = ((i & 1) == 0 ? i / 2 : r + i / 2) * 16;
+            System.arraycopy(T, 0, Y, Yi, 16);
+        }
+        System.arraycopy(Y, 0, B, 0, 32 * r);
+    }
+
+    private static int R(int a, int b) {
+        return (a << b) | (a >>> (32 - b));
+    }
+
+    private static void salsa20_8(int[] B) {
+        int x0 = B[0], x1 = B[1], x2 = B[2], x3 = B[3];
+        int x4 = B[4], x5 = B[5], x6 = B[6], x7 = B[7];
+        int x8 = B[8], x9 = B[9], x10 = B[10], x11 = B[11];
+        int x12 = B[12], x13 = B[13], x14 = B[14], x15 = B[15];
+
+        for (int i = 8; i > 0; i -= 2) {
+            x4 ^= R(x0 + x12, 7);  x8 ^= R(x4 + x0, 9);
+            x12 ^= R(x8 + x4, 13); x0 ^= R(x12 + x8, 18);
+            x9 ^= R(x5 + x1, 7);   x13 ^= R(x9 + x5, 9);
+            x1 ^= R(x13 + x9, 13); x5 ^= R(x1 + x13, 18);
+            x14 ^= R(x10 + x6, 7); x2 ^= R(x14 + x10, 9);
+            x6 ^= R(x2 + x14, 13); x10 ^= R(x6 + x2, 18);
+            x3 ^= R(x15 + x11, 7); x7 ^= R(x3 + x15, 9);
+            x11 ^= R(x7 + x3, 13); x15 ^= R(x11 + x7, 18);
+            x1 ^= R(x0 + x3, 7);   x2 ^= R(x1 + x0, 9);
+            x3 ^= R(x2 + x1, 13);  x0 ^= R(x3 + x2, 18);
+            x6 ^= R(x5 + x4, 7);   x7 ^= R(x6 + x5, 9);
+            x4 ^= R(x7 + x6, 13);  x5 ^= R(x4 + x7, 18);
+            x11 ^= R(x10 + x9, 7); x8 ^= R(x11 + x10, 9);
+            x9 ^= R(x8 + x11, 13); x10 ^= R(x9 + x8, 18);
+            x12 ^= R(x15 + x14, 7); x13 ^= R(x12 + x15, 9);
+            x14 ^= R(x13 + x12, 13); x15 ^= R(x14 + x13, 18);
+        }
+
+        B[0] += x0; B[1] += x1; B[2] += x2; B[3] += x3;
+        B[4] += x4; B[5] += x5; B[6] += x6; B[7] += x7;
+        B[8] += x8; B[9] += x9; B[10] += x10; B[11] += x11;
+        B[12] += x12; B[13] += x13; B[14] += x14; B[15] += x15;
+    }
+}
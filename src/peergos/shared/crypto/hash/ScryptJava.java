@@ -1,38 +1,49 @@
 package peergos.shared.crypto.hash;
 import java.util.logging.*;
 
-import java.security.*;
 import java.util.concurrent.CompletableFuture;
 
-import peergos.shared.scrypt.com.lambdaworks.crypto.SCrypt;
 import peergos.shared.user.*;
 
 public class ScryptJava implements Hasher {
 	private static final Logger LOG = Logger.getGlobal();
     private static final int LOG_2_MIN_RAM = 17;
+    // Each concurrent lane needs its own 128 * r * N bytes of ram
+    private static final int DEFAULT_MAX_THREADS = 4;
+
+    private final int maxThreads;
+
+    public ScryptJava(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public ScryptJava() {
+        this(DEFAULT_MAX_THREADS);
+    }
 
     @Override
     public CompletableFuture<byte[]> hashToKeyBytes(String username, String password, SecretGenerationAlgorithm algorithm) {
-        CompletableFuture<byte[]> res = new CompletableFuture<>();
         if (algorithm.getType() == SecretGenerationAlgorithm.Type.Scrypt) {
             byte[] hash = Hash.sha256(password.getBytes());
             byte[] salt = username.getBytes();
+            ScryptGenerator params = (ScryptGenerator) algorithm;
+            long t1 = System.currentTimeMillis();
+            int parallelism = params.parallelism;
+            int nOutputBytes = params.outputBytes;
+            int cpuCost = params.cpuCost;
+            int memoryCost = 1 << params.memoryCost; // Amount of ram required to run algorithm in bytes
             try {
-                ScryptGenerator params = (ScryptGenerator) algorithm;
-                long t1 = System.currentTimeMillis();
-                int parallelism = params.parallelism;
-                int nOutputBytes = params.outputBytes;
-                int cpuCost = params.cpuCost;
-                int memoryCost = 1 << params.memoryCost; // Amount of ram required to run algorithm in bytes
-                byte[] scryptHash = SCrypt.scrypt(hash, salt, memoryCost, cpuCost, parallelism, nOutputBytes);
-                long t2 = System.currentTimeMillis();
-                LOG.info("Scrypt hashing took: " + (t2 - t1) + " mS");
-                res.complete(scryptHash);
+                return ParallelScrypt.scrypt(hash, salt, memoryCost, cpuCost, parallelism, nOutputBytes, maxThreads)
+                        .thenApply(scryptHash -> {
+                            long t2 = System.currentTimeMillis();
+                            LOG.info("Scrypt hashing took: " + (t2 - t1) + " mS");
+                            return scryptHash;
+                        });
+            } catch (RuntimeException e) {
+                CompletableFuture<byte[]> res = new CompletableFuture<>();
+                res.completeExceptionally(e);
                 return res;
-            } catch (GeneralSecurityException gse) {
-                res.completeExceptionally(gse);
             }
-            return res;
         }
         throw new IllegalStateException("Unknown user generation algorithm: " + algorithm);
     }
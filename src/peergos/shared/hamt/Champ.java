@@ -122,8 +122,8 @@ public class Champ implements Cborable {
         int bitpos = mask(hash, depth, bitWidth);
         int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
         Multihash childHash = contents[index].link.get();
-        return storage.get(childHash)
-                .thenApply(x -> new Pair<>(childHash, x.map(Champ::fromCbor)));
+        return storage.champCache().get(childHash, storage)
+                .thenApply(x -> new Pair<>(childHash, x));
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
@@ -136,8 +136,8 @@ public class Champ implements Cborable {
             HashPrefixPayload pointer = contents[i];
             if (! pointer.isShard())
                 break; // we reach the key section
-            childCounts.add(storage.get(pointer.link.get())
-                    .thenApply(x -> new Pair<>(pointer.link.get(), x.map(Champ::fromCbor)))
+            childCounts.add(storage.champCache().get(pointer.link.get(), storage)
+                    .thenApply(x -> new Pair<>(pointer.link.get(), x))
                     .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
                             .orElse(CompletableFuture.completedFuture(0L)))
             );
@@ -554,6 +554,27 @@ public class Champ implements Cborable {
     public <T> CompletableFuture<T> applyToAllMappings(T identity,
                                                        BiFunction<T, Pair<ByteArrayWrapper, MaybeMultihash>, CompletableFuture<T>> consumer,
                                                        ContentAddressedStorage storage) {
+        return applyToAllMappings(identity, consumer, false, storage);
+    }
+
+    /**
+     *
+     * @param identity
+     * @param consumer
+     * @param prefetch whether to start loading all the child nodes of each node when it is visited, rather than
+     *                 each one after the mappings before it have been consumed
+     * @param storage
+     * @return
+     */
+    public <T> CompletableFuture<T> applyToAllMappings(T identity,
+                                                       BiFunction<T, Pair<ByteArrayWrapper, MaybeMultihash>, CompletableFuture<T>> consumer,
+                                                       boolean prefetch,
+                                                       ContentAddressedStorage storage) {
+        ChampCache cache = storage.champCache();
+        if (prefetch)
+            for (HashPrefixPayload payload : contents)
+                if (payload.isShard() && payload.link.isPresent())
+                    cache.get(payload.link.get(), storage);
         return Futures.reduceAll(Arrays.stream(contents).collect(Collectors.toList()), identity, (res, payload) ->
                 (! payload.isShard() ?
                         Futures.reduceAll(
@@ -564,9 +585,9 @@ public class Champ implements Cborable {
                         CompletableFuture.completedFuture(res)
                 ).thenCompose(newRes ->
                         payload.isShard() && payload.link.isPresent() ?
-                                storage.get(payload.link.get())
-                                        .thenApply(rawOpt -> Champ.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link))))
-                                        .thenCompose(child -> child.applyToAllMappings(newRes, consumer, storage)) :
+                                cache.get(payload.link.get(), storage)
+                                        .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link)))
+                                        .thenCompose(child -> child.applyToAllMappings(newRes, consumer, prefetch, storage)) :
                                 CompletableFuture.completedFuture(newRes)
                 ), (a, b) -> a);
     }
@@ -605,13 +626,34 @@ public class Champ implements Cborable {
             Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer,
             int bitWidth,
             ContentAddressedStorage storage) {
+        return applyToDiff(original, updated, depth, hasher, higherLeftMappings, higherRightMappings, consumer,
+                bitWidth, false, storage);
+    }
+
+    /**
+     *
+     * @param prefetch whether to load the original and updated versions of each node in parallel
+     */
+    public static CompletableFuture<Boolean> applyToDiff(
+            MaybeMultihash original,
+            MaybeMultihash updated,
+            int depth,
+            Function<ByteArrayWrapper, byte[]> hasher,
+            List<KeyElement> higherLeftMappings,
+            List<KeyElement> higherRightMappings,
+            Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer,
+            int bitWidth,
+            boolean prefetch,
+            ContentAddressedStorage storage) {
 
         if (updated.equals(original))
             return CompletableFuture.completedFuture(true);
-        return original.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                .thenApply(rawOpt -> rawOpt.map(Champ::fromCbor))
-                .thenCompose(left -> updated.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                        .thenApply(rawOpt -> rawOpt.map(Champ::fromCbor))
+        ChampCache cache = storage.champCache();
+        Supplier<CompletableFuture<Optional<Champ>>> getUpdated = () -> updated.map(h -> cache.get(h, storage))
+                .orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()));
+        CompletableFuture<Optional<Champ>> prefetched = prefetch ? getUpdated.get() : null;
+        return original.map(h -> cache.get(h, storage)).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
+                .thenCompose(left -> (prefetch ? prefetched : getUpdated.get())
                         .thenCompose(right -> {
                             int leftMax = left.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
                             int rightMax = right.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
@@ -652,7 +694,7 @@ public class Champ implements Cborable {
                                     deeperLayers.add(applyToDiff(
                                             leftShard.orElse(MaybeMultihash.empty()),
                                             rightShard.orElse(MaybeMultihash.empty()), depth + 1, hasher,
-                                            leftMappings, rightMappings, consumer, bitWidth, storage));
+                                            leftMappings, rightMappings, consumer, bitWidth, prefetch, storage));
                                 } else {
                                     Map<ByteArrayWrapper, MaybeMultihash> leftMap = leftMappings.stream()
                                             .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
@@ -0,0 +1,103 @@
+package peergos.shared.hamt;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A bounded cache of decoded champ nodes, keyed by their hash.
+ *
+ *  Champ nodes are immutable, so a cached node never needs invalidating. The upper levels of a tree are shared by
+ *  every lookup in it, so caching them avoids both the storage call and the cbor decoding for each level. A node has
+ *  at most 2^bitWidth * maxCollisions mappings, so bounding the number of entries also bounds the memory used.
+ *
+ *  Each storage holds its own cache, shared by all the champs using it, so the cache lives exactly as long as the
+ *  storage. Concurrent loads of the same node share a single call to storage.
+ */
+public class ChampCache {
+    private static final int SEGMENTS = 16;
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    /** For storages which don't cache champ nodes; every lookup goes to storage */
+    public static final ChampCache NONE = new ChampCache(0);
+
+    private final boolean enabled;
+    private final List<LRUCache<Multihash, Champ>> segments = new ArrayList<>();
+    private final Map<Multihash, CompletableFuture<Optional<Champ>>> inFlight = new ConcurrentHashMap<>();
+
+    public ChampCache(int maxEntries) {
+        this.enabled = maxEntries > 0;
+        if (! enabled)
+            return;
+        int segmentSize = (maxEntries + SEGMENTS - 1) / SEGMENTS + 1;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments.add(new LRUCache<>(segmentSize));
+    }
+
+    private LRUCache<Multihash, Champ> segment(Multihash hash) {
+        return segments.get((hash.hashCode() & 0x7fffffff) % SEGMENTS);
+    }
+
+    /**
+     *
+     * @param hash
+     * @return the cached node, or null if it is not cached
+     */
+    public Champ getIfPresent(Multihash hash) {
+        if (! enabled)
+            return null;
+        LRUCache<Multihash, Champ> segment = segment(hash);
+        synchronized (segment) {
+            return segment.get(hash);
+        }
+    }
+
+    public void put(Multihash hash, Champ node) {
+        if (! enabled)
+            return;
+        LRUCache<Multihash, Champ> segment = segment(hash);
+        synchronized (segment) {
+            segment.put(hash, node);
+        }
+    }
+
+    /**
+     *
+     * @param hash
+     * @param storage
+     * @return the decoded node with the given hash, from the cache if present, otherwise from storage
+     */
+    public CompletableFuture<Optional<Champ>> get(Multihash hash, ContentAddressedStorage storage) {
+        if (! enabled)
+            return storage.get(hash).thenApply(raw -> raw.map(Champ::fromCbor));
+        Champ cached = getIfPresent(hash);
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(cached));
+
+        CompletableFuture<Optional<Champ>> load = new CompletableFuture<>();
+        CompletableFuture<Optional<Champ>> existing = inFlight.putIfAbsent(hash, load);
+        if (existing != null)
+            return existing;
+        storage.get(hash)
+                .thenApply(raw -> {
+                    inFlight.remove(hash, load);
+                    Optional<Champ> node = raw.map(Champ::fromCbor);
+                    node.ifPresent(c -> put(hash, c));
+                    return load.complete(node);
+                }).exceptionally(t -> {
+                    inFlight.remove(hash, load);
+                    return load.completeExceptionally(t);
+                });
+        return load;
+    }
+
+    public void clear() {
+        for (LRUCache<Multihash, Champ> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+}
@@ -1,16 +1,20 @@
 package peergos.shared.hamt;
 
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper implements ImmutableTree
 {
@@ -40,10 +44,10 @@ public class ChampWrapper implements ImmutableTree
                                                          Function<ByteArrayWrapper, byte[]> hasher,
                                                          ContentAddressedStorage dht,
                                                          Hasher writeHasher) {
-        return dht.get(rootHash).thenApply(rawOpt -> {
-            if (! rawOpt.isPresent())
+        return dht.champCache().get(rootHash, dht).thenApply(rootOpt -> {
+            if (! rootOpt.isPresent())
                 throw new IllegalStateException("Champ root not present: " + rootHash);
-            return new ChampWrapper(Champ.fromCbor(rawOpt.get()), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
+            return new ChampWrapper(rootOpt.get(), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
         });
     }
 
@@ -110,6 +114,110 @@ public class ChampWrapper implements ImmutableTree
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /** Apply a batch of puts and removes, then write only the champ nodes reachable from the resulting root, in a
+     *  single storage call. Intermediate nodes, which would be garbage immediately, are hashed but never signed or
+     *  written. Because a champ's structure is independent of insertion order, the result is the same as applying
+     *  the mutations one at a time.
+     *
+     * @param mutations
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> putAll(PublicKeyHash owner,
+                                               SigningPrivateKeyAndPublicHash writer,
+                                               List<MutableTree.Mutation> mutations,
+                                               TransactionId tid) {
+        WriteBuffer buffer = new WriteBuffer(storage);
+        List<MutableTree.Mutation> sorted = new ArrayList<>(mutations);
+        sorted.sort(Comparator.comparing(m -> new ByteArrayWrapper(m.mapKey)));
+        return Futures.reduceAll(sorted, root, (current, m) -> {
+            ByteArrayWrapper key = new ByteArrayWrapper(m.mapKey);
+            return current.left.put(owner, writer, key, hasher.apply(key), 0, m.existing, m.value,
+                    BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid, buffer, writeHasher, current.right);
+        }, (a, b) -> b)
+                .thenCompose(newRoot -> buffer.write(owner, writer, newRoot.right, tid)
+                        .thenCompose(x -> commit(writer, newRoot)));
+    }
+
+    /** Holds new champ nodes in memory, until the final nodes are written together
+     *
+     */
+    static class WriteBuffer extends DelegatingStorage {
+        private final ContentAddressedStorage target;
+        private final Map<Multihash, byte[]> nodes = new HashMap<>();
+        // intermediate nodes are garbage after the batch, so keep them out of the target's cache
+        final ChampCache cache = new ChampCache(1_000);
+
+        public WriteBuffer(ContentAddressedStorage target) {
+            super(target);
+            this.target = target;
+        }
+
+        @Override
+        public ChampCache champCache() {
+            return cache;
+        }
+
+        @Override
+        public CompletableFuture<Multihash> put(PublicKeyHash owner,
+                                                SigningPrivateKeyAndPublicHash writer,
+                                                byte[] block,
+                                                Hasher hasher,
+                                                TransactionId tid) {
+            return hasher.sha256(block).thenApply(sha256 -> {
+                Multihash hash = new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, sha256);
+                synchronized (nodes) {
+                    nodes.put(hash, block);
+                }
+                return hash;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+            byte[] block;
+            synchronized (nodes) {
+                block = nodes.get(hash);
+            }
+            if (block != null)
+                return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(block)));
+            return target.get(hash);
+        }
+
+        /** Sign and write the buffered nodes reachable from root
+         *
+         */
+        public CompletableFuture<List<Multihash>> write(PublicKeyHash owner,
+                                                        SigningPrivateKeyAndPublicHash writer,
+                                                        Multihash root,
+                                                        TransactionId tid) {
+            List<Multihash> hashes = new ArrayList<>();
+            List<byte[]> blocks = new ArrayList<>();
+            Deque<Multihash> toVisit = new ArrayDeque<>();
+            toVisit.add(root);
+            synchronized (nodes) {
+                while (! toVisit.isEmpty()) {
+                    Multihash next = toVisit.poll();
+                    byte[] block = nodes.remove(next);
+                    if (block == null)
+                        continue; // already written, or visited
+                    hashes.add(next);
+                    blocks.add(block);
+                    toVisit.addAll(CborObject.fromByteArray(block).links());
+                }
+            }
+            if (blocks.isEmpty())
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            List<byte[]> signatures = hashes.stream()
+                    .map(h -> writer.secret.signMessage(h.getHash()))
+                    .collect(Collectors.toList());
+            return target.put(owner, writer.publicKeyHash, signatures, blocks, tid).thenApply(written -> {
+                if (! written.equals(hashes))
+                    throw new IllegalStateException("Different hashes returned from champ write than expected!");
+                return written;
+            });
+        }
+    }
+
     private CompletableFuture<Multihash> commit(SigningPrivateKeyAndPublicHash writer, Pair<Champ, Multihash> newRoot) {
         root = newRoot;
         return CompletableFuture.completedFuture(newRoot.right);
@@ -133,4 +241,14 @@ public class ChampWrapper implements ImmutableTree
                                                        BiFunction<T, Pair<ByteArrayWrapper, MaybeMultihash>, CompletableFuture<T>> consumer) {
         return root.left.applyToAllMappings(identity, consumer, storage);
     }
+
+    /**
+     *
+     * @param prefetch whether to load the children of each node in parallel as soon as it is visited
+     */
+    public <T> CompletableFuture<T> applyToAllMappings(T identity,
+                                                       BiFunction<T, Pair<ByteArrayWrapper, MaybeMultihash>, CompletableFuture<T>> consumer,
+                                                       boolean prefetch) {
+        return root.left.applyToAllMappings(identity, consumer, prefetch, storage);
+    }
 }
@@ -7,45 +7,127 @@ import java.util.*;
 import java.util.concurrent.*;
 
 /*
- * A CoreNode that caches previous metadata blob reads for a certain time
+ * A MutablePointers that caches previous pointer reads for a certain time.
+ *
+ * The cache is split into independently locked LRU segments to bound its size without a single global lock.
+ * Concurrent misses for the same writer share a single call to the target, and absent pointers are cached with their
+ * own (usually shorter) TTL.
  */
 public class CachingPointers implements MutablePointers {
+    private static final int SEGMENTS = 16;
+    private static final int DEFAULT_MAX_ENTRIES = 1_000;
 
     private final MutablePointers target;
-    private final int cacheTTL;
-    private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new HashMap<>();
+    private final int cacheTTL, absentTTL;
+    private final List<LRUCache<PublicKeyHash, CachedPointer>> segments = new ArrayList<>();
+    private final Map<PublicKeyHash, CompletableFuture<Optional<byte[]>>> inFlight = new ConcurrentHashMap<>();
+    private final Runnable onHit, onMiss;
 
-    public CachingPointers(MutablePointers target, int cacheTTL) {
+    /**
+     *
+     * @param target
+     * @param cacheTTL milliseconds to cache present pointers for
+     * @param absentTTL milliseconds to cache absent pointers for
+     * @param maxEntries
+     * @param onHit called on every cache hit
+     * @param onMiss called on every cache miss
+     */
+    public CachingPointers(MutablePointers target,
+                           int cacheTTL,
+                           int absentTTL,
+                           int maxEntries,
+                           Runnable onHit,
+                           Runnable onMiss) {
         this.target = target;
         this.cacheTTL = cacheTTL;
+        this.absentTTL = absentTTL;
+        this.onHit = onHit;
+        this.onMiss = onMiss;
+        int segmentSize = (maxEntries + SEGMENTS - 1) / SEGMENTS + 1;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments.add(new LRUCache<>(segmentSize));
+    }
+
+    public CachingPointers(MutablePointers target, int cacheTTL) {
+        this(target, cacheTTL, cacheTTL, DEFAULT_MAX_ENTRIES, () -> {}, () -> {});
+    }
+
+    private static final class CachedPointer {
+        public final Optional<byte[]> value;
+        public final long expiry;
+
+        public CachedPointer(Optional<byte[]> value, long expiry) {
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+
+    private LRUCache<PublicKeyHash, CachedPointer> segment(PublicKeyHash writer) {
+        return segments.get((writer.hashCode() & 0x7fffffff) % SEGMENTS);
+    }
+
+    private void cache(PublicKeyHash writer, Optional<byte[]> value) {
+        long expiry = System.currentTimeMillis() + (value.isPresent() ? cacheTTL : absentTTL);
+        LRUCache<PublicKeyHash, CachedPointer> segment = segment(writer);
+        synchronized (segment) {
+            segment.put(writer, new CachedPointer(value, expiry));
+        }
+    }
+
+    /** Record a new value for a writer, e.g. from a pointer update made elsewhere
+     *
+     * @param writer
+     * @param writerSignedBtreeRootHash
+     */
+    public void update(PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+        inFlight.remove(writer);
+        cache(writer, Optional.of(writerSignedBtreeRootHash));
+    }
+
+    public void invalidate(PublicKeyHash writer) {
+        inFlight.remove(writer);
+        LRUCache<PublicKeyHash, CachedPointer> segment = segment(writer);
+        synchronized (segment) {
+            segment.remove(writer);
+        }
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
-        synchronized (cache) {
-            Pair<Optional<byte[]>, Long> cached = cache.get(writer);
-            if (cached != null && System.currentTimeMillis() - cached.right < cacheTTL)
-                return CompletableFuture.completedFuture(cached.left);
+        LRUCache<PublicKeyHash, CachedPointer> segment = segment(writer);
+        CachedPointer cached;
+        synchronized (segment) {
+            cached = segment.get(writer);
         }
-        return target.getPointer(owner, writer).thenApply(m -> {
-            synchronized (cache) {
-                cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
-            }
-            return m;
-        });
+        if (cached != null && System.currentTimeMillis() < cached.expiry) {
+            onHit.run();
+            return CompletableFuture.completedFuture(cached.value);
+        }
+        onMiss.run();
+
+        CompletableFuture<Optional<byte[]>> fetch = new CompletableFuture<>();
+        CompletableFuture<Optional<byte[]>> existing = inFlight.putIfAbsent(writer, fetch);
+        if (existing != null)
+            return existing;
+        target.getPointer(owner, writer)
+                .thenApply(res -> {
+                    // Only cache the result if there hasn't been an update or invalidation since we started
+                    if (inFlight.remove(writer, fetch))
+                        cache(writer, res);
+                    return fetch.complete(res);
+                }).exceptionally(t -> {
+                    inFlight.remove(writer, fetch);
+                    return fetch.completeExceptionally(t);
+                });
+        return fetch;
     }
 
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash ownerPublicKey, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
-        synchronized (cache) {
-            cache.remove(writer);
-        }
+        invalidate(writer);
         return target.setPointer(ownerPublicKey, writer, writerSignedBtreeRootHash).thenApply(res -> {
-            if (res) {
-                synchronized (cache) {
-                    cache.put(writer, new Pair<>(Optional.of(writerSignedBtreeRootHash), System.currentTimeMillis()));
-                }
-            }
+            if (res)
+                update(writer, writerSignedBtreeRootHash);
             return res;
         });
     }
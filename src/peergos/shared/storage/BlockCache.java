@@ -0,0 +1,224 @@
+package peergos.shared.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+
+/** A thread safe cache of blocks bounded by the total size of the cached values.
+ *
+ *  The cache is split into independently locked shards. Each shard uses W-TinyLFU: new blocks enter a small LRU
+ *  window, and blocks leaving the window are only admitted to the main LRU region if they have been accessed more
+ *  often than the block they would evict, as estimated by a count-min sketch of recent accesses. This stops a scan of
+ *  many blocks which are only read once from flushing the frequently used ones.
+ */
+public class BlockCache {
+    private static final int SHARDS = 16;
+    private static final int WINDOW_PERCENT = 1;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final Runnable onEviction;
+
+    /**
+     *
+     * @param maxBytes the total size of values to cache
+     * @param expectedEntries the expected number of cached blocks, used to size the frequency sketch
+     * @param onEviction called whenever a block is evicted or not admitted
+     */
+    public BlockCache(long maxBytes, int expectedEntries, Runnable onEviction) {
+        this.onEviction = onEviction;
+        long shardBytes = Math.max(1, maxBytes / SHARDS);
+        int shardEntries = Math.max(16, expectedEntries / SHARDS);
+        for (int i = 0; i < SHARDS; i++)
+            shards[i] = new Shard(shardBytes, shardEntries);
+    }
+
+    public BlockCache(long maxBytes, int expectedEntries) {
+        this(maxBytes, expectedEntries, () -> {});
+    }
+
+    private Shard shard(Multihash key) {
+        return shards[(spread(key.hashCode()) & 0x7fffffff) % SHARDS];
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the cached value, or null if it is not cached
+     */
+    public byte[] get(Multihash key) {
+        Shard shard = shard(key);
+        synchronized (shard) {
+            return shard.get(key);
+        }
+    }
+
+    public void put(Multihash key, byte[] value) {
+        Shard shard = shard(key);
+        int evicted;
+        synchronized (shard) {
+            evicted = shard.put(key, value);
+        }
+        for (int i = 0; i < evicted; i++)
+            onEviction.run();
+    }
+
+    public void remove(Multihash key) {
+        Shard shard = shard(key);
+        synchronized (shard) {
+            shard.remove(key);
+        }
+    }
+
+    /**
+     *
+     * @return the total size of the cached values
+     */
+    public long size() {
+        long total = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                total += shard.windowBytes + shard.mainBytes;
+            }
+        }
+        return total;
+    }
+
+    private static final class Shard {
+        private final LinkedHashMap<Multihash, byte[]> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<Multihash, byte[]> main = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private final long maxWindowBytes, maxMainBytes;
+        private long windowBytes = 0, mainBytes = 0;
+
+        public Shard(long maxBytes, int expectedEntries) {
+            this.maxWindowBytes = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+            this.maxMainBytes = maxBytes - maxWindowBytes;
+            this.sketch = new FrequencySketch(expectedEntries);
+        }
+
+        public byte[] get(Multihash key) {
+            sketch.increment(key);
+            byte[] value = main.get(key);
+            if (value != null)
+                return value;
+            return window.get(key);
+        }
+
+        public void remove(Multihash key) {
+            byte[] value = main.remove(key);
+            if (value != null)
+                mainBytes -= value.length;
+            value = window.remove(key);
+            if (value != null)
+                windowBytes -= value.length;
+        }
+
+        /**
+         *
+         * @return the number of blocks evicted
+         */
+        public int put(Multihash key, byte[] value) {
+            if (main.containsKey(key) || window.containsKey(key))
+                return 0;
+            if (value.length > maxMainBytes)
+                return 1;
+            sketch.increment(key);
+            window.put(key, value);
+            windowBytes += value.length;
+
+            int evicted = 0;
+            while (windowBytes > maxWindowBytes) {
+                Iterator<Map.Entry<Multihash, byte[]>> oldest = window.entrySet().iterator();
+                Map.Entry<Multihash, byte[]> candidate = oldest.next();
+                oldest.remove();
+                windowBytes -= candidate.getValue().length;
+                evicted += admit(candidate.getKey(), candidate.getValue());
+            }
+            return evicted;
+        }
+
+        /** Move a block from the window into the main region if it is used more than the blocks it would displace
+         *
+         * @return the number of blocks evicted
+         */
+        private int admit(Multihash key, byte[] value) {
+            int candidateFrequency = sketch.frequency(key);
+            List<Map.Entry<Multihash, byte[]>> victims = new ArrayList<>();
+            long freed = 0;
+            Iterator<Map.Entry<Multihash, byte[]>> lru = main.entrySet().iterator();
+            while (mainBytes - freed + value.length > maxMainBytes && lru.hasNext()) {
+                Map.Entry<Multihash, byte[]> victim = lru.next();
+                if (sketch.frequency(victim.getKey()) >= candidateFrequency)
+                    return 1;
+                victims.add(victim);
+                freed += victim.getValue().length;
+            }
+            for (Map.Entry<Multihash, byte[]> victim : victims)
+                main.remove(victim.getKey());
+            mainBytes -= freed;
+            main.put(key, value);
+            mainBytes += value.length;
+            return victims.size();
+        }
+    }
+
+    /** A count-min sketch of 4 rows of counters saturating at 15, which are all halved periodically so that the
+     *  estimates reflect recent accesses.
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0x5bd1e995, 0xc2b2ae35, 0x27d4eb2f};
+
+        private final byte[][] counters = new byte[ROWS][];
+        private final int mask, sampleSize;
+        private int additions = 0;
+
+        public FrequencySketch(int expectedEntries) {
+            int width = 1;
+            while (width < expectedEntries)
+                width <<= 1;
+            for (int i = 0; i < ROWS; i++)
+                counters[i] = new byte[width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        private int index(Multihash key, int row) {
+            int h = key.hashCode() * SEEDS[row];
+            h ^= h >>> 17;
+            return h & mask;
+        }
+
+        public int frequency(Multihash key) {
+            int min = MAX_COUNT;
+            for (int i = 0; i < ROWS; i++)
+                min = Math.min(min, counters[i][index(key, i)]);
+            return min;
+        }
+
+        public void increment(Multihash key) {
+            for (int i = 0; i < ROWS; i++) {
+                int index = index(key, i);
+                if (counters[i][index] < MAX_COUNT)
+                    counters[i][index]++;
+            }
+            if (++additions >= sampleSize)
+                reset();
+        }
+
+        private void reset() {
+            for (byte[] row : counters)
+                for (int i = 0; i < row.length; i++)
+                    row[i] >>= 1;
+            additions /= 2;
+        }
+    }
+}
@@ -8,20 +8,66 @@ import peergos.shared.util.*;
 import java.util.*;
 import java.util.concurrent.*;
 
+/** A storage layer which caches small blocks in memory.
+ *
+ *  Raw block bytes are held in a size bounded BlockCache. Blocks which are read as cbor more than once are also kept
+ *  decoded in a smaller tier so hot nodes, like the top of a champ, are not re-parsed on every access. Cached cbor
+ *  objects are shared between callers and must not be mutated.
+ */
 public class CachingStorage extends DelegatingStorage {
+    private static final int DECODED_SEGMENTS = 16;
+    private static final int AVERAGE_BLOCK_SIZE = 4096;
+
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final BlockCache cache;
+    private final List<LRUCache<Multihash, CborObject>> decoded = new ArrayList<>();
+    private final Map<Multihash, CompletableFuture<Optional<CborObject>>> pending = new ConcurrentHashMap<>();
+    private final Map<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw = new ConcurrentHashMap<>();
     private final int maxValueSize;
+    private final Runnable onHit, onMiss;
 
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    /**
+     *
+     * @param target
+     * @param maxBytes the total size of raw blocks to cache
+     * @param maxValueSize blocks this size or larger are not cached
+     * @param decodedEntries the number of decoded cbor blocks to cache
+     * @param onHit called on every cache hit
+     * @param onMiss called on every cache miss
+     * @param onEviction called whenever a block is evicted from the cache
+     */
+    public CachingStorage(ContentAddressedStorage target,
+                          long maxBytes,
+                          int maxValueSize,
+                          int decodedEntries,
+                          Runnable onHit,
+                          Runnable onMiss,
+                          Runnable onEviction) {
         super(target);
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = new BlockCache(maxBytes, (int) Math.min(1 << 20, maxBytes / AVERAGE_BLOCK_SIZE), onEviction);
         this.maxValueSize = maxValueSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        this.onHit = onHit;
+        this.onMiss = onMiss;
+        int segmentSize = (decodedEntries + DECODED_SEGMENTS - 1) / DECODED_SEGMENTS + 1;
+        for (int i = 0; i < DECODED_SEGMENTS; i++)
+            decoded.add(new LRUCache<>(segmentSize));
+    }
+
+    public CachingStorage(ContentAddressedStorage target, long maxBytes, int maxValueSize) {
+        this(target, maxBytes, maxValueSize, 1_000, () -> {}, () -> {}, () -> {});
+    }
+
+    private LRUCache<Multihash, CborObject> decodedSegment(Multihash key) {
+        return decoded.get((key.hashCode() & 0x7fffffff) % DECODED_SEGMENTS);
+    }
+
+    private void cacheBlocks(List<Multihash> hashes, List<byte[]> blocks) {
+        for (int i=0; i < blocks.size(); i++) {
+            byte[] block = blocks.get(i);
+            if (block.length < maxValueSize)
+                cache.put(hashes.get(i), block);
+        }
     }
 
     @Override
@@ -32,27 +78,39 @@ public class CachingStorage extends DelegatingStorage {
                                                   TransactionId tid) {
         return target.put(owner, writer, signedHashes, blocks, tid)
                 .thenApply(res -> {
-                    for (int i=0; i < blocks.size(); i++) {
-                        byte[] block = blocks.get(i);
-                        if (block.length < maxValueSize)
-                            cache.put(res.get(i), block);
-                    }
+                    cacheBlocks(res, blocks);
                     return res;
                 });
     }
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
+        LRUCache<Multihash, CborObject> segment = decodedSegment(key);
+        CborObject hot;
+        synchronized (segment) {
+            hot = segment.get(key);
+        }
+        if (hot != null) {
+            onHit.run();
+            return CompletableFuture.completedFuture(Optional.of(hot));
+        }
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            onHit.run();
+            // this is at least the second read of this block, keep it decoded
+            CborObject cbor = CborObject.fromByteArray(cached);
+            synchronized (segment) {
+                segment.put(key, cbor);
+            }
+            return CompletableFuture.completedFuture(Optional.of(cbor));
+        }
+        onMiss.run();
 
         CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
+        CompletableFuture<Optional<CborObject>> existing = pending.putIfAbsent(key, pipe);
+        if (existing != null)
+            return existing;
 
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
         target.get(key).thenAccept(cborOpt -> {
             if (cborOpt.isPresent()) {
                 byte[] value = cborOpt.get().toByteArray();
@@ -61,14 +119,12 @@ public class CachingStorage extends DelegatingStorage {
             }
             pending.remove(key);
             pipe.complete(cborOpt);
-            result.complete(cborOpt);
         }).exceptionally(t -> {
             pending.remove(key);
             pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
             return null;
         });
-        return result;
+        return pipe;
     }
 
     @Override
@@ -80,26 +136,26 @@ public class CachingStorage extends DelegatingStorage {
                                                      ProgressConsumer<Long> progressConsumer) {
         return target.putRaw(owner, writer, signatures, blocks, tid, progressConsumer)
                 .thenApply(res -> {
-                    for (int i=0; i < blocks.size(); i++) {
-                        byte[] block = blocks.get(i);
-                        if (block.length < maxValueSize)
-                            cache.put(res.get(i), block);
-                    }
+                    cacheBlocks(res, blocks);
                     return res;
                 });
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
-
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            onHit.run();
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        }
+        onMiss.run();
 
         CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
+        CompletableFuture<Optional<byte[]>> existing = pendingRaw.putIfAbsent(key, pipe);
+        if (existing != null)
+            return existing;
+
+        target.getRaw(key).thenAccept(rawOpt -> {
             if (rawOpt.isPresent()) {
                 byte[] value = rawOpt.get();
                 if (value.length > 0 && value.length < maxValueSize)
@@ -107,11 +163,11 @@ public class CachingStorage extends DelegatingStorage {
             }
             pendingRaw.remove(key);
             pipe.complete(rawOpt);
-            return rawOpt;
         }).exceptionally(t -> {
-            pending.remove(key);
+            pendingRaw.remove(key);
             pipe.completeExceptionally(t);
             return null;
         });
+        return pipe;
     }
 }
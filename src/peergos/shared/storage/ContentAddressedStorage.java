@@ -6,6 +6,7 @@ import peergos.shared.corenode.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.api.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -74,6 +75,14 @@ public interface ContentAddressedStorage {
         return Futures.of(true);
     }
 
+    /**
+     *
+     * @return the cache of decoded champ nodes shared by all the champs stored here
+     */
+    default ChampCache champCache() {
+        return ChampCache.NONE;
+    }
+
     /**
      *
      * @return The identity (hash of the public key) of the storage node we are talking to
@@ -324,12 +333,18 @@ public interface ContentAddressedStorage {
 
         private final boolean isPeergosServer;
         private final Random r = new Random();
+        private final ChampCache champCache = new ChampCache(ChampCache.DEFAULT_MAX_ENTRIES);
 
         public HTTP(HttpPoster poster, boolean isPeergosServer) {
             this.poster = poster;
             this.isPeergosServer = isPeergosServer;
         }
 
+        @Override
+        public ChampCache champCache() {
+            return champCache;
+        }
+
         private static Multihash getObjectHash(Object rawJson) {
             Map json = (Map)rawJson;
             String hash = (String)json.get("Hash");
@@ -591,6 +606,11 @@ public interface ContentAddressedStorage {
             this.core = core;
         }
 
+        @Override
+        public ChampCache champCache() {
+            return local.champCache();
+        }
+
         @Override
         public CompletableFuture<Multihash> id() {
             return local.id();
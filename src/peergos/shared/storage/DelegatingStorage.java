@@ -2,6 +2,7 @@ package peergos.shared.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.*;
@@ -17,6 +18,11 @@ public abstract class DelegatingStorage implements ContentAddressedStorage {
         this.target = target;
     }
 
+    @Override
+    public ChampCache champCache() {
+        return target.champCache();
+    }
+
     @Override
     public CompletableFuture<BlockStoreProperties> blockStoreProperties() {
         return target.blockStoreProperties();
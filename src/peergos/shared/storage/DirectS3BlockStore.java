@@ -4,6 +4,7 @@ import peergos.shared.*;
 import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multibase.binary.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -24,6 +25,7 @@ public class DirectS3BlockStore implements ContentAddressedStorage {
     private final Multihash nodeId;
     private final LRUCache<PublicKeyHash, Multihash> storageNodeByOwner = new LRUCache<>(100);
     private final CoreNode core;
+    private final ChampCache champCache = new ChampCache(ChampCache.DEFAULT_MAX_ENTRIES);
 
     public DirectS3BlockStore(BlockStoreProperties blockStoreProperties,
                               HttpPoster direct,
@@ -40,6 +42,11 @@ public class DirectS3BlockStore implements ContentAddressedStorage {
         this.core = core;
     }
 
+    @Override
+    public ChampCache champCache() {
+        return champCache;
+    }
+
     public static String hashToKey(Multihash hash) {
         // To be compatible with IPFS we use the same scheme here, the cid bytes encoded as uppercase base32
         String padded = new Base32().encodeAsString(hash.toBytes());
@@ -7,6 +7,7 @@ import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public interface MutableTree {
@@ -55,6 +56,40 @@ public interface MutableTree {
                                          MaybeMultihash existing,
                                          TransactionId tid);
 
+    /** Apply a batch of puts and removes in a single update of the tree. Only the tree nodes in the final result are
+     * written, in a single storage call, rather than a path of nodes per mutation.
+     *
+     * @param base
+     * @param owner
+     * @param sharingKey
+     * @param mutations
+     * @param tid
+     * @return the new root WriterData
+     */
+    CompletableFuture<WriterData> putAll(WriterData base,
+                                         PublicKeyHash owner,
+                                         SigningPrivateKeyAndPublicHash sharingKey,
+                                         List<Mutation> mutations,
+                                         TransactionId tid);
+
+    class Mutation {
+        public final byte[] mapKey;
+        public final MaybeMultihash existing, value;
+
+        private Mutation(byte[] mapKey, MaybeMultihash existing, MaybeMultihash value) {
+            this.mapKey = mapKey;
+            this.existing = existing;
+            this.value = value;
+        }
+
+        public static Mutation put(byte[] mapKey, MaybeMultihash existing, Multihash value) {
+            return new Mutation(mapKey, existing, MaybeMultihash.of(value));
+        }
+
+        public static Mutation remove(byte[] mapKey, MaybeMultihash existing) {
+            return new Mutation(mapKey, existing, MaybeMultihash.empty());
+        }
+    }
 
     class CasException extends RuntimeException {
         public CasException(MaybeMultihash actualExisting, MaybeMultihash claimedExisting) {
@@ -91,6 +91,7 @@ public class OwnedKeyChamp {
                         ipfs.get(pair.right.get())
                                 .thenApply(raw -> OwnerProof.fromCbor(raw.get()))
                                 .thenCompose(proof -> consumer.apply(acc,
-                                        new Pair<>(PublicKeyHash.fromCbor(CborObject.fromByteArray(reverse(pair.left.data))), proof))));
+                                        new Pair<>(PublicKeyHash.fromCbor(CborObject.fromByteArray(reverse(pair.left.data))), proof))),
+                true);
     }
 }
@@ -47,6 +47,8 @@ public class UserContext {
     public static final String ENTRY_POINTS_FROM_FRIENDS_FILENAME = ".from-friends.cborstream";
     public static final String ENTRY_POINTS_FROM_US_FILENAME = ".from-us.cborstream";
     public static final String BLOCKED_USERNAMES_FILE = ".blocked-usernames.txt";
+    // the maximum number of entry points retrieved concurrently during sign in
+    private static final int ENTRY_POINT_LOAD_PARALLELISM = 16;
 
     @JsProperty
     public final String username;
@@ -144,23 +146,50 @@ public class UserContext {
                     return UserUtil.generateUser(username, password, crypto.hasher, crypto.symmetricProvider,
                             crypto.random, crypto.signer, crypto.boxer, algorithm)
                             .thenCompose(userWithRoot ->
-                                    login(username, userWithRoot, pair, network, crypto, progressCallback));
+                                    login(username, userWithRoot, pair, network, crypto, progressCallback, c -> {}));
                 }).exceptionally(Futures::logAndThrow);
     }
 
     public static CompletableFuture<UserContext> signIn(String username, UserWithRoot userWithRoot, NetworkAccess network
             , Crypto crypto, Consumer<String> progressCallback) {
         return getWriterDataCbor(network, username)
-                .thenCompose(pair -> login(username, userWithRoot, pair, network, crypto, progressCallback))
+                .thenCompose(pair -> login(username, userWithRoot, pair, network, crypto, progressCallback, c -> {}))
                 .exceptionally(Futures::logAndThrow);
     }
 
+    /** Sign in, and be notified as soon as our own files are usable, before our friends' files have been loaded
+     *
+     * @param username
+     * @param password
+     * @param network
+     * @param crypto
+     * @param progressCallback
+     * @param homeReady called with the context once it is initialised with our own file tree
+     * @return the context, once all the entry points from our friends have also been loaded
+     */
+    @JsMethod
+    public static CompletableFuture<UserContext> signInWithHomeReady(String username, String password, NetworkAccess network,
+                                                                     Crypto crypto, Consumer<String> progressCallback,
+                                                                     Consumer<UserContext> homeReady) {
+        return getWriterDataCbor(network, username)
+                .thenCompose(pair -> {
+                    SecretGenerationAlgorithm algorithm = WriterData.fromCbor(pair.right).generationAlgorithm
+                            .orElseThrow(() -> new IllegalStateException("No login algorithm specified in user data!"));
+                    progressCallback.accept("Generating keys");
+                    return UserUtil.generateUser(username, password, crypto.hasher, crypto.symmetricProvider,
+                            crypto.random, crypto.signer, crypto.boxer, algorithm)
+                            .thenCompose(userWithRoot ->
+                                    login(username, userWithRoot, pair, network, crypto, progressCallback, homeReady));
+                }).exceptionally(Futures::logAndThrow);
+    }
+
     private static CompletableFuture<UserContext> login(String username,
                                                         UserWithRoot userWithRoot,
                                                         Pair<Multihash, CborObject> pair,
                                                         NetworkAccess network,
                                                         Crypto crypto,
-                                                        Consumer<String> progressCallback) {
+                                                        Consumer<String> progressCallback,
+                                                        Consumer<UserContext> homeReady) {
         try {
             progressCallback.accept("Logging in");
             WriterData userData = WriterData.fromCbor(pair.right);
@@ -186,7 +215,7 @@ public class UserContext {
                                                     CompletableFuture.completedFuture(true))
                                             .thenCompose(x -> {
                                                 System.out.println("Initializing context..");
-                                                return result.init(progressCallback);
+                                                return result.init(progressCallback, homeReady);
                                             }).exceptionally(Futures::logAndThrow);
                                 });
                             }));
@@ -468,20 +497,22 @@ public class UserContext {
         });
     }
 
-    private CompletableFuture<UserContext> init(Consumer<String> progressCallback) {
-        progressCallback.accept("Retrieving Friends");
+    private CompletableFuture<UserContext> init(Consumer<String> progressCallback, Consumer<UserContext> homeReady) {
         return writeSynchronizer.getValue(signer.publicKeyHash, signer.publicKeyHash)
-                .thenCompose(wd -> createFileTree(entrie, username, network, crypto)
-                        .thenCompose(root -> {
-                            this.entrie = root;
-                            return getByPath("/" + username + "/" + "shared")
-                                    .thenCompose(sharedOpt -> {
-                                        if (!sharedOpt.isPresent())
-                                            throw new IllegalStateException("Couldn't find shared folder!");
-                                        return buildSharedWithCache(sharedOpt.get(), this::getUserRoot);
-                                    });
-                        })
-                ).thenApply(res -> this);
+                .thenCompose(wd -> {
+                    // our own file tree is loaded, so it can be used while our friends' entry points are loading
+                    homeReady.accept(this);
+                    progressCallback.accept("Retrieving Friends");
+                    return createFileTree(entrie, username, network, crypto);
+                }).thenCompose(root -> {
+                    this.entrie = root;
+                    return getByPath("/" + username + "/" + "shared")
+                            .thenCompose(sharedOpt -> {
+                                if (!sharedOpt.isPresent())
+                                    throw new IllegalStateException("Couldn't find shared folder!");
+                                return buildSharedWithCache(sharedOpt.get(), this::getUserRoot);
+                            });
+                }).thenApply(res -> this);
     }
 
     public CompletableFuture<Boolean> buildSharedWithCache(FileWrapper sharedFolder, Supplier<CompletableFuture<FileWrapper>> homeDirSupplier) {
@@ -1646,10 +1677,10 @@ public class UserContext {
                 .stream()
                 .filter(e -> e.ownerName.equals(ourName))
                 .collect(Collectors.toList());
-        return Futures.reduceAll(ourFileSystemEntries, root,
-                (t, e) -> NetworkAccess.getLatestEntryPoint(e, network)
-                        .thenCompose(r -> addRetrievedEntryPointToTrie(ourName, t, r.entry, r.getPath(), false, network, crypto)),
-                (a, b) -> a)
+        return Futures.mapBounded(ourFileSystemEntries, ENTRY_POINT_LOAD_PARALLELISM,
+                e -> NetworkAccess.getLatestEntryPoint(e, network)
+                        .thenCompose(r -> getEntryPointUpdate(ourName, root, r.entry, r.getPath(), false, network, crypto)))
+                .thenApply(updates -> applyAll(root, updates))
                 .exceptionally(Futures::logAndThrow);
     }
 
@@ -1661,43 +1692,53 @@ public class UserContext {
                                                        NetworkAccess network,
                                                        Crypto crypto) {
         // need to to retrieve all the entry points of our friends
+        Function<TrieNode, TrieNode> unchanged = t -> t;
         return getFriendsEntryPoints()
-                .thenCompose(friendEntries -> Futures.reduceAll(friendEntries, ourRoot,
-                        (t, e) -> addRetrievedEntryPointToTrie(ourName, t, e,
+                .thenCompose(friendEntries -> Futures.mapBounded(friendEntries, ENTRY_POINT_LOAD_PARALLELISM,
+                        e -> getEntryPointUpdate(ourName, ourRoot, e,
                                 "/" + e.ownerName + "/" + SHARED_DIR_NAME + "/" + ourName, false, network, crypto)
-                                .exceptionally(ex -> t),
-                        (a, b) -> a))
+                                .exceptionally(ex -> unchanged)))
+                // merge into the current tree, which may have changed while our friends' entry points were loading
+                .thenApply(updates -> applyAll(entrie, updates))
                 .exceptionally(Futures::logAndThrow);
     }
 
+    private static TrieNode applyAll(TrieNode root, List<Function<TrieNode, TrieNode>> updates) {
+        TrieNode result = root;
+        for (Function<TrieNode, TrieNode> update : updates)
+            result = update.apply(result);
+        return result;
+    }
+
     private CompletableFuture<TrieNode> retrieveAndAddEntryPointToTrie(TrieNode root, EntryPoint e) {
         return NetworkAccess.retrieveEntryPoint(e, network)
                 .thenCompose(r -> addRetrievedEntryPointToTrie(username, root, r.entry, r.getPath(), false, network, crypto));
     }
 
     private CompletableFuture<List<EntryPoint>> getFriendsEntryPoints() {
-        return getByPath(Paths.get(username, ENTRY_POINTS_FROM_FRIENDS_FILENAME))
+        // read the entry points and the blocked usernames concurrently
+        CompletableFuture<List<EntryPoint>> fromFriendsFuture = getByPath(Paths.get(username, ENTRY_POINTS_FROM_FRIENDS_FILENAME))
                 .thenCompose(fopt -> fopt
                         .map(f -> {
                             List<EntryPoint> res = new ArrayList<>();
                             return f.getInputStream(network, crypto, x -> {})
                                     .thenCompose(reader -> reader.parseStream(EntryPoint::fromCbor, res::add, f.getSize())
                                             .thenApply(x -> res));
-                        }).orElse(CompletableFuture.completedFuture(Collections.emptyList())))
-                .thenCompose(fromFriends -> {
-                    // filter out blocked friends
-                    return getByPath(Paths.get(username, BLOCKED_USERNAMES_FILE))
-                            .thenCompose(fopt -> fopt
-                                    .map(f -> f.getInputStream(network, crypto, x -> {})
-                                            .thenCompose(in -> Serialize.readFully(in, f.getSize()))
-                                            .thenApply(data -> new HashSet<>(Arrays.asList(new String(data).split("\n")))
-                                                    .stream()
-                                                    .collect(Collectors.toSet())))
-                                    .orElse(CompletableFuture.completedFuture(Collections.emptySet())))
-                            .thenApply(toRemove -> fromFriends.stream()
-                                    .filter(e -> ! toRemove.contains(e.ownerName))
-                                    .collect(Collectors.toList()));
-                }).thenApply(entries -> {
+                        }).orElse(CompletableFuture.completedFuture(Collections.emptyList())));
+        CompletableFuture<Set<String>> blockedFuture = getByPath(Paths.get(username, BLOCKED_USERNAMES_FILE))
+                .thenCompose(fopt -> fopt
+                        .map(f -> f.getInputStream(network, crypto, x -> {})
+                                .thenCompose(in -> Serialize.readFully(in, f.getSize()))
+                                .thenApply(data -> new HashSet<>(Arrays.asList(new String(data).split("\n")))
+                                        .stream()
+                                        .collect(Collectors.toSet())))
+                        .orElse(CompletableFuture.completedFuture(Collections.emptySet())));
+        return fromFriendsFuture.thenCompose(fromFriends -> blockedFuture
+                        // filter out blocked friends
+                        .thenApply(toRemove -> fromFriends.stream()
+                                .filter(e -> ! toRemove.contains(e.ownerName))
+                                .collect(Collectors.toList())))
+                .thenApply(entries -> {
                     // Only take the most recent version of each entry
                     Map<PublicKeyHash, EntryPoint> latest = new LinkedHashMap<>();
                     entries.forEach(e -> latest.put(e.pointer.writer, e));
@@ -1714,20 +1755,41 @@ public class UserContext {
                                                                             boolean checkOwner,
                                                                             NetworkAccess network,
                                                                             Crypto crypto) {
+        return getEntryPointUpdate(ourName, root, fileCap, path, checkOwner, network, crypto)
+                .thenApply(update -> update.apply(root));
+    }
+
+    /** Do the retrieval needed to add an entry point to a tree, without modifying any tree, so that many entry points
+     *  can be retrieved concurrently and then added in one pass.
+     *
+     * @param root a tree containing our home directory
+     * @return the update which adds the entry point to a tree
+     */
+    private static CompletableFuture<Function<TrieNode, TrieNode>> getEntryPointUpdate(String ourName,
+                                                                                      TrieNode root,
+                                                                                      EntryPoint fileCap,
+                                                                                      String path,
+                                                                                      boolean checkOwner,
+                                                                                      NetworkAccess network,
+                                                                                      Crypto crypto) {
         // check entrypoint doesn't forge the owner
         return (fileCap.ownerName.equals(ourName) || ! checkOwner ? CompletableFuture.completedFuture(true) :
                 fileCap.isValid(path, network)).thenCompose(valid -> {
             String[] parts = path.split("/");
-            if (parts.length < 3 || !parts[2].equals(SHARED_DIR_NAME))
-                return CompletableFuture.completedFuture(root.put(path, fileCap));
+            if (parts.length < 3 || !parts[2].equals(SHARED_DIR_NAME)) {
+                Function<TrieNode, TrieNode> put = t -> t.put(path, fileCap);
+                return CompletableFuture.completedFuture(put);
+            }
             String username = parts[1];
-            if (username.endsWith(ourName)) // This is a sharing directory of ours for a friend
-                return CompletableFuture.completedFuture(root);
+            if (username.endsWith(ourName)) { // This is a sharing directory of ours for a friend
+                Function<TrieNode, TrieNode> unchanged = t -> t;
+                return CompletableFuture.completedFuture(unchanged);
+            }
             // This is a friend's sharing directory, create a wrapper to read the capabilities lazily from it
             Supplier<CompletableFuture<FileWrapper>> cacheDirSupplier =
                     () -> root.getByPath(Paths.get(ourName).toString(), crypto.hasher, network).thenApply(opt -> opt.get());
             return FriendSourcedTrieNode.build(cacheDirSupplier, fileCap, network, crypto)
-                    .thenApply(fromUser -> fromUser.map(userEntrie -> root.putNode(username, userEntrie)).orElse(root));
+                    .thenApply(fromUser -> t -> fromUser.map(userEntrie -> t.putNode(username, userEntrie)).orElse(t));
         });
     }
 
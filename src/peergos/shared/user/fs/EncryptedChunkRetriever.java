@@ -45,7 +45,8 @@ public class EncryptedChunkRetriever implements FileRetriever {
                     return new LazyInputStreamCombiner(version, 0,
                             chunk.get().chunk.data(), nextChunkPointer,
                             chunk.get().chunk.data(), ourCap.getMapKey(), streamSecret, nextChunkPointer,
-                            network, crypto, ourCap.rBaseKey, fileSize, monitor);
+                            network, crypto, ourCap.rBaseKey, fileSize,
+                            LazyInputStreamCombiner.DEFAULT_READ_AHEAD_BYTES, monitor);
                 });
     }
 
@@ -60,7 +61,7 @@ public class EncryptedChunkRetriever implements FileRetriever {
         if (offset < 2*Chunk.MAX_SIZE)
             return CompletableFuture.completedFuture(Optional.of(nextChunkLabel)); // chunk at this location hasn't been written yet, only referenced by previous chunk
         if (streamSecret.isPresent()) {
-            return FileProperties.calculateMapKey(streamSecret.get(), startCap.getMapKey(), offset, hasher)
+            return FileProperties.calculateMapKey(streamSecret.get(), startCap.getMapKey(), offset, network.mapKeys, hasher)
                     .thenApply(Optional::of);
         }
         return network.getMetadata(version, startCap.withMapKey(nextChunkLabel))
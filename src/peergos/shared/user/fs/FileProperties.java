@@ -88,13 +88,16 @@ public class FileProperties implements Cborable {
             throw new IllegalArgumentException("Path too long! Paths must be smaller than " + MAX_PATH_SIZE);
     }
 
-    public static CompletableFuture<byte[]> calculateMapKey(byte[] streamSecret, byte[] firstMapKey, long offset, Hasher h) {
-        long iterations = offset / Chunk.MAX_SIZE;
-        List<Long> counter = new ArrayList<>();
-        for (long i=0; i < iterations; i++)
-            counter.add(i);
-        return Futures.reduceAll(counter, firstMapKey,
-                (current, i) -> calculateNextMapKey(streamSecret, current, h), (a, b) -> b);
+    /** Calculate the map key of the chunk containing the given offset, using an index of recently calculated
+     * map keys to avoid walking the whole hash chain
+     *
+     */
+    public static CompletableFuture<byte[]> calculateMapKey(byte[] streamSecret,
+                                                            byte[] firstMapKey,
+                                                            long offset,
+                                                            MapKeyIndex index,
+                                                            Hasher h) {
+        return index.getMapKey(streamSecret, firstMapKey, offset / Chunk.MAX_SIZE, h);
     }
 
     public static CompletableFuture<byte[]> calculateNextMapKey(byte[] streamSecret, byte[] currentMapKey, Hasher h) {
@@ -6,6 +6,7 @@ import peergos.shared.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.cryptree.*;
@@ -19,6 +20,13 @@ import java.util.stream.*;
 public class FileUploader implements AutoCloseable {
 	private static final Logger LOG = Logger.getGlobal();
 
+    /** The number of chunks of a file which are encrypted and uploaded concurrently
+     */
+    public static final int PARALLEL_CHUNKS = 4;
+    /** The number of chunks linked into the champ with each commit during an upload
+     */
+    public static final int CHUNKS_PER_COMMIT = 8;
+
     private final String name;
     private final long offset, length;
     private final FileProperties props;
@@ -91,7 +99,7 @@ public class FileUploader implements AutoCloseable {
         return reader.readIntoArray(data, 0, data.length).thenCompose(b -> {
             byte[] nonce = baseKey.createNonce();
             return FileProperties.calculateMapKey(props.streamSecret.get(), firstLocation,
-                    chunkIndex * Chunk.MAX_SIZE, hasher)
+                    chunkIndex * Chunk.MAX_SIZE, network.mapKeys, hasher)
                     .thenCompose(mapKey -> {
                         Chunk chunk = new Chunk(data, dataKey, mapKey, nonce);
                         LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
@@ -105,6 +113,18 @@ public class FileUploader implements AutoCloseable {
         });
     }
 
+    /** Upload the file, pipelining up to PARALLEL_CHUNKS chunks at a time.
+     *
+     *  Reading the input and deriving each map key from the previous one are inherently sequential. Encryption and the
+     *  upload of fragments and metadata for different chunks proceed concurrently. A chunk isn't read until the chunk
+     *  PARALLEL_CHUNKS before it has been uploaded, which bounds memory use to roughly PARALLEL_CHUNKS chunks.
+     *
+     *  Uploaded chunks are linked into the champ CHUNKS_PER_COMMIT at a time, in order, with a single champ update and
+     *  commit for each group. Each group is uploaded under its own transaction, which stays open until the group is
+     *  committed, so its blocks can't be garbage collected in between. If a chunk fails, the chunks before it in its
+     *  group are still committed, once they have finished uploading, so everything uploaded before the failure is
+     *  linked into the champ, as it would be uploading one chunk at a time.
+     */
     public CompletableFuture<Snapshot> upload(Snapshot current,
                                               Committer committer,
                                               NetworkAccess network,
@@ -113,15 +133,103 @@ public class FileUploader implements AutoCloseable {
                                               Hasher hasher) {
         long t1 = System.currentTimeMillis();
 
-        List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
-        return Futures.reduceAll(input, current, (cwd, i) -> uploadChunk(cwd, committer, network, owner, writer, i,
-                MaybeMultihash.empty(), monitor, hasher), (a, b) -> b)
+        List<CompletableFuture<Triple<CryptreeNode, Multihash, byte[]>>> uploaded = new ArrayList<>();
+        List<CompletableFuture<Snapshot>> commits = new ArrayList<>();
+        CompletableFuture<Boolean> previousRead = Futures.of(true);
+        CompletableFuture<byte[]> mapKey = Futures.of(firstLocation);
+        CompletableFuture<Snapshot> previousCommit = Futures.of(current);
+        for (int groupStart = 0; groupStart < nchunks; groupStart += CHUNKS_PER_COMMIT) {
+            int groupEnd = (int) Math.min(nchunks, groupStart + CHUNKS_PER_COMMIT);
+            // Don't get more than two groups ahead of the commits
+            CompletableFuture<Snapshot> groupSlot = commits.size() < 2 ?
+                    Futures.of(current) :
+                    commits.get(commits.size() - 2);
+            CompletableFuture<TransactionId> groupTid = new CompletableFuture<>();
+            CompletableFuture<Boolean> groupStarted = null;
+            List<CompletableFuture<Triple<CryptreeNode, Multihash, byte[]>>> group = new ArrayList<>();
+            for (int i = groupStart; i < groupEnd; i++) {
+                long chunkIndex = i;
+                CompletableFuture<?> windowSlot = i < PARALLEL_CHUNKS ?
+                        Futures.of(true) :
+                        uploaded.get(i - PARALLEL_CHUNKS);
+                CompletableFuture<byte[]> data = previousRead
+                        .thenCompose(x -> windowSlot)
+                        .thenCompose(x -> groupSlot)
+                        .thenCompose(x -> readChunk(chunkIndex));
+                previousRead = data.thenApply(x -> true);
+                if (groupStarted == null)
+                    groupStarted = previousRead;
+
+                CompletableFuture<byte[]> chunkKey = mapKey;
+                CompletableFuture<byte[]> nextKey = chunkKey
+                        .thenCompose(k -> FileProperties.calculateNextMapKey(props.streamSecret.get(), k, hasher));
+                mapKey = nextKey;
+
+                CompletableFuture<Triple<CryptreeNode, Multihash, byte[]>> upload = data.thenCompose(bytes ->
+                        chunkKey.thenCompose(key -> nextKey.thenCompose(next -> groupTid.thenCompose(tid -> {
+                            LOG.info("uploading chunk: " + chunkIndex + " of " + name);
+                            Chunk chunk = new Chunk(bytes, dataKey, key, baseKey.createNonce());
+                            LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()),
+                                    MaybeMultihash.empty(), chunk);
+                            Location nextLocation = new Location(owner, writer.publicKeyHash, next);
+                            return encryptAndUpload(writer, props, parentLocation, parentparentKey, baseKey,
+                                    locatedChunk, nextLocation, Optional.empty(), hasher, network, monitor, tid);
+                        }))));
+                uploaded.add(upload);
+                group.add(upload);
+            }
+
+            CompletableFuture<Snapshot> parent = previousCommit;
+            CompletableFuture<Snapshot> commit = groupStarted.thenCompose(x -> IpfsTransaction.call(owner, tid -> {
+                groupTid.complete(tid);
+                return uploadedPrefix(group).thenCompose(res -> {
+                    if (res.left.isEmpty())
+                        return Futures.errored(res.right.get());
+                    CompletableFuture<Snapshot> committed = parent.thenCompose(snapshot ->
+                            network.commitChunks(snapshot, committer, res.left, owner, writer, tid));
+                    return res.right.isPresent() ?
+                            committed.thenCompose(done -> Futures.errored(res.right.get())) :
+                            committed;
+                });
+            }, network.dhtClient));
+            commit.exceptionally(t -> {
+                groupTid.completeExceptionally(t);
+                return null;
+            });
+            commits.add(commit);
+            previousCommit = commit;
+        }
+        return previousCommit
                 .thenApply(x -> {
                     LOG.info("File encryption, upload took: " +(System.currentTimeMillis()-t1) + " mS");
                     return x;
                 });
     }
 
+    /** Wait for all the uploads in a group to complete
+     *
+     * @return the uploads before the first failure, in order, and that failure if there was one
+     */
+    private static <T> CompletableFuture<Pair<List<T>, Optional<Throwable>>> uploadedPrefix(List<CompletableFuture<T>> group) {
+        Pair<List<T>, Optional<Throwable>> none = new Pair<>(Collections.emptyList(), Optional.empty());
+        return Futures.reduceAll(group, none,
+                (res, upload) -> upload.thenApply(chunk -> {
+                    if (res.right.isPresent())
+                        return res;
+                    List<T> uploaded = new ArrayList<>(res.left);
+                    uploaded.add(chunk);
+                    return new Pair<>(uploaded, res.right);
+                }).exceptionally(t -> res.right.isPresent() ? res : new Pair<>(res.left, Optional.of(t))),
+                (a, b) -> b);
+    }
+
+    private CompletableFuture<byte[]> readChunk(long chunkIndex) {
+        long position = chunkIndex * Chunk.MAX_SIZE;
+        boolean isLastChunk = length < position + Chunk.MAX_SIZE;
+        byte[] data = new byte[isLastChunk ? (int)(length - position) : Chunk.MAX_SIZE];
+        return reader.readIntoArray(data, 0, data.length).thenApply(b -> data);
+    }
+
     public static CompletableFuture<Snapshot> uploadChunk(Snapshot current,
                                                           Committer committer,
                                                           SigningPrivateKeyAndPublicHash writer,
@@ -135,13 +243,39 @@ public class FileUploader implements AutoCloseable {
                                                           Hasher hasher,
                                                           NetworkAccess network,
                                                           ProgressConsumer<Long> monitor) {
+        PublicKeyHash owner = chunk.location.owner;
+        return IpfsTransaction.call(owner,
+                tid -> encryptAndUpload(writer, props, parentLocation, parentparentKey, baseKey, chunk,
+                        nextChunkLocation, writerLink, hasher, network, monitor, tid)
+                        .thenCompose(uploaded -> network.commitChunk(current, committer, uploaded.left,
+                                uploaded.middle, owner, uploaded.right, writer, tid)),
+                network.dhtClient);
+    }
+
+    /** Encrypt a chunk and upload its fragments and metadata, without linking it into the champ.
+     *
+     * @return the chunk's metadata, the hash of the metadata blob and the chunk's map key
+     */
+    private static CompletableFuture<Triple<CryptreeNode, Multihash, byte[]>> encryptAndUpload(SigningPrivateKeyAndPublicHash writer,
+                                                                                               FileProperties props,
+                                                                                               Location parentLocation,
+                                                                                               SymmetricKey parentparentKey,
+                                                                                               SymmetricKey baseKey,
+                                                                                               LocatedChunk chunk,
+                                                                                               Location nextChunkLocation,
+                                                                                               Optional<SymmetricLinkToSigner> writerLink,
+                                                                                               Hasher hasher,
+                                                                                               NetworkAccess network,
+                                                                                               ProgressConsumer<Long> monitor,
+                                                                                               TransactionId tid) {
         CappedProgressConsumer progress = new CappedProgressConsumer(monitor, chunk.chunk.length());
         if (! writer.publicKeyHash.equals(chunk.location.writer))
             throw new IllegalStateException("Trying to write a chunk to the wrong signing key space!");
         RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(nextChunkLocation.getMapKey(), baseKey);
-        return CryptreeNode.createFile(chunk.existingHash, chunk.location.writer, baseKey,
+        PublicKeyHash owner = chunk.location.owner;
+        return Futures.runAsync(() -> CryptreeNode.createFile(chunk.existingHash, chunk.location.writer, baseKey,
                 chunk.chunk.key(), props, chunk.chunk.data(), parentLocation, parentparentKey, nextChunk,
-                hasher, network.isJavascript())
+                hasher, network.isJavascript()))
                 .thenCompose(file -> {
                     CryptreeNode metadata = file.left.withWriterLink(baseKey, writerLink);
 
@@ -153,11 +287,9 @@ public class FileUploader implements AutoCloseable {
                     if (fragments.size() < file.right.size())
                         progress.accept((long) chunk.chunk.length());
                     LOG.info("Uploading chunk with " + fragments.size() + " fragments\n");
-                    return IpfsTransaction.call(chunk.location.owner,
-                            tid -> network.uploadFragments(fragments, chunk.location.owner, writer, progress, tid)
-                                    .thenCompose(hashes -> network.uploadChunk(current, committer, metadata, chunk.location.owner,
-                                            chunk.chunk.mapKey(), writer, tid)),
-                            network.dhtClient);
+                    return network.uploadFragments(fragments, owner, writer, progress, tid)
+                            .thenCompose(hashes -> network.uploadMetadata(metadata, owner, writer, tid))
+                            .thenApply(blobHash -> new Triple<>(metadata, blobHash, chunk.chunk.mapKey()));
                 });
     }
 
@@ -8,6 +8,7 @@ import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.random.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.cryptree.*;
@@ -36,6 +37,7 @@ public class FileWrapper {
 
     private final static int THUMBNAIL_SIZE = 100;
     private static final NativeJSThumbnail thumbnail = new NativeJSThumbnail();
+    private static final int FILES_PER_COPY_BATCH = 32;
 
     private final RetrievedCapability pointer;
     private final Optional<RetrievedCapability> linkPointer;
@@ -182,11 +184,9 @@ public class FileWrapper {
         int slash = path.indexOf("/");
         String prefix = slash > 0 ? path.substring(0, slash) : path;
         String suffix = slash > 0 ? path.substring(slash + 1) : "";
-        return getChildren(version, hasher, network).thenCompose(children -> {
-            for (FileWrapper child : children)
-                if (child.getFileProperties().name.equals(prefix)) {
-                    return child.getDescendentByPath(suffix, hasher, network);
-                }
+        return getChild(version, prefix, hasher, network).thenCompose(child -> {
+            if (child.isPresent())
+                return child.get().getDescendentByPath(suffix, hasher, network);
             return CompletableFuture.completedFuture(Optional.empty());
         });
     }
@@ -345,15 +345,34 @@ public class FileWrapper {
         if (capTrie.isPresent())
             return capTrie.get().getChildren("/", hasher, version.merge(this.version), network);
         if (isReadable()) {
-            Optional<SigningPrivateKeyAndPublicHash> childsEntryWriter = pointer.capability.wBaseKey
-                    .map(wBase -> pointer.fileAccess.getSigner(pointer.capability.rBaseKey, wBase, entryWriter));
+            Optional<SigningPrivateKeyAndPublicHash> childsEntryWriter = getChildsEntryWriter();
             return pointer.fileAccess.getAllChildrenCapabilities(version, pointer.capability, hasher, network)
-                    .thenCompose(childCaps ->
-                            getFiles(owner(), childCaps, childsEntryWriter, ownername, network, version));
+                    .thenCompose(childCaps -> {
+                        Set<PublicKeyHash> writers = childCaps.stream()
+                                .map(c -> c.writer)
+                                .collect(Collectors.toCollection(HashSet::new));
+                        writers.add(pointer.capability.writer);
+                        return version.withWriters(owner(), writers, network)
+                                .thenCompose(fullVersion -> getFiles(owner(), childCaps, childsEntryWriter, ownername, network, fullVersion)
+                                        .thenApply(children -> {
+                                            indexChildren(children, fullVersion, network);
+                                            return children;
+                                        }));
+                    });
         }
         throw new IllegalStateException("Unreadable FileWrapper!");
     }
 
+    private void indexChildren(Set<FileWrapper> children, Snapshot version, NetworkAccess network) {
+        Map<String, AbsoluteCapability> byName = new HashMap<>();
+        for (FileWrapper child : children) {
+            // a link is found by the capability of the link itself
+            AbsoluteCapability cap = child.isLink() ? child.getLinkPointer().capability : child.getPointer().capability;
+            byName.put(child.getName(), cap);
+        }
+        network.pathIndex.put(pointer.capability, pointer.fileAccess.committedHash(), version, byName);
+    }
+
     private CompletableFuture<Set<FileWrapper>> getDirectChildren(NetworkAccess network, Hasher hasher, Snapshot version) {
         ensureUnmodified();
         if (capTrie.isPresent())
@@ -395,6 +414,24 @@ public class FileWrapper {
     }
 
     private CompletableFuture<Optional<FileWrapper>> getChild(Snapshot version, String name, Hasher hasher, NetworkAccess network) {
+        if (capTrie.isPresent() || ! isReadable())
+            return getChildFromListing(version, name, hasher, network);
+        return network.pathIndex.getChild(pointer.capability, pointer.fileAccess.committedHash(), version, name, network).thenCompose(indexed -> {
+            if (! indexed.isPresent())
+                return getChildFromListing(version, name, hasher, network);
+            if (! indexed.get().isPresent())
+                return Futures.of(Optional.empty());
+            return getFiles(owner(), Collections.singleton(indexed.get().get()), getChildsEntryWriter(), ownername, network, version)
+                    .thenCompose(children -> {
+                        Optional<FileWrapper> child = children.stream().filter(f -> f.getName().equals(name)).findAny();
+                        if (child.isPresent())
+                            return Futures.of(child);
+                        return getChildFromListing(version, name, hasher, network);
+                    });
+        });
+    }
+
+    private CompletableFuture<Optional<FileWrapper>> getChildFromListing(Snapshot version, String name, Hasher hasher, NetworkAccess network) {
         return getChildren(version, hasher, network)
                 .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
     }
@@ -945,7 +982,7 @@ public class FileWrapper {
                         .flatMap(c -> c.getFileProperties().streamSecret)
                         .map(secret -> FileProperties.calculateMapKey(secret,
                                 child.get().getLocation().getMapKey(),
-                                child.get().getFileProperties().size, crypto.hasher))
+                                child.get().getFileProperties().size, network.mapKeys, crypto.hasher))
                         .orElseGet(() -> Futures.of(crypto.random.randomBytes(32)))
                         .thenCompose(x -> uploadFileSection(filename, AsyncReader.build(fileData), isHidden,
                                 child.map(f -> f.getSize()).orElse(0L),
@@ -1216,14 +1253,10 @@ public class FileWrapper {
                                 getFileProperties().isHidden, network, crypto, version, committer)
                                 .thenCompose(versionWithDir ->
                                         network.getFile(versionWithDir, newCap, target.getChildsEntryWriter(), target.ownername)
-                                                .thenCompose(subTargetOpt -> {
-                                                    FileWrapper newTarget = subTargetOpt.get();
-                                                    return Futures.reduceAll(children, versionWithDir,
-                                                            (s, child) -> newTarget.getUpdated(s, network)
-                                                                    .thenCompose(updated ->
-                                                                            child.copyTo(updated, network, crypto, s, committer)),
-                                                            (a, b) -> a.merge(b));
-                                                })));
+                                                .thenCompose(subTargetOpt -> copyChildren(children, subTargetOpt.get(),
+                                                        network, crypto, versionWithDir, committer))));
+            } else if (canCopyByReference(target)) {
+                return copyFilesByReference(Collections.singletonList(this), target, network, crypto, version, committer);
             } else {
                 return version.withWriter(owner(), writer(), network).thenCompose(snapshot ->
                         getInputStream(snapshot.get(writer()).props, network, crypto, x -> {})
@@ -1235,6 +1268,149 @@ public class FileWrapper {
         });
     }
 
+    /** Files within the same owner can be copied by linking new metadata to the existing encrypted fragments
+     *
+     */
+    private boolean canCopyByReference(FileWrapper target) {
+        return ! isDirectory() && ! isLink() && isReadable() && owner().equals(target.owner());
+    }
+
+    /** Copy the children of a directory into a new, empty directory.
+     *
+     *  Files that can be copied by reference are copied FILES_PER_COPY_BATCH at a time, concurrently, and each batch
+     *  is linked into the champ and the new directory with a single commit. Everything else is copied one at a time.
+     */
+    private static CompletableFuture<Snapshot> copyChildren(Set<FileWrapper> children,
+                                                            FileWrapper newTarget,
+                                                            NetworkAccess network,
+                                                            Crypto crypto,
+                                                            Snapshot version,
+                                                            Committer committer) {
+        List<FileWrapper> byReference = children.stream()
+                .filter(c -> c.canCopyByReference(newTarget))
+                .collect(Collectors.toList());
+        List<FileWrapper> others = children.stream()
+                .filter(c -> ! c.canCopyByReference(newTarget))
+                .collect(Collectors.toList());
+        List<List<FileWrapper>> batches = new ArrayList<>();
+        for (int i = 0; i < byReference.size(); i += FILES_PER_COPY_BATCH)
+            batches.add(byReference.subList(i, Math.min(byReference.size(), i + FILES_PER_COPY_BATCH)));
+
+        return Futures.reduceAll(batches, version,
+                (s, batch) -> newTarget.getUpdated(s, network)
+                        .thenCompose(updated -> copyFilesByReference(batch, updated, network, crypto, s, committer)),
+                (a, b) -> a.merge(b))
+                .thenCompose(withFiles -> Futures.reduceAll(others, withFiles,
+                        (s, child) -> newTarget.getUpdated(s, network)
+                                .thenCompose(updated -> child.copyTo(updated, network, crypto, s, committer)),
+                        (a, b) -> a.merge(b)));
+    }
+
+    /** Copy files into a directory of the same owner without reading or re-encrypting their contents.
+     *
+     *  Each chunk of a copy is a new cryptree node, under new keys and map keys, which links to the original's
+     *  encrypted fragments. The files are copied concurrently, and all their chunks and the links to them from the
+     *  target directory are committed together.
+     */
+    private static CompletableFuture<Snapshot> copyFilesByReference(List<FileWrapper> files,
+                                                                    FileWrapper target,
+                                                                    NetworkAccess network,
+                                                                    Crypto crypto,
+                                                                    Snapshot version,
+                                                                    Committer committer) {
+        SigningPrivateKeyAndPublicHash signer = target.signingPair();
+        Set<PublicKeyHash> writers = files.stream()
+                .map(FileWrapper::writer)
+                .collect(Collectors.toCollection(HashSet::new));
+        writers.add(target.writer());
+        return version.withWriters(target.owner(), writers, network)
+                .thenCompose(full -> IpfsTransaction.call(target.owner(),
+                        tid -> Futures.combineAllInOrder(files.stream()
+                                .map(f -> f.copyChunksByReference(target, signer, full, network, crypto, tid))
+                                .collect(Collectors.toList()))
+                                .thenCompose(copies -> {
+                                    List<Triple<CryptreeNode, Multihash, byte[]>> chunks = copies.stream()
+                                            .flatMap(c -> c.right.stream())
+                                            .collect(Collectors.toList());
+                                    List<WritableAbsoluteCapability> caps = copies.stream()
+                                            .map(c -> c.left)
+                                            .collect(Collectors.toList());
+                                    return network.commitChunks(full, committer, chunks, target.owner(), signer, tid)
+                                            .thenCompose(s -> target.pointer.fileAccess.addChildLinks(
+                                                    target.writableFilePointer(), signer, caps, network, crypto, s, committer));
+                                }), network.dhtClient))
+                .thenApply(s -> {
+                    target.setModified();
+                    return s;
+                });
+    }
+
+    /** Create and upload, but don't commit, the chunks of a copy of this file in the target directory
+     *
+     * @return the capability for the copy and its chunks
+     */
+    private CompletableFuture<Pair<WritableAbsoluteCapability, List<Triple<CryptreeNode, Multihash, byte[]>>>> copyChunksByReference(
+            FileWrapper target,
+            SigningPrivateKeyAndPublicHash signer,
+            Snapshot version,
+            NetworkAccess network,
+            Crypto crypto,
+            TransactionId tid) {
+        SymmetricKey newBaseKey = SymmetricKey.random();
+        byte[] newMapKey = crypto.random.randomBytes(32);
+        Optional<byte[]> newStreamSecret = Optional.of(crypto.random.randomBytes(32));
+        WritableAbsoluteCapability newCap = new WritableAbsoluteCapability(target.owner(), signer.publicKeyHash,
+                newMapKey, newBaseKey, SymmetricKey.random());
+        Location parentLocation = target.getLocation();
+        RelativeCapability toParent = new RelativeCapability(
+                parentLocation.writer.equals(signer.publicKeyHash) ? Optional.empty() : Optional.of(parentLocation.writer),
+                parentLocation.getMapKey(),
+                target.getParentKey(),
+                Optional.empty());
+        long nChunks = getSize() > 0 ? (getSize() + Chunk.MAX_SIZE - 1) / Chunk.MAX_SIZE : 1;
+        return copyChunksByReference(pointer.fileAccess, pointer.capability, getFileProperties().streamSecret,
+                nChunks, newBaseKey, newMapKey, newStreamSecret, Optional.of(toParent), signer, version, network, crypto, tid)
+                .thenApply(chunks -> new Pair<>(newCap, chunks));
+    }
+
+    private static CompletableFuture<List<Triple<CryptreeNode, Multihash, byte[]>>> copyChunksByReference(
+            CryptreeNode chunk,
+            AbsoluteCapability cap,
+            Optional<byte[]> streamSecret,
+            long remainingChunks,
+            SymmetricKey newBaseKey,
+            byte[] newMapKey,
+            Optional<byte[]> newStreamSecret,
+            Optional<RelativeCapability> toParent,
+            SigningPrivateKeyAndPublicHash signer,
+            Snapshot version,
+            NetworkAccess network,
+            Crypto crypto,
+            TransactionId tid) {
+        return FileProperties.calculateNextMapKey(newStreamSecret.get(), newMapKey, crypto.hasher).thenCompose(newNextMapKey -> {
+            CryptreeNode copy = chunk.copyFileChunk(cap.rBaseKey, newBaseKey, newStreamSecret, toParent,
+                    RelativeCapability.buildSubsequentChunk(newNextMapKey, newBaseKey));
+            CompletableFuture<Triple<CryptreeNode, Multihash, byte[]>> uploaded =
+                    network.uploadMetadata(copy, cap.owner, signer, tid)
+                            .thenApply(hash -> new Triple<>(copy, hash, newMapKey));
+            if (remainingChunks <= 1)
+                return uploaded.thenApply(Collections::singletonList);
+            return chunk.getNextChunk(version, cap, network, streamSecret, crypto.hasher).thenCompose(next -> {
+                if (! next.isPresent())
+                    return uploaded.thenApply(Collections::singletonList);
+                return copyChunksByReference(next.get().fileAccess, next.get().capability, streamSecret,
+                        remainingChunks - 1, newBaseKey, newNextMapKey, newStreamSecret, Optional.empty(),
+                        signer, version, network, crypto, tid)
+                        .thenCompose(rest -> uploaded.thenApply(first -> {
+                            List<Triple<CryptreeNode, Multihash, byte[]>> all = new ArrayList<>();
+                            all.add(first);
+                            all.addAll(rest);
+                            return all;
+                        }));
+            });
+        });
+    }
+
     @JsMethod
     public CompletableFuture<Boolean> hasChild(String fileName, Hasher hasher, NetworkAccess network) {
         if (!isLegalName(fileName)) {
@@ -1339,6 +1515,9 @@ public class FileWrapper {
                         }));
     }
 
+    /** Delete all the chunks of the file or directory at currentCap, and everything beneath it. All the chunks of
+     *  each file or directory are removed from the champ in a single update.
+     */
     public static CompletableFuture<Snapshot> deleteAllChunks(WritableAbsoluteCapability currentCap,
                                                               SigningPrivateKeyAndPublicHash signer,
                                                               TransactionId tid,
@@ -1347,38 +1526,75 @@ public class FileWrapper {
                                                               Snapshot version,
                                                               Committer committer) {
         return version.withWriter(currentCap.owner, currentCap.writer, network)
-                .thenCompose(current -> network.getMetadata(current.get(currentCap.writer).props, currentCap)
-                        .thenCompose(mOpt -> {
-                            if (! mOpt.isPresent()) {
+                .thenCompose(current -> getChunkChain(currentCap, current.get(currentCap.writer).props, hasher,
+                        network, new ArrayList<>())
+                        .thenCompose(chunks -> {
+                            if (chunks.isEmpty())
                                 return CompletableFuture.completedFuture(current);
-                            }
-                            SigningPrivateKeyAndPublicHash ourSigner = mOpt.get()
-                                    .getSigner(currentCap.rBaseKey, currentCap.wBaseKey.get(), Optional.of(signer));
-                            return network.deleteChunk(current, committer, mOpt.get(), currentCap.owner,
-                                    currentCap.getMapKey(), ourSigner, tid)
-                                    .thenCompose(deletedVersion -> {
-                                        CryptreeNode chunk = mOpt.get();
-                                        Optional<byte[]> streamSecret = chunk.getProperties(chunk
-                                                .getParentKey(currentCap.rBaseKey)).streamSecret;
-                                        return chunk.getNextChunkLocation(currentCap.rBaseKey, streamSecret,
-                                                currentCap.getMapKey(), hasher).thenCompose(nextChunkMapKey ->
-                                                deleteAllChunks(currentCap.withMapKey(nextChunkMapKey), signer, tid, hasher,
-                                                        network, deletedVersion, committer));
-                                    })
-                                    .thenCompose(updatedVersion -> {
-                                        if (! mOpt.get().isDirectory())
-                                            return CompletableFuture.completedFuture(updatedVersion);
-                                        return mOpt.get().getDirectChildrenCapabilities(currentCap, network).thenCompose(childCaps ->
-                                                Futures.reduceAll(childCaps,
-                                                        updatedVersion,
-                                                        (v, cap) -> deleteAllChunks((WritableAbsoluteCapability) cap, signer,
-                                                                tid, hasher, network, v, committer),
-                                                        (x, y) -> y));
-                                    })
+                            return deleteChunks(chunks, currentCap, signer, tid, network, current, committer)
+                                    .thenCompose(deletedVersion -> Futures.reduceAll(
+                                            chunks.stream()
+                                                    .filter(c -> c.right.isDirectory())
+                                                    .collect(Collectors.toList()),
+                                            deletedVersion,
+                                            (v, chunk) -> chunk.right.getDirectChildrenCapabilities(
+                                                    currentCap.withMapKey(chunk.left), network)
+                                                    .thenCompose(childCaps -> Futures.reduceAll(childCaps,
+                                                            v,
+                                                            (v2, cap) -> deleteAllChunks((WritableAbsoluteCapability) cap,
+                                                                    signer, tid, hasher, network, v2, committer),
+                                                            (x, y) -> y)),
+                                            (x, y) -> y))
                                     .thenCompose(s -> removeSigningKey(currentCap.writer, signer, currentCap.owner, network, s, committer));
                         }));
     }
 
+    /**
+     *
+     * @return the map key and metadata of each chunk starting at cap, in order
+     */
+    private static CompletableFuture<List<Pair<byte[], CryptreeNode>>> getChunkChain(WritableAbsoluteCapability cap,
+                                                                                     WriterData base,
+                                                                                     Hasher hasher,
+                                                                                     NetworkAccess network,
+                                                                                     List<Pair<byte[], CryptreeNode>> chain) {
+        return network.getMetadata(base, cap).thenCompose(mOpt -> {
+            if (! mOpt.isPresent())
+                return CompletableFuture.completedFuture(chain);
+            CryptreeNode chunk = mOpt.get();
+            chain.add(new Pair<>(cap.getMapKey(), chunk));
+            Optional<byte[]> streamSecret = chunk.getProperties(chunk.getParentKey(cap.rBaseKey)).streamSecret;
+            return chunk.getNextChunkLocation(cap.rBaseKey, streamSecret, cap.getMapKey(), hasher)
+                    .thenCompose(nextChunkMapKey -> getChunkChain(cap.withMapKey(nextChunkMapKey), base, hasher,
+                            network, chain));
+        });
+    }
+
+    /** Remove a chain of chunks from the champ, with one update for each run of chunks with the same signer
+     *
+     */
+    private static CompletableFuture<Snapshot> deleteChunks(List<Pair<byte[], CryptreeNode>> chunks,
+                                                            WritableAbsoluteCapability cap,
+                                                            SigningPrivateKeyAndPublicHash signer,
+                                                            TransactionId tid,
+                                                            NetworkAccess network,
+                                                            Snapshot current,
+                                                            Committer committer) {
+        List<Pair<SigningPrivateKeyAndPublicHash, List<Pair<byte[], CryptreeNode>>>> bySigner = new ArrayList<>();
+        for (Pair<byte[], CryptreeNode> chunk : chunks) {
+            SigningPrivateKeyAndPublicHash ourSigner = chunk.right.getSigner(cap.rBaseKey, cap.wBaseKey.get(), Optional.of(signer));
+            Pair<SigningPrivateKeyAndPublicHash, List<Pair<byte[], CryptreeNode>>> last =
+                    bySigner.isEmpty() ? null : bySigner.get(bySigner.size() - 1);
+            if (last != null && last.left.publicKeyHash.equals(ourSigner.publicKeyHash))
+                last.right.add(chunk);
+            else
+                bySigner.add(new Pair<>(ourSigner, new ArrayList<>(Collections.singletonList(chunk))));
+        }
+        return Futures.reduceAll(bySigner, current,
+                (v, group) -> network.deleteChunks(v, committer, group.right, cap.owner, group.left, tid),
+                (x, y) -> y);
+    }
+
     /**
      * @param parent
      * @param userContext
@@ -13,6 +13,8 @@ import java.util.stream.Stream;
  *
  *  The ErasureFragmenter uses a Reed-Solomon erasure code to also generate more fragments according to the parameters.
  *
+ *  The ReedSolomonFragmenter uses a faster, systematic Reed-Solomon code, where any dataShards of the fragments suffice.
+ *
  */
 @JsType
 public interface Fragmenter extends Cborable {
@@ -38,6 +40,11 @@ public interface Fragmenter extends Cborable {
         Type type = Type.ofVal((int) t);
         if (type == Type.SIMPLE)
             return new SplitFragmenter();
+        if (type == Type.REED_SOLOMON) {
+            int dataShards = (int)((CborObject.CborLong) values.get(new CborObject.CborString("d"))).value;
+            int parityShards = (int)((CborObject.CborLong) values.get(new CborObject.CborString("p"))).value;
+            return new ReedSolomonFragmenter(dataShards, parityShards);
+        }
         int originalFragments = (int)((CborObject.CborLong) values.get(new CborObject.CborString("o"))).value;
         int allowedFailures = (int)((CborObject.CborLong) values.get(new CborObject.CborString("a"))).value;
         return new ErasureFragmenter(originalFragments, allowedFailures);
@@ -45,7 +52,8 @@ public interface Fragmenter extends Cborable {
 
     enum Type  {
         SIMPLE(0),
-        ERASURE_CODING(1);
+        ERASURE_CODING(1),
+        REED_SOLOMON(2);
 
         public final int val;
 
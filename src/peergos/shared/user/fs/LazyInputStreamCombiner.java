@@ -12,7 +12,30 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 
+/** An AsyncReader over the chunks of a file, which are retrieved lazily.
+ *
+ *  Once reads cross a chunk boundary, subsequent chunks are read ahead of the reader. The read ahead starts at one
+ *  chunk and doubles each time a prefetched chunk is used, up to the memory budget of the reader, and each prefetched
+ *  chunk is reserved from the ReadAheadBudget shared by all the readers of the network. Prefetches are cancelled on a
+ *  seek that doesn't land in a prefetched chunk.
+ */
 public class LazyInputStreamCombiner implements AsyncReader {
+    public static final long DEFAULT_READ_AHEAD_BYTES = 4 * Chunk.MAX_SIZE;
+
+    private static class Prefetch {
+        public final long globalIndex;
+        public final CompletableFuture<AbsoluteCapability> pointer; // to the prefetched chunk
+        public final CompletableFuture<Pair<byte[], AbsoluteCapability>> chunk;
+
+        public Prefetch(long globalIndex,
+                        CompletableFuture<AbsoluteCapability> pointer,
+                        CompletableFuture<Pair<byte[], AbsoluteCapability>> chunk) {
+            this.globalIndex = globalIndex;
+            this.pointer = pointer;
+            this.chunk = chunk;
+        }
+    }
+
     private final WriterData version;
     private final NetworkAccess network;
     private final Crypto crypto;
@@ -24,12 +47,15 @@ public class LazyInputStreamCombiner implements AsyncReader {
     private final byte[] originalChunkLocation;
     private final Optional<byte[]> streamSecret;
     private final AbsoluteCapability originalNextPointer;
+    private final int maxReadAheadChunks;
 
     private byte[] currentChunk;
     private AbsoluteCapability nextChunkPointer;
 
     private long globalIndex; // index of beginning of current chunk in file
     private int index; // index within current chunk
+    private int readAheadChunks = 1;
+    private Deque<Prefetch> prefetches = new ArrayDeque<>(); // consecutive chunks after the current one
 
     public LazyInputStreamCombiner(WriterData version,
                                    long globalIndex,
@@ -43,6 +69,7 @@ public class LazyInputStreamCombiner implements AsyncReader {
                                    Crypto crypto,
                                    SymmetricKey baseKey,
                                    long totalLength,
+                                   long maxReadAheadBytes,
                                    ProgressConsumer<Long> monitor) {
         if (chunk == null)
             throw new IllegalStateException("Null initial chunk!");
@@ -60,11 +87,13 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.nextChunkPointer = AbsoluteCapability.build(nextChunkPointer, baseKey);
         this.globalIndex = globalIndex;
         this.index = 0;
+        this.maxReadAheadChunks = (int) (maxReadAheadBytes / Chunk.MAX_SIZE);
     }
 
     private LazyInputStreamCombiner(WriterData version, NetworkAccess network, Crypto crypto, SymmetricKey baseKey,
                                     ProgressConsumer<Long> monitor, long totalLength, byte[] originalChunk, byte[] originalChunkLocation, Optional<byte[]> streamSecret,
-                                    AbsoluteCapability originalNextPointer, byte[] currentChunk, AbsoluteCapability nextChunkPointer, long globalIndex, int index) {
+                                    AbsoluteCapability originalNextPointer, byte[] currentChunk, AbsoluteCapability nextChunkPointer, long globalIndex, int index,
+                                    int maxReadAheadChunks, int readAheadChunks, Deque<Prefetch> prefetches) {
         this.version = version;
         this.network = network;
         this.crypto = crypto;
@@ -79,22 +108,113 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.nextChunkPointer = nextChunkPointer;
         this.globalIndex = globalIndex;
         this.index = index;
+        this.maxReadAheadChunks = maxReadAheadChunks;
+        this.readAheadChunks = readAheadChunks;
+        this.prefetches = prefetches;
     }
 
+    /** The copy takes over any prefetches in flight
+     *
+     */
     private LazyInputStreamCombiner copy() {
+        Deque<Prefetch> inFlight = prefetches;
+        prefetches = new ArrayDeque<>();
         return new LazyInputStreamCombiner( version, network, crypto, baseKey, monitor, totalLength, originalChunk, originalChunkLocation,
-                streamSecret, originalNextPointer, currentChunk, nextChunkPointer, globalIndex, index);
+                streamSecret, originalNextPointer, currentChunk, nextChunkPointer, globalIndex, index,
+                maxReadAheadChunks, readAheadChunks, inFlight);
     }
 
     public CompletableFuture<Boolean> getNextStream(int len) {
-        return getSubsequentMetadata(this.nextChunkPointer, 0)
-                .thenCompose(access -> getChunk(access, nextChunkPointer.getMapKey(), len))
-                .thenApply(p -> {
-                    updateState(0,globalIndex + Chunk.MAX_SIZE, p.left, p.right);
+        long nextGlobalIndex = globalIndex + Chunk.MAX_SIZE;
+        CompletableFuture<Pair<byte[], AbsoluteCapability>> next = takePrefetch(nextGlobalIndex)
+                .map(prefetched -> {
+                    readAheadChunks = Math.min(maxReadAheadChunks, readAheadChunks * 2);
+                    return prefetched;
+                }).orElseGet(() -> fetchChunk(nextChunkPointer, len));
+        readAhead(next, nextGlobalIndex);
+        return next.thenApply(p -> {
+                    updateState(0, nextGlobalIndex, p.left, p.right);
                     return true;
                 });
     }
 
+    private CompletableFuture<Pair<byte[], AbsoluteCapability>> fetchChunk(AbsoluteCapability pointer, int truncateTo) {
+        return getSubsequentMetadata(pointer, 0)
+                .thenCompose(access -> getChunk(access, pointer.getMapKey(), truncateTo));
+    }
+
+    /** Keep up to readAheadChunks chunks after the given one in flight
+     *
+     * @param current the chunk which is about to become current
+     * @param currentGlobalIndex the offset in the file of the start of the current chunk
+     */
+    private void readAhead(CompletableFuture<Pair<byte[], AbsoluteCapability>> current, long currentGlobalIndex) {
+        CompletableFuture<Pair<byte[], AbsoluteCapability>> tail = prefetches.isEmpty() ? current : prefetches.getLast().chunk;
+        long tailGlobalIndex = prefetches.isEmpty() ? currentGlobalIndex : prefetches.getLast().globalIndex;
+        while (prefetches.size() < readAheadChunks && tailGlobalIndex + Chunk.MAX_SIZE < totalLength &&
+                network.readAhead.tryReserve()) {
+            long start = tailGlobalIndex + Chunk.MAX_SIZE;
+            int truncateTo = (int) Math.min(Chunk.MAX_SIZE, totalLength - start);
+            CompletableFuture<AbsoluteCapability> pointer = tail.thenApply(p -> p.right);
+            CompletableFuture<Pair<byte[], AbsoluteCapability>> prefetch = pointer.thenCompose(ptr -> fetchChunk(ptr, truncateTo));
+            prefetches.addLast(new Prefetch(start, pointer, prefetch));
+            tail = prefetch;
+            tailGlobalIndex = start;
+        }
+    }
+
+    /** Remove the prefetch for the chunk at the given offset, and any before it. If there isn't one, cancel all the
+     * prefetches, as the reader has moved elsewhere.
+     *
+     * @return the chunk and the pointer to its successor, falling back to a direct retrieval of the same chunk if the
+     * prefetch failed
+     */
+    private Optional<CompletableFuture<Pair<byte[], AbsoluteCapability>>> takePrefetch(long chunkGlobalIndex) {
+        while (! prefetches.isEmpty() && prefetches.getFirst().globalIndex < chunkGlobalIndex) {
+            prefetches.removeFirst();
+            network.readAhead.release();
+        }
+        if (prefetches.isEmpty() || prefetches.getFirst().globalIndex != chunkGlobalIndex) {
+            cancelPrefetches();
+            return Optional.empty();
+        }
+        Prefetch hit = prefetches.removeFirst();
+        network.readAhead.release();
+        int truncateTo = (int) Math.min(Chunk.MAX_SIZE, totalLength - chunkGlobalIndex);
+        AbsoluteCapability next = nextChunkPointer;
+        long nextGlobalIndex = globalIndex + Chunk.MAX_SIZE;
+        return Optional.of(Futures.asyncExceptionally(() -> hit.chunk,
+                t -> Futures.asyncExceptionally(() -> hit.pointer, e -> locateChunk(next, nextGlobalIndex, chunkGlobalIndex))
+                        .thenCompose(pointer -> fetchChunk(pointer, truncateTo))));
+    }
+
+    private void cancelPrefetches() {
+        for (Prefetch prefetch : prefetches) {
+            prefetch.chunk.cancel(false);
+            network.readAhead.release();
+        }
+        prefetches.clear();
+        readAheadChunks = 1;
+    }
+
+    /** Find the pointer to the chunk at the given offset, starting from the pointer to an earlier chunk
+     *
+     * @param from the pointer to an earlier chunk
+     * @param fromGlobalIndex the offset in the file of the start of the earlier chunk
+     * @param chunkGlobalIndex the offset in the file of the start of the chunk to find
+     */
+    private CompletableFuture<AbsoluteCapability> locateChunk(AbsoluteCapability from, long fromGlobalIndex, long chunkGlobalIndex) {
+        if (chunkGlobalIndex == fromGlobalIndex)
+            return Futures.of(from);
+        if (streamSecret.isPresent())
+            return FileProperties.calculateMapKey(streamSecret.get(), originalChunkLocation, chunkGlobalIndex,
+                    network.mapKeys, crypto.hasher)
+                    .thenApply(from::withMapKey);
+        return getSubsequentMetadata(from, 0)
+                .thenCompose(access -> access.getNextChunkLocation(baseKey, streamSecret, from.getMapKey(), crypto.hasher))
+                .thenCompose(mapKey -> locateChunk(from.withMapKey(mapKey), fromGlobalIndex + Chunk.MAX_SIZE, chunkGlobalIndex));
+    }
+
     private CompletableFuture<Pair<byte[], AbsoluteCapability>> getChunk(CryptreeNode access, byte[] chunkLocation, int truncateTo) {
         if (access.isDirectory())
                 throw new IllegalStateException("File linked to a directory for its next chunk!");
@@ -151,28 +271,36 @@ public class LazyInputStreamCombiner implements AsyncReader {
 
         long toSkipAfterThisChunk = skip - toRead;
             // skip through the cryptree nodes without downloading the data
-            long finalOffset = globalIndex + skip;
+            long finalOffset = globalIndex + index + skip;
             long finalInternalIndex = finalOffset % Chunk.MAX_SIZE;
             long startOfTargetChunk = finalOffset - finalInternalIndex;
             long chunksToSkip = toSkipAfterThisChunk / Chunk.MAX_SIZE;
             int truncateTo = (int) Math.min(Chunk.MAX_SIZE, totalLength - startOfTargetChunk);
+            Optional<CompletableFuture<Pair<byte[], AbsoluteCapability>>> prefetched = takePrefetch(startOfTargetChunk);
+            if (prefetched.isPresent()) {
+                readAhead(prefetched.get(), startOfTargetChunk);
+                return prefetched.get().thenCompose(p -> {
+                    updateState(0, startOfTargetChunk, p.left, p.right);
+                    return skip(finalInternalIndex);
+                });
+            }
             // short circuit for files in the new deterministic (but still secret) format
             if (streamSecret.isPresent()) {
                 return FileProperties.calculateMapKey(streamSecret.get(), originalChunkLocation,
-                        finalOffset, crypto.hasher)
+                        finalOffset, network.mapKeys, crypto.hasher)
                         .thenCompose(targetChunkLocation -> {
                             AbsoluteCapability targetPointer = nextChunkPointer.withMapKey(targetChunkLocation);
                             return getSubsequentMetadata(targetPointer, 0)
                                     .thenCompose(access -> getChunk(access, targetPointer.getMapKey(), truncateTo))
                                     .thenCompose(p -> {
-                                        updateState(index, finalOffset, p.left, p.right);
+                                        updateState(0, startOfTargetChunk, p.left, p.right);
                                         return skip(finalInternalIndex);});
                         });
             }
             return getSubsequentMetadata(nextChunkPointer, chunksToSkip)
                     .thenCompose(access -> getChunk(access, nextChunkPointer.getMapKey(), truncateTo))
                     .thenCompose(p -> {
-                        updateState(index, finalOffset, p.left, p.right);
+                        updateState(0, startOfTargetChunk, p.left, p.right);
                         return skip(finalInternalIndex);
                     });
     }
@@ -193,9 +321,12 @@ public class LazyInputStreamCombiner implements AsyncReader {
         return this.currentChunk.length - this.index;
     }
 
-    public void close() {}
+    public void close() {
+        cancelPrefetches();
+    }
 
     public CompletableFuture<AsyncReader> reset() {
+        cancelPrefetches();
         this.globalIndex = 0;
         this.currentChunk = originalChunk;
         this.nextChunkPointer = originalNextPointer;
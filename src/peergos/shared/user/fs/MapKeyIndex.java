@@ -0,0 +1,88 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** An index of the map keys of chunks in recently accessed files, so that seeking doesn't walk the hash chain from
+ *  the first chunk every time.
+ *
+ *  The map key of every CHECKPOINT_INTERVAL'th chunk calculated is retained, per file (a stream secret and starting
+ *  map key). Locating any chunk before the furthest checkpoint then takes at most CHECKPOINT_INTERVAL hashes.
+ *
+ *  The keys are derived from secrets, so an index belongs to a single NetworkAccess rather than the whole process.
+ *  Each map key depends on the previous one, so the first seek deep into a file has to walk the chain, but only as far
+ *  as the chunk being sought. A seek during a walk that will reach its chunk waits for it rather than starting another.
+ */
+public class MapKeyIndex {
+    public static final int CHECKPOINT_INTERVAL = 32;
+
+    private final LRUCache<ByteArrayWrapper, TreeMap<Long, byte[]>> files;
+    // the walk in progress along each file's chain, and the chunk index it will reach
+    private final Map<ByteArrayWrapper, Pair<Long, CompletableFuture<byte[]>>> walks = new HashMap<>();
+
+    public MapKeyIndex(int maxFiles) {
+        this.files = new LRUCache<>(maxFiles);
+    }
+
+    public CompletableFuture<byte[]> getMapKey(byte[] streamSecret, byte[] firstMapKey, long chunkIndex, Hasher h) {
+        if (chunkIndex == 0)
+            return Futures.of(firstMapKey);
+        ByteArrayWrapper file = new ByteArrayWrapper(ArrayOps.concat(streamSecret, firstMapKey));
+        Map.Entry<Long, byte[]> closest;
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        Pair<Long, CompletableFuture<byte[]>> walk = new Pair<>(chunkIndex, result);
+        synchronized (this) {
+            closest = closestCheckpoint(file, chunkIndex);
+            long start = closest == null ? 0 : closest.getKey();
+            if (chunkIndex - start > CHECKPOINT_INTERVAL) {
+                Pair<Long, CompletableFuture<byte[]>> existing = walks.get(file);
+                if (existing != null && existing.left >= chunkIndex)
+                    return existing.right.thenCompose(x -> getMapKey(streamSecret, firstMapKey, chunkIndex, h));
+                walks.put(file, walk);
+            } else
+                walk = null;
+        }
+        long start = closest == null ? 0 : closest.getKey();
+        byte[] startKey = closest == null ? firstMapKey : closest.getValue();
+
+        List<Long> indices = new ArrayList<>();
+        for (long i = start + 1; i <= chunkIndex; i++)
+            indices.add(i);
+        CompletableFuture<byte[]> calculated = Futures.reduceAll(indices, startKey,
+                (current, i) -> FileProperties.calculateNextMapKey(streamSecret, current, h)
+                        .thenApply(next -> {
+                            if (i % CHECKPOINT_INTERVAL == 0)
+                                addCheckpoint(file, i, next);
+                            return next;
+                        }), (a, b) -> b);
+        if (walk == null)
+            return calculated;
+        Pair<Long, CompletableFuture<byte[]>> ours = walk;
+        calculated.thenApply(key -> {
+            endWalk(file, ours);
+            return result.complete(key);
+        }).exceptionally(t -> {
+            endWalk(file, ours);
+            return result.completeExceptionally(t);
+        });
+        return result;
+    }
+
+    private synchronized void endWalk(ByteArrayWrapper file, Pair<Long, CompletableFuture<byte[]>> walk) {
+        walks.remove(file, walk);
+    }
+
+    private synchronized Map.Entry<Long, byte[]> closestCheckpoint(ByteArrayWrapper file, long chunkIndex) {
+        TreeMap<Long, byte[]> checkpoints = files.get(file);
+        if (checkpoints == null)
+            return null;
+        return checkpoints.floorEntry(chunkIndex);
+    }
+
+    private synchronized void addCheckpoint(ByteArrayWrapper file, long chunkIndex, byte[] mapKey) {
+        files.computeIfAbsent(file, f -> new TreeMap<>()).put(chunkIndex, mapKey);
+    }
+}
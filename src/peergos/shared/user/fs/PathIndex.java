@@ -0,0 +1,115 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A client side index from (directory, child name) to the child's capability.
+ *
+ *  Child names are only stored in each child's encrypted metadata, so finding a child by name means retrieving and
+ *  decrypting every child of the directory. This index remembers the names from the last listing of a directory, so
+ *  resolving a path of depth d costs d metadata retrievals rather than one per child of every directory on the path.
+ *
+ *  An entry records the hash of the directory's first cryptree node, which holds its first chunk of child links, and
+ *  the version of every writer whose state the rest was read from (the directory's writer and the writers of its
+ *  children). It is only used for the same node and a snapshot with the same versions of all of those writers. Any
+ *  change to them, such as adding, removing or renaming a child, makes the entry stale, and the next lookup lists the
+ *  directory again.
+ */
+public class PathIndex {
+    private static final int DEFAULT_MAX_DIRECTORIES = 1_000;
+
+    private final LRUCache<AbsoluteCapability, DirectoryIndex> directories;
+
+    public PathIndex(int maxDirectories) {
+        this.directories = new LRUCache<>(maxDirectories + 1);
+    }
+
+    public PathIndex() {
+        this(DEFAULT_MAX_DIRECTORIES);
+    }
+
+    private static final class DirectoryIndex {
+        public final Multihash dirNode;
+        public final Map<PublicKeyHash, MaybeMultihash> versions;
+        public final Map<String, AbsoluteCapability> children;
+
+        public DirectoryIndex(Multihash dirNode,
+                              Map<PublicKeyHash, MaybeMultihash> versions,
+                              Map<String, AbsoluteCapability> children) {
+            this.dirNode = dirNode;
+            this.versions = versions;
+            this.children = children;
+        }
+
+        public boolean isValidIn(Snapshot version) {
+            for (Map.Entry<PublicKeyHash, MaybeMultihash> e : versions.entrySet()) {
+                if (! version.contains(e.getKey()) || ! version.get(e.getKey()).hash.equals(e.getValue()))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     *
+     * @param dir
+     * @param dirNode The hash of the directory's cryptree node
+     * @param version
+     * @param name
+     * @param network
+     * @return Empty if the directory is not indexed for this version, otherwise whether it has a child with this name,
+     * and its capability
+     */
+    public CompletableFuture<Optional<Optional<AbsoluteCapability>>> getChild(AbsoluteCapability dir,
+                                                                              MaybeMultihash dirNode,
+                                                                              Snapshot version,
+                                                                              String name,
+                                                                              NetworkAccess network) {
+        if (! dirNode.isPresent())
+            return Futures.of(Optional.empty());
+        DirectoryIndex index;
+        synchronized (this) {
+            index = directories.get(dir);
+        }
+        if (index == null || ! index.dirNode.equals(dirNode.get()))
+            return Futures.of(Optional.empty());
+        return version.withWriters(dir.owner, index.versions.keySet(), network)
+                .thenApply(full -> index.isValidIn(full) ?
+                        Optional.of(Optional.ofNullable(index.children.get(name))) :
+                        Optional.empty());
+    }
+
+    /** Record the children of a directory
+     *
+     * @param dir
+     * @param dirNode The hash of the directory's cryptree node that the children were listed from
+     * @param version A snapshot including the directory's writer and the writers of all the child capabilities
+     * @param children The children by name, with the capabilities from the directory (which for a link is the
+     *                 capability of the link, not its target)
+     */
+    public void put(AbsoluteCapability dir,
+                    MaybeMultihash dirNode,
+                    Snapshot version,
+                    Map<String, AbsoluteCapability> children) {
+        if (! dirNode.isPresent())
+            return;
+        Map<PublicKeyHash, MaybeMultihash> versions = new HashMap<>();
+        versions.put(dir.writer, version.get(dir.writer).hash);
+        for (AbsoluteCapability child : children.values())
+            versions.put(child.writer, version.get(child.writer).hash);
+        DirectoryIndex index = new DirectoryIndex(dirNode.get(), versions, children);
+        synchronized (this) {
+            directories.put(dir, index);
+        }
+    }
+
+    public synchronized void clear() {
+        directories.clear();
+    }
+}
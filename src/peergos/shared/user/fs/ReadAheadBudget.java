@@ -0,0 +1,37 @@
+package peergos.shared.user.fs;
+
+/** A limit on the number of chunks read ahead by all the readers of a NetworkAccess at once.
+ *
+ *  A reader reserves a chunk before prefetching it, and releases it when the prefetch is taken or dropped. If the
+ *  budget is used up, readers just don't read ahead until other readers release their chunks.
+ */
+public class ReadAheadBudget {
+    public static final int DEFAULT_MAX_CHUNKS = 16;
+
+    private final int maxChunks;
+    private int reserved = 0;
+
+    public ReadAheadBudget(int maxChunks) {
+        this.maxChunks = maxChunks;
+    }
+
+    public ReadAheadBudget() {
+        this(DEFAULT_MAX_CHUNKS);
+    }
+
+    public synchronized boolean tryReserve() {
+        if (reserved >= maxChunks)
+            return false;
+        reserved++;
+        return true;
+    }
+
+    public synchronized void release() {
+        if (reserved > 0)
+            reserved--;
+    }
+
+    public synchronized int reserved() {
+        return reserved;
+    }
+}
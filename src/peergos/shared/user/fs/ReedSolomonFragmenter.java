@@ -0,0 +1,115 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.cbor.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+/** Splits a chunk into dataShards equal fragments and adds parityShards fragments of a systematic Reed-Solomon code.
+ *
+ *  Any dataShards of the resulting fragments are sufficient to recover the chunk. When all the data fragments are
+ *  present they are simply concatenated.
+ */
+public class ReedSolomonFragmenter implements Fragmenter {
+
+    private final int dataShards;
+    private final int parityShards;
+    private final ReedSolomon codec;
+
+    public ReedSolomonFragmenter(int dataShards, int parityShards) {
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.codec = new ReedSolomon(dataShards, parityShards);
+    }
+
+    @Override
+    public double storageIncreaseFactor() {
+        return ((double)(dataShards + parityShards)) / dataShards;
+    }
+
+    @Override
+    public byte[][] split(byte[] input) {
+        int shardSize = Math.max(1, (input.length + dataShards - 1) / dataShards);
+        byte[][] shards = new byte[dataShards + parityShards][];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new byte[shardSize];
+            if (i < dataShards) {
+                int start = i * shardSize;
+                int length = Math.max(0, Math.min(shardSize, input.length - start));
+                System.arraycopy(input, start, shards[i], 0, length);
+            }
+        }
+        codec.encodeParity(shards, shardSize);
+        return shards;
+    }
+
+    /**
+     *
+     * @param encoded all the fragments in order, with null for any which are missing
+     * @param startOffset
+     * @param inputLength
+     * @return
+     */
+    @Override
+    public byte[] recombine(byte[][] encoded, int startOffset, int inputLength) {
+        if (encoded.length != dataShards + parityShards)
+            throw new IllegalStateException("Expected " + (dataShards + parityShards) + " fragments, but got " + encoded.length);
+        int shardSize = Arrays.stream(encoded)
+                .filter(Objects::nonNull)
+                .findFirst()
+                .map(s -> s.length)
+                .orElseThrow(() -> new IllegalStateException("No fragments present!"));
+
+        byte[][] shards = encoded;
+        for (int i = 0; i < dataShards; i++) {
+            if (encoded[i] == null) {
+                shards = Arrays.copyOf(encoded, encoded.length);
+                codec.reconstruct(shards, shardSize);
+                break;
+            }
+        }
+
+        byte[] output = new byte[startOffset + inputLength];
+        for (int i = 0, pos = 0; i < dataShards && pos < inputLength; i++) {
+            int copyLength = Math.min(shardSize, inputLength - pos);
+            System.arraycopy(shards[i], 0, output, startOffset + pos, copyLength);
+            pos += copyLength;
+        }
+        return output;
+    }
+
+    @Override
+    public CborObject toCbor() {
+        Map<String, CborObject> res = new HashMap<>();
+        res.put("t", new CborObject.CborLong(Type.REED_SOLOMON.val));
+        res.put("d", new CborObject.CborLong(dataShards));
+        res.put("p", new CborObject.CborLong(parityShards));
+        return CborObject.CborMap.build(res);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ReedSolomonFragmenter that = (ReedSolomonFragmenter) o;
+
+        if (dataShards != that.dataShards) return false;
+        return parityShards == that.parityShards;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = dataShards;
+        result = 31 * result + parityShards;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ReedSolomonFragmenter(" + dataShards + ", " + parityShards + ")";
+    }
+
+    public static final int DATA_SHARDS = 40; // 128 KiB fragments for a full chunk
+    public static final int PARITY_SHARDS = 10; // tolerates the loss of any 10 fragments
+}
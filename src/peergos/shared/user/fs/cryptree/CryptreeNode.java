@@ -1062,6 +1062,32 @@ public class CryptreeNode implements Cborable {
         return new CryptreeNode(existingHash, false, encryptedBaseBlock, data, encryptedParentBlock);
     }
 
+    /** Create a copy of this file chunk under a new base key, which links to the same encrypted fragments.
+     *
+     *  Only the base and parent blocks are re-encrypted. The data key is shared with the original, so it is marked
+     *  dirty in the copy, and the copy is cleaned (its data re-encrypted) before it is first modified.
+     *
+     * @param baseKey the current base key of this chunk
+     * @param newBaseKey
+     * @param newStreamSecret the stream secret for the copy, if this chunk's properties have one
+     * @param toParentDir the parent link, which only the first chunk of a file has
+     * @param nextChunk
+     * @return the copy, which has not been committed
+     */
+    public CryptreeNode copyFileChunk(SymmetricKey baseKey,
+                                      SymmetricKey newBaseKey,
+                                      Optional<byte[]> newStreamSecret,
+                                      Optional<RelativeCapability> toParentDir,
+                                      RelativeCapability nextChunk) {
+        if (isDirectory())
+            throw new IllegalStateException("Only file chunks can be copied!");
+        FileProperties props = getProperties(getParentKey(baseKey));
+        SymmetricKey dataKey = getDataKey(baseKey).makeDirty();
+        return createFile(MaybeMultihash.empty(), Optional.empty(), newBaseKey, dataKey,
+                newStreamSecret.map(props::withNewStreamSecret).orElse(props),
+                childrenOrData, toParentDir, nextChunk);
+    }
+
     public static CompletableFuture<Snapshot> createAndCommitLink(FileWrapper parent,
                                                                   WritableAbsoluteCapability target,
                                                                   FileProperties targetProps,
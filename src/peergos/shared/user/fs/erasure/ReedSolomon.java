@@ -0,0 +1,225 @@
+package peergos.shared.user.fs.erasure;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A systematic Reed-Solomon erasure code over GF(2^8).
+ *
+ *  The first dataShards shards are the input itself and the remaining parityShards are linear combinations of them.
+ *  The original data can be rebuilt from any dataShards of the shards, as long as we know which ones they are.
+ *
+ *  The encoding matrix is a Vandermonde matrix multiplied by the inverse of its top square, so the top is the identity,
+ *  and every square subset of its rows is still invertible. Multiplication uses a precomputed 64 KiB table, and the
+ *  shards are processed in independent stripes, which are coded in parallel where the platform supports it.
+ */
+public class ReedSolomon {
+    private static final int FIELD_SIZE = 256;
+    private static final int STRIPE_SIZE = 16 * 1024;
+
+    private static final int[] EXP = new int[2 * FIELD_SIZE];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    // MUL[a][b] = a * b
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+    static {
+        // same field as GaloisField256, generated by p(x) = x^8 + x^4 + x^3 + x^2 + 1
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & FIELD_SIZE) != 0)
+                x ^= (FIELD_SIZE | 0x1D);
+        }
+        for (int i = 255; i < EXP.length; i++)
+            EXP[i] = EXP[i - 255];
+        for (int a = 1; a < FIELD_SIZE; a++)
+            for (int b = 1; b < FIELD_SIZE; b++)
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+    }
+
+    public final int dataShards, parityShards, totalShards;
+    // totalShards rows of dataShards coefficients
+    private final byte[][] encodingMatrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE)
+            throw new IllegalArgumentException("Invalid Reed-Solomon parameters: " + dataShards + " + " + parityShards);
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.totalShards = dataShards + parityShards;
+        byte[][] vandermonde = vandermonde(totalShards, dataShards);
+        byte[][] top = Arrays.copyOfRange(vandermonde, 0, dataShards);
+        this.encodingMatrix = multiply(vandermonde, invert(top));
+    }
+
+    /** Fill in the parity shards from the data shards
+     *
+     * @param shards totalShards arrays of at least shardLength, the first dataShards of which hold the data
+     * @param shardLength
+     */
+    public void encodeParity(byte[][] shards, int shardLength) {
+        if (shards.length != totalShards)
+            throw new IllegalArgumentException("Expected " + totalShards + " shards, but got " + shards.length);
+        code(Arrays.copyOfRange(encodingMatrix, dataShards, totalShards),
+                Arrays.copyOfRange(shards, 0, dataShards),
+                Arrays.copyOfRange(shards, dataShards, totalShards),
+                shardLength);
+    }
+
+    /** Rebuild every missing shard, in place, from any dataShards of the present ones
+     *
+     * @param shards totalShards entries, where missing shards are null
+     * @param shardLength
+     */
+    public void reconstruct(byte[][] shards, int shardLength) {
+        if (shards.length != totalShards)
+            throw new IllegalArgumentException("Expected " + totalShards + " shards, but got " + shards.length);
+        int[] present = new int[dataShards];
+        int nPresent = 0;
+        for (int i = 0; i < totalShards && nPresent < dataShards; i++)
+            if (shards[i] != null)
+                present[nPresent++] = i;
+        if (nPresent < dataShards)
+            throw new IllegalStateException("Not enough shards to reconstruct: " + nPresent + " < " + dataShards);
+
+        List<Integer> missingData = new ArrayList<>();
+        for (int i = 0; i < dataShards; i++)
+            if (shards[i] == null)
+                missingData.add(i);
+        if (! missingData.isEmpty()) {
+            byte[][] subMatrix = new byte[dataShards][];
+            byte[][] inputs = new byte[dataShards][];
+            for (int i = 0; i < dataShards; i++) {
+                subMatrix[i] = encodingMatrix[present[i]];
+                inputs[i] = shards[present[i]];
+            }
+            byte[][] decodingMatrix = invert(subMatrix);
+            byte[][] rows = new byte[missingData.size()][];
+            byte[][] outputs = new byte[missingData.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = decodingMatrix[missingData.get(i)];
+                outputs[i] = new byte[shardLength];
+                shards[missingData.get(i)] = outputs[i];
+            }
+            code(rows, inputs, outputs, shardLength);
+        }
+
+        List<Integer> missingParity = new ArrayList<>();
+        for (int i = dataShards; i < totalShards; i++)
+            if (shards[i] == null)
+                missingParity.add(i);
+        if (! missingParity.isEmpty()) {
+            byte[][] rows = new byte[missingParity.size()][];
+            byte[][] outputs = new byte[missingParity.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = encodingMatrix[missingParity.get(i)];
+                outputs[i] = new byte[shardLength];
+                shards[missingParity.get(i)] = outputs[i];
+            }
+            code(rows, Arrays.copyOfRange(shards, 0, dataShards), outputs, shardLength);
+        }
+    }
+
+    /** outputs[o] = sum over c of rows[o][c] * inputs[c], computed one stripe of every shard at a time
+     *
+     */
+    private static void code(byte[][] rows, byte[][] inputs, byte[][] outputs, int shardLength) {
+        int nStripes = (shardLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        IntStream.range(0, nStripes).parallel().forEach(stripe -> {
+            int start = stripe * STRIPE_SIZE;
+            int end = Math.min(shardLength, start + STRIPE_SIZE);
+            for (int o = 0; o < outputs.length; o++) {
+                byte[] out = outputs[o];
+                byte[] row = rows[o];
+                byte[] table = MUL[row[0] & 0xff];
+                byte[] in = inputs[0];
+                for (int i = start; i < end; i++)
+                    out[i] = table[in[i] & 0xff];
+                for (int c = 1; c < inputs.length; c++) {
+                    table = MUL[row[c] & 0xff];
+                    in = inputs[c];
+                    for (int i = start; i < end; i++)
+                        out[i] ^= table[in[i] & 0xff];
+                }
+            }
+        });
+    }
+
+    private static int mul(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    private static int inverse(int a) {
+        if (a == 0)
+            throw new ArithmeticException("Zero has no inverse in GF(256)");
+        return EXP[255 - LOG[a]];
+    }
+
+    private static int pow(int a, int n) {
+        if (n == 0)
+            return 1;
+        if (a == 0)
+            return 0;
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte[][] vandermonde(int rows, int cols) {
+        byte[][] res = new byte[rows][cols];
+        for (int r = 0; r < rows; r++)
+            for (int c = 0; c < cols; c++)
+                res[r][c] = (byte) pow(r, c);
+        return res;
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        int n = a.length, m = b[0].length, inner = b.length;
+        byte[][] res = new byte[n][m];
+        for (int r = 0; r < n; r++)
+            for (int c = 0; c < m; c++) {
+                int sum = 0;
+                for (int i = 0; i < inner; i++)
+                    sum ^= mul(a[r][i] & 0xff, b[i][c] & 0xff);
+                res[r][c] = (byte) sum;
+            }
+        return res;
+    }
+
+    /** Invert a square matrix by Gauss-Jordan elimination
+     *
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        int[][] work = new int[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c < n; c++)
+                work[r][c] = matrix[r][c] & 0xff;
+            work[r][n + r] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && work[pivot][col] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalStateException("Singular matrix!");
+            int[] tmp = work[col];
+            work[col] = work[pivot];
+            work[pivot] = tmp;
+
+            int scale = inverse(work[col][col]);
+            for (int c = 0; c < 2 * n; c++)
+                work[col][c] = mul(work[col][c], scale);
+            for (int r = 0; r < n; r++) {
+                int factor = work[r][col];
+                if (r == col || factor == 0)
+                    continue;
+                for (int c = 0; c < 2 * n; c++)
+                    work[r][c] ^= mul(factor, work[col][c]);
+            }
+        }
+        byte[][] res = new byte[n][n];
+        for (int r = 0; r < n; r++)
+            for (int c = 0; c < n; c++)
+                res[r][c] = (byte) work[r][n + c];
+        return res;
+    }
+}
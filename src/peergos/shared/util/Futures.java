@@ -71,6 +71,47 @@ public class Futures {
         );
     }
 
+    /*** Asynchronously map a list of input values, with at most parallelism mappings in progress at once
+     *
+     * @param input the values to map
+     * @param parallelism the maximum number of mappings in progress at once
+     * @param mapper maps an input value to a completable future of the output type
+     * @param <V> input type
+     * @param <T> output type
+     * @return the outputs in the same order as the inputs, or the error from a failed mapping
+     */
+    public static <V, T> CompletableFuture<List<T>> mapBounded(List<V> input,
+                                                               int parallelism,
+                                                               Function<V, CompletableFuture<T>> mapper) {
+        if (input.isEmpty())
+            return Futures.of(Collections.emptyList());
+        List<V> inputs = new ArrayList<>(input);
+        List<T> results = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+        int lanes = Math.min(Math.max(1, parallelism), inputs.size());
+        // Each lane maps every lanes'th input in sequence. The chains are built up front rather than each mapping
+        // starting the next, so already completed mappings don't grow the stack
+        List<CompletableFuture<Boolean>> done = new ArrayList<>(lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            CompletableFuture<Boolean> chain = Futures.of(true);
+            for (int i = lane; i < inputs.size(); i += lanes) {
+                int index = i;
+                chain = chain.thenCompose(x -> mapper.apply(inputs.get(index))
+                        .thenApply(value -> {
+                            synchronized (results) {
+                                results.set(index, value);
+                            }
+                            return true;
+                        }));
+            }
+            done.add(chain);
+        }
+        return combineAllInOrder(done).thenApply(x -> {
+            synchronized (results) {
+                return results;
+            }
+        });
+    }
+
     /*** Asynchronously map a set of input values to output values until one matches a predicate
      *
      * @param input the values to reduce
@@ -108,6 +149,26 @@ public class Futures {
         return result;
     }
 
+    /** Start an asynchronous computation on the common pool, so independent computations can use multiple cores
+     *
+     * @param work
+     * @param <T>
+     * @return
+     */
+    public static <T> CompletableFuture<T> runAsync(Supplier<CompletableFuture<T>> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ForkJoinPool.commonPool().execute(() -> {
+            try {
+                work.get()
+                        .thenApply(result::complete)
+                        .exceptionally(result::completeExceptionally);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
     public static <T> T logAndReturn(Throwable t, T result) {
         t.printStackTrace();
         return result;